@@ -29,6 +29,8 @@
  */
 package bdv;
 
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
@@ -55,9 +57,12 @@ import org.scijava.ui.behaviour.io.yaml.YamlConfigIO;
 import bdv.cache.CacheControl;
 import bdv.export.ProgressWriter;
 import bdv.export.ProgressWriterConsole;
+import bdv.img.cache.CacheManifest;
+import bdv.img.cache.VolatileGlobalCellCache;
 import bdv.spimdata.SpimDataMinimal;
 import bdv.spimdata.WrapBasicImgLoader;
 import bdv.spimdata.XmlIoSpimDataMinimal;
+import bdv.tools.CacheWarmer;
 import bdv.tools.HelpDialog;
 import bdv.tools.InitializeViewerState;
 import bdv.tools.RecordMaxProjectionDialog;
@@ -494,6 +499,8 @@ public class BigDataViewer
 		final BigDataViewer bdv = open( spimData, windowTitle, progressWriter, options );
 		if ( !bdv.tryLoadSettings( xmlFilename ) )
 			InitializeViewerState.initBrightness( 0.001, 0.999, bdv.viewer, bdv.setupAssignments );
+		if ( options.values.isWarmStartCache() )
+			bdv.initWarmStartCache( spimData, CacheWarmer.getManifestFile( xmlFilename ) );
 		return bdv;
 	}
 
@@ -573,6 +580,63 @@ public class BigDataViewer
 		return false;
 	}
 
+	/**
+	 * Warm the cache with the cells visible from the current view and the
+	 * bookmarks, and with the most used cells recorded in {@code manifestFile}
+	 * in previous sessions (see {@link CacheWarmer}). Record the use of cells
+	 * in this session, and save it to {@code manifestFile} when the viewer
+	 * window is closed.
+	 *
+	 * @param spimData
+	 *            the dataset shown in this viewer.
+	 * @param manifestFile
+	 *            where the {@link CacheManifest} is stored. If {@code null},
+	 *            nothing is done.
+	 */
+	public void initWarmStartCache( final AbstractSpimData< ? > spimData, final File manifestFile )
+	{
+		if ( manifestFile == null || !( spimData.getSequenceDescription().getImgLoader() instanceof ViewerImgLoader ) )
+			return;
+		final CacheControl cache = ( ( ViewerImgLoader ) spimData.getSequenceDescription().getImgLoader() ).getCacheControl();
+		if ( !( cache instanceof VolatileGlobalCellCache ) )
+			return;
+
+		final CacheManifest manifest = new CacheManifest();
+		if ( manifestFile.isFile() )
+		{
+			try
+			{
+				manifest.load( manifestFile );
+			}
+			catch ( final IOException | JDOMException e )
+			{
+				e.printStackTrace();
+			}
+		}
+
+		final CacheWarmer warmer = new CacheWarmer( spimData, viewer, bookmarks, manifest );
+		( ( VolatileGlobalCellCache ) cache ).setManifest( manifest );
+		warmer.start();
+
+		viewerFrame.addWindowListener( new WindowAdapter()
+		{
+			@Override
+			public void windowClosing( final WindowEvent e )
+			{
+				warmer.stop();
+				( ( VolatileGlobalCellCache ) cache ).setManifest( null );
+				try
+				{
+					manifest.save( manifestFile );
+				}
+				catch ( final IOException ex )
+				{
+					ex.printStackTrace();
+				}
+			}
+		} );
+	}
+
 	public void saveSettings()
 	{
 		fileChooser.setSelectedFile( proposedSettingsFile );
@@ -0,0 +1,197 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.export;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Pool of {@code short[]} block buffers shared by the cell creator threads and
+ * the {@link Hdf5BlockWriterThread}. The total size of all buffers (in use or
+ * pooled) is bounded by a memory ceiling. When the ceiling is reached,
+ * {@link #acquire(int)} blocks until the writer {@link #release(short[])
+ * releases} a buffer. This provides back-pressure from the writer to the cell
+ * creators.
+ *
+ * <p>
+ * Buffers are pooled by length, because blocks have only a few distinct sizes
+ * per level (interior blocks and border blocks).
+ */
+public class BlockBufferPool
+{
+	/**
+	 * Default memory ceiling: a quarter of the maximum heap size.
+	 */
+	public static final long DEFAULT_MAX_BYTES = Runtime.getRuntime().maxMemory() / 4;
+
+	private final long maxBytes;
+
+	private final HashMap< Integer, ArrayDeque< short[] > > free;
+
+	/**
+	 * bytes of all buffers that exist, pooled or in use.
+	 */
+	private long allocatedBytes;
+
+	/**
+	 * bytes of buffers currently in use.
+	 */
+	private long usedBytes;
+
+	private long peakUsedBytes;
+
+	private long waitNanos;
+
+	/**
+	 * @param maxBytes
+	 *            memory ceiling for all block buffers, in bytes.
+	 */
+	public BlockBufferPool( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+		free = new HashMap<>();
+	}
+
+	/**
+	 * Get a buffer with exactly {@code length} elements. Blocks while
+	 * allocating it would exceed the memory ceiling. Contents of the buffer are
+	 * undefined.
+	 */
+	public synchronized short[] acquire( final int length )
+	{
+		final ArrayDeque< short[] > queue = free.get( length );
+		if ( queue != null && !queue.isEmpty() )
+			return use( queue.poll() );
+
+		final long bytes = 2l * length;
+		final long t0 = System.nanoTime();
+		boolean interrupted = false;
+		while ( allocatedBytes + bytes > maxBytes )
+		{
+			// try to make room by dropping pooled buffers of other sizes
+			if ( dropFreeBuffers( allocatedBytes + bytes - maxBytes ) )
+				break;
+			// a single block larger than the ceiling must not deadlock
+			if ( usedBytes == 0 )
+				break;
+			try
+			{
+				wait();
+			}
+			catch ( final InterruptedException e )
+			{
+				interrupted = true;
+			}
+			final ArrayDeque< short[] > q = free.get( length );
+			if ( q != null && !q.isEmpty() )
+			{
+				waitNanos += System.nanoTime() - t0;
+				return use( q.poll() );
+			}
+		}
+		waitNanos += System.nanoTime() - t0;
+		if ( interrupted )
+			Thread.currentThread().interrupt();
+
+		allocatedBytes += bytes;
+		return use( new short[ length ] );
+	}
+
+	/**
+	 * Return a buffer that was obtained by {@link #acquire(int)} to the pool.
+	 */
+	public synchronized void release( final short[] buffer )
+	{
+		usedBytes -= 2l * buffer.length;
+		ArrayDeque< short[] > queue = free.get( buffer.length );
+		if ( queue == null )
+		{
+			queue = new ArrayDeque<>();
+			free.put( buffer.length, queue );
+		}
+		queue.push( buffer );
+		notifyAll();
+	}
+
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	public synchronized long getUsedBytes()
+	{
+		return usedBytes;
+	}
+
+	public synchronized long getPeakUsedBytes()
+	{
+		return peakUsedBytes;
+	}
+
+	/**
+	 * Get the total time, in nanoseconds, that {@link #acquire(int)} was
+	 * blocked by the memory ceiling.
+	 */
+	public synchronized long getWaitNanos()
+	{
+		return waitNanos;
+	}
+
+	private short[] use( final short[] buffer )
+	{
+		usedBytes += 2l * buffer.length;
+		peakUsedBytes = Math.max( peakUsedBytes, usedBytes );
+		return buffer;
+	}
+
+	/**
+	 * Drop pooled (unused) buffers until at least {@code bytes} are freed.
+	 *
+	 * @return whether enough bytes could be freed.
+	 */
+	private boolean dropFreeBuffers( long bytes )
+	{
+		final Iterator< ArrayDeque< short[] > > it = free.values().iterator();
+		while ( bytes > 0 && it.hasNext() )
+		{
+			final ArrayDeque< short[] > queue = it.next();
+			while ( bytes > 0 && !queue.isEmpty() )
+			{
+				final long b = 2l * queue.poll().length;
+				allocatedBytes -= b;
+				bytes -= b;
+			}
+			if ( queue.isEmpty() )
+				it.remove();
+		}
+		return bytes <= 0;
+	}
+}
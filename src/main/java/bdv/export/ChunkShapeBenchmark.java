@@ -0,0 +1,191 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.export;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Measure compressed size and decoding time of candidate chunk shapes on a
+ * sample of actual image data. Used by {@link ProposeMipmaps}.
+ *
+ * <p>
+ * The sample is taken from the center of the image, subsampled (not averaged)
+ * to the resolution of the mipmap level. This is cheap also for coarse levels,
+ * and slightly overestimates the compressed size of the averaged data.
+ * Compression uses {@link Deflater}, which implements the same algorithm as
+ * the HDF5 DEFLATE filter.
+ */
+class ChunkShapeBenchmark
+{
+	/**
+	 * Size of the sample along each dimension.
+	 */
+	static final int SAMPLE_SIZE = 64;
+
+	static class Result
+	{
+		final double compressedBytesPerVoxel;
+
+		final double decodeSecondsPerVoxel;
+
+		Result( final double compressedBytesPerVoxel, final double decodeSecondsPerVoxel )
+		{
+			this.compressedBytesPerVoxel = compressedBytesPerVoxel;
+			this.decodeSecondsPerVoxel = decodeSecondsPerVoxel;
+		}
+	}
+
+	/**
+	 * Voxels are stored as {@link UnsignedShortType}.
+	 */
+	private static final int bytesPerVoxel = 2;
+
+	private final int[] sampleDimensions;
+
+	/**
+	 * sample voxels, converted to {@link UnsignedShortType} as by
+	 * {@link WriteSequenceToHdf5}, serialized little-endian (as stored in the
+	 * HDF5 file), flattened X,Y,Z.
+	 */
+	private final byte[] sample;
+
+	/**
+	 * Extract a sample from the center of {@code img}, subsampled by
+	 * {@code factor}. The pixel type of {@code img} must be
+	 * {@link WriteSequenceToHdf5#isUnsignedShortCompatible(Object) compatible}
+	 * with {@link UnsignedShortType}.
+	 */
+	ChunkShapeBenchmark( final RandomAccessibleInterval< ? extends RealType< ? > > img, final int[] factor )
+	{
+		sampleDimensions = new int[ 3 ];
+		final long[] min = new long[ 3 ];
+		int numVoxels = 1;
+		for ( int d = 0; d < 3; ++d )
+		{
+			final long levelSize = Math.max( img.dimension( d ) / factor[ d ], 1 );
+			sampleDimensions[ d ] = ( int ) Math.min( levelSize, SAMPLE_SIZE );
+			min[ d ] = img.min( d ) + ( ( levelSize - sampleDimensions[ d ] ) / 2 ) * factor[ d ];
+			numVoxels *= sampleDimensions[ d ];
+		}
+
+		sample = new byte[ numVoxels * bytesPerVoxel ];
+		final RandomAccess< ? extends RealType< ? > > a = img.randomAccess();
+		int i = 0;
+		for ( int z = 0; z < sampleDimensions[ 2 ]; ++z )
+			for ( int y = 0; y < sampleDimensions[ 1 ]; ++y )
+				for ( int x = 0; x < sampleDimensions[ 0 ]; ++x )
+				{
+					a.setPosition( min[ 0 ] + x * factor[ 0 ], 0 );
+					a.setPosition( min[ 1 ] + y * factor[ 1 ], 1 );
+					a.setPosition( min[ 2 ] + z * factor[ 2 ], 2 );
+					final int value = WriteSequenceToHdf5.toUnsignedShort( a.get() );
+					sample[ i++ ] = ( byte ) value;
+					sample[ i++ ] = ( byte ) ( value >> 8 );
+				}
+	}
+
+	/**
+	 * Split the sample into chunks of the given shape, and measure compressed
+	 * size and decoding time.
+	 */
+	Result benchmark( final int[] chunkSize, final boolean deflate )
+	{
+		final int[] c = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			c[ d ] = Math.min( chunkSize[ d ], sampleDimensions[ d ] );
+		final int chunkBytes = c[ 0 ] * c[ 1 ] * c[ 2 ] * bytesPerVoxel;
+		final byte[] chunk = new byte[ chunkBytes ];
+		final byte[] compressed = new byte[ chunkBytes + chunkBytes / 100 + 64 ];
+		final byte[] decoded = new byte[ chunkBytes ];
+
+		final Deflater deflater = new Deflater();
+		final Inflater inflater = new Inflater();
+		long totalVoxels = 0;
+		long totalBytes = 0;
+		long totalNanos = 0;
+		for ( int oz = 0; oz + c[ 2 ] <= sampleDimensions[ 2 ]; oz += c[ 2 ] )
+			for ( int oy = 0; oy + c[ 1 ] <= sampleDimensions[ 1 ]; oy += c[ 1 ] )
+				for ( int ox = 0; ox + c[ 0 ] <= sampleDimensions[ 0 ]; ox += c[ 0 ] )
+				{
+					copyChunk( ox, oy, oz, c, chunk );
+					totalVoxels += c[ 0 ] * c[ 1 ] * c[ 2 ];
+					if ( !deflate )
+					{
+						totalBytes += chunkBytes;
+						continue;
+					}
+
+					deflater.reset();
+					deflater.setInput( chunk );
+					deflater.finish();
+					final int compressedBytes = deflater.deflate( compressed );
+					totalBytes += compressedBytes;
+
+					final long t0 = System.nanoTime();
+					inflater.reset();
+					inflater.setInput( compressed, 0, compressedBytes );
+					try
+					{
+						inflater.inflate( decoded );
+					}
+					catch ( final DataFormatException e )
+					{
+						e.printStackTrace();
+					}
+					totalNanos += System.nanoTime() - t0;
+				}
+		deflater.end();
+		inflater.end();
+
+		if ( totalVoxels == 0 )
+			return new Result( bytesPerVoxel, 0 );
+		return new Result( ( double ) totalBytes / totalVoxels, totalNanos * 1e-9 / totalVoxels );
+	}
+
+	private void copyChunk( final int ox, final int oy, final int oz, final int[] c, final byte[] chunk )
+	{
+		final int rowBytes = c[ 0 ] * bytesPerVoxel;
+		int i = 0;
+		for ( int z = oz; z < oz + c[ 2 ]; ++z )
+			for ( int y = oy; y < oy + c[ 1 ]; ++y )
+			{
+				final int o = ( ( z * sampleDimensions[ 1 ] + y ) * sampleDimensions[ 0 ] + ox ) * bytesPerVoxel;
+				System.arraycopy( sample, o, chunk, i, rowBytes );
+				i += rowBytes;
+			}
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.export;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput and occupancy counters for the stages of the HDF5 export
+ * pipeline. The stages are
+ * <ul>
+ * <li>{@link #copy}: reading full-resolution blocks from the input image,</li>
+ * <li>{@link #downsample}: reading and averaging input pixels for
+ * lower-resolution blocks,</li>
+ * <li>{@link #write}: compressing (if the DEFLATE filter is enabled) and
+ * writing blocks in the {@link Hdf5BlockWriterThread}.</li>
+ * </ul>
+ * Additionally, {@link #empty} counts all-zero blocks that were skipped
+ * instead of written (see {@link bdv.img.hdf5.CellOccupancy}), and
+ * {@link #preload} counts views that were preloaded by a {@link ViewPreloader}
+ * (one "block" per view), either by copying them into memory or by enqueuing
+ * all their cells to the fetch queue of the input.
+ *
+ * <p>
+ * Reading and downsampling are fused in a single pass over the input, and
+ * compression happens inside the HDF5 filter pipeline, therefore they are not
+ * timed separately.
+ *
+ * <p>
+ * Comparing the utilization of the stages shows the bottleneck: If the writer
+ * is busy nearly all the time and the writer queue is full, the export is I/O
+ * bound. If the cell creator threads are busy and the queue is mostly empty,
+ * the export is bound by reading the input.
+ */
+public class ExportPipelineStatistics
+{
+	public static class Stage
+	{
+		private final String name;
+
+		private final AtomicLong numBlocks = new AtomicLong();
+
+		private final AtomicLong numBytes = new AtomicLong();
+
+		private final AtomicLong busyNanos = new AtomicLong();
+
+		Stage( final String name )
+		{
+			this.name = name;
+		}
+
+		/**
+		 * Record that a block of {@code bytes} was processed in
+		 * {@code nanos} nanoseconds.
+		 */
+		public void add( final long bytes, final long nanos )
+		{
+			numBlocks.incrementAndGet();
+			numBytes.addAndGet( bytes );
+			busyNanos.addAndGet( nanos );
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public long getNumBlocks()
+		{
+			return numBlocks.get();
+		}
+
+		public long getNumBytes()
+		{
+			return numBytes.get();
+		}
+
+		/**
+		 * Get the sum of time that all threads spent in this stage, in
+		 * nanoseconds.
+		 */
+		public long getBusyNanos()
+		{
+			return busyNanos.get();
+		}
+
+		void reset()
+		{
+			numBlocks.set( 0 );
+			numBytes.set( 0 );
+			busyNanos.set( 0 );
+		}
+	}
+
+	public final Stage copy = new Stage( "copy" );
+
+	public final Stage downsample = new Stage( "downsample" );
+
+	public final Stage write = new Stage( "write" );
+
+	public final Stage empty = new Stage( "empty" );
+
+	public final Stage preload = new Stage( "preload" );
+
+	private final Stage[] stages = new Stage[] { preload, copy, downsample, write, empty };
+
+	private final AtomicLong numViews = new AtomicLong();
+
+	private long startNanos;
+
+	private long queueLengthSum;
+
+	private long queueLengthSamples;
+
+	private int queueLengthMax;
+
+	private int queueCapacity;
+
+	private BlockBufferPool pool;
+
+	public ExportPipelineStatistics()
+	{
+		reset();
+	}
+
+	/**
+	 * Reset all counters and restart the wall-clock timer.
+	 */
+	public synchronized void reset()
+	{
+		for ( final Stage stage : stages )
+			stage.reset();
+		numViews.set( 0 );
+		queueLengthSum = 0;
+		queueLengthSamples = 0;
+		queueLengthMax = 0;
+		startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Record the length of the writer queue, sampled whenever a task is
+	 * enqueued.
+	 */
+	synchronized void sampleQueueLength( final int length, final int capacity )
+	{
+		queueLengthSum += length;
+		++queueLengthSamples;
+		queueLengthMax = Math.max( queueLengthMax, length );
+		queueCapacity = capacity;
+	}
+
+	/**
+	 * Record that all blocks of a view have been created.
+	 */
+	public void viewCompleted()
+	{
+		numViews.incrementAndGet();
+	}
+
+	public long getNumViews()
+	{
+		return numViews.get();
+	}
+
+	void setBlockBufferPool( final BlockBufferPool pool )
+	{
+		this.pool = pool;
+	}
+
+	/**
+	 * Get the wall-clock time since the last {@link #reset()}, in
+	 * nanoseconds.
+	 */
+	public synchronized long getElapsedNanos()
+	{
+		return System.nanoTime() - startNanos;
+	}
+
+	public synchronized double getMeanQueueLength()
+	{
+		return queueLengthSamples == 0 ? 0 : ( double ) queueLengthSum / queueLengthSamples;
+	}
+
+	public synchronized int getMaxQueueLength()
+	{
+		return queueLengthMax;
+	}
+
+	/**
+	 * Print throughput (blocks/s and MB/s over wall-clock time) and
+	 * utilization (busy time over wall-clock time, summed over threads) of
+	 * each stage, as well as writer queue and buffer pool occupancy.
+	 */
+	public synchronized void print( final PrintStream out )
+	{
+		final double seconds = Math.max( getElapsedNanos(), 1 ) / 1e9;
+		for ( final Stage stage : stages )
+		{
+			if ( stage.getNumBlocks() == 0 )
+				continue;
+			out.printf( "  %-10s %8.1f blocks/s %8.1f MB/s   busy %6.1f%%\n",
+					stage.getName(),
+					stage.getNumBlocks() / seconds,
+					stage.getNumBytes() / seconds / 1e6,
+					100.0 * stage.getBusyNanos() / 1e9 / seconds );
+		}
+		if ( numViews.get() > 0 )
+			out.printf( "  views: %d, %.2f views/s\n", numViews.get(), numViews.get() / seconds );
+		out.printf( "  writer queue: mean %.1f, max %d of %d\n", getMeanQueueLength(), queueLengthMax, queueCapacity );
+		if ( pool != null )
+			out.printf( "  block buffers: peak %.1f MB of %.1f MB, blocked %.1f s\n",
+					pool.getPeakUsedBytes() / 1e6,
+					pool.getMaxBytes() / 1e6,
+					pool.getWaitNanos() / 1e9 );
+	}
+}
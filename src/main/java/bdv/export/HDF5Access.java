@@ -73,6 +73,12 @@ class HDF5Access implements IHDF5Access
 		hdf5Writer.int16().writeMDArrayBlockWithOffset( datasetPath, array, reorderedOffset );
 	}
 
+	@Override
+	public void writeOccupancy( final String path, final byte[] bits )
+	{
+		hdf5Writer.int8().writeArray( path, bits );
+	}
+
 	@Override
 	public void closeDataset()
 	{}
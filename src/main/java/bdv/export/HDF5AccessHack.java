@@ -83,6 +83,12 @@ class HDF5AccessHack implements IHDF5Access
 		hdf5Writer.writeIntMatrix( Util.getSubdivisionsPath( setupIdPartition ), mipmapInfo.getSubdivisions() );
 	}
 
+	@Override
+	public void writeOccupancy( final String path, final byte[] bits )
+	{
+		hdf5Writer.int8().writeArray( path, bits );
+	}
+
 	@Override
 	public void closeDataset()
 	{
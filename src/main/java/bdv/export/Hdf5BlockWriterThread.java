@@ -49,17 +49,53 @@ class Hdf5BlockWriterThread extends Thread implements IHDF5Access
 
 	private final BlockingQueue< Hdf5BlockWriterThread.Hdf5Task > queue;
 
+	private final int queueLength;
+
+	private final BlockBufferPool blockBufferPool;
+
+	private final ExportPipelineStatistics statistics;
+
 	private volatile boolean shutdown;
 
+	/**
+	 * The exception that stopped the writer thread, or {@code null}.
+	 */
+	private volatile RuntimeException failure;
+
 	public Hdf5BlockWriterThread( final IHDF5Access hdf5Access, final int queueLength )
+	{
+		this( hdf5Access, queueLength, BlockBufferPool.DEFAULT_MAX_BYTES );
+	}
+
+	public Hdf5BlockWriterThread( final IHDF5Access hdf5Access, final int queueLength, final long maxBlockBufferBytes )
 	{
 		this.hdf5Access = hdf5Access;
+		this.queueLength = queueLength;
 		queue = new ArrayBlockingQueue<>( queueLength );
+		blockBufferPool = new BlockBufferPool( maxBlockBufferBytes );
+		statistics = new ExportPipelineStatistics();
+		statistics.setBlockBufferPool( blockBufferPool );
 		shutdown = false;
+		failure = null;
 		setName( "HDF5BlockWriterQueue" );
 	}
 
 	public Hdf5BlockWriterThread( final File hdf5File, final int queueLength )
+	{
+		this( hdf5File, queueLength, BlockBufferPool.DEFAULT_MAX_BYTES );
+	}
+
+	public Hdf5BlockWriterThread( final File hdf5File, final int queueLength, final long maxBlockBufferBytes )
+	{
+		this( openHdf5Access( hdf5File ), queueLength, maxBlockBufferBytes );
+	}
+
+	public Hdf5BlockWriterThread( final String hdf5FilePath, final int queueLength )
+	{
+		this( new File( hdf5FilePath), queueLength );
+	}
+
+	private static IHDF5Access openHdf5Access( final File hdf5File )
 	{
 		final IHDF5Writer hdf5Writer = HDF5Factory.open( hdf5File );
 		IHDF5Access hdf5Access;
@@ -72,15 +108,26 @@ class Hdf5BlockWriterThread extends Thread implements IHDF5Access
 			e.printStackTrace();
 			hdf5Access = new HDF5Access( hdf5Writer );
 		}
-		this.hdf5Access = hdf5Access;
-		queue = new ArrayBlockingQueue<>( queueLength );
-		shutdown = false;
-		setName( "HDF5BlockWriterQueue" );
+		return hdf5Access;
 	}
 
-	public Hdf5BlockWriterThread( final String hdf5FilePath, final int queueLength )
+	/**
+	 * Get the pool from which block buffers for
+	 * {@link #writePooledBlockWithOffset(short[], long[], long[])} should be
+	 * taken.
+	 */
+	public BlockBufferPool getBlockBufferPool()
 	{
-		this( new File( hdf5FilePath), queueLength );
+		return blockBufferPool;
+	}
+
+	/**
+	 * Get throughput and occupancy counters of the export pipeline feeding
+	 * this writer.
+	 */
+	public ExportPipelineStatistics getStatistics()
+	{
+		return statistics;
 	}
 
 	@Override
@@ -101,16 +148,47 @@ class Hdf5BlockWriterThread extends Thread implements IHDF5Access
 			}
 			catch ( final InterruptedException e )
 			{}
+			catch ( final RuntimeException e )
+			{
+				// Stop writing. Tasks that are queued or put later are
+				// discarded, so that the cell creator threads don't block.
+				failure = e;
+				discardQueuedTasks();
+				synchronized ( emptyMonitor )
+				{
+					emptyMonitor.notifyAll();
+				}
+				return;
+			}
 		}
 	}
 
+	private void discardQueuedTasks()
+	{
+		Hdf5BlockWriterThread.Hdf5Task task;
+		while ( ( task = queue.poll() ) != null )
+			if ( task instanceof WriteBlockWithOffsetTask )
+				( ( WriteBlockWithOffsetTask ) task ).releaseBuffer();
+	}
+
+	/**
+	 * Throw the exception that stopped the writer thread, if there was one.
+	 * Blocks enqueued after that have been discarded.
+	 */
+	public void checkFailure()
+	{
+		final RuntimeException e = failure;
+		if ( e != null )
+			throw new RuntimeException( "writing to HDF5 failed", e );
+	}
+
 	private final Object emptyMonitor = new Object();
 
 	public void waitUntilEmpty()
 	{
 		synchronized ( emptyMonitor )
 		{
-			while ( !queue.isEmpty() )
+			while ( !queue.isEmpty() && failure == null )
 				try
 				{
 					emptyMonitor.wait();
@@ -132,7 +210,14 @@ class Hdf5BlockWriterThread extends Thread implements IHDF5Access
 		{
 			e.printStackTrace();
 		}
-		hdf5Access.close();
+		try
+		{
+			hdf5Access.close();
+		}
+		finally
+		{
+			checkFailure();
+		}
 	}
 
 	@Override
@@ -156,7 +241,24 @@ class Hdf5BlockWriterThread extends Thread implements IHDF5Access
 	@Override
 	public void writeBlockWithOffset( final short[] data, final long[] blockDimensions, final long[] offset )
 	{
-		put( new WriteBlockWithOffsetTask( data, blockDimensions, offset ) );
+		put( new WriteBlockWithOffsetTask( data, blockDimensions, offset, null, statistics ) );
+	}
+
+	/**
+	 * Enqueue writing a block whose {@code data} was
+	 * {@link BlockBufferPool#acquire(int) acquired} from
+	 * {@link #getBlockBufferPool()}. The buffer is released to the pool after
+	 * it has been written.
+	 */
+	public void writePooledBlockWithOffset( final short[] data, final long[] blockDimensions, final long[] offset )
+	{
+		put( new WriteBlockWithOffsetTask( data, blockDimensions, offset, blockBufferPool, statistics ) );
+	}
+
+	@Override
+	public void writeOccupancy( final String path, final byte[] bits )
+	{
+		put( new WriteOccupancyTask( path, bits ) );
 	}
 
 	@Override
@@ -169,13 +271,23 @@ class Hdf5BlockWriterThread extends Thread implements IHDF5Access
 	{
 		try
 		{
-			queue.put( task );
-			return true;
+			statistics.sampleQueueLength( queue.size(), queueLength );
+			while ( failure == null )
+			{
+				if ( queue.offer( task, 10, TimeUnit.MILLISECONDS ) )
+				{
+					// the writer may have failed before taking the task
+					if ( failure != null )
+						discardQueuedTasks();
+					return failure == null;
+				}
+			}
 		}
 		catch ( final InterruptedException e )
-		{
-			return false;
-		}
+		{}
+		if ( task instanceof WriteBlockWithOffsetTask )
+			( ( WriteBlockWithOffsetTask ) task ).releaseBuffer();
+		return false;
 	}
 
 	private static class WriteMipmapDescriptionTask implements Hdf5BlockWriterThread.Hdf5Task
@@ -231,17 +343,57 @@ class Hdf5BlockWriterThread extends Thread implements IHDF5Access
 
 		private final long[] offset;
 
-		public WriteBlockWithOffsetTask( final short[] data, final long[] blockDimensions, final long[] offset )
+		private final BlockBufferPool pool;
+
+		private final ExportPipelineStatistics statistics;
+
+		public WriteBlockWithOffsetTask( final short[] data, final long[] blockDimensions, final long[] offset, final BlockBufferPool pool, final ExportPipelineStatistics statistics )
 		{
 			this.data = data;
 			this.blockDimensions = blockDimensions;
 			this.offset = offset;
+			this.pool = pool;
+			this.statistics = statistics;
+		}
+
+		@Override
+		public void run( final IHDF5Access hdf5Access )
+		{
+			try
+			{
+				final long t0 = System.nanoTime();
+				hdf5Access.writeBlockWithOffset( data, blockDimensions, offset );
+				statistics.write.add( 2l * data.length, System.nanoTime() - t0 );
+			}
+			finally
+			{
+				releaseBuffer();
+			}
+		}
+
+		void releaseBuffer()
+		{
+			if ( pool != null )
+				pool.release( data );
+		}
+	}
+
+	private static class WriteOccupancyTask implements Hdf5BlockWriterThread.Hdf5Task
+	{
+		private final String path;
+
+		private final byte[] bits;
+
+		public WriteOccupancyTask( final String path, final byte[] bits )
+		{
+			this.path = path;
+			this.bits = bits;
 		}
 
 		@Override
 		public void run( final IHDF5Access hdf5Access )
 		{
-			hdf5Access.writeBlockWithOffset( data, blockDimensions, offset );
+			hdf5Access.writeOccupancy( path, bits );
 		}
 	}
 
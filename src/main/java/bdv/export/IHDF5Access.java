@@ -40,6 +40,11 @@ interface IHDF5Access
 
 	public void writeBlockWithOffset( final short[] data, final long[] blockDimensions, final long[] offset );
 
+	/**
+	 * Write a serialized {@link bdv.img.hdf5.CellOccupancy} bitmap.
+	 */
+	public void writeOccupancy( final String path, final byte[] bits );
+
 	public void closeDataset();
 
 	public void close();
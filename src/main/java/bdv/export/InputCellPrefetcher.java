@@ -0,0 +1,146 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.export;
+
+import bdv.ViewerImgLoader;
+import bdv.img.cache.VolatileCachedCellImg;
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
+import net.imglib2.img.cell.CellGrid;
+
+/**
+ * Prefetches cells of a cached, chunked input image (for example from another
+ * BDV hdf5, Imaris, or remote dataset) ahead of the export. Cells are enqueued
+ * to the fetch queue of the input {@link ViewerImgLoader}, so they are loaded
+ * by its fetcher threads while the cell creator threads are still busy with
+ * the previous plane of output blocks.
+ *
+ * <p>
+ * The cell grid of the input is also used to order output blocks such that
+ * blocks reading from the same input cells are created one after another
+ * (see {@link #getInputGrid()}).
+ */
+public class InputCellPrefetcher
+{
+	private final VolatileCachedCellImg< ?, ? > cellImg;
+
+	private final CellGrid grid;
+
+	private final long[] gridMax;
+
+	/**
+	 * Hints for enqueuing cells. These are passed with every request, the
+	 * hints of {@link #cellImg} are left unchanged.
+	 */
+	private final CacheHints cacheHints;
+
+	private InputCellPrefetcher( final VolatileCachedCellImg< ?, ? > cellImg )
+	{
+		this.cellImg = cellImg;
+		grid = cellImg.getCellGrid();
+		final int n = grid.numDimensions();
+		gridMax = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			gridMax[ d ] = grid.getGridDimensions()[ d ] - 1;
+		final CacheHints d = cellImg.getDefaultCacheHints();
+		cacheHints = new CacheHints( LoadingStrategy.VOLATILE, d.getQueuePriority(), false );
+	}
+
+	/**
+	 * Create a prefetcher for the full resolution image of the given view.
+	 *
+	 * @return prefetcher, or {@code null} if {@code imgLoader} is not a
+	 *         {@link ViewerImgLoader} providing cached cell images.
+	 */
+	public static InputCellPrefetcher create( final BasicImgLoader imgLoader, final int timepointId, final int setupId )
+	{
+		if ( !( imgLoader instanceof ViewerImgLoader ) )
+			return null;
+		final RandomAccessibleInterval< ? > img = ( ( ViewerImgLoader ) imgLoader ).getSetupImgLoader( setupId ).getVolatileImage( timepointId, 0 );
+		if ( !( img instanceof VolatileCachedCellImg ) )
+			return null;
+		return new InputCellPrefetcher( ( VolatileCachedCellImg< ?, ? > ) img );
+	}
+
+	/**
+	 * Get the cell grid of the input image.
+	 */
+	public CellGrid getInputGrid()
+	{
+		return grid;
+	}
+
+	/**
+	 * Get the flattened index of the input cell containing the given input
+	 * position.
+	 */
+	public long getInputCellIndex( final long[] position )
+	{
+		final int n = gridMax.length;
+		long index = 0;
+		for ( int d = n - 1; d >= 0; --d )
+		{
+			final long c = Math.min( Math.max( position[ d ] / grid.cellDimension( d ), 0 ), gridMax[ d ] );
+			index = index * ( gridMax[ d ] + 1 ) + c;
+		}
+		return index;
+	}
+
+	/**
+	 * Enqueue all input cells intersecting the given interval for
+	 * asynchronous loading.
+	 *
+	 * @param min
+	 *            min of the interval, in input coordinates
+	 * @param max
+	 *            max of the interval, in input coordinates
+	 */
+	public void prefetch( final long[] min, final long[] max )
+	{
+		final int n = gridMax.length;
+		final long[] minCell = new long[ n ];
+		final long[] maxCell = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			final int c = grid.cellDimension( d );
+			minCell[ d ] = Math.min( Math.max( min[ d ] / c, 0 ), gridMax[ d ] );
+			maxCell[ d ] = Math.min( Math.max( max[ d ] / c, 0 ), gridMax[ d ] );
+		}
+
+		final long sizeX = gridMax[ 0 ] + 1;
+		final long sizeY = gridMax[ 1 ] + 1;
+		for ( long z = minCell[ 2 ]; z <= maxCell[ 2 ]; ++z )
+			for ( long y = minCell[ 1 ]; y <= maxCell[ 1 ]; ++y )
+				for ( long x = minCell[ 0 ]; x <= maxCell[ 0 ]; ++x )
+					cellImg.getCell( x + sizeX * ( y + sizeY * z ), cacheHints );
+	}
+}
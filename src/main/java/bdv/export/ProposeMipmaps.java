@@ -34,8 +34,12 @@ import java.util.HashMap;
 import java.util.Map;
 
 import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
 import mpicbg.spim.data.generic.sequence.BasicViewSetup;
 import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
 
 /**
  * Propose number of mipmap levels, as well subsampling factors and chunk size
@@ -47,6 +51,15 @@ import mpicbg.spim.data.sequence.VoxelDimensions;
  * one is closer to isotropic. It is very likely that more efficient choices can
  * be found by manual tuning, depending on hardware and use case.
  *
+ * <p>
+ * Alternatively, {@link #proposeMipmaps(BasicViewSetup, RandomAccessibleInterval, StorageCostModel)}
+ * benchmarks candidate chunk shapes on a sample of the actual image data. For
+ * each mipmap level, it measures compressed size and decoding time of each
+ * candidate and chooses the one with the lowest expected slice read cost
+ * according to a {@link StorageCostModel}. The number of levels is chosen
+ * such that the coarsest level can be browsed within the target cost of the
+ * model.
+ *
  * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
  */
 public class ProposeMipmaps
@@ -127,19 +140,133 @@ public class ProposeMipmaps
 			if ( maxSize <= 256 )
 				break;
 
+			nextResolution( res, voxelScale );
+		}
+		return new ExportMipmapInfo( resolutions.toArray( new int[ 0 ][ 0 ] ), subdivisions.toArray( new int[ 0 ][ 0 ] ) );
+	}
+
+	/**
+	 * Propose number of mipmap levels as well subsampling factors and chunk
+	 * size for each level, for each setup of the given sequence. Chunk sizes
+	 * are chosen by benchmarking candidates on the first timepoint of each
+	 * setup. Setups whose image type cannot be exported by
+	 * {@link WriteSequenceToHdf5} fall back to
+	 * {@link #proposeMipmaps(BasicViewSetup)}.
+	 *
+	 * @param seq
+	 * @param model
+	 *            storage and viewing cost model.
+	 * @return map from setup id to proposed mipmap settings
+	 */
+	public static Map< Integer, ExportMipmapInfo > proposeMipmaps( final AbstractSequenceDescription< ?, ?, ? > seq, final StorageCostModel model )
+	{
+		final BasicImgLoader imgLoader = seq.getImgLoader();
+		final int timepointId = seq.getTimePoints().getTimePointsOrdered().get( 0 ).getId();
+		final HashMap< Integer, ExportMipmapInfo > perSetupExportMipmapInfo = new HashMap<>();
+		for ( final BasicViewSetup setup : seq.getViewSetupsOrdered() )
+		{
+			final int setupId = setup.getId();
+			final Object type = imgLoader.getSetupImgLoader( setupId ).getImageType();
+			if ( WriteSequenceToHdf5.isUnsignedShortCompatible( type ) )
+				perSetupExportMipmapInfo.put( setupId, proposeMipmaps( setup, getImage( imgLoader, setupId, timepointId ), model ) );
+			else
+				perSetupExportMipmapInfo.put( setupId, proposeMipmaps( setup ) );
+		}
+		return perSetupExportMipmapInfo;
+	}
+
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private static RandomAccessibleInterval getImage( final BasicImgLoader imgLoader, final int setupId, final int timepointId )
+	{
+		return imgLoader.getSetupImgLoader( setupId ).getImage( timepointId );
+	}
+
+	/**
+	 * Propose number of mipmap levels as well subsampling factors and chunk
+	 * size for each level. Subsampling factors of successive levels are chosen
+	 * as in {@link #proposeMipmaps(BasicViewSetup)}. For each level, candidate
+	 * chunk shapes are benchmarked on a sample of {@code img} (compressed size
+	 * and decoding time, with voxels stored as they are written by
+	 * {@link WriteSequenceToHdf5}), and the candidate with the lowest expected
+	 * slice read cost according to {@code model} is chosen. Coarser levels
+	 * are added until a level fits into the {@link StorageCostModel#getViewportSize()
+	 * viewport} and its slice read cost is within
+	 * {@link StorageCostModel#getTargetSliceSeconds()}.
+	 *
+	 * @param setup
+	 * @param img
+	 *            full resolution image data of the setup (any timepoint). The
+	 *            pixel type must be exportable by {@link WriteSequenceToHdf5}.
+	 * @param model
+	 *            storage and viewing cost model.
+	 * @return proposed mipmap settings
+	 */
+	public static ExportMipmapInfo proposeMipmaps( final BasicViewSetup setup, final RandomAccessibleInterval< ? extends RealType< ? > > img, final StorageCostModel model )
+	{
+		final VoxelDimensions voxelSize = setup.getVoxelSize();
+		final double[] voxelScale = new double[ 3 ];
+		voxelSize.dimensions( voxelScale );
+		normalizeVoxelSize( voxelScale );
+
+		final int[] res = new int[] { 1, 1, 1 };
+		final long[] levelDimensions = new long[ 3 ];
+
+		final ArrayList< int[] > resolutions = new ArrayList<>();
+		final ArrayList< int[] > subdivisions = new ArrayList<>();
+
+		final RandomAccessibleInterval< ? extends RealType< ? > > zeroMinImg = Views.zeroMin( img );
+		while ( true )
+		{
+			long maxSize = 0;
 			for ( int d = 0; d < 3; ++d )
 			{
-				if ( voxelScale[ d ] <= 2.0 )
+				levelDimensions[ d ] = Math.max( img.dimension( d ) / res[ d ], 1 );
+				maxSize = Math.max( maxSize, levelDimensions[ d ] );
+			}
+
+			final ChunkShapeBenchmark benchmark = new ChunkShapeBenchmark( zeroMinImg, res );
+			double bestCost = Double.POSITIVE_INFINITY;
+			int[] bestCandidate = null;
+			for ( final int[] candidate : chunkShapeCandidates )
+			{
+				final ChunkShapeBenchmark.Result r = benchmark.benchmark( candidate, model.isDeflate() );
+				final double cost = model.sliceCost( levelDimensions, candidate, r.compressedBytesPerVoxel, r.decodeSecondsPerVoxel );
+				if ( cost < bestCost )
 				{
-					res[ d ] *= 2;
-					voxelScale[ d ] *= 2;
+					bestCost = cost;
+					bestCandidate = candidate;
 				}
 			}
-			normalizeVoxelSize( voxelScale );
+			resolutions.add( res.clone() );
+			subdivisions.add( bestCandidate );
+
+			final boolean fitsViewport = maxSize <= model.getViewportSize();
+			if ( ( fitsViewport && bestCost <= model.getTargetSliceSeconds() ) || maxSize <= 1 )
+				break;
+
+			nextResolution( res, voxelScale );
 		}
 		return new ExportMipmapInfo( resolutions.toArray( new int[ 0 ][ 0 ] ), subdivisions.toArray( new int[ 0 ][ 0 ] ) );
 	}
 
+	/**
+	 * Double the subsampling factors {@code res} in all dimensions where the
+	 * (normalized) {@code voxelScale} is at most 2, such that voxels of the
+	 * next level are closer to isotropic.
+	 */
+	private static void nextResolution( final int[] res, final double[] voxelScale )
+	{
+		for ( int d = 0; d < 3; ++d )
+		{
+			if ( voxelScale[ d ] <= 2.0 )
+			{
+				res[ d ] *= 2;
+				voxelScale[ d ] *= 2;
+			}
+		}
+		normalizeVoxelSize( voxelScale );
+	}
+
 	/**
 	 * Format {@code in[][]} array, such as resolutions or chunksizes
 	 * definition, as a String (to be used in export dialog textfields).
@@ -178,4 +305,17 @@ public class ProposeMipmaps
 	private static int[] subdiv_16_16_16 = new int[] { 16, 16, 16 };
 
 	private static int[][] subdiv_32_32_4 = new int[][] { { 4, 32, 32 }, { 32, 4, 32 }, { 32, 32, 4 } };
+
+	/**
+	 * Chunk shapes benchmarked by
+	 * {@link #proposeMipmaps(BasicViewSetup, RandomAccessibleInterval, StorageCostModel)}.
+	 * Anisotropic shapes are included with the short axis along each
+	 * dimension.
+	 */
+	private static int[][] chunkShapeCandidates = new int[][] {
+			{ 16, 16, 16 }, { 32, 32, 32 },
+			{ 32, 32, 4 }, { 32, 4, 32 }, { 4, 32, 32 },
+			{ 32, 32, 8 }, { 32, 8, 32 }, { 8, 32, 32 },
+			{ 64, 64, 4 }, { 64, 4, 64 }, { 4, 64, 64 },
+			{ 64, 64, 8 }, { 64, 8, 64 }, { 8, 64, 64 } };
 }
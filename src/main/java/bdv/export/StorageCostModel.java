@@ -0,0 +1,237 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.export;
+
+/**
+ * Parameters describing the storage medium and typical viewing patterns, used
+ * by {@link ProposeMipmaps} to estimate the interactive read cost of candidate
+ * chunk shapes.
+ *
+ * <p>
+ * The cost of reading one chunk is modeled as
+ * {@code seek + overhead + compressedBytes / bandwidth + decodeTime}. Viewing
+ * is modeled as looking at axis-aligned slices of {@code viewportSize}
+ * &times; {@code viewportSize} voxels, with orientations XY, XZ, YZ weighted
+ * by {@code orientationWeights}. Users typically browse through
+ * {@code slicesPerVisit} consecutive slices, so a chunk that is thick along the
+ * slice normal is amortized over several slices.
+ *
+ * <p>
+ * {@code targetSliceSeconds} is the slice read cost that is acceptable for
+ * interactive browsing. Coarser mipmap levels are added until a level fits
+ * into the viewport and can be read within this time.
+ */
+public class StorageCostModel
+{
+	private final double seekSeconds;
+
+	private final double bytesPerSecond;
+
+	private final double chunkOverheadSeconds;
+
+	private final boolean deflate;
+
+	private final int viewportSize;
+
+	private final double[] orientationWeights;
+
+	private final int slicesPerVisit;
+
+	private final double targetSliceSeconds;
+
+	/**
+	 * Default acceptable slice read cost, in seconds.
+	 */
+	public static final double DEFAULT_TARGET_SLICE_SECONDS = 0.05;
+
+	/**
+	 * Create a model with {@link #DEFAULT_TARGET_SLICE_SECONDS}.
+	 *
+	 * @param seekSeconds
+	 *            latency for accessing a chunk on the storage medium.
+	 * @param bytesPerSecond
+	 *            sequential read bandwidth of the storage medium.
+	 * @param chunkOverheadSeconds
+	 *            fixed per-chunk cost of the HDF5 library and cache.
+	 * @param deflate
+	 *            whether chunks are compressed with the HDF5 DEFLATE filter.
+	 * @param viewportSize
+	 *            width and height of the visible region, in voxels.
+	 * @param orientationWeights
+	 *            relative frequency of viewing XY, XZ, and YZ slices.
+	 * @param slicesPerVisit
+	 *            number of consecutive slices typically viewed along the
+	 *            slice normal.
+	 */
+	public StorageCostModel(
+			final double seekSeconds,
+			final double bytesPerSecond,
+			final double chunkOverheadSeconds,
+			final boolean deflate,
+			final int viewportSize,
+			final double[] orientationWeights,
+			final int slicesPerVisit )
+	{
+		this( seekSeconds, bytesPerSecond, chunkOverheadSeconds, deflate, viewportSize, orientationWeights, slicesPerVisit, DEFAULT_TARGET_SLICE_SECONDS );
+	}
+
+	/**
+	 * @param seekSeconds
+	 *            latency for accessing a chunk on the storage medium.
+	 * @param bytesPerSecond
+	 *            sequential read bandwidth of the storage medium.
+	 * @param chunkOverheadSeconds
+	 *            fixed per-chunk cost of the HDF5 library and cache.
+	 * @param deflate
+	 *            whether chunks are compressed with the HDF5 DEFLATE filter.
+	 * @param viewportSize
+	 *            width and height of the visible region, in voxels.
+	 * @param orientationWeights
+	 *            relative frequency of viewing XY, XZ, and YZ slices.
+	 * @param slicesPerVisit
+	 *            number of consecutive slices typically viewed along the
+	 *            slice normal.
+	 * @param targetSliceSeconds
+	 *            acceptable read cost per slice for interactive browsing.
+	 */
+	public StorageCostModel(
+			final double seekSeconds,
+			final double bytesPerSecond,
+			final double chunkOverheadSeconds,
+			final boolean deflate,
+			final int viewportSize,
+			final double[] orientationWeights,
+			final int slicesPerVisit,
+			final double targetSliceSeconds )
+	{
+		this.seekSeconds = seekSeconds;
+		this.bytesPerSecond = bytesPerSecond;
+		this.chunkOverheadSeconds = chunkOverheadSeconds;
+		this.deflate = deflate;
+		this.viewportSize = viewportSize;
+		this.orientationWeights = orientationWeights.clone();
+		this.slicesPerVisit = Math.max( 1, slicesPerVisit );
+		this.targetSliceSeconds = targetSliceSeconds;
+	}
+
+	/**
+	 * Local solid state disk, mostly XY viewing.
+	 */
+	public static StorageCostModel localSSD( final boolean deflate )
+	{
+		return new StorageCostModel( 0.1e-3, 500e6, 50e-6, deflate, 1024, new double[] { 0.6, 0.2, 0.2 }, 8 );
+	}
+
+	/**
+	 * Local spinning disk, mostly XY viewing.
+	 */
+	public static StorageCostModel localHDD( final boolean deflate )
+	{
+		return new StorageCostModel( 8e-3, 150e6, 50e-6, deflate, 1024, new double[] { 0.6, 0.2, 0.2 }, 8 );
+	}
+
+	/**
+	 * Network share, mostly XY viewing.
+	 */
+	public static StorageCostModel network( final boolean deflate )
+	{
+		return new StorageCostModel( 2e-3, 100e6, 50e-6, deflate, 1024, new double[] { 0.6, 0.2, 0.2 }, 8 );
+	}
+
+	public boolean isDeflate()
+	{
+		return deflate;
+	}
+
+	public int getViewportSize()
+	{
+		return viewportSize;
+	}
+
+	public double getTargetSliceSeconds()
+	{
+		return targetSliceSeconds;
+	}
+
+	/**
+	 * Estimate the time (in seconds) to read and decode all chunks required
+	 * for displaying one slice of a (downsampled) image.
+	 *
+	 * @param imageDimensions
+	 *            dimensions of the (downsampled) image.
+	 * @param chunkSize
+	 *            chunk shape.
+	 * @param compressedBytesPerVoxel
+	 *            measured (compressed) storage size per voxel.
+	 * @param decodeSecondsPerVoxel
+	 *            measured decoding time per voxel.
+	 * @return expected read cost per slice, averaged over orientations.
+	 */
+	public double sliceCost(
+			final long[] imageDimensions,
+			final int[] chunkSize,
+			final double compressedBytesPerVoxel,
+			final double decodeSecondsPerVoxel )
+	{
+		long chunkVoxels = 1;
+		for ( int d = 0; d < 3; ++d )
+			chunkVoxels *= Math.min( chunkSize[ d ], imageDimensions[ d ] );
+		final double chunkCost = seekSeconds + chunkOverheadSeconds
+				+ chunkVoxels * compressedBytesPerVoxel / bytesPerSecond
+				+ chunkVoxels * decodeSecondsPerVoxel;
+
+		double cost = 0;
+		double weights = 0;
+		for ( int normal = 2; normal >= 0; --normal )
+		{
+			final double w = orientationWeights[ 2 - normal ];
+			if ( w <= 0 )
+				continue;
+			final int u = normal == 0 ? 1 : 0;
+			final int v = normal == 2 ? 1 : 2;
+			final long numChunksInPlane = numChunks( imageDimensions[ u ], chunkSize[ u ] ) * numChunks( imageDimensions[ v ], chunkSize[ v ] );
+
+			// chunks are shared by consecutive slices along the normal
+			final long visitedSlices = Math.min( slicesPerVisit, imageDimensions[ normal ] );
+			final long chunksAlongNormal = ( visitedSlices - 1 ) / chunkSize[ normal ] + 1;
+			final double chunksPerSlice = ( double ) ( numChunksInPlane * chunksAlongNormal ) / visitedSlices;
+
+			cost += w * chunksPerSlice * chunkCost;
+			weights += w;
+		}
+		return weights == 0 ? 0 : cost / weights;
+	}
+
+	private long numChunks( final long imageSize, final int chunkSize )
+	{
+		final long visible = Math.min( imageSize, viewportSize );
+		return ( visible - 1 ) / chunkSize + 1;
+	}
+}
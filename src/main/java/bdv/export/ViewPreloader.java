@@ -0,0 +1,335 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.export;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bdv.img.cache.FairShareFetchQueues;
+
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Loads the input images of upcoming views in the background, so that reading
+ * view <em>K+1</em> overlaps with creating blocks of view <em>K</em> (and the
+ * {@link Hdf5BlockWriterThread} writing blocks of view <em>K-1</em>).
+ *
+ * <p>
+ * Views are requested in a fixed order by {@link #get(int)}. Up to
+ * {@code window} views ahead of the last requested view are loaded
+ * concurrently. A view is preloaded by
+ * <ul>
+ * <li>enqueuing all its cells to the fetch queue of the input loader, if the
+ * input is a cached cell image (see {@link InputCellPrefetcher}). The cells
+ * are enqueued with the least urgent
+ * {@link FairShareFetchQueues#setSubPriority(int) rank}, so that they do not
+ * delay the cells prefetched for the view that is currently processed.
+ * Or</li>
+ * <li>copying it into an {@link ArrayImg}. This is intended for time-lapses
+ * with many small views.</li>
+ * </ul>
+ * The total size of views that are preloaded (and not yet done with) is
+ * bounded by {@code maxPreloadBytes}. A view that does not fit into the
+ * remaining budget is passed through unchanged and read on demand by the cell
+ * creator threads.
+ */
+public class ViewPreloader
+{
+	/**
+	 * Default number of views to load ahead of the view that is currently
+	 * processed.
+	 */
+	public static final int DEFAULT_NUM_PRELOADED_VIEWS = 2;
+
+	/**
+	 * Default bound on the total size of preloaded views.
+	 */
+	public static final long DEFAULT_MAX_PRELOAD_BYTES = 256l * 1024 * 1024;
+
+	/**
+	 * A loaded view.
+	 */
+	public static class PreloadedView
+	{
+		private final RandomAccessibleInterval< ? > img;
+
+		private final InputCellPrefetcher prefetcher;
+
+		/**
+		 * Size of the view, if it was counted to the preload budget.
+		 */
+		private final long preloadedBytes;
+
+		PreloadedView( final RandomAccessibleInterval< ? > img, final InputCellPrefetcher prefetcher, final long preloadedBytes )
+		{
+			this.img = img;
+			this.prefetcher = prefetcher;
+			this.preloadedBytes = preloadedBytes;
+		}
+
+		/**
+		 * Get the image of the view (possibly an in-memory copy).
+		 */
+		public RandomAccessibleInterval< ? > getImage()
+		{
+			return img;
+		}
+
+		/**
+		 * Get the prefetcher for the view, or {@code null} if the input is
+		 * not a cached cell image.
+		 */
+		public InputCellPrefetcher getPrefetcher()
+		{
+			return prefetcher;
+		}
+	}
+
+	private final BasicImgLoader imgLoader;
+
+	private final List< ViewId > views;
+
+	private final int window;
+
+	private final long maxPreloadBytes;
+
+	private final ExportPipelineStatistics statistics;
+
+	private final ArrayList< Future< PreloadedView > > futures;
+
+	private final ExecutorService executor;
+
+	private int numSubmitted;
+
+	/**
+	 * Total size of the views that are preloaded and not yet done with.
+	 */
+	private final AtomicLong preloadedBytes = new AtomicLong();
+
+	/**
+	 * The view most recently returned by {@link #get(int)}. It is done with
+	 * when the next view is requested.
+	 */
+	private PreloadedView current;
+
+	/**
+	 * @param imgLoader
+	 *            provides the images of {@code views}.
+	 * @param views
+	 *            the views (with timepoint and setup ids wrt
+	 *            {@code imgLoader}), in the order in which they will be
+	 *            requested.
+	 * @param window
+	 *            how many views to load ahead of the last requested view. If
+	 *            0, views are loaded synchronously in {@link #get(int)}.
+	 * @param maxPreloadBytes
+	 *            bound on the total size of preloaded views, including the
+	 *            view that is currently processed.
+	 * @param statistics
+	 *            time spent preloading views (copying, or enqueuing their
+	 *            cells) is recorded as the
+	 *            {@link ExportPipelineStatistics#preload} stage. may be null.
+	 */
+	public ViewPreloader(
+			final BasicImgLoader imgLoader,
+			final List< ViewId > views,
+			final int window,
+			final long maxPreloadBytes,
+			final ExportPipelineStatistics statistics )
+	{
+		this.imgLoader = imgLoader;
+		this.views = views;
+		this.window = Math.max( window, 0 );
+		this.maxPreloadBytes = maxPreloadBytes;
+		this.statistics = statistics;
+		futures = new ArrayList<>( views.size() );
+		final AtomicInteger threadNum = new AtomicInteger();
+		executor = this.window == 0 ? null : Executors.newFixedThreadPool( this.window, r -> {
+			final Thread thread = new Thread( r, "ViewPreloader-" + threadNum.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		numSubmitted = 0;
+	}
+
+	/**
+	 * Get the {@code i}th view, waiting until it is loaded. This starts
+	 * loading the views up to {@code i + window}.
+	 */
+	public synchronized PreloadedView get( final int i )
+	{
+		if ( current != null )
+		{
+			preloadedBytes.addAndGet( -current.preloadedBytes );
+			current = null;
+		}
+
+		if ( executor == null )
+		{
+			current = load( views.get( i ), false );
+			return current;
+		}
+
+		final int end = Math.min( i + window + 1, views.size() );
+		while ( numSubmitted < end )
+		{
+			final ViewId view = views.get( numSubmitted++ );
+			futures.add( executor.submit( () -> load( view, true ) ) );
+		}
+
+		final Future< PreloadedView > future = futures.get( i );
+		futures.set( i, null );
+		try
+		{
+			current = future.get();
+			return current;
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+
+	/**
+	 * Stop the loader threads. Views that are still being loaded are
+	 * discarded.
+	 */
+	public void shutdown()
+	{
+		if ( executor != null )
+			executor.shutdownNow();
+	}
+
+	/**
+	 * @param ahead
+	 *            whether the view is loaded ahead of the view that is
+	 *            currently processed. Then its cells are enqueued with the
+	 *            least urgent rank.
+	 */
+	private PreloadedView load( final ViewId view, final boolean ahead )
+	{
+		final long t0 = System.nanoTime();
+		final int timepointId = view.getTimePointId();
+		final int setupId = view.getViewSetupId();
+		final RandomAccessibleInterval< ? > img = imgLoader.getSetupImgLoader( setupId ).getImage( timepointId );
+		final InputCellPrefetcher prefetcher = InputCellPrefetcher.create( imgLoader, timepointId, setupId );
+
+		final Object type = imgLoader.getSetupImgLoader( setupId ).getImageType();
+		if ( !( type instanceof NativeType && type instanceof RealType ) )
+			return new PreloadedView( img, prefetcher, 0 );
+		final long numBytes = Intervals.numElements( img ) * ( ( RealType< ? > ) type ).getBitsPerPixel() / 8;
+		if ( !reserve( numBytes ) )
+			return new PreloadedView( img, prefetcher, 0 );
+
+		if ( prefetcher != null )
+		{
+			// enqueue all cells, they are loaded by the fetcher threads of imgLoader
+			final int n = img.numDimensions();
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+				max[ d ] = img.dimension( d ) - 1;
+			if ( ahead )
+				FairShareFetchQueues.setSubPriority( FairShareFetchQueues.NUM_SUB_PRIORITIES - 1 );
+			try
+			{
+				prefetcher.prefetch( min, max );
+			}
+			finally
+			{
+				FairShareFetchQueues.setSubPriority( 0 );
+			}
+			// the cells are loaded asynchronously, only enqueuing them is timed
+			if ( statistics != null )
+				statistics.preload.add( numBytes, System.nanoTime() - t0 );
+			return new PreloadedView( img, prefetcher, numBytes );
+		}
+
+		final RandomAccessibleInterval< ? > copy = copy( img );
+		if ( statistics != null )
+			statistics.preload.add( numBytes, System.nanoTime() - t0 );
+		return new PreloadedView( copy, null, numBytes );
+	}
+
+	/**
+	 * Count {@code numBytes} to the preload budget, if they fit.
+	 *
+	 * @return whether the bytes fit into the budget.
+	 */
+	private boolean reserve( final long numBytes )
+	{
+		while ( true )
+		{
+			final long bytes = preloadedBytes.get();
+			if ( bytes + numBytes > maxPreloadBytes )
+				return false;
+			if ( preloadedBytes.compareAndSet( bytes, bytes + numBytes ) )
+				return true;
+		}
+	}
+
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private static RandomAccessibleInterval< ? > copy( final RandomAccessibleInterval< ? > img )
+	{
+		return copyNative( ( RandomAccessibleInterval ) img );
+	}
+
+	private static < T extends NativeType< T > > RandomAccessibleInterval< T > copyNative( final RandomAccessibleInterval< T > img )
+	{
+		final T type = Views.iterable( img ).firstElement().createVariable();
+		final ArrayImg< T, ? > copy = new ArrayImgFactory< T >().create( Intervals.dimensionsAsLongArray( img ), type );
+		final Cursor< T > in = Views.flatIterable( img ).cursor();
+		for ( final T t : copy )
+			t.set( in.next() );
+		final long[] min = new long[ img.numDimensions() ];
+		img.min( min );
+		return Views.translate( copy, min );
+	}
+}
@@ -33,13 +33,17 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import bdv.export.WriteSequenceToHdf5.AfterEachPlane;
+import bdv.export.ViewPreloader.PreloadedView;
 import bdv.export.WriteSequenceToHdf5.LoopbackHeuristic;
+import bdv.img.hdf5.CellOccupancy;
 import bdv.img.hdf5.Hdf5ImageLoader;
 import bdv.img.hdf5.Partition;
 import bdv.img.hdf5.Util;
@@ -51,7 +55,6 @@ import ch.systemsx.cisd.hdf5.IHDF5Writer;
 import mpicbg.spim.data.XmlHelpers;
 import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
 import mpicbg.spim.data.generic.sequence.BasicImgLoader;
-import mpicbg.spim.data.generic.sequence.BasicSetupImgLoader;
 import mpicbg.spim.data.generic.sequence.BasicViewSetup;
 import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.TimePoints;
@@ -59,13 +62,14 @@ import mpicbg.spim.data.sequence.ViewId;
 import net.imglib2.Cursor;
 import net.imglib2.Dimensions;
 import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgs;
-import net.imglib2.img.basictypeaccess.array.ShortArray;
 import net.imglib2.img.cell.CellImg;
 import net.imglib2.iterator.LocalizingIntervalIterator;
+import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.view.Views;
@@ -93,6 +97,12 @@ import net.imglib2.view.Views;
  * the full pyramid is specfied by a nested int[][] array.
  *
  * <p>
+ * Chunks that contain only zeros are not written. HDF5 returns the dataset
+ * fill value (0) for them. Which chunks are stored is recorded in a
+ * {@link CellOccupancy} bitmap per resolution level, which allows
+ * {@link Hdf5ImageLoader} to skip reading empty chunks.
+ *
+ * <p>
  * A data-set can be stored in a single hdf5 file or split across several hdf5
  * "partitions" with one master hdf5 linking into the partitions.
  *
@@ -214,6 +224,59 @@ public class WriteSequenceToHdf5
 		writeHdf5File( seq, perSetupMipmapInfo, deflate, hdf5File, loopbackHeuristic, afterEachPlane, numCellCreatorThreads, progressWriter );
 	}
 
+	/**
+	 * Create a hdf5 file containing image data from all views and all
+	 * timepoints in a chunked, mipmaped representation. This is the same as
+	 * {@link WriteSequenceToHdf5#writeHdf5File(AbstractSequenceDescription, Map, boolean, File, LoopbackHeuristic, AfterEachPlane, int, ProgressWriter)}
+	 * except that subsampling factors and subdivision blocksizes are proposed
+	 * for each {@link BasicViewSetup view} by benchmarking on the image data,
+	 * see
+	 * {@link ProposeMipmaps#proposeMipmaps(AbstractSequenceDescription, StorageCostModel)}.
+	 * Whether to compress the data with the HDF5 DEFLATE filter is given by
+	 * {@link StorageCostModel#isDeflate()}.
+	 *
+	 * @param seq
+	 *            description of the sequence to be stored as hdf5. (The
+	 *            {@link AbstractSequenceDescription} contains the number of
+	 *            setups and timepoints as well as an {@link BasicImgLoader}
+	 *            that provides the image data, Registration information is not
+	 *            needed here, that will go into the accompanying xml).
+	 * @param model
+	 *            storage and viewing cost model used to choose the mipmap
+	 *            levels and chunk sizes.
+	 * @param hdf5File
+	 *            hdf5 file to which the image data is written.
+	 * @param loopbackHeuristic
+	 *            heuristic to decide whether to create each resolution level by
+	 *            reading pixels from the original image or by reading back a
+	 *            finer resolution level already written to the hdf5. may be
+	 *            null (in this case always use the original image).
+	 * @param afterEachPlane
+	 *            this is called after each "plane of chunks" is written, giving
+	 *            the opportunity to clear caches, etc.
+	 * @param numCellCreatorThreads
+	 *            The number of threads that will be instantiated to generate
+	 *            cell data. Must be at least 1. (In addition the cell creator
+	 *            threads there is one writer thread that saves the generated
+	 *            data to HDF5.)
+	 * @param progressWriter
+	 *            completion ratio and status output will be directed here.
+	 * @return map from setup id to the mipmap settings that were used.
+	 */
+	public static Map< Integer, ExportMipmapInfo > writeHdf5File(
+			final AbstractSequenceDescription< ?, ?, ? > seq,
+			final StorageCostModel model,
+			final File hdf5File,
+			final LoopbackHeuristic loopbackHeuristic,
+			final AfterEachPlane afterEachPlane,
+			final int numCellCreatorThreads,
+			final ProgressWriter progressWriter )
+	{
+		final Map< Integer, ExportMipmapInfo > perSetupMipmapInfo = ProposeMipmaps.proposeMipmaps( seq, model );
+		writeHdf5File( seq, perSetupMipmapInfo, model.isDeflate(), hdf5File, loopbackHeuristic, afterEachPlane, numCellCreatorThreads, progressWriter );
+		return perSetupMipmapInfo;
+	}
+
 	/**
 	 * Create a hdf5 master file linking to image data from all views and all
 	 * timepoints. This is the same as
@@ -309,6 +372,7 @@ public class WriteSequenceToHdf5
 					{
 						final String relativePath = XmlHelpers.getRelativePath( new File( partition.getPath() ), basePath ).getPath();
 						hdf5Writer.object().createOrUpdateExternalLink( relativePath, Util.getCellsPath( idPartition, level ), Util.getCellsPath( idSequence, level ) );
+						hdf5Writer.object().createOrUpdateExternalLink( relativePath, Util.getOccupancyPath( idPartition, level ), Util.getOccupancyPath( idSequence, level ) );
 					}
 				}
 			}
@@ -364,6 +428,127 @@ public class WriteSequenceToHdf5
 			final LoopbackHeuristic loopbackHeuristic,
 			final AfterEachPlane afterEachPlane,
 			final int numCellCreatorThreads,
+			final ProgressWriter progressWriter )
+	{
+		writeHdf5PartitionFile( seq, perSetupMipmapInfo, deflate, partition, loopbackHeuristic, afterEachPlane, numCellCreatorThreads, BlockBufferPool.DEFAULT_MAX_BYTES, progressWriter );
+	}
+
+	/**
+	 * Create a hdf5 partition file containing image data for a subset of views
+	 * and timepoints in a chunked, mipmaped representation. This is the same as
+	 * {@link #writeHdf5PartitionFile(AbstractSequenceDescription, Map, boolean, Partition, LoopbackHeuristic, AfterEachPlane, int, ProgressWriter)}
+	 * except that the memory used for blocks that are waiting to be written is
+	 * bounded by {@code maxBlockBufferBytes}. When the bound is reached, cell
+	 * creator threads wait for the writer to catch up. Up to
+	 * {@link ViewPreloader#DEFAULT_NUM_PRELOADED_VIEWS} upcoming views are
+	 * preloaded in the background.
+	 *
+	 * <p>
+	 * Throughput and queue occupancy of the export pipeline stages is reported
+	 * to {@code progressWriter.out()} when the export is complete (see
+	 * {@link ExportPipelineStatistics}).
+	 *
+	 * @param seq
+	 *            description of the sequence to be stored as hdf5.
+	 * @param perSetupMipmapInfo
+	 *            this maps from setup {@link BasicViewSetup#getId() id} to
+	 *            {@link ExportMipmapInfo} for that setup.
+	 * @param deflate
+	 *            whether to compress the data with the HDF5 DEFLATE filter.
+	 * @param partition
+	 *            which part of the dataset to write, and to which file.
+	 * @param loopbackHeuristic
+	 *            heuristic to decide whether to create each resolution level by
+	 *            reading pixels from the original image or by reading back a
+	 *            finer resolution level already written to the hdf5. may be
+	 *            null (in this case always use the original image).
+	 * @param afterEachPlane
+	 *            this is called after each "plane of chunks" is written, giving
+	 *            the opportunity to clear caches, etc.
+	 * @param numCellCreatorThreads
+	 *            The number of threads that will be instantiated to generate
+	 *            cell data. Must be at least 1.
+	 * @param maxBlockBufferBytes
+	 *            memory ceiling (in bytes) for blocks that have been created
+	 *            but not yet written.
+	 * @param progressWriter
+	 *            completion ratio and status output will be directed here.
+	 */
+	public static void writeHdf5PartitionFile(
+			final AbstractSequenceDescription< ?, ?, ? > seq,
+			final Map< Integer, ExportMipmapInfo > perSetupMipmapInfo,
+			final boolean deflate,
+			final Partition partition,
+			final LoopbackHeuristic loopbackHeuristic,
+			final AfterEachPlane afterEachPlane,
+			final int numCellCreatorThreads,
+			final long maxBlockBufferBytes,
+			final ProgressWriter progressWriter )
+	{
+		writeHdf5PartitionFile( seq, perSetupMipmapInfo, deflate, partition, loopbackHeuristic, afterEachPlane, numCellCreatorThreads, maxBlockBufferBytes, ViewPreloader.DEFAULT_NUM_PRELOADED_VIEWS, ViewPreloader.DEFAULT_MAX_PRELOAD_BYTES, progressWriter );
+	}
+
+	/**
+	 * Create a hdf5 partition file containing image data for a subset of views
+	 * and timepoints in a chunked, mipmaped representation.
+	 *
+	 * <p>
+	 * Views are processed in order of timepoints and setups. The input images
+	 * of up to {@code numPreloadedViews} upcoming views are loaded in the
+	 * background by a {@link ViewPreloader}. Together with the asynchronous
+	 * {@link Hdf5BlockWriterThread}, this overlaps reading view <em>K+1</em>,
+	 * creating blocks of view <em>K</em>, and writing blocks of view
+	 * <em>K-1</em>. This pays off for time-lapses of many small views, where
+	 * otherwise each view waits for its input to load.
+	 *
+	 * @param seq
+	 *            description of the sequence to be stored as hdf5. (The
+	 *            {@link AbstractSequenceDescription} contains the number of
+	 *            setups and timepoints as well as an {@link BasicImgLoader}
+	 *            that provides the image data, Registration information is not
+	 *            needed here, that will go into the accompanying xml).
+	 * @param perSetupMipmapInfo
+	 *            this maps from setup {@link BasicViewSetup#getId() id} to
+	 *            {@link ExportMipmapInfo} for that setup. The
+	 *            {@link ExportMipmapInfo} contains for each mipmap level, the
+	 *            subsampling factors and subdivision block sizes.
+	 * @param deflate
+	 *            whether to compress the data with the HDF5 DEFLATE filter.
+	 * @param partition
+	 *            which part of the dataset to write, and to which file.
+	 * @param loopbackHeuristic
+	 *            heuristic to decide whether to create each resolution level by
+	 *            reading pixels from the original image or by reading back a
+	 *            finer resolution level already written to the hdf5. may be
+	 *            null (in this case always use the original image).
+	 * @param afterEachPlane
+	 *            this is called after each "plane of chunks" is written, giving
+	 *            the opportunity to clear caches, etc.
+	 * @param numCellCreatorThreads
+	 *            The number of threads that will be instantiated to generate
+	 *            cell data. Must be at least 1.
+	 * @param maxBlockBufferBytes
+	 *            memory ceiling (in bytes) for blocks that have been created
+	 *            but not yet written.
+	 * @param numPreloadedViews
+	 *            how many views to load ahead of the view that is currently
+	 *            processed. If 0, each view is read on demand.
+	 * @param maxPreloadBytes
+	 *            bound on the total size of preloaded views.
+	 * @param progressWriter
+	 *            completion ratio and status output will be directed here.
+	 */
+	public static void writeHdf5PartitionFile(
+			final AbstractSequenceDescription< ?, ?, ? > seq,
+			final Map< Integer, ExportMipmapInfo > perSetupMipmapInfo,
+			final boolean deflate,
+			final Partition partition,
+			final LoopbackHeuristic loopbackHeuristic,
+			final AfterEachPlane afterEachPlane,
+			final int numCellCreatorThreads,
+			final long maxBlockBufferBytes,
+			final int numPreloadedViews,
+			final long maxPreloadBytes,
 			ProgressWriter progressWriter )
 	{
 		final int blockWriterQueueLength = 100;
@@ -384,9 +569,7 @@ public class WriteSequenceToHdf5
 
 		for ( final BasicViewSetup setup : seq.getViewSetupsOrdered() ) {
 			final Object type = imgLoader.getSetupImgLoader( setup.getId() ).getImageType();
-			if ( !( type instanceof UnsignedShortType ) )
-				throw new IllegalArgumentException( "Expected BasicImgLoader<UnsignedShortTyp> but your dataset has BasicImgLoader<"
-						+ type.getClass().getSimpleName() + ">.\nCurrently writing to HDF5 is only supported for UnsignedShortType." );
+			checkUnsignedShortCompatible( type );
 		}
 
 
@@ -394,68 +577,91 @@ public class WriteSequenceToHdf5
 		final File hdf5File = new File( partition.getPath() );
 		if ( hdf5File.exists() )
 			hdf5File.delete();
-		final Hdf5BlockWriterThread writerQueue = new Hdf5BlockWriterThread( hdf5File, blockWriterQueueLength );
+		final Hdf5BlockWriterThread writerQueue = new Hdf5BlockWriterThread( hdf5File, blockWriterQueueLength, maxBlockBufferBytes );
 		writerQueue.start();
 
 		// start CellCreatorThreads
 		final CellCreatorThread[] cellCreatorThreads = createAndStartCellCreatorThreads( numCellCreatorThreads );
-
-		// calculate number of tasks for progressWriter
-		int numTasks = 1; // first task is for writing mipmap descriptions etc...
-		for ( final int timepointIdSequence : timepointIdsSequence )
-			for ( final int setupIdSequence : setupIdsSequence )
-				if ( seq.getViewDescriptions().get( new ViewId( timepointIdSequence, setupIdSequence ) ).isPresent() )
-					numTasks++;
-		int numCompletedTasks = 0;
-
-		// write Mipmap descriptions
-		for ( final Entry< Integer, Integer > entry : partition.getSetupIdSequenceToPartition().entrySet() )
+		ViewPreloader preloader = null;
+		try
 		{
-			final int setupIdSequence = entry.getKey();
-			final int setupIdPartition = entry.getValue();
-			final ExportMipmapInfo mipmapInfo = perSetupMipmapInfo.get( setupIdSequence );
-			writerQueue.writeMipmapDescription( setupIdPartition, mipmapInfo );
-		}
-		progressWriter.setProgress( ( double ) ++numCompletedTasks / numTasks );
-
-		// write image data for all views to the HDF5 file
-		int timepointIndex = 0;
-		for ( final int timepointIdSequence : timepointIdsSequence )
-		{
-			final int timepointIdPartition = partition.getTimepointIdSequenceToPartition().get( timepointIdSequence );
-			progressWriter.out().printf( "proccessing timepoint %d / %d\n", ++timepointIndex, numTimepoints );
-
-			// assemble the viewsetups that are present in this timepoint
-			final ArrayList< Integer > setupsTimePoint = new ArrayList<>();
-
-			for ( final int setupIdSequence : setupIdsSequence )
-				if ( seq.getViewDescriptions().get( new ViewId( timepointIdSequence, setupIdSequence ) ).isPresent() )
-					setupsTimePoint.add( setupIdSequence );
-
-			final int numSetups = setupsTimePoint.size();
+			// calculate number of tasks for progressWriter
+			int numTasks = 1; // first task is for writing mipmap descriptions etc...
+			for ( final int timepointIdSequence : timepointIdsSequence )
+				for ( final int setupIdSequence : setupIdsSequence )
+					if ( seq.getViewDescriptions().get( new ViewId( timepointIdSequence, setupIdSequence ) ).isPresent() )
+						numTasks++;
+			int numCompletedTasks = 0;
+
+			// write Mipmap descriptions
+			for ( final Entry< Integer, Integer > entry : partition.getSetupIdSequenceToPartition().entrySet() )
+			{
+				final int setupIdSequence = entry.getKey();
+				final int setupIdPartition = entry.getValue();
+				final ExportMipmapInfo mipmapInfo = perSetupMipmapInfo.get( setupIdSequence );
+				writerQueue.writeMipmapDescription( setupIdPartition, mipmapInfo );
+			}
+			progressWriter.setProgress( ( double ) ++numCompletedTasks / numTasks );
 
-			int setupIndex = 0;
-			for ( final int setupIdSequence : setupsTimePoint )
+			// assemble the views that are present, in the order in which they are written
+			final ArrayList< ViewId > views = new ArrayList<>();
+			final ArrayList< Integer > numSetupsPerTimepoint = new ArrayList<>();
+			for ( final int timepointIdSequence : timepointIdsSequence )
 			{
-				final int setupIdPartition = partition.getSetupIdSequenceToPartition().get( setupIdSequence );
-				progressWriter.out().printf( "proccessing setup %d / %d\n", ++setupIndex, numSetups );
+				int numSetups = 0;
+				for ( final int setupIdSequence : setupIdsSequence )
+				{
+					final ViewId viewId = new ViewId( timepointIdSequence, setupIdSequence );
+					if ( seq.getViewDescriptions().get( viewId ).isPresent() )
+					{
+						views.add( viewId );
+						++numSetups;
+					}
+				}
+				numSetupsPerTimepoint.add( numSetups );
+			}
+			preloader = new ViewPreloader( imgLoader, views, numPreloadedViews, maxPreloadBytes, writerQueue.getStatistics() );
 
-				@SuppressWarnings( "unchecked" )
-				final RandomAccessibleInterval< UnsignedShortType > img = ( ( BasicSetupImgLoader< UnsignedShortType > ) imgLoader.getSetupImgLoader( setupIdSequence ) ).getImage( timepointIdSequence );
-				final ExportMipmapInfo mipmapInfo = perSetupMipmapInfo.get( setupIdSequence );
-				final double startCompletionRatio = ( double ) numCompletedTasks++ / numTasks;
-				final double endCompletionRatio = ( double ) numCompletedTasks / numTasks;
-				final ProgressWriter subProgressWriter = new SubTaskProgressWriter( progressWriter, startCompletionRatio, endCompletionRatio );
+			// write image data for all views to the HDF5 file
+			int viewIndex = 0;
+			int timepointIndex = 0;
+			for ( final int timepointIdSequence : timepointIdsSequence )
+			{
+				final int timepointIdPartition = partition.getTimepointIdSequenceToPartition().get( timepointIdSequence );
+				final int numSetups = numSetupsPerTimepoint.get( timepointIndex );
+				progressWriter.out().printf( "proccessing timepoint %d / %d\n", ++timepointIndex, numTimepoints );
 
-				writeViewToHdf5PartitionFile(
-						img, timepointIdPartition, setupIdPartition, mipmapInfo, false,
-						deflate, writerQueue, cellCreatorThreads, loopbackHeuristic, afterEachPlane, subProgressWriter );
+				for ( int setupIndex = 0; setupIndex < numSetups; ++setupIndex )
+				{
+					final PreloadedView view = preloader.get( viewIndex );
+					final int setupIdSequence = views.get( viewIndex++ ).getViewSetupId();
+					final int setupIdPartition = partition.getSetupIdSequenceToPartition().get( setupIdSequence );
+					progressWriter.out().printf( "proccessing setup %d / %d\n", setupIndex + 1, numSetups );
+
+					// the image types were checked to be RealType above
+					@SuppressWarnings( "unchecked" )
+					final RandomAccessibleInterval< ? extends RealType< ? > > img = ( RandomAccessibleInterval< ? extends RealType< ? > > ) view.getImage();
+					final InputCellPrefetcher prefetcher = view.getPrefetcher();
+					final ExportMipmapInfo mipmapInfo = perSetupMipmapInfo.get( setupIdSequence );
+					final double startCompletionRatio = ( double ) numCompletedTasks++ / numTasks;
+					final double endCompletionRatio = ( double ) numCompletedTasks / numTasks;
+					final ProgressWriter subProgressWriter = new SubTaskProgressWriter( progressWriter, startCompletionRatio, endCompletionRatio );
+
+					writeViewToHdf5PartitionFile(
+							img, prefetcher, timepointIdPartition, setupIdPartition, mipmapInfo, false,
+							deflate, writerQueue, cellCreatorThreads, loopbackHeuristic, afterEachPlane, subProgressWriter );
+				}
 			}
 		}
-
-		// shutdown and close file
-		stopCellCreatorThreads( cellCreatorThreads );
-		writerQueue.close();
+		finally
+		{
+			// shutdown and close file
+			if ( preloader != null )
+				preloader.shutdown();
+			stopCellCreatorThreads( cellCreatorThreads );
+			writerQueue.close();
+		}
+		writerQueue.getStatistics().print( progressWriter.out() );
 		progressWriter.setProgress( 1.0 );
 	}
 
@@ -502,8 +708,8 @@ public class WriteSequenceToHdf5
 	 *            completion ratio and status output will be directed here. may
 	 *            be null.
 	 */
-	public static void writeViewToHdf5PartitionFile(
-			final RandomAccessibleInterval< UnsignedShortType > img,
+	public static < T extends RealType< T > > void writeViewToHdf5PartitionFile(
+			final RandomAccessibleInterval< T > img,
 			final Partition partition,
 			final int timepointIdPartition,
 			final int setupIdPartition,
@@ -523,10 +729,17 @@ public class WriteSequenceToHdf5
 		final CellCreatorThread[] cellCreatorThreads = createAndStartCellCreatorThreads( numCellCreatorThreads );
 
 		// write the image
-		writeViewToHdf5PartitionFile( img, timepointIdPartition, setupIdPartition, mipmapInfo, writeMipmapInfo, deflate, writerQueue, cellCreatorThreads, loopbackHeuristic, afterEachPlane, progressWriter );
-
-		stopCellCreatorThreads( cellCreatorThreads );
-		writerQueue.close();
+		try
+		{
+			writeViewToHdf5PartitionFile( img, timepointIdPartition, setupIdPartition, mipmapInfo, writeMipmapInfo, deflate, writerQueue, cellCreatorThreads, loopbackHeuristic, afterEachPlane, progressWriter );
+		}
+		finally
+		{
+			stopCellCreatorThreads( cellCreatorThreads );
+			writerQueue.close();
+		}
+		if ( progressWriter != null )
+			writerQueue.getStatistics().print( progressWriter.out() );
 	}
 
 	static class LoopBackImageLoader extends Hdf5ImageLoader
@@ -587,8 +800,73 @@ public class WriteSequenceToHdf5
 	 *            completion ratio and status output will be directed here. may
 	 *            be null.
 	 */
+	public static < T extends RealType< T > > void writeViewToHdf5PartitionFile(
+			final RandomAccessibleInterval< T > img,
+			final int timepointIdPartition,
+			final int setupIdPartition,
+			final ExportMipmapInfo mipmapInfo,
+			final boolean writeMipmapInfo,
+			final boolean deflate,
+			final Hdf5BlockWriterThread writerQueue,
+			final CellCreatorThread[] cellCreatorThreads,
+			final LoopbackHeuristic loopbackHeuristic,
+			final AfterEachPlane afterEachPlane,
+			final ProgressWriter progressWriter )
+	{
+		writeViewToHdf5PartitionFile( img, null, timepointIdPartition, setupIdPartition, mipmapInfo, writeMipmapInfo, deflate, writerQueue, cellCreatorThreads, loopbackHeuristic, afterEachPlane, progressWriter );
+	}
+
+	/**
+	 * Write a single view to a hdf5 partition file, in a chunked, mipmaped
+	 * representation. Note that the specified view must not already exist in
+	 * the partition file!
+	 *
+	 * <p>
+	 * Pixel values of {@code img} are stored as {@link UnsignedShortType}. The
+	 * pixel type of {@code img} must be an integer type with values in
+	 * {@code 0...65535}, such that this conversion is lossless, otherwise an
+	 * {@link IllegalArgumentException} is thrown. If {@code img} is a cached cell
+	 * image, an {@link InputCellPrefetcher} should be given: Blocks are then
+	 * created in the cell order of the input, and the input cells required
+	 * for the next plane of blocks are enqueued for loading by the input's
+	 * fetcher threads while the current plane is processed.
+	 *
+	 * @param img
+	 *            the view to be written.
+	 * @param prefetcher
+	 *            prefetches cells of {@code img}. may be null.
+	 * @param timepointIdPartition
+	 *            the timepoint id wrt the partition of the view to be written.
+	 * @param setupIdPartition
+	 *            the setup id wrt the partition of the view to be written.
+	 * @param mipmapInfo
+	 *            contains for each mipmap level of the setup, the subsampling
+	 *            factors and subdivision block sizes.
+	 * @param writeMipmapInfo
+	 *            whether to write mipmap description for the setup. must be
+	 *            done (at least) once for each setup in the partition.
+	 * @param deflate
+	 *            whether to compress the data with the HDF5 DEFLATE filter.
+	 * @param writerQueue
+	 *            block writing tasks are enqueued here.
+	 * @param cellCreatorThreads
+	 *            threads used for creating (possibly down-sampled) blocks of
+	 *            the view to be written.
+	 * @param loopbackHeuristic
+	 *            heuristic to decide whether to create each resolution level by
+	 *            reading pixels from the original image or by reading back a
+	 *            finer resolution level already written to the hdf5. may be
+	 *            null (in this case always use the original image).
+	 * @param afterEachPlane
+	 *            this is called after each "plane of chunks" is written, giving
+	 *            the opportunity to clear caches, etc.
+	 * @param progressWriter
+	 *            completion ratio and status output will be directed here. may
+	 *            be null.
+	 */
 	public static void writeViewToHdf5PartitionFile(
-			final RandomAccessibleInterval< UnsignedShortType > img,
+			final RandomAccessibleInterval< ? extends RealType< ? > > img,
+			final InputCellPrefetcher prefetcher,
 			final int timepointIdPartition,
 			final int setupIdPartition,
 			final ExportMipmapInfo mipmapInfo,
@@ -600,7 +878,9 @@ public class WriteSequenceToHdf5
 			final AfterEachPlane afterEachPlane,
 			ProgressWriter progressWriter )
 	{
-		final HDF5IntStorageFeatures storage = deflate ? HDF5IntStorageFeatures.INT_AUTO_SCALING_DEFLATE : HDF5IntStorageFeatures.INT_AUTO_SCALING;
+		checkUnsignedShortCompatible( Views.iterable( img ).firstElement() );
+
+		final HDF5IntStorageFeatures storage = deflate ? HDF5IntStorageFeatures.INT_AUTO_SCALING_DEFLATE : HDF5IntStorageFeatures.INT_NO_COMPRESSION;
 
 		if ( progressWriter == null )
 			progressWriter = new ProgressWriterConsole();
@@ -630,7 +910,7 @@ public class WriteSequenceToHdf5
 		{
 			progressWriter.out().println( "writing level " + level );
 
-			final RandomAccessibleInterval< UnsignedShortType > sourceImg;
+			final RandomAccessibleInterval< ? extends RealType< ? > > sourceImg;
 			final int[] factor;
 			final boolean useLoopBack;
 			if ( loopbackHeuristic == null )
@@ -703,12 +983,13 @@ public class WriteSequenceToHdf5
 			sourceImg.min( minRequiredInput );
 			for ( int d = 0; d < n; ++d )
 				maxRequiredInput[ d ] = minRequiredInput[ d ] + dimensions[ d ] * factor[ d ] - 1;
-			final RandomAccessibleInterval< UnsignedShortType > extendedImg = Views.interval( Views.extendBorder( sourceImg ), new FinalInterval( minRequiredInput, maxRequiredInput ) );
+			final RandomAccessibleInterval< ? extends RealType< ? > > extendedImg = extendedInterval( sourceImg, new FinalInterval( minRequiredInput, maxRequiredInput ) );
 
 			final int[] cellDimensions = subdivisions[ level ];
 			final ViewId viewIdPartition = new ViewId( timepointIdPartition, setupIdPartition );
 			final String path = Util.getCellsPath( viewIdPartition, level );
 			writerQueue.createAndOpenDataset( path, dimensions.clone(), cellDimensions.clone(), storage );
+			final CellOccupancy occupancy = new CellOccupancy( dimensions, cellDimensions );
 
 			final long[] numCells = new long[ n ];
 			final int[] borderSize = new int[ n ];
@@ -721,38 +1002,73 @@ public class WriteSequenceToHdf5
 				borderSize[ d ] = ( int ) ( dimensions[ d ] - ( numCells[ d ] - 1 ) * cellDimensions[ d ] );
 			}
 
+			final BlockBufferPool pool = writerQueue.getBlockBufferPool();
+			final ExportPipelineStatistics statistics = writerQueue.getStatistics();
+
+			final InputCellPrefetcher levelPrefetcher = useLoopBack ? null : prefetcher;
+
 			// generate one "plane" of cells after the other to avoid cache thrashing when exporting from virtual stacks
 			for ( int lastDimCell = 0; lastDimCell < numCells[ n - 1 ]; ++lastDimCell )
 			{
 				minCell[ n - 1 ] = lastDimCell;
 				maxCell[ n - 1 ] = lastDimCell;
-				final LocalizingIntervalIterator i = new LocalizingIntervalIterator( minCell, maxCell );
+
+				// collect the cells of this plane. Each entry holds the cell
+				// position, followed by the index of the input cell containing
+				// the first pixel read for it.
+				final ArrayList< long[] > planeCells = new ArrayList<>();
+				final LocalizingIntervalIterator it = new LocalizingIntervalIterator( minCell, maxCell );
+				final long[] inputPos = new long[ n ];
+				while ( it.hasNext() )
+				{
+					it.fwd();
+					final long[] cellPos = new long[ n + 1 ];
+					it.localize( cellPos );
+					if ( levelPrefetcher != null )
+					{
+						for ( int d = 0; d < n; ++d )
+							inputPos[ d ] = cellPos[ d ] * cellDimensions[ d ] * factor[ d ];
+						cellPos[ n ] = levelPrefetcher.getInputCellIndex( inputPos );
+					}
+					planeCells.add( cellPos );
+				}
+
+				if ( levelPrefetcher != null )
+				{
+					// create blocks in input cell order
+					planeCells.sort( Comparator.comparingLong( p -> p[ n ] ) );
+
+					// enqueue input cells for this (first) and the next plane
+					if ( lastDimCell == 0 )
+						prefetchPlane( levelPrefetcher, lastDimCell, minRequiredInput, maxRequiredInput, cellDimensions[ n - 1 ] * factor[ n - 1 ] );
+					if ( lastDimCell + 1 < numCells[ n - 1 ] )
+						prefetchPlane( levelPrefetcher, lastDimCell + 1, minRequiredInput, maxRequiredInput, cellDimensions[ n - 1 ] * factor[ n - 1 ] );
+				}
+				final AtomicInteger nextCell = new AtomicInteger();
 
 				final int numThreads = cellCreatorThreads.length;
 				final CountDownLatch doneSignal = new CountDownLatch( numThreads );
 				for ( int threadNum = 0; threadNum < numThreads; ++threadNum )
 				{
-					cellCreatorThreads[ threadNum ].run( new Runnable()
+					final CellCreatorThread thread = cellCreatorThreads[ threadNum ];
+					thread.run( new Runnable()
 					{
 						@Override
 						public void run()
 						{
-							final double[] accumulator = fullResolution ? null : new double[ cellDimensions[ 0 ] * cellDimensions[ 1 ] * cellDimensions[ 2 ] ];
+							final double[] accumulator = fullResolution ? null : thread.getAccumulator( cellDimensions[ 0 ] * cellDimensions[ 1 ] * cellDimensions[ 2 ] );
 							final long[] currentCellMin = new long[ n ];
 							final long[] currentCellMax = new long[ n ];
 							final long[] currentCellDim = new long[ n ];
 							final long[] currentCellPos = new long[ n ];
 							final long[] blockMin = new long[ n ];
-							final RandomAccess< UnsignedShortType > in = extendedImg.randomAccess();
+							final RandomAccess< ? extends RealType< ? > > in = extendedImg.randomAccess();
 							while ( true )
 							{
-								synchronized ( i )
-								{
-									if ( !i.hasNext() )
-										break;
-									i.fwd();
-									i.localize( currentCellPos );
-								}
+								final int c = nextCell.getAndIncrement();
+								if ( c >= planeCells.size() )
+									break;
+								System.arraycopy( planeCells.get( c ), 0, currentCellPos, 0, n );
 								for ( int d = 0; d < n; ++d )
 								{
 									currentCellMin[ d ] = currentCellPos[ d ] * cellDimensions[ d ];
@@ -762,13 +1078,28 @@ public class WriteSequenceToHdf5
 									currentCellMax[ d ] = currentCellMin[ d ] + currentCellDim[ d ] - 1;
 								}
 
-								final ArrayImg< UnsignedShortType, ? > cell = ArrayImgs.unsignedShorts( currentCellDim );
+								final short[] data = pool.acquire( ( int ) ( currentCellDim[ 0 ] * currentCellDim[ 1 ] * currentCellDim[ 2 ] ) );
+								final long t0 = System.nanoTime();
+								final ArrayImg< UnsignedShortType, ? > cell = ArrayImgs.unsignedShorts( data, currentCellDim );
 								if ( fullResolution )
+								{
 									copyBlock( cell.randomAccess(), currentCellDim, in, blockMin );
+									statistics.copy.add( 2l * data.length, System.nanoTime() - t0 );
+								}
 								else
+								{
 									downsampleBlock( cell.cursor(), accumulator, currentCellDim, in, blockMin, factor, scale );
+									statistics.downsample.add( 2l * data.length, System.nanoTime() - t0 );
+								}
 
-								writerQueue.writeBlockWithOffset( ( ( ShortArray ) cell.update( null ) ).getCurrentStorageArray(), currentCellDim.clone(), currentCellMin.clone() );
+								if ( isEmpty( data ) )
+								{
+									pool.release( data );
+									statistics.empty.add( 2l * data.length, 0 );
+									continue;
+								}
+								occupancy.setOccupied( currentCellMin );
+								writerQueue.writePooledBlockWithOffset( data, currentCellDim.clone(), currentCellMin.clone() );
 							}
 							doneSignal.countDown();
 						}
@@ -782,12 +1113,15 @@ public class WriteSequenceToHdf5
 				{
 					e.printStackTrace();
 				}
+				writerQueue.checkFailure();
 				if ( afterEachPlane != null )
 					afterEachPlane.afterEachPlane( useLoopBack );
 			}
+			writerQueue.writeOccupancy( Util.getOccupancyPath( viewIdPartition, level ), occupancy.getBits() );
 			writerQueue.closeDataset();
 			progressWriter.setProgress( ( double ) numCompletedTasks++ / numTasks );
 		}
+		writerQueue.getStatistics().viewCompleted();
 		if ( loopback != null )
 			loopback.close();
 	}
@@ -863,6 +1197,19 @@ public class WriteSequenceToHdf5
 	{
 		private Runnable currentTask = null;
 
+		private double[] accumulator = new double[ 0 ];
+
+		/**
+		 * Get a downsampling accumulator with at least {@code size} elements.
+		 * The accumulator is reused by all tasks running on this thread.
+		 */
+		double[] getAccumulator( final int size )
+		{
+			if ( accumulator.length < size )
+				accumulator = new double[ size ];
+			return accumulator;
+		}
+
 		public synchronized void run( final Runnable task )
 		{
 			currentTask = task;
@@ -896,7 +1243,73 @@ public class WriteSequenceToHdf5
 		}
 	}
 
-	private static < T extends RealType< T > > void copyBlock( final RandomAccess< T > out, final long[] outDim, final RandomAccess< T > in, final long[] blockMin )
+	/**
+	 * Check whether all elements of {@code data} are 0, i.e., equal to the
+	 * HDF5 fill value.
+	 */
+	private static boolean isEmpty( final short[] data )
+	{
+		for ( final short v : data )
+			if ( v != 0 )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Enqueue the input cells required for the given plane of output cells.
+	 */
+	private static void prefetchPlane( final InputCellPrefetcher prefetcher, final int plane, final long[] minRequiredInput, final long[] maxRequiredInput, final long planeThickness )
+	{
+		final int n = minRequiredInput.length;
+		final long[] min = minRequiredInput.clone();
+		final long[] max = maxRequiredInput.clone();
+		min[ n - 1 ] = minRequiredInput[ n - 1 ] + plane * planeThickness;
+		max[ n - 1 ] = Math.min( min[ n - 1 ] + planeThickness - 1, maxRequiredInput[ n - 1 ] );
+		prefetcher.prefetch( min, max );
+	}
+
+	private static < T > RandomAccessibleInterval< T > extendedInterval( final RandomAccessibleInterval< T > img, final Interval interval )
+	{
+		return Views.interval( Views.extendBorder( img ), interval );
+	}
+
+	/**
+	 * Check that pixels of the given {@code type} can be stored as
+	 * {@link UnsignedShortType} without loss, i.e., that {@code type} is an
+	 * integer type with values in {@code 0...65535}.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if {@code type} cannot be converted losslessly.
+	 */
+	static void checkUnsignedShortCompatible( final Object type )
+	{
+		if ( !isUnsignedShortCompatible( type ) )
+			throw new IllegalArgumentException( "Expected BasicImgLoader<UnsignedShortType> but your dataset has BasicImgLoader<"
+					+ type.getClass().getSimpleName() + ">.\nCurrently writing to HDF5 is only supported for integer types with values in 0...65535 (which are stored as UnsignedShortType)." );
+	}
+
+	/**
+	 * Whether pixels of the given {@code type} can be stored as
+	 * {@link UnsignedShortType} without loss.
+	 */
+	static boolean isUnsignedShortCompatible( final Object type )
+	{
+		if ( !( type instanceof IntegerType ) )
+			return false;
+		final IntegerType< ? > t = ( IntegerType< ? > ) type;
+		return t.getMinValue() >= 0 && t.getMaxValue() <= 65535;
+	}
+
+	/**
+	 * Convert a pixel value of an {@link #isUnsignedShortCompatible(Object)
+	 * compatible} type to the stored {@link UnsignedShortType} value.
+	 */
+	static int toUnsignedShort( final RealType< ? > value )
+	{
+		return ( int ) value.getRealDouble();
+	}
+
+	private static void copyBlock( final RandomAccess< UnsignedShortType > out, final long[] outDim, final RandomAccess< ? extends RealType< ? > > in, final long[] blockMin )
 	{
 		in.setPosition( blockMin );
 		for ( out.setPosition( 0, 2 ); out.getLongPosition( 2 ) < outDim[ 2 ]; out.fwd( 2 ) )
@@ -905,7 +1318,7 @@ public class WriteSequenceToHdf5
 			{
 				for ( out.setPosition( 0, 0 ); out.getLongPosition( 0 ) < outDim[ 0 ]; out.fwd( 0 ), in.fwd( 0 ) )
 				{
-					out.get().set( in.get() );
+					out.get().set( toUnsignedShort( in.get() ) );
 				}
 				in.setPosition( blockMin[ 0 ], 0 );
 				in.fwd( 1 );
@@ -915,7 +1328,7 @@ public class WriteSequenceToHdf5
 		}
 	}
 
-	private static < T extends RealType< T > > void downsampleBlock( final Cursor< T > out, final double[] accumulator, final long[] outDim, final RandomAccess< UnsignedShortType > randomAccess, final long[] blockMin, final int[] blockSize, final double scale )
+	private static void downsampleBlock( final Cursor< UnsignedShortType > out, final double[] accumulator, final long[] outDim, final RandomAccess< ? extends RealType< ? > > randomAccess, final long[] blockMin, final int[] blockSize, final double scale )
 	{
 		final int numBlockPixels = ( int ) ( outDim[ 0 ] * outDim[ 1 ] * outDim[ 2 ] );
 		Arrays.fill( accumulator, 0, numBlockPixels, 0 );
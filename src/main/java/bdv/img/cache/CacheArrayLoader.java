@@ -75,6 +75,20 @@ public interface CacheArrayLoader< A >
 		return 1;
 	}
 
+	/**
+	 * How many bytes of memory does the loaded cell data {@code data} with
+	 * {@code numElements} elements occupy? This is used to account loaded
+	 * cells to a memory budget. Implementing classes that hand out the same
+	 * data for several cells (for example a shared all-zero array for empty
+	 * cells) should return 0 for such data.
+	 *
+	 * @return number of bytes retained by keeping {@code data} in memory.
+	 */
+	public default long getRetainedBytes( final A data, final long numElements )
+	{
+		return numElements * getBytesPerElement();
+	}
+
 	/**
 	 * Implementing classes must override this if {@code A} is not a standard
 	 * {@link VolatileArrayDataAccess} type. The default implementation returns
@@ -0,0 +1,235 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.img.cache;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.input.SAXBuilder;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+
+import bdv.img.cache.VolatileGlobalCellCache.Key;
+
+/**
+ * Records which cells of a dataset are used, such that the most used cells
+ * can be loaded ahead of time when the dataset is opened again (see
+ * {@link bdv.tools.CacheWarmer}).
+ * <p>
+ * Every time a cell is used for rendering a full-resolution frame (see
+ * {@link VolatileCachedCellImg#recordUse(long)}), its use count is
+ * incremented. Loading a cell does not count as use, so warming the cache does
+ * not keep cells in the manifest. When a manifest is restored
+ * from XML, the counts of previous sessions are decayed, so that cells that
+ * are no longer looked at eventually drop out. At most
+ * {@code maxNumCells} cells with the highest counts are kept.
+ */
+public class CacheManifest
+{
+	public static final int DEFAULT_MAX_NUM_CELLS = 8192;
+
+	/**
+	 * Factor by which counts of previous sessions are multiplied.
+	 */
+	private static final double DECAY = 0.5;
+
+	/**
+	 * Counts below this are dropped when restoring.
+	 */
+	private static final double MIN_COUNT = 0.1;
+
+	private static class Usage
+	{
+		double count;
+
+		Usage( final double count )
+		{
+			this.count = count;
+		}
+	}
+
+	private final int maxNumCells;
+
+	private final HashMap< Key, Usage > usages = new HashMap<>();
+
+	public CacheManifest()
+	{
+		this( DEFAULT_MAX_NUM_CELLS );
+	}
+
+	/**
+	 * @param maxNumCells
+	 *            maximum number of cells kept in the manifest.
+	 */
+	public CacheManifest( final int maxNumCells )
+	{
+		this.maxNumCells = maxNumCells;
+	}
+
+	/**
+	 * Record that the cell with the given key was used.
+	 */
+	public synchronized void record( final Key key )
+	{
+		final Usage usage = usages.get( key );
+		if ( usage != null )
+			++usage.count;
+		else
+		{
+			usages.put( key, new Usage( 1 ) );
+			if ( usages.size() > 2 * maxNumCells )
+				trim( maxNumCells );
+		}
+	}
+
+	/**
+	 * Get the keys of the most used cells, most used first.
+	 *
+	 * @param n
+	 *            maximum number of keys to return.
+	 */
+	public synchronized List< Key > getMostUsed( final int n )
+	{
+		final List< Entry< Key, Usage > > sorted = sortedEntries();
+		final ArrayList< Key > keys = new ArrayList<>( Math.min( n, sorted.size() ) );
+		for ( int i = 0; i < n && i < sorted.size(); ++i )
+			keys.add( sorted.get( i ).getKey() );
+		return keys;
+	}
+
+	public synchronized int size()
+	{
+		return usages.size();
+	}
+
+	public synchronized Element toXml()
+	{
+		final Element elem = new Element( "CacheManifest" );
+		final List< Entry< Key, Usage > > sorted = sortedEntries();
+		for ( int i = 0; i < maxNumCells && i < sorted.size(); ++i )
+		{
+			final Key key = sorted.get( i ).getKey();
+			final Element elemCell = new Element( "Cell" );
+			elemCell.setAttribute( "timepoint", Integer.toString( key.getTimepoint() ) );
+			elemCell.setAttribute( "setup", Integer.toString( key.getSetup() ) );
+			elemCell.setAttribute( "level", Integer.toString( key.getLevel() ) );
+			elemCell.setAttribute( "index", Long.toString( key.getIndex() ) );
+			elemCell.setAttribute( "count", Double.toString( sorted.get( i ).getValue().count ) );
+			elem.addContent( elemCell );
+		}
+		return elem;
+	}
+
+	/**
+	 * Replace the recorded cells by the ones stored in the
+	 * {@code <CacheManifest>} child of {@code parent}, with decayed counts.
+	 */
+	public synchronized void restoreFromXml( final Element parent )
+	{
+		usages.clear();
+
+		final Element elemManifest = parent.getChild( "CacheManifest" );
+		if ( elemManifest == null )
+			return;
+
+		for ( final Element elem : elemManifest.getChildren( "Cell" ) )
+		{
+			try
+			{
+				final Key key = new Key(
+						Integer.parseInt( elem.getAttributeValue( "timepoint" ) ),
+						Integer.parseInt( elem.getAttributeValue( "setup" ) ),
+						Integer.parseInt( elem.getAttributeValue( "level" ) ),
+						Long.parseLong( elem.getAttributeValue( "index" ) ) );
+				final double count = DECAY * Double.parseDouble( elem.getAttributeValue( "count" ) );
+				if ( count >= MIN_COUNT )
+					usages.put( key, new Usage( count ) );
+			}
+			catch ( final NumberFormatException | NullPointerException e )
+			{
+				// skip malformed entries
+			}
+		}
+		trim( maxNumCells );
+	}
+
+	/**
+	 * Write the manifest to an XML file.
+	 */
+	public void save( final File file ) throws IOException
+	{
+		final Element root = new Element( "Settings" );
+		root.addContent( toXml() );
+		final XMLOutputter xout = new XMLOutputter( Format.getPrettyFormat() );
+		try ( Writer writer = new FileWriter( file ) )
+		{
+			xout.output( new Document( root ), writer );
+		}
+	}
+
+	/**
+	 * Restore the manifest from an XML file written by {@link #save(File)}
+	 * (or a settings file that contains a {@code <CacheManifest>}).
+	 */
+	public void load( final File file ) throws IOException, JDOMException
+	{
+		final Document doc = new SAXBuilder().build( file );
+		restoreFromXml( doc.getRootElement() );
+	}
+
+	private List< Entry< Key, Usage > > sortedEntries()
+	{
+		final ArrayList< Entry< Key, Usage > > entries = new ArrayList<>( usages.entrySet() );
+		Collections.sort( entries, ( a, b ) -> Double.compare( b.getValue().count, a.getValue().count ) );
+		return entries;
+	}
+
+	/**
+	 * Keep only the {@code n} most used cells.
+	 */
+	private void trim( final int n )
+	{
+		if ( usages.size() <= n )
+			return;
+		final List< Entry< Key, Usage > > sorted = sortedEntries();
+		for ( int i = n; i < sorted.size(); ++i )
+			usages.remove( sorted.get( i ).getKey() );
+	}
+}
@@ -0,0 +1,673 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.img.cache;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import bdv.img.http.RequestControl;
+import net.imglib2.cache.queue.BlockingFetchQueues;
+
+/**
+ * Fetch queues of several image loaders, served by one shared set of fetcher
+ * threads.
+ * <p>
+ * Every loader gets its own {@link Client} queue, which is a
+ * {@link BlockingFetchQueues} and can be handed to the caches as usual. The
+ * shared fetcher threads always pick the most urgent request (lowest priority
+ * value, then prefetch requests) over all clients. Among clients with
+ * requests of the same priority, throughput is split in proportion to the
+ * client weights (stride scheduling). A client never has more than its
+ * {@code maxConcurrent} requests in flight, so a loader that does not profit
+ * from concurrency (e.g., a single local file) does not occupy threads that
+ * other loaders could use.
+ * <p>
+ * While a request is loading, the loader can query its
+ * {@link #currentRequest() control}: requests of a client are cancelled when
+ * the client is {@link Client#clear() cleared}, and requests that were taken
+ * from the prefetch queue, or were moved there by
+ * {@link Client#clearToPrefetch()} while loading, must finish within the
+ * prefetch deadline. Only requests for the current frame may be hedged.
+ * <p>
+ * Every priority level is subdivided into {@link #NUM_SUB_PRIORITIES} ranks.
+ * The cache only passes the priority to {@link Client#put(Callable, int,
+ * boolean)}, so the rank is taken from the calling thread (see
+ * {@link #setSubPriority(int)}). Requests without a rank get the most urgent
+ * rank of their priority level.
+ */
+public class FairShareFetchQueues
+{
+	/**
+	 * Upper bound for the number of shared fetcher threads.
+	 */
+	public static final int MAX_NUM_FETCHER_THREADS = 64;
+
+	public static final int DEFAULT_PREFETCH_CAPACITY = 16384;
+
+	/**
+	 * Default time after which requests that are no longer needed for the
+	 * current frame are abandoned.
+	 */
+	public static final long DEFAULT_PREFETCH_DEADLINE_MILLIS = 3000;
+
+	/**
+	 * Number of ranks within each priority level.
+	 */
+	public static final int NUM_SUB_PRIORITIES = 8;
+
+	private static final ThreadLocal< int[] > subPriority = ThreadLocal.withInitial( () -> new int[ 1 ] );
+
+	/**
+	 * Set the rank within their priority level of the requests that are put
+	 * by the current thread from now on. {@code 0} is the most urgent rank.
+	 *
+	 * @param rank
+	 *            rank in {@code [0, NUM_SUB_PRIORITIES)}.
+	 */
+	public static void setSubPriority( final int rank )
+	{
+		subPriority.get()[ 0 ] = Math.max( 0, Math.min( rank, NUM_SUB_PRIORITIES - 1 ) );
+	}
+
+	/**
+	 * Get the control of the request that is loaded by the current thread.
+	 *
+	 * @return the control, or {@code null} if the current thread is not a
+	 *         shared fetcher thread.
+	 */
+	public static RequestControl currentRequest()
+	{
+		final Thread thread = Thread.currentThread();
+		return thread instanceof FetcherThread ? ( ( FetcherThread ) thread ).request : null;
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition notEmpty = lock.newCondition();
+
+	private final ArrayList< Client > clients = new ArrayList<>();
+
+	private final ArrayList< FetcherThread > fetcherThreads = new ArrayList<>();
+
+	private final int prefetchCapacity;
+
+	private final long prefetchDeadlineNanos;
+
+	/**
+	 * Pass of the most recently served client. Clients that become active are
+	 * moved forward to this, so that idle periods are not saved up as credit.
+	 */
+	private double virtualTime = 0;
+
+	public FairShareFetchQueues()
+	{
+		this( DEFAULT_PREFETCH_CAPACITY, DEFAULT_PREFETCH_DEADLINE_MILLIS );
+	}
+
+	/**
+	 * @param prefetchCapacity
+	 *            maximum number of prefetch requests per client.
+	 * @param prefetchDeadlineMillis
+	 *            time after which requests that are no longer needed for the
+	 *            current frame are abandoned.
+	 */
+	public FairShareFetchQueues( final int prefetchCapacity, final long prefetchDeadlineMillis )
+	{
+		this.prefetchCapacity = prefetchCapacity;
+		this.prefetchDeadlineNanos = TimeUnit.MILLISECONDS.toNanos( prefetchDeadlineMillis );
+	}
+
+	/**
+	 * Register a new client queue.
+	 *
+	 * @param name
+	 *            name of the client (used for {@link #toString()}).
+	 * @param numPriorities
+	 *            number of priority levels of the client queue.
+	 * @param maxConcurrent
+	 *            maximum number of requests of this client that are loaded
+	 *            concurrently. The shared fetcher threads are increased to at
+	 *            least this number (up to {@link #MAX_NUM_FETCHER_THREADS}).
+	 * @param weight
+	 *            share of throughput relative to other clients that have
+	 *            requests of the same priority.
+	 * @return the client queue.
+	 */
+	public Client register( final String name, final int numPriorities, final int maxConcurrent, final double weight )
+	{
+		final Client client = new Client( name, numPriorities, Math.max( 1, maxConcurrent ), weight > 0 ? weight : 1 );
+		lock.lock();
+		try
+		{
+			clients.add( client );
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		ensureNumFetcherThreads( client.maxConcurrent );
+		return client;
+	}
+
+	/**
+	 * Start fetcher threads, such that there are at least
+	 * {@code min(numFetcherThreads, MAX_NUM_FETCHER_THREADS)}.
+	 */
+	public synchronized void ensureNumFetcherThreads( final int numFetcherThreads )
+	{
+		final int n = Math.min( numFetcherThreads, MAX_NUM_FETCHER_THREADS );
+		while ( fetcherThreads.size() < n )
+		{
+			final FetcherThread thread = new FetcherThread( fetcherThreads.size() );
+			fetcherThreads.add( thread );
+			thread.start();
+		}
+	}
+
+	public synchronized int getNumFetcherThreads()
+	{
+		return fetcherThreads.size();
+	}
+
+	@Override
+	public String toString()
+	{
+		lock.lock();
+		try
+		{
+			final StringBuilder sb = new StringBuilder( "FairShareFetchQueues (" + getNumFetcherThreads() + " threads)" );
+			for ( final Client client : clients )
+				sb.append( "\n  " ).append( client );
+			return sb.toString();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Control of a request that is loading. See {@link #currentRequest()}.
+	 */
+	public static class Request implements RequestControl
+	{
+		private volatile boolean cancelled = false;
+
+		private volatile long deadlineNanos;
+
+		Request( final long deadlineNanos )
+		{
+			this.deadlineNanos = deadlineNanos;
+		}
+
+		@Override
+		public boolean isCancelled()
+		{
+			return cancelled;
+		}
+
+		@Override
+		public long getDeadlineNanos()
+		{
+			return deadlineNanos;
+		}
+
+		/**
+		 * Requests for the current frame may be hedged, prefetch requests
+		 * may not.
+		 */
+		@Override
+		public boolean isHedgingAllowed()
+		{
+			return deadlineNanos == Long.MAX_VALUE;
+		}
+
+		/**
+		 * Set a deadline, unless the request already has an earlier one.
+		 */
+		void demote( final long deadline )
+		{
+			if ( deadlineNanos == Long.MAX_VALUE )
+				deadlineNanos = deadline;
+		}
+	}
+
+	/**
+	 * Fetch queue of one client. Elements are taken by the shared fetcher
+	 * threads. {@link #take()} can be used by additional threads that load
+	 * requests of this client only, subject to the same {@code maxConcurrent}
+	 * limit.
+	 */
+	public class Client extends BlockingFetchQueues< Callable< ? > >
+	{
+		private final String name;
+
+		private final int maxConcurrent;
+
+		private final double stride;
+
+		private final int numPriorities;
+
+		/**
+		 * One queue per rank of every priority level, most urgent first.
+		 */
+		private final ArrayDeque< Callable< ? > >[] queues;
+
+		private final ArrayDeque< Callable< ? > > prefetch;
+
+		/**
+		 * Signalled when a request of this client may be taken, for threads
+		 * waiting in {@link #take()}.
+		 */
+		private final Condition available = lock.newCondition();
+
+		/**
+		 * Requests that are loading.
+		 */
+		private final ArrayList< Request > loading = new ArrayList<>();
+
+		private int count = 0;
+
+		private int inFlight = 0;
+
+		private double pass = 0;
+
+		private long pausedUntil = 0;
+
+		private long numCompleted = 0;
+
+		private boolean closed = false;
+
+		@SuppressWarnings( "unchecked" )
+		private Client( final String name, final int numPriorities, final int maxConcurrent, final double weight )
+		{
+			super( numPriorities );
+			this.name = name;
+			this.maxConcurrent = maxConcurrent;
+			this.stride = 1.0 / weight;
+			this.numPriorities = numPriorities;
+			queues = new ArrayDeque[ numPriorities * NUM_SUB_PRIORITIES ];
+			for ( int i = 0; i < queues.length; ++i )
+				queues[ i ] = new ArrayDeque<>();
+			prefetch = new ArrayDeque<>();
+		}
+
+		@Override
+		public void put( final Callable< ? > element, final int priority, final boolean enqueuToFront )
+		{
+			lock.lock();
+			try
+			{
+				if ( closed )
+					return;
+				if ( count == 0 && inFlight == 0 )
+					pass = Math.max( pass, virtualTime );
+				final int level = Math.max( 0, Math.min( priority, numPriorities - 1 ) );
+				final ArrayDeque< Callable< ? > > queue = queues[ level * NUM_SUB_PRIORITIES + subPriority.get()[ 0 ] ];
+				if ( enqueuToFront )
+					queue.addFirst( element );
+				else
+					queue.addLast( element );
+				++count;
+				notEmpty.signal();
+				available.signal();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Wait for the most urgent request of this client that may be loaded
+		 * now, and remove it from the queue. The returned task accounts for
+		 * its completion when it is called, so it must be called exactly
+		 * once. While it is called, {@link FairShareFetchQueues#currentRequest()}
+		 * is {@code null}, i.e., the request is neither cancelled nor hedged.
+		 */
+		@Override
+		public Callable< ? > take() throws InterruptedException
+		{
+			final Request request;
+			final Callable< ? > task;
+			lock.lockInterruptibly();
+			try
+			{
+				while ( true )
+				{
+					if ( count > 0 && inFlight < maxConcurrent )
+					{
+						final long now = System.currentTimeMillis();
+						if ( pausedUntil <= now )
+							break;
+						available.await( pausedUntil - now, TimeUnit.MILLISECONDS );
+					}
+					else
+						available.await();
+				}
+				final int i = firstNonEmpty();
+				request = createRequest( i );
+				task = poll( i, request );
+				pass += stride;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+			return () -> {
+				try
+				{
+					return task.call();
+				}
+				finally
+				{
+					completed( this, request );
+				}
+			};
+		}
+
+		/**
+		 * Move all pending requests to the prefetch queue, most urgent first.
+		 * If the prefetch queue exceeds its capacity, the least urgent
+		 * requests are dropped. Requests that are loading must now finish
+		 * within the prefetch deadline.
+		 */
+		@Override
+		public void clearToPrefetch()
+		{
+			lock.lock();
+			try
+			{
+				// advances the current frame
+				super.clearToPrefetch();
+				final long deadline = System.nanoTime() + prefetchDeadlineNanos;
+				for ( final Request request : loading )
+					request.demote( deadline );
+				for ( int i = queues.length - 1; i >= 0; --i )
+				{
+					final ArrayDeque< Callable< ? > > queue = queues[ i ];
+					for ( final Iterator< Callable< ? > > it = queue.descendingIterator(); it.hasNext(); )
+						prefetch.addFirst( it.next() );
+					queue.clear();
+				}
+				while ( prefetch.size() > prefetchCapacity )
+				{
+					prefetch.removeLast();
+					--count;
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Remove all pending requests, and cancel requests that are loading.
+		 */
+		@Override
+		public void clear()
+		{
+			lock.lock();
+			try
+			{
+				super.clear();
+				for ( final Request request : loading )
+					request.cancelled = true;
+				for ( final ArrayDeque< Callable< ? > > queue : queues )
+					queue.clear();
+				prefetch.clear();
+				count = 0;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Do not start loading requests of this client for the specified
+		 * time. Requests that are already loading are not affected.
+		 */
+		public void pauseFor( final long ms )
+		{
+			lock.lock();
+			try
+			{
+				pausedUntil = Math.max( pausedUntil, System.currentTimeMillis() + ms );
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Remove all pending requests and unregister this client. Requests
+		 * that are put afterwards are ignored.
+		 */
+		public void close()
+		{
+			lock.lock();
+			try
+			{
+				clear();
+				closed = true;
+				clients.remove( this );
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			lock.lock();
+			try
+			{
+				return name + ": " + count + " queued, " + inFlight + " loading (max " + maxConcurrent + "), " + numCompleted + " completed";
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @return index of the most urgent non-empty queue, where
+		 *         {@code queues.length} is the prefetch queue.
+		 */
+		private int firstNonEmpty()
+		{
+			for ( int i = 0; i < queues.length; ++i )
+				if ( !queues[ i ].isEmpty() )
+					return i;
+			return queues.length;
+		}
+
+		/**
+		 * Create the control for a request taken from queue {@code i}.
+		 * Prefetch requests must finish within the prefetch deadline.
+		 */
+		private Request createRequest( final int i )
+		{
+			return new Request( i < queues.length
+					? Long.MAX_VALUE
+					: System.nanoTime() + prefetchDeadlineNanos );
+		}
+
+		private Callable< ? > poll( final int i, final Request request )
+		{
+			--count;
+			++inFlight;
+			loading.add( request );
+			return i < queues.length ? queues[ i ].pollFirst() : prefetch.pollFirst();
+		}
+	}
+
+	/**
+	 * Wait for the most urgent request that may be loaded now, and hand it to
+	 * {@code thread}.
+	 */
+	private void take( final FetcherThread thread ) throws InterruptedException
+	{
+		lock.lockInterruptibly();
+		try
+		{
+			while ( true )
+			{
+				final long now = System.currentTimeMillis();
+				long wakeUp = Long.MAX_VALUE;
+				Client best = null;
+				int bestIndex = Integer.MAX_VALUE;
+				for ( final Client client : clients )
+				{
+					if ( client.count == 0 || client.inFlight >= client.maxConcurrent )
+						continue;
+					if ( client.pausedUntil > now )
+					{
+						wakeUp = Math.min( wakeUp, client.pausedUntil );
+						continue;
+					}
+					// prefetch requests of all clients rank after all
+					// prioritized requests
+					final int i = client.firstNonEmpty();
+					final int index = i < client.queues.length ? i : Integer.MAX_VALUE - 1;
+					if ( index < bestIndex || ( index == bestIndex && client.pass < best.pass ) )
+					{
+						best = client;
+						bestIndex = index;
+					}
+				}
+
+				if ( best != null )
+				{
+					final int i = best.firstNonEmpty();
+					final Request request = best.createRequest( i );
+					thread.request = request;
+					thread.task = best.poll( i, request );
+					thread.client = best;
+					virtualTime = best.pass;
+					best.pass += best.stride;
+					return;
+				}
+
+				if ( wakeUp == Long.MAX_VALUE )
+					notEmpty.await();
+				else
+					notEmpty.await( wakeUp - now, TimeUnit.MILLISECONDS );
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private void completed( final Client client, final Request request )
+	{
+		lock.lock();
+		try
+		{
+			client.loading.remove( request );
+			--client.inFlight;
+			++client.numCompleted;
+			if ( client.count > 0 )
+			{
+				notEmpty.signal();
+				client.available.signal();
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private class FetcherThread extends Thread
+	{
+		private Callable< ? > task;
+
+		private Client client;
+
+		private volatile Request request;
+
+		public FetcherThread( final int i )
+		{
+			super( String.format( "SharedFetcherThread-%02d", i ) );
+			setDaemon( true );
+		}
+
+		@Override
+		public final void run()
+		{
+			while ( true )
+			{
+				try
+				{
+					take( this );
+				}
+				catch ( final InterruptedException e )
+				{
+					break;
+				}
+
+				try
+				{
+					task.call();
+				}
+				catch ( final InterruptedException e )
+				{
+					// the request was canceled, continue with the next one
+				}
+				catch ( final Exception e )
+				{
+					e.printStackTrace();
+				}
+				finally
+				{
+					final Client c = client;
+					final Request r = request;
+					task = null;
+					client = null;
+					request = null;
+					completed( c, r );
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,488 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.img.cache;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.TreeSet;
+
+import net.imglib2.img.cell.Cell;
+
+/**
+ * Process-wide cell loading service shared by all image loaders.
+ * <p>
+ * Image loaders obtain their {@link VolatileGlobalCellCache} from
+ * {@link #createCache(String, int, int)} instead of creating one with its own
+ * fetcher threads. All such caches share
+ * <ul>
+ * <li>one set of fetcher threads serving prioritized queues with a fair-share
+ * policy across loaders (see {@link FairShareFetchQueues}), and</li>
+ * <li>one memory budget: loaded cells of all loaders are kept strongly
+ * reachable up to the budget, preferring cells of and near the displayed
+ * timepoint, and coarse levels (see {@link MemoryBudget}). Beyond the budget,
+ * cells are only softly reachable and may be reclaimed by the garbage
+ * collector.</li>
+ * </ul>
+ */
+public class SharedCellCache
+{
+	/**
+	 * Default memory budget: an eighth of the maximum heap size, at most 1 GB.
+	 * Cells beyond the budget are still cached softly, so the budget only
+	 * needs to protect the cells that are most likely to be displayed from
+	 * being cleared. Strongly retained cells cannot be reclaimed when the heap
+	 * runs low, so the default is conservative. Use
+	 * {@link #setMemoryBudget(long)} to retain more.
+	 */
+	public static final long DEFAULT_MEMORY_BUDGET = Math.min( Runtime.getRuntime().maxMemory() / 8, 1024l * 1024 * 1024 );
+
+	private static SharedCellCache instance;
+
+	/**
+	 * Get the process-wide instance.
+	 */
+	public static synchronized SharedCellCache getInstance()
+	{
+		if ( instance == null )
+			instance = new SharedCellCache( DEFAULT_MEMORY_BUDGET );
+		return instance;
+	}
+
+	private final FairShareFetchQueues fetchQueues;
+
+	private final MemoryBudget budget;
+
+	public SharedCellCache( final long memoryBudget )
+	{
+		fetchQueues = new FairShareFetchQueues();
+		budget = new MemoryBudget( memoryBudget );
+	}
+
+	/**
+	 * Register a fetch queue for a new loader.
+	 *
+	 * @param name
+	 *            name of the loader (for diagnostics).
+	 * @param numPriorities
+	 *            number of priority levels, usually the maximum number of
+	 *            mipmap levels.
+	 * @param maxNumFetchers
+	 *            maximum number of cells of this loader that are loaded
+	 *            concurrently.
+	 */
+	public FairShareFetchQueues.Client createFetchQueue( final String name, final int numPriorities, final int maxNumFetchers )
+	{
+		return fetchQueues.register( name, numPriorities, maxNumFetchers, 1.0 );
+	}
+
+	/**
+	 * Create a cache that loads through the given fetch queue, and accounts
+	 * loaded cells to the shared memory budget.
+	 */
+	public VolatileGlobalCellCache createCache( final FairShareFetchQueues.Client queue )
+	{
+		return new VolatileGlobalCellCache( queue, budget );
+	}
+
+	/**
+	 * Create a cache for a new loader.
+	 *
+	 * @param name
+	 *            name of the loader (for diagnostics).
+	 * @param maxNumLevels
+	 *            the highest occurring mipmap level plus 1.
+	 * @param maxNumFetchers
+	 *            maximum number of cells of this loader that are loaded
+	 *            concurrently.
+	 */
+	public VolatileGlobalCellCache createCache( final String name, final int maxNumLevels, final int maxNumFetchers )
+	{
+		return createCache( createFetchQueue( name, maxNumLevels, maxNumFetchers ) );
+	}
+
+	public FairShareFetchQueues getFetchQueues()
+	{
+		return fetchQueues;
+	}
+
+	public void setMemoryBudget( final long bytes )
+	{
+		budget.setMaxBytes( bytes );
+	}
+
+	public long getMemoryBudget()
+	{
+		return budget.getMaxBytes();
+	}
+
+	/**
+	 * @return number of bytes of cells that are currently kept strongly
+	 *         reachable.
+	 */
+	public long getRetainedBytes()
+	{
+		return budget.getBytes();
+	}
+
+	/**
+	 * Keeps loaded cells strongly reachable, up to a total size.
+	 * <p>
+	 * When the budget is exceeded, cells are released in order of how cheap
+	 * they are to lose, judged by their timepoint and mipmap level relative
+	 * to the timepoint that is currently displayed (see
+	 * {@link #setCurrentTimepoint(Object, int)}):
+	 * <ul>
+	 * <li>cells of the current timepoint are kept longest,</li>
+	 * <li>cells of timepoints ahead in the direction of the most recent
+	 * timepoint change are kept longer than cells of timepoints behind,</li>
+	 * <li>the value of a cell decreases with the distance of its timepoint
+	 * from the current one, but more slowly for coarser levels. Coarse cells
+	 * are small and cover a large part of the image, so they are kept across
+	 * nearby timepoints, while full-resolution cells of distant timepoints go
+	 * first.</li>
+	 * </ul>
+	 * Among cells of equal value, the least recently loaded ones are released
+	 * first. For owners without a current timepoint, all cells have equal
+	 * value.
+	 * <p>
+	 * Buckets of cells are kept in a {@link TreeSet} ordered by value and
+	 * age of their oldest cell, so that finding the next victim does not scan
+	 * all buckets. The value of a bucket is only recomputed when the current
+	 * timepoint of its owner changes.
+	 */
+	static class MemoryBudget
+	{
+		/**
+		 * Timepoints behind the current one (opposite to the direction of
+		 * traversal) count as this many times farther away.
+		 */
+		private static final double BEHIND_FACTOR = 2;
+
+		/**
+		 * Cells are grouped by owner, timepoint, and level. Within a bucket,
+		 * cells are ordered by load time.
+		 */
+		private static class Bucket
+		{
+			final Object owner;
+
+			final int timepoint;
+
+			final int level;
+
+			final LinkedHashMap< Cell< ? >, Retained > cells = new LinkedHashMap<>();
+
+			/**
+			 * How far the cells are from being displayed, see
+			 * {@link MemoryBudget#distance(Bucket)}. Must not be modified
+			 * while the bucket is in {@link MemoryBudget#victims}.
+			 */
+			double distance;
+
+			/**
+			 * Load sequence number of the oldest cell. Must not be modified
+			 * while the bucket is in {@link MemoryBudget#victims}.
+			 */
+			long oldest;
+
+			Bucket( final Object owner, final int timepoint, final int level )
+			{
+				this.owner = owner;
+				this.timepoint = timepoint;
+				this.level = level;
+			}
+
+			BucketKey key()
+			{
+				return new BucketKey( owner, timepoint, level );
+			}
+		}
+
+		/**
+		 * Orders buckets by how cheap their cells are to lose: largest
+		 * distance first, then oldest first. Non-empty buckets never compare
+		 * equal, because load sequence numbers are unique.
+		 */
+		private static final Comparator< Bucket > VICTIM_ORDER = ( b1, b2 ) -> {
+			final int c = Double.compare( b2.distance, b1.distance );
+			return c != 0 ? c : Long.compare( b1.oldest, b2.oldest );
+		};
+
+		private static class BucketKey
+		{
+			final Object owner;
+
+			final int timepoint;
+
+			final int level;
+
+			BucketKey( final Object owner, final int timepoint, final int level )
+			{
+				this.owner = owner;
+				this.timepoint = timepoint;
+				this.level = level;
+			}
+
+			@Override
+			public boolean equals( final Object obj )
+			{
+				if ( !( obj instanceof BucketKey ) )
+					return false;
+				final BucketKey other = ( BucketKey ) obj;
+				return owner == other.owner && timepoint == other.timepoint && level == other.level;
+			}
+
+			@Override
+			public int hashCode()
+			{
+				return 31 * ( 31 * System.identityHashCode( owner ) + timepoint ) + level;
+			}
+		}
+
+		private static class Retained
+		{
+			final Bucket bucket;
+
+			final long bytes;
+
+			final long sequence;
+
+			Retained( final Bucket bucket, final long bytes, final long sequence )
+			{
+				this.bucket = bucket;
+				this.bytes = bytes;
+				this.sequence = sequence;
+			}
+		}
+
+		/**
+		 * Current timepoint and direction of traversal of an owner.
+		 */
+		private static class TimepointFocus
+		{
+			int timepoint;
+
+			int direction = 0;
+
+			TimepointFocus( final int timepoint )
+			{
+				this.timepoint = timepoint;
+			}
+		}
+
+		private final HashMap< Cell< ? >, Retained > retained = new HashMap<>();
+
+		private final HashMap< BucketKey, Bucket > buckets = new HashMap<>();
+
+		/**
+		 * All non-empty buckets, in the order in which they are trimmed.
+		 */
+		private final TreeSet< Bucket > victims = new TreeSet<>( VICTIM_ORDER );
+
+		private final IdentityHashMap< Object, TimepointFocus > focus = new IdentityHashMap<>();
+
+		private long maxBytes;
+
+		private long bytes = 0;
+
+		private long sequence = 0;
+
+		MemoryBudget( final long maxBytes )
+		{
+			this.maxBytes = maxBytes;
+		}
+
+		synchronized void retain( final Object owner, final int timepoint, final int level, final Cell< ? > cell, final long cellBytes )
+		{
+			if ( cellBytes > maxBytes )
+				return;
+			remove( cell );
+			final BucketKey key = new BucketKey( owner, timepoint, level );
+			Bucket bucket = buckets.get( key );
+			final Retained r;
+			if ( bucket == null )
+			{
+				bucket = new Bucket( owner, timepoint, level );
+				bucket.distance = distance( bucket );
+				buckets.put( key, bucket );
+				r = new Retained( bucket, cellBytes, sequence++ );
+				bucket.cells.put( cell, r );
+				link( bucket );
+			}
+			else
+			{
+				// appended cells are never the oldest of a non-empty bucket
+				r = new Retained( bucket, cellBytes, sequence++ );
+				bucket.cells.put( cell, r );
+			}
+			retained.put( cell, r );
+			bytes += cellBytes;
+			trim();
+		}
+
+		/**
+		 * Stop retaining all cells of {@code owner}.
+		 */
+		synchronized void release( final Object owner )
+		{
+			for ( final Iterator< Bucket > it = buckets.values().iterator(); it.hasNext(); )
+			{
+				final Bucket bucket = it.next();
+				if ( bucket.owner == owner )
+				{
+					victims.remove( bucket );
+					for ( final Entry< Cell< ? >, Retained > entry : bucket.cells.entrySet() )
+					{
+						retained.remove( entry.getKey() );
+						bytes -= entry.getValue().bytes;
+					}
+					it.remove();
+				}
+			}
+			focus.remove( owner );
+		}
+
+		/**
+		 * Set the timepoint of {@code owner} that is currently displayed.
+		 */
+		synchronized void setCurrentTimepoint( final Object owner, final int timepoint )
+		{
+			final TimepointFocus f = focus.get( owner );
+			if ( f == null )
+				focus.put( owner, new TimepointFocus( timepoint ) );
+			else if ( f.timepoint != timepoint )
+			{
+				f.direction = Integer.signum( timepoint - f.timepoint );
+				f.timepoint = timepoint;
+			}
+			else
+				return;
+
+			// the distances of the owner's buckets changed
+			for ( final Bucket bucket : buckets.values() )
+			{
+				if ( bucket.owner == owner )
+				{
+					victims.remove( bucket );
+					bucket.distance = distance( bucket );
+					victims.add( bucket );
+				}
+			}
+		}
+
+		synchronized void setMaxBytes( final long maxBytes )
+		{
+			this.maxBytes = maxBytes;
+			trim();
+		}
+
+		synchronized long getMaxBytes()
+		{
+			return maxBytes;
+		}
+
+		synchronized long getBytes()
+		{
+			return bytes;
+		}
+
+		private void remove( final Cell< ? > cell )
+		{
+			final Retained r = retained.remove( cell );
+			if ( r != null )
+			{
+				bytes -= r.bytes;
+				final Bucket bucket = r.bucket;
+				if ( bucket.oldest == r.sequence )
+				{
+					victims.remove( bucket );
+					bucket.cells.remove( cell );
+					link( bucket );
+				}
+				else
+					bucket.cells.remove( cell );
+			}
+		}
+
+		/**
+		 * Add {@code bucket}, which is not in {@link #victims}, to
+		 * {@link #victims} with its current oldest cell, or remove it if it
+		 * is empty.
+		 */
+		private void link( final Bucket bucket )
+		{
+			if ( bucket.cells.isEmpty() )
+				buckets.remove( bucket.key() );
+			else
+			{
+				bucket.oldest = bucket.cells.values().iterator().next().sequence;
+				victims.add( bucket );
+			}
+		}
+
+		/**
+		 * How far the cells of {@code bucket} are from being displayed. Cells
+		 * with larger distance are released first.
+		 */
+		private double distance( final Bucket bucket )
+		{
+			final TimepointFocus f = focus.get( bucket.owner );
+			if ( f == null )
+				return 0;
+			final int dt = bucket.timepoint - f.timepoint;
+			final double d = ( f.direction != 0 && Integer.signum( dt ) == -f.direction )
+					? BEHIND_FACTOR * Math.abs( dt )
+					: Math.abs( dt );
+			return Math.scalb( d, -bucket.level );
+		}
+
+		private void trim()
+		{
+			while ( bytes > maxBytes && !victims.isEmpty() )
+			{
+				final Bucket victim = victims.pollFirst();
+				// release the oldest cells of the victim until within budget
+				// or the bucket is empty
+				for ( final Iterator< Entry< Cell< ? >, Retained > > it = victim.cells.entrySet().iterator(); bytes > maxBytes && it.hasNext(); )
+				{
+					final Entry< Cell< ? >, Retained > entry = it.next();
+					retained.remove( entry.getKey() );
+					bytes -= entry.getValue().bytes;
+					it.remove();
+				}
+				link( victim );
+			}
+		}
+	}
+}
@@ -39,6 +39,18 @@ public class VolatileCachedCellImg< T extends NativeType< T >, A >
 		T get( long index, CacheHints cacheHints );
 	}
 
+	/**
+	 * Cache whose {@link CacheManifest} records the use of cells of this
+	 * image, or {@code null}.
+	 */
+	private VolatileGlobalCellCache usageCache;
+
+	private int usageTimepoint;
+
+	private int usageSetup;
+
+	private int usageLevel;
+
 	public VolatileCachedCellImg( final CellGrid grid, final T type, final CacheHints cacheHints, final Get< Cell< A > > get )
 	{
 		super( grid, new VolatileCachedCells<>( grid.getGridDimensions(), get, cacheHints ), type.getEntitiesPerPixel() );
@@ -100,6 +112,54 @@ public class VolatileCachedCellImg< T extends NativeType< T >, A >
 		return cells.defaultCacheHints;
 	}
 
+	/**
+	 * Get the cell with the given flattened index, handling the request
+	 * according to {@code cacheHints} instead of the hints
+	 * {@link #setCacheHints(CacheHints) set} for this image.
+	 */
+	public Cell< A > getCell( final long index, final CacheHints cacheHints )
+	{
+		return cells.get.get( index, cacheHints );
+	}
+
+	void setUsageKey( final VolatileGlobalCellCache cache, final int timepoint, final int setup, final int level )
+	{
+		usageCache = cache;
+		usageTimepoint = timepoint;
+		usageSetup = setup;
+		usageLevel = level;
+	}
+
+	/**
+	 * Tell the backing {@link VolatileGlobalCellCache}, if any, that the
+	 * timepoint of this image is the one currently displayed.
+	 */
+	public void markCurrentTimepoint()
+	{
+		if ( usageCache != null )
+			usageCache.setCurrentTimepoint( usageTimepoint );
+	}
+
+	/**
+	 * @return whether {@link #recordUse(long)} records anything.
+	 */
+	public boolean isRecordingUse()
+	{
+		return usageCache != null && usageCache.getManifest() != null;
+	}
+
+	/**
+	 * Record that the cell with the given flattened index was used for
+	 * rendering, in the {@link CacheManifest} of the backing
+	 * {@link VolatileGlobalCellCache}, if any.
+	 */
+	public void recordUse( final long index )
+	{
+		final CacheManifest manifest = usageCache == null ? null : usageCache.getManifest();
+		if ( manifest != null )
+			manifest.record( new VolatileGlobalCellCache.Key( usageTimepoint, usageSetup, usageLevel, index ) );
+	}
+
 	@Override
 	public ImgFactory< T > factory()
 	{
@@ -42,6 +42,7 @@ import net.imglib2.cache.ref.WeakRefVolatileCache;
 import net.imglib2.cache.util.KeyBimap;
 import net.imglib2.cache.volatiles.CacheHints;
 import net.imglib2.cache.volatiles.UncheckedVolatileCache;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
 import net.imglib2.img.cell.Cell;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.NativeType;
@@ -108,12 +109,43 @@ public class VolatileGlobalCellCache implements CacheControl
 		{
 			return hashcode;
 		}
+
+		public int getTimepoint()
+		{
+			return timepoint;
+		}
+
+		public int getSetup()
+		{
+			return setup;
+		}
+
+		public int getLevel()
+		{
+			return level;
+		}
+
+		public long getIndex()
+		{
+			return index;
+		}
 	}
 
 	private final BlockingFetchQueues< Callable< ? > > queue;
 
 	protected final LoaderCache< Key, Cell< ? > > backingCache;
 
+	/**
+	 * Shared memory budget to which loaded cells are accounted, or
+	 * {@code null}.
+	 */
+	private final SharedCellCache.MemoryBudget budget;
+
+	/**
+	 * Records the use of cells, or {@code null}.
+	 */
+	private volatile CacheManifest manifest;
+
 	/**
 	 * Create a new global cache with a new fetch queue served by the specified
 	 * number of fetcher threads.
@@ -128,6 +160,7 @@ public class VolatileGlobalCellCache implements CacheControl
 		queue = new BlockingFetchQueues<>( maxNumLevels );
 		new FetcherThreads( queue, numFetcherThreads );
 		backingCache = new SoftRefLoaderCache<>();
+		budget = null;
 	}
 
 	/**
@@ -138,8 +171,19 @@ public class VolatileGlobalCellCache implements CacheControl
 	 *            queue to which asynchronous data loading jobs are submitted
 	 */
 	public VolatileGlobalCellCache( final BlockingFetchQueues< Callable< ? > > queue )
+	{
+		this( queue, null );
+	}
+
+	/**
+	 * Create a new cache with the specified fetch queue, that accounts loaded
+	 * cells to the specified shared memory budget. Used by
+	 * {@link SharedCellCache}.
+	 */
+	VolatileGlobalCellCache( final BlockingFetchQueues< Callable< ? > > queue, final SharedCellCache.MemoryBudget budget )
 	{
 		this.queue = queue;
+		this.budget = budget;
 		backingCache = new SoftRefLoaderCache<>();
 	}
 
@@ -163,6 +207,40 @@ public class VolatileGlobalCellCache implements CacheControl
 		backingCache.invalidateAll();
 		queue.clear();
 		backingCache.invalidateAll();
+		if ( budget != null )
+			budget.release( this );
+	}
+
+	/**
+	 * Record the use of cells in {@code manifest} from now on (see
+	 * {@link VolatileCachedCellImg#recordUse(long)}).
+	 *
+	 * @param manifest
+	 *            the manifest to record to, or {@code null} to stop
+	 *            recording.
+	 */
+	public void setManifest( final CacheManifest manifest )
+	{
+		this.manifest = manifest;
+	}
+
+	public CacheManifest getManifest()
+	{
+		return manifest;
+	}
+
+	/**
+	 * Set the timepoint that is currently displayed. Cells of this and nearby
+	 * timepoints are preferred when the shared memory budget decides which
+	 * cells to keep (see {@link SharedCellCache}).
+	 *
+	 * @param timepoint
+	 *            timepoint coordinate (as in {@link Key}).
+	 */
+	public void setCurrentTimepoint( final int timepoint )
+	{
+		if ( budget != null )
+			budget.setCurrentTimepoint( this, timepoint );
 	}
 
 	/**
@@ -211,10 +289,14 @@ public class VolatileGlobalCellCache implements CacheControl
 				final long[] cellMin = new long[ n ];
 				final int[] cellDims = new int[ n ];
 				grid.getCellDimensions( key, cellMin, cellDims );
-				return new Cell<>(
+				final Cell< A > cell = new Cell<>(
 						cellDims,
 						cellMin,
 						cacheArrayLoader.loadArray( timepoint, setup, level, cellDims, cellMin ) );
+				// invalid cells are loaded again when needed, don't keep them
+				if ( budget != null && isValid( cell.getData() ) )
+					budget.retain( VolatileGlobalCellCache.this, timepoint, level, cell, cacheArrayLoader.getRetainedBytes( cell.getData(), cell.size() ) );
+				return cell;
 			}
 		};
 
@@ -238,7 +320,13 @@ public class VolatileGlobalCellCache implements CacheControl
 		@SuppressWarnings( "unchecked" )
 		final VolatileCachedCellImg< T, A > img = new VolatileCachedCellImg<>( grid, type, cacheHints,
 				( i, h ) -> ( Cell< A > ) vcache.get( i, h ) );
+		img.setUsageKey( this, timepoint, setup, level );
 
 		return img;
 	}
+
+	private static boolean isValid( final Object data )
+	{
+		return !( data instanceof VolatileAccess ) || ( ( VolatileAccess ) data ).isValid();
+	}
 }
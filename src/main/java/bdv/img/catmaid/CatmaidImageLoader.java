@@ -32,6 +32,7 @@ package bdv.img.catmaid;
 import bdv.AbstractViewerSetupImgLoader;
 import bdv.ViewerImgLoader;
 import bdv.ViewerSetupImgLoader;
+import bdv.img.cache.SharedCellCache;
 import bdv.img.cache.VolatileCachedCellImg;
 import bdv.img.cache.VolatileGlobalCellCache;
 import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
@@ -119,7 +120,7 @@ public class CatmaidImageLoader extends AbstractViewerSetupImgLoader< ARGBType,
 		}
 
 		loader = new CatmaidVolatileIntArrayLoader( urlFormat, tileWidth, tileHeight, zScales );
-		cache = new VolatileGlobalCellCache( numScales, 10 );
+		cache = SharedCellCache.getInstance().createCache( "catmaid " + urlFormat, numScales, 10 );
 	}
 
 	public CatmaidImageLoader(
@@ -29,19 +29,73 @@
  */
 package bdv.img.catmaid;
 
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.awt.image.PixelGrabber;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
 
 import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.FairShareFetchQueues;
+import bdv.img.http.HttpTransport;
+import bdv.img.http.RequestControl;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileIntArray;
 
+/**
+ * Loads cells from CATMAID image tiles. All tiles required for a cell (for
+ * all its z-slices) are requested at once and fetched concurrently by a
+ * shared pool of tile fetcher threads. Decoded tiles are kept in a bounded
+ * LRU cache because neighbouring cells (and the slices averaged for coarser
+ * z-scales) share tiles.
+ * <p>
+ * Slow tile requests are hedged (see {@link HttpTransport}). If the cell
+ * request is cancelled or misses its deadline while waiting for tiles, loading
+ * the cell is abandoned. The tile fetches continue and fill the tile cache.
+ */
 public class CatmaidVolatileIntArrayLoader implements CacheArrayLoader< VolatileIntArray >
 {
+	/**
+	 * Default capacity of the tile cache, in pixels (4 bytes each).
+	 */
+	public static final long DEFAULT_TILE_CACHE_PIXELS = 16l * 1024 * 1024;
+
+	private static final int NUM_TILE_FETCHER_THREADS = 16;
+
+	/**
+	 * How often cancellation and deadline of the cell request are checked
+	 * while waiting for tiles.
+	 */
+	private static final long POLL_MILLIS = 5;
+
+	private static final ExecutorService tileFetchers;
+	static
+	{
+		final AtomicInteger threadNum = new AtomicInteger();
+		tileFetchers = Executors.newFixedThreadPool( NUM_TILE_FETCHER_THREADS, r -> {
+			final Thread thread = new Thread( r, "CatmaidTileFetcher-" + threadNum.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		} );
+	}
+
+	/**
+	 * Opaque black, for pixels that are not covered by a (successfully
+	 * loaded) tile.
+	 */
+	private static final int BACKGROUND = 0xff000000;
+
 	private final String urlFormat;
 
 	private final int tileWidth;
@@ -50,6 +104,10 @@ public class CatmaidVolatileIntArrayLoader implements CacheArrayLoader< Volatile
 
 	final private int[] zScales;
 
+	private final TileCache tileCache;
+
+	private final ConcurrentHashMap< String, Future< Tile > > pendingTiles;
+
 	/**
 	 * <p>Create a {@link CacheArrayLoader} for a CATMAID source.  Tiles are
 	 * addressed, in this order, by their</p>
@@ -86,6 +144,8 @@ public class CatmaidVolatileIntArrayLoader implements CacheArrayLoader< Volatile
 		this.tileWidth = tileWidth;
 		this.tileHeight = tileHeight;
 		this.zScales = zScales;
+		tileCache = new TileCache( DEFAULT_TILE_CACHE_PIXELS );
+		pendingTiles = new ConcurrentHashMap<>();
 	}
 
 	@Override
@@ -94,8 +154,116 @@ public class CatmaidVolatileIntArrayLoader implements CacheArrayLoader< Volatile
 		return 4;
 	}
 
-	final private void loadSliceArray(
-			final int[] slice,
+	/**
+	 * Decoded ARGB pixels of a tile.
+	 */
+	private static class Tile
+	{
+		final int[] pixels;
+
+		final int width;
+
+		final int height;
+
+		Tile( final BufferedImage image )
+		{
+			width = image.getWidth();
+			height = image.getHeight();
+			pixels = image.getRGB( 0, 0, width, height, null, 0, width );
+		}
+	}
+
+	/**
+	 * A tile requested for a slice, positioned at (x,y) in level coordinates.
+	 */
+	private static class TileRequest
+	{
+		final Future< Tile > tile;
+
+		final long x;
+
+		final long y;
+
+		TileRequest( final Future< Tile > tile, final long x, final long y )
+		{
+			this.tile = tile;
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	/**
+	 * LRU cache of decoded tiles, bounded by the total number of pixels.
+	 */
+	private static class TileCache
+	{
+		private final long maxPixels;
+
+		private long numPixels;
+
+		private final LinkedHashMap< String, Tile > tiles;
+
+		TileCache( final long maxPixels )
+		{
+			this.maxPixels = maxPixels;
+			numPixels = 0;
+			tiles = new LinkedHashMap<>( 16, 0.75f, true );
+		}
+
+		synchronized Tile get( final String url )
+		{
+			return tiles.get( url );
+		}
+
+		synchronized void put( final String url, final Tile tile )
+		{
+			final Tile previous = tiles.put( url, tile );
+			if ( previous != null )
+				numPixels -= previous.pixels.length;
+			numPixels += tile.pixels.length;
+			while ( numPixels > maxPixels && tiles.size() > 1 )
+			{
+				final Map.Entry< String, Tile > eldest = tiles.entrySet().iterator().next();
+				numPixels -= eldest.getValue().pixels.length;
+				tiles.remove( eldest.getKey() );
+			}
+		}
+	}
+
+	/**
+	 * Get a tile from the cache, or enqueue it for fetching. Concurrent
+	 * requests for the same tile share one fetch.
+	 *
+	 * @return the pending tile. Its {@link Future#get()} throws if loading failed.
+	 */
+	private Future< Tile > requestTile( final String urlString )
+	{
+		final Tile cached = tileCache.get( urlString );
+		if ( cached != null )
+			return new CompletedTile( cached );
+
+		return pendingTiles.computeIfAbsent( urlString, k -> tileFetchers.submit( () -> {
+			try
+			{
+				final BufferedImage image = HttpTransport.getDefault().get( new URL( urlString ), ImageIO::read, RequestControl.HEDGED );
+				if ( image == null )
+					throw new IOException( "could not decode " + urlString );
+				final Tile tile = new Tile( image );
+				tileCache.put( urlString, tile );
+				return tile;
+			}
+			finally
+			{
+				pendingTiles.remove( urlString );
+			}
+		} ) );
+	}
+
+	/**
+	 * Request all tiles covering {@code [x0, xm) x [y0, ym)} of slice
+	 * {@code z}.
+	 */
+	private ArrayList< TileRequest > requestSlice(
 			final int level,
 			final double scale,
 			final long c0,
@@ -104,13 +272,9 @@ public class CatmaidVolatileIntArrayLoader implements CacheArrayLoader< Volatile
 			final long y0,
 			final long z,
 			final long xm,
-			final long ym,
-			final long[] min,
-			final int w,
-			final int h ) throws InterruptedException
+			final long ym )
 	{
-		final BufferedImage image = new BufferedImage( w, h, BufferedImage.TYPE_INT_RGB );
-		final Graphics2D g2d = image.createGraphics();
+		final ArrayList< TileRequest > requests = new ArrayList<>();
 		for (
 				long c = c0, x = x0;
 				x < xm;
@@ -121,61 +285,79 @@ public class CatmaidVolatileIntArrayLoader implements CacheArrayLoader< Volatile
 					y < ym;
 					++r, y += tileHeight )
 			{
-				try
-				{
-					final String urlString = String.format( urlFormat, level, scale, x, y, z, tileWidth, tileHeight, r, c );
-//					System.out.println( urlString );
-					final URL url = new URL( urlString );
-					final BufferedImage tile = ImageIO.read( url );
-					g2d.drawImage( tile, ( int )( x - min[ 0 ] ), ( int )( y - min[ 1 ] ), null );
-				}
-				catch (final IOException e)
-				{
-					System.out.println( "failed loading r=" + r + " c=" + c );
-				}
+				final String urlString = String.format( urlFormat, level, scale, x, y, z, tileWidth, tileHeight, r, c );
+				requests.add( new TileRequest( requestTile( urlString ), x, y ) );
 			}
 		}
-
-		final PixelGrabber pg = new PixelGrabber( image, 0, 0, w, h, slice, 0, w );
-		pg.grabPixels();
+		return requests;
 	}
 
-
-	final private void averageSlice(
+	/**
+	 * Wait for the requested tiles and copy their pixels into {@code slice}
+	 * (of size {@code w x h}, starting at {@code min}).
+	 */
+	private void loadSliceArray(
 			final int[] slice,
-			final int level,
-			final double scale,
-			final long c0,
-			final long r0,
-			final long x0,
-			final long y0,
-			final long xm,
-			final long ym,
+			final ArrayList< TileRequest > requests,
 			final long[] min,
 			final int w,
 			final int h ) throws InterruptedException
 	{
-		final long[] rs = new long[ slice.length ], gs = new long[ slice.length ], bs = new long[ slice.length ];
-		for ( int z = ( int ) min[ 2 ] * zScales[ level ], dz = 0; dz < zScales[ level ]; ++dz )
+		Arrays.fill( slice, BACKGROUND );
+		final RequestControl control = FairShareFetchQueues.currentRequest();
+		for ( final TileRequest request : requests )
 		{
-			loadSliceArray( slice, level, scale, c0, r0, x0, y0, z + dz, xm, ym, min, w, h );
-			for ( int i = 0; i < slice.length; ++i )
+			final Tile tile;
+			try
+			{
+				tile = waitForTile( request.tile, control );
+			}
+			catch ( final ExecutionException e )
 			{
-				rs[ i ] += ( slice[ i ] >> 16 ) & 0xff;
-				gs[ i ] += ( slice[ i ] >> 8 ) & 0xff;
-				bs[ i ] += slice[ i ] & 0xff;
+				System.out.println( "failed loading tile at x=" + request.x + " y=" + request.y + ": " + e.getCause() );
+				continue;
 			}
+
+			// intersect tile with slice
+			final int ox = ( int ) ( request.x - min[ 0 ] );
+			final int oy = ( int ) ( request.y - min[ 1 ] );
+			final int sx = Math.max( 0, -ox );
+			final int sy = Math.max( 0, -oy );
+			final int ex = Math.min( tile.width, w - ox );
+			final int ey = Math.min( tile.height, h - oy );
+			for ( int ty = sy; ty < ey; ++ty )
+				if ( ex > sx )
+					System.arraycopy( tile.pixels, ty * tile.width + sx, slice, ( oy + ty ) * w + ox + sx, ex - sx );
 		}
-		for ( int i = 0; i < slice.length; ++i )
+	}
+
+	/**
+	 * Wait for a tile, unless the cell request is cancelled or misses its
+	 * deadline.
+	 *
+	 * @param control
+	 *            control of the cell request, may be {@code null}.
+	 * @throws InterruptedException
+	 *             if the cell request was cancelled or missed its deadline.
+	 */
+	private static Tile waitForTile( final Future< Tile > tile, final RequestControl control ) throws InterruptedException, ExecutionException
+	{
+		if ( control == null )
+			return tile.get();
+		while ( true )
 		{
-			final int red = ( int ) ( rs[ i ] / zScales[ level ] );
-			final int green = ( int ) ( gs[ i ] / zScales[ level ] );
-			final int blue = ( int ) ( bs[ i ] / zScales[ level ] );
-			slice[ i ] = ( ( ( ( red << 8 ) | green ) << 8 ) | blue ) | 0xff000000;
+			final long deadline = control.getDeadlineNanos();
+			if ( control.isCancelled() || ( deadline != Long.MAX_VALUE && System.nanoTime() - deadline >= 0 ) )
+				throw new InterruptedException( "cell request cancelled" );
+			try
+			{
+				return tile.get( POLL_MILLIS, TimeUnit.MILLISECONDS );
+			}
+			catch ( final TimeoutException e )
+			{}
 		}
 	}
 
-
 	@Override
 	public VolatileIntArray loadArray(
 			 final int timepoint,
@@ -186,41 +368,104 @@ public class CatmaidVolatileIntArrayLoader implements CacheArrayLoader< Volatile
 	{
 		final int w = dimensions[ 0 ];
 		final int h = dimensions[ 1 ];
+		final int d = dimensions[ 2 ];
 		final long xm = min[ 0 ] + w;
 		final long ym = min[ 1 ] + h;
 		final double scale = 1.0 / Math.pow(2.0, level);
-		final int[] slice = new int[ w * h ];
+		final int zScale = zScales[ level ];
 
 		final long c0 = min[ 0 ] / tileWidth;
 		final long r0 = min[ 1 ] / tileHeight;
 		final long x0 = c0 * tileWidth;
 		final long y0 = r0 * tileHeight;
 
-		final int[] data;
-		if ( dimensions[ 2 ] > 1 )
+		// request all tiles of all slices first, so that they are fetched concurrently
+		final ArrayList< ArrayList< TileRequest > > requests = new ArrayList<>( d * zScale );
+		for ( int z = 0; z < d; ++z )
+			for ( int dz = 0; dz < zScale; ++dz )
+				requests.add( requestSlice( level, scale, c0, r0, x0, y0, ( min[ 2 ] + z ) * zScale + dz, xm, ym ) );
+
+		final int[] data = new int[ w * h * d ];
+		final int[] slice = new int[ w * h ];
+		final long[] rs = zScale > 1 ? new long[ slice.length ] : null;
+		final long[] gs = zScale > 1 ? new long[ slice.length ] : null;
+		final long[] bs = zScale > 1 ? new long[ slice.length ] : null;
+		for ( int z = 0, i = 0; z < d; ++z )
 		{
-			data = new int[ w * h * dimensions[ 2 ] ];
-			final long[] zMin = min.clone();
-			for ( int z = 0; z < dimensions[ 2 ]; ++z )
+			if ( zScale > 1 )
 			{
-				zMin[ 2 ] = min[ 2 ] + z;
-				if ( zScales[ level ] > 1 )
-					averageSlice( slice, level, scale, c0, r0, x0, y0, xm, ym, zMin, w, h );
-				else
-					loadSliceArray( slice, level, scale, c0, r0, x0, y0, zMin[ 2 ], xm, ym, zMin, w, h );
-
+				Arrays.fill( rs, 0 );
+				Arrays.fill( gs, 0 );
+				Arrays.fill( bs, 0 );
+				for ( int dz = 0; dz < zScale; ++dz )
+				{
+					loadSliceArray( slice, requests.get( i++ ), min, w, h );
+					for ( int j = 0; j < slice.length; ++j )
+					{
+						rs[ j ] += ( slice[ j ] >> 16 ) & 0xff;
+						gs[ j ] += ( slice[ j ] >> 8 ) & 0xff;
+						bs[ j ] += slice[ j ] & 0xff;
+					}
+				}
+				final int o = z * slice.length;
+				for ( int j = 0; j < slice.length; ++j )
+				{
+					final int red = ( int ) ( rs[ j ] / zScale );
+					final int green = ( int ) ( gs[ j ] / zScale );
+					final int blue = ( int ) ( bs[ j ] / zScale );
+					data[ o + j ] = ( ( ( ( red << 8 ) | green ) << 8 ) | blue ) | 0xff000000;
+				}
+			}
+			else
+			{
+				loadSliceArray( slice, requests.get( i++ ), min, w, h );
 				System.arraycopy( slice, 0, data, z * slice.length, slice.length );
 			}
 		}
-		else
+
+		return new VolatileIntArray( data, true );
+	}
+
+	/**
+	 * A {@link Future} for a tile that is already in the cache.
+	 */
+	private static class CompletedTile implements Future< Tile >
+	{
+		private final Tile tile;
+
+		CompletedTile( final Tile tile )
 		{
-			data = slice;
-			if ( zScales[ level ] > 1 )
-				averageSlice( slice, level, scale, c0, r0, x0, y0, xm, ym, min, w, h );
-			else
-				loadSliceArray( slice, level, scale, c0, r0, x0, y0, min[ 2 ], xm, ym, min, w, h );
+			this.tile = tile;
 		}
 
-		return new VolatileIntArray( data, true );
+		@Override
+		public boolean cancel( final boolean mayInterruptIfRunning )
+		{
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled()
+		{
+			return false;
+		}
+
+		@Override
+		public boolean isDone()
+		{
+			return true;
+		}
+
+		@Override
+		public Tile get()
+		{
+			return tile;
+		}
+
+		@Override
+		public Tile get( final long timeout, final TimeUnit unit )
+		{
+			return tile;
+		}
 	}
 }
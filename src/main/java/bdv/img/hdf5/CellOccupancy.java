@@ -0,0 +1,147 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.img.hdf5;
+
+/**
+ * Bitmap recording which cells (chunks) of one mipmap level of one view are
+ * stored in the hdf5 file. Cells that contain only zeros are not written by
+ * the exporter. HDF5 returns the dataset fill value (0) for such chunks, so
+ * files remain readable without the bitmap. With the bitmap, the
+ * {@link Hdf5VolatileShortArrayLoader} answers requests for unoccupied cells
+ * without any I/O.
+ *
+ * <p>
+ * Cells are indexed in flattened grid order (X fastest), same as
+ * {@link net.imglib2.img.cell.CellGrid}. Bit {@code i % 8} of byte
+ * {@code i / 8} is set if cell {@code i} is occupied.
+ */
+public class CellOccupancy
+{
+	/**
+	 * Get the {@link CellOccupancy} for the specified timepoint, setup, and
+	 * level, or {@code null} if unknown.
+	 */
+	@FunctionalInterface
+	public interface Lookup
+	{
+		public CellOccupancy get( int timepoint, int setup, int level );
+	}
+
+	private final long[] gridDimensions;
+
+	private final int[] cellDimensions;
+
+	private final byte[] bits;
+
+	/**
+	 * Create a bitmap with all cells unoccupied.
+	 *
+	 * @param imageDimensions
+	 *            dimensions of the image.
+	 * @param cellDimensions
+	 *            dimensions of a standard cell.
+	 */
+	public CellOccupancy( final long[] imageDimensions, final int[] cellDimensions )
+	{
+		this( imageDimensions, cellDimensions, null );
+	}
+
+	/**
+	 * Create a bitmap from serialized {@code bits} (as obtained by
+	 * {@link #getBits()}).
+	 *
+	 * @param imageDimensions
+	 *            dimensions of the image.
+	 * @param cellDimensions
+	 *            dimensions of a standard cell.
+	 * @param bits
+	 *            serialized bitmap. If {@code null}, all cells are unoccupied.
+	 */
+	public CellOccupancy( final long[] imageDimensions, final int[] cellDimensions, final byte[] bits )
+	{
+		final int n = imageDimensions.length;
+		this.cellDimensions = cellDimensions.clone();
+		gridDimensions = new long[ n ];
+		long numCells = 1;
+		for ( int d = 0; d < n; ++d )
+		{
+			gridDimensions[ d ] = ( imageDimensions[ d ] - 1 ) / cellDimensions[ d ] + 1;
+			numCells *= gridDimensions[ d ];
+		}
+		final int numBytes = ( int ) ( ( numCells + 7 ) / 8 );
+		if ( bits != null && bits.length < numBytes )
+			throw new IllegalArgumentException( "occupancy bitmap too short: " + bits.length + " bytes for " + numCells + " cells" );
+		this.bits = ( bits == null ) ? new byte[ numBytes ] : bits;
+	}
+
+	/**
+	 * Get the flattened index of the cell with the given min coordinate.
+	 */
+	public long getCellIndex( final long[] cellMin )
+	{
+		final int n = gridDimensions.length;
+		long index = cellMin[ n - 1 ] / cellDimensions[ n - 1 ];
+		for ( int d = n - 2; d >= 0; --d )
+			index = index * gridDimensions[ d ] + cellMin[ d ] / cellDimensions[ d ];
+		return index;
+	}
+
+	public boolean isOccupied( final long index )
+	{
+		return ( bits[ ( int ) ( index >> 3 ) ] & ( 1 << ( index & 7 ) ) ) != 0;
+	}
+
+	public boolean isOccupied( final long[] cellMin )
+	{
+		return isOccupied( getCellIndex( cellMin ) );
+	}
+
+	/**
+	 * Mark the cell with the given min coordinate as occupied. This is
+	 * thread-safe.
+	 */
+	public void setOccupied( final long[] cellMin )
+	{
+		final long index = getCellIndex( cellMin );
+		final int i = ( int ) ( index >> 3 );
+		synchronized ( bits )
+		{
+			bits[ i ] |= 1 << ( index & 7 );
+		}
+	}
+
+	/**
+	 * Get the serialized bitmap.
+	 */
+	public byte[] getBits()
+	{
+		return bits;
+	}
+}
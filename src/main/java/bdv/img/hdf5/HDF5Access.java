@@ -105,6 +105,15 @@ class HDF5Access implements IHDF5Access
 		return dataBlock;
 	}
 
+	@Override
+	public synchronized byte[] readOccupancy( final ViewLevelId id )
+	{
+		final String path = Util.getOccupancyPath( id );
+		if ( !hdf5Reader.object().exists( path ) )
+			return null;
+		return hdf5Reader.int8().readArray( path );
+	}
+
 	@Override
 	public void closeAllDataSets()
 	{}
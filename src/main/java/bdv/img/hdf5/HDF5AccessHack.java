@@ -226,6 +226,15 @@ class HDF5AccessHack implements IHDF5Access
 		return dataBlock;
 	}
 
+	@Override
+	public synchronized byte[] readOccupancy( final ViewLevelId id )
+	{
+		final String path = Util.getOccupancyPath( id );
+		if ( !hdf5Reader.object().exists( path ) )
+			return null;
+		return hdf5Reader.int8().readArray( path );
+	}
+
 	@Override
 	public void closeAllDataSets()
 	{
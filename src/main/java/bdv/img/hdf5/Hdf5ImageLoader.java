@@ -38,11 +38,14 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import bdv.AbstractViewerSetupImgLoader;
 import bdv.ViewerImgLoader;
+import bdv.img.cache.FairShareFetchQueues;
+import bdv.img.cache.SharedCellCache;
 import bdv.img.cache.VolatileGlobalCellCache;
 import bdv.util.ConstantRandomAccessible;
 import bdv.util.MipmapTransforms;
@@ -66,8 +69,6 @@ import net.imglib2.FinalInterval;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.cache.queue.BlockingFetchQueues;
-import net.imglib2.cache.queue.FetcherThreads;
 import net.imglib2.cache.volatiles.CacheHints;
 import net.imglib2.cache.volatiles.LoadingStrategy;
 import net.imglib2.img.Img;
@@ -106,7 +107,7 @@ public class Hdf5ImageLoader implements ViewerImgLoader, MultiResolutionImgLoade
 
 	protected VolatileGlobalCellCache cache;
 
-	protected FetcherThreads fetchers;
+	protected FairShareFetchQueues.Client fetchQueue;
 
 	protected Hdf5VolatileShortArrayLoader shortLoader;
 
@@ -130,6 +131,17 @@ public class Hdf5ImageLoader implements ViewerImgLoader, MultiResolutionImgLoade
 	 */
 	protected final HashMap< ViewLevelId, DimsAndExistence > cachedDimsAndExistence;
 
+	/**
+	 * Maps {@link ViewLevelId} (timepoint, setup, level) to
+	 * {@link CellOccupancy}. This is filled in when an image is created for
+	 * the first time, so that fetcher threads can look it up without locking
+	 * or I/O. Images without occupancy bitmap in the hdf5 map to
+	 * {@link #NO_OCCUPANCY}.
+	 */
+	protected final ConcurrentHashMap< ViewLevelId, CellOccupancy > cachedOccupancy;
+
+	private static final CellOccupancy NO_OCCUPANCY = new CellOccupancy( new long[] { 1, 1, 1 }, new int[] { 1, 1, 1 } );
+
 	protected final AbstractSequenceDescription< ?, ?, ? > sequenceDescription;
 
 	/**
@@ -158,6 +170,7 @@ public class Hdf5ImageLoader implements ViewerImgLoader, MultiResolutionImgLoade
 		this.hdf5File = hdf5File;
 		setupImgLoaders = new HashMap<>();
 		cachedDimsAndExistence = new HashMap<>();
+		cachedOccupancy = new ConcurrentHashMap<>();
 		this.sequenceDescription = sequenceDescription;
 		partitions = new ArrayList<>();
 		if ( hdf5Partitions != null )
@@ -199,6 +212,7 @@ public class Hdf5ImageLoader implements ViewerImgLoader, MultiResolutionImgLoade
 				}
 
 				cachedDimsAndExistence.clear();
+				cachedOccupancy.clear();
 
 				try
 				{
@@ -209,12 +223,13 @@ public class Hdf5ImageLoader implements ViewerImgLoader, MultiResolutionImgLoade
 					e.printStackTrace();
 					hdf5Access = new HDF5Access( hdf5Reader );
 				}
-				shortLoader = new Hdf5VolatileShortArrayLoader( hdf5Access );
+				if ( hdf5File != null )
+					hdf5Access = new MappedHDF5Access( hdf5File, hdf5Access );
+				shortLoader = new Hdf5VolatileShortArrayLoader( hdf5Access, ( t, s, l ) -> getCachedCellOccupancy( new ViewLevelId( t, s, l ) ) );
 
 
-				final BlockingFetchQueues< Callable< ? > > queue = new BlockingFetchQueues<>( maxNumLevels );
-				fetchers = new FetcherThreads( queue, 1 );
-				cache = new VolatileGlobalCellCache( queue );
+				fetchQueue = SharedCellCache.getInstance().createFetchQueue( "hdf5 " + hdf5File, maxNumLevels, 1 );
+				cache = SharedCellCache.getInstance().createCache( fetchQueue );
 			}
 		}
 	}
@@ -236,6 +251,7 @@ public class Hdf5ImageLoader implements ViewerImgLoader, MultiResolutionImgLoade
 				isOpen = false;
 
 				cache.clearCache();
+				fetchQueue.close();
 				hdf5Access.closeAllDataSets();
 
 				// only close reader if we constructed it ourselves
@@ -320,13 +336,66 @@ public class Hdf5ImageLoader implements ViewerImgLoader, MultiResolutionImgLoade
 			// getImageDimension() because this happens when a timepoint is
 			// loaded, and all setups for the timepoint are loaded then. We
 			// don't want to interleave this with block loading operations.
-			fetchers.pauseFor( 5 );
+			fetchQueue.pauseFor( 5 );
 			dims = hdf5Access.getDimsAndExistence( id );
 			cachedDimsAndExistence.put( id, dims );
 		}
 		return dims;
 	}
 
+	/**
+	 * Get the bitmap of cells that are stored in the hdf5 for the given image.
+	 *
+	 * @return the {@link CellOccupancy}, or {@code null} if the hdf5 contains
+	 *         no occupancy information for the image (all cells are assumed to
+	 *         be stored then).
+	 */
+	public CellOccupancy getCellOccupancy( final ViewLevelId id )
+	{
+		CellOccupancy occupancy = cachedOccupancy.get( id );
+		if ( occupancy == null )
+		{
+			open();
+			occupancy = NO_OCCUPANCY;
+			final DimsAndExistence dims = getDimsAndExistence( id );
+			if ( dims.exists() )
+			{
+				final byte[] bits = hdf5Access.readOccupancy( id );
+				if ( bits != null )
+				{
+					final int[] cellDimensions = getSetupImgLoader( id.getViewSetupId() ).getMipmapInfo().getSubdivisions()[ id.getLevel() ];
+					try
+					{
+						occupancy = new CellOccupancy( dims.getDimensions(), cellDimensions, bits );
+					}
+					catch ( final IllegalArgumentException e )
+					{
+						e.printStackTrace();
+					}
+				}
+			}
+			final CellOccupancy previous = cachedOccupancy.putIfAbsent( id, occupancy );
+			if ( previous != null )
+				occupancy = previous;
+		}
+		return occupancy == NO_OCCUPANCY ? null : occupancy;
+	}
+
+	/**
+	 * Get the {@link CellOccupancy} for the given image if it is already
+	 * known. This is used by the fetcher threads when loading cells, so it
+	 * never opens the file or reads from it.
+	 *
+	 * @return the {@link CellOccupancy}, or {@code null} if the hdf5 contains
+	 *         no occupancy information for the image, or if it was not read
+	 *         yet.
+	 */
+	private CellOccupancy getCachedCellOccupancy( final ViewLevelId id )
+	{
+		final CellOccupancy occupancy = cachedOccupancy.get( id );
+		return occupancy == NO_OCCUPANCY ? null : occupancy;
+	}
+
 	public void printMipmapInfo()
 	{
 		open();
@@ -535,6 +604,9 @@ public class Hdf5ImageLoader implements ViewerImgLoader, MultiResolutionImgLoade
 			final int[] cellDimensions = mipmapInfo.getSubdivisions()[ level ];
 			final CellGrid grid = new CellGrid( dimensions, cellDimensions );
 
+			// read the occupancy now, so that loading cells does not have to
+			getCellOccupancy( id );
+
 			final int priority = mipmapInfo.getMaxLevel() - level;
 			final CacheHints cacheHints = new CacheHints( loadingStrategy, priority, false );
 
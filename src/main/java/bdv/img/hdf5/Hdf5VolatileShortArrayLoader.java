@@ -30,30 +30,89 @@
 package bdv.img.hdf5;
 
 import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.DefaultEmptyArrayCreator;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
 
 public class Hdf5VolatileShortArrayLoader implements CacheArrayLoader< VolatileShortArray >
 {
 	private final IHDF5Access hdf5Access;
 
+	private final CellOccupancy.Lookup occupancy;
+
+	/**
+	 * Shared (valid) all-zero array for unoccupied cells. Like the arrays
+	 * handed out by {@link DefaultEmptyArrayCreator}, it may be larger than
+	 * the cell and must not be modified.
+	 */
+	private VolatileShortArray theEmptyArray;
+
+	/**
+	 * Marks the shared all-zero arrays, which do not count towards the memory
+	 * budget (see {@link #getRetainedBytes(VolatileShortArray, long)}).
+	 */
+	private static class SharedEmptyArray extends VolatileShortArray
+	{
+		SharedEmptyArray( final int numEntities )
+		{
+			super( numEntities, true );
+		}
+	}
+
 	public Hdf5VolatileShortArrayLoader( final IHDF5Access hdf5Access )
+	{
+		this( hdf5Access, null );
+	}
+
+	/**
+	 * @param hdf5Access
+	 * @param occupancy
+	 *            provides {@link CellOccupancy} bitmaps. Cells that are
+	 *            marked unoccupied are returned as zeros without reading from
+	 *            the hdf5. May be {@code null}.
+	 */
+	public Hdf5VolatileShortArrayLoader( final IHDF5Access hdf5Access, final CellOccupancy.Lookup occupancy )
 	{
 		this.hdf5Access = hdf5Access;
+		this.occupancy = occupancy;
+		this.theEmptyArray = new SharedEmptyArray( DefaultEmptyArrayCreator.INITIAL_EMPTY_SIZE );
 	}
 
 	@Override
 	public VolatileShortArray loadArray( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min ) throws InterruptedException
 	{
+		if ( occupancy != null )
+		{
+			final CellOccupancy o = occupancy.get( timepoint, setup, level );
+			if ( o != null && !o.isOccupied( min ) )
+				return getEmptyArray( dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] );
+		}
 		final short[] array = hdf5Access.readShortMDArrayBlockWithOffset( timepoint, setup, level, dimensions, min );
 		return new VolatileShortArray( array, true );
 	}
 
+	private VolatileShortArray getEmptyArray( final int numEntities )
+	{
+		VolatileShortArray empty = theEmptyArray;
+		if ( empty.getCurrentStorageArray().length < numEntities )
+		{
+			empty = new SharedEmptyArray( numEntities );
+			theEmptyArray = empty;
+		}
+		return empty;
+	}
+
 	@Override
 	public int getBytesPerElement()
 	{
 		return 2;
 	}
 
+	@Override
+	public long getRetainedBytes( final VolatileShortArray data, final long numElements )
+	{
+		return data instanceof SharedEmptyArray ? 0 : numElements * getBytesPerElement();
+	}
+
 //	PrintStream log = System.out;
 //	public static volatile long pStart = System.currentTimeMillis();
 //	public static volatile long pEnd = System.currentTimeMillis();
@@ -41,6 +41,13 @@ interface IHDF5Access
 
 	public float[] readShortMDArrayBlockWithOffsetAsFloat( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min, final float[] dataBlock ) throws InterruptedException;
 
+	/**
+	 * Read the serialized {@link CellOccupancy} bitmap of the given image.
+	 *
+	 * @return serialized bitmap, or {@code null} if the file has none.
+	 */
+	public byte[] readOccupancy( final ViewLevelId id );
+
 	public void closeAllDataSets();
 
 	public void close();
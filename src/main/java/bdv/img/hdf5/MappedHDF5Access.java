@@ -0,0 +1,235 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.img.hdf5;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * {@link IHDF5Access} that reads uncompressed datasets from the memory-mapped
+ * file (see {@link MappedHdf5File}), bypassing the HDF5 library and its global
+ * lock. Everything else, and datasets that cannot be read this way, go through
+ * the wrapped {@link IHDF5Access}.
+ */
+class MappedHDF5Access implements IHDF5Access
+{
+	private static final int MAX_DATASETS = 48;
+
+	/**
+	 * Marks datasets that are read through the fallback.
+	 */
+	private static final Object NOT_MAPPED = new Object();
+
+	private final File hdf5File;
+
+	private final IHDF5Access fallback;
+
+	/**
+	 * Opened files, by canonical path. Contains the main file, and files
+	 * reached through external links (partitions).
+	 */
+	private final HashMap< String, MappedHdf5File > files = new HashMap<>();
+
+	/**
+	 * Recently used datasets: either a {@link MappedHdf5File.DataSet} or
+	 * {@link #NOT_MAPPED}.
+	 */
+	private final LinkedHashMap< ViewLevelId, Object > dataSets = new LinkedHashMap< ViewLevelId, Object >( MAX_DATASETS, 0.75f, true )
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( final Entry< ViewLevelId, Object > eldest )
+		{
+			return size() > MAX_DATASETS;
+		}
+	};
+
+	private final MappedHdf5File.FileProvider fileProvider = this::getFile;
+
+	public MappedHDF5Access( final File hdf5File, final IHDF5Access fallback )
+	{
+		this.hdf5File = hdf5File;
+		this.fallback = fallback;
+	}
+
+	private synchronized MappedHdf5File getFile( final File file ) throws IOException
+	{
+		final String key = file.getCanonicalPath();
+		MappedHdf5File f = files.get( key );
+		if ( f == null )
+		{
+			f = new MappedHdf5File( file, fileProvider );
+			files.put( key, f );
+		}
+		return f;
+	}
+
+	/**
+	 * @return the mapped dataset, or {@code null} if it must be read through
+	 *         the fallback.
+	 */
+	private MappedHdf5File.DataSet getDataSet( final ViewLevelId id )
+	{
+		synchronized ( dataSets )
+		{
+			final Object dataSet = dataSets.get( id );
+			if ( dataSet != null )
+				return dataSet == NOT_MAPPED ? null : ( MappedHdf5File.DataSet ) dataSet;
+		}
+
+		MappedHdf5File.DataSet dataSet = null;
+		final DimsAndExistence dims = fallback.getDimsAndExistence( id );
+		if ( dims.exists() )
+		{
+			try
+			{
+				dataSet = getFile( hdf5File ).getDataSet( Util.getCellsPath( id ) );
+				// double-check against what the HDF5 library sees
+				if ( !Arrays.equals( Util.reorder( dataSet.dimensions ), dims.getDimensions() ) )
+					dataSet = null;
+			}
+			catch ( final IOException | RuntimeException e )
+			{
+				dataSet = null;
+			}
+		}
+
+		synchronized ( dataSets )
+		{
+			dataSets.put( id, dataSet == null ? NOT_MAPPED : dataSet );
+		}
+		return dataSet;
+	}
+
+	@Override
+	public DimsAndExistence getDimsAndExistence( final ViewLevelId id )
+	{
+		return fallback.getDimsAndExistence( id );
+	}
+
+	@Override
+	public short[] readShortMDArrayBlockWithOffset( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min ) throws InterruptedException
+	{
+		final short[] dataBlock = new short[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ];
+		return readShortMDArrayBlockWithOffset( timepoint, setup, level, dimensions, min, dataBlock );
+	}
+
+	@Override
+	public short[] readShortMDArrayBlockWithOffset( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min, final short[] dataBlock ) throws InterruptedException
+	{
+		if ( Thread.interrupted() )
+			throw new InterruptedException();
+		final ViewLevelId id = new ViewLevelId( timepoint, setup, level );
+		final MappedHdf5File.DataSet dataSet = getDataSet( id );
+		if ( dataSet != null )
+		{
+			final int[] reorderedDimensions = new int[ 3 ];
+			final long[] reorderedMin = new long[ 3 ];
+			Util.reorder( dimensions, reorderedDimensions );
+			Util.reorder( min, reorderedMin );
+			try
+			{
+				dataSet.read( reorderedDimensions, reorderedMin, dataBlock );
+				return dataBlock;
+			}
+			catch ( final IOException | RuntimeException e )
+			{
+				// read this dataset through the fallback from now on
+				final boolean first;
+				synchronized ( dataSets )
+				{
+					first = dataSets.put( id, NOT_MAPPED ) != NOT_MAPPED;
+				}
+				if ( first )
+					System.err.println( "Reading " + Util.getCellsPath( id ) + " from memory-mapped " + hdf5File + " failed, using the HDF5 library instead: " + e );
+			}
+		}
+		return fallback.readShortMDArrayBlockWithOffset( timepoint, setup, level, dimensions, min, dataBlock );
+	}
+
+	@Override
+	public float[] readShortMDArrayBlockWithOffsetAsFloat( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min ) throws InterruptedException
+	{
+		final float[] dataBlock = new float[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ];
+		return readShortMDArrayBlockWithOffsetAsFloat( timepoint, setup, level, dimensions, min, dataBlock );
+	}
+
+	@Override
+	public float[] readShortMDArrayBlockWithOffsetAsFloat( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min, final float[] dataBlock ) throws InterruptedException
+	{
+		if ( getDataSet( new ViewLevelId( timepoint, setup, level ) ) == null )
+			return fallback.readShortMDArrayBlockWithOffsetAsFloat( timepoint, setup, level, dimensions, min, dataBlock );
+		final short[] shorts = readShortMDArrayBlockWithOffset( timepoint, setup, level, dimensions, min );
+		for ( int i = 0; i < shorts.length; ++i )
+			dataBlock[ i ] = shorts[ i ] & 0xffff;
+		return dataBlock;
+	}
+
+	@Override
+	public byte[] readOccupancy( final ViewLevelId id )
+	{
+		return fallback.readOccupancy( id );
+	}
+
+	@Override
+	public void closeAllDataSets()
+	{
+		synchronized ( dataSets )
+		{
+			dataSets.clear();
+		}
+		fallback.closeAllDataSets();
+	}
+
+	@Override
+	public void close()
+	{
+		closeAllDataSets();
+		synchronized ( this )
+		{
+			for ( final MappedHdf5File f : files.values() )
+			{
+				try
+				{
+					f.close();
+				}
+				catch ( final IOException e )
+				{}
+			}
+			files.clear();
+		}
+		fallback.close();
+	}
+}
@@ -0,0 +1,827 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.img.hdf5;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Read-only access to uncompressed 16-bit datasets of an HDF5 file, without
+ * going through the HDF5 library.
+ * <p>
+ * The file metadata is parsed just far enough to find the raw data of a
+ * dataset: superblock, groups (symbol tables or compact link storage, with
+ * hard, soft, and external links), object headers (version 1 and 2),
+ * dataspace, datatype, filter pipeline, and data layout (version 3,
+ * contiguous or chunked with a version 1 B-tree chunk index). Chunk addresses
+ * are resolved once per dataset. The file is memory-mapped and pixels are
+ * copied from the mapped file directly into cell arrays.
+ * <p>
+ * Anything else (compression or other filters, dense link storage, newer
+ * chunk indices, ...) makes {@link #getDataSet(String)} fail with an
+ * {@link UnsupportedOperationException}, and the caller should fall back to
+ * the HDF5 library.
+ */
+class MappedHdf5File
+{
+	private static final byte[] SIGNATURE = new byte[] { ( byte ) 0x89, 'H', 'D', 'F', '\r', '\n', 0x1a, '\n' };
+
+	/**
+	 * The file is mapped in regions of this size...
+	 */
+	private static final int REGION_BITS = 30;
+
+	/**
+	 * ... which overlap by this many bytes. A single chunk (or row of a
+	 * contiguous dataset) must not be larger than this, so that it always
+	 * lies in one region.
+	 */
+	private static final int REGION_OVERLAP = 1 << 26;
+
+	private static final int MSG_DATASPACE = 0x01;
+
+	private static final int MSG_LINK_INFO = 0x02;
+
+	private static final int MSG_DATATYPE = 0x03;
+
+	private static final int MSG_LINK = 0x06;
+
+	private static final int MSG_LAYOUT = 0x08;
+
+	private static final int MSG_FILTER_PIPELINE = 0x0b;
+
+	private static final int MSG_CONTINUATION = 0x10;
+
+	private static final int MSG_SYMBOL_TABLE = 0x11;
+
+	private final File file;
+
+	private final RandomAccessFile raf;
+
+	private final FileChannel channel;
+
+	private final long fileSize;
+
+	private final long baseAddress;
+
+	private final int sizeOfOffsets;
+
+	private final int sizeOfLengths;
+
+	private final long rootObjectHeaderAddress;
+
+	private final AtomicReferenceArray< MappedByteBuffer > regions;
+
+	/**
+	 * Provides other files, for following external links.
+	 */
+	private final FileProvider fileProvider;
+
+	/**
+	 * Maps object header address of groups to the links in that group.
+	 */
+	private final HashMap< Long, Map< String, Link > > groups = new HashMap<>();
+
+	interface FileProvider
+	{
+		MappedHdf5File get( File file ) throws IOException;
+	}
+
+	public MappedHdf5File( final File file, final FileProvider fileProvider ) throws IOException
+	{
+		this.file = file;
+		this.fileProvider = fileProvider;
+		raf = new RandomAccessFile( file, "r" );
+		try
+		{
+			channel = raf.getChannel();
+			fileSize = channel.size();
+			regions = new AtomicReferenceArray<>( ( int ) ( ( fileSize >> REGION_BITS ) + 1 ) );
+
+			long superblock = -1;
+			final byte[] signature = new byte[ SIGNATURE.length ];
+			for ( long offset = 0; offset + SIGNATURE.length <= fileSize; offset = ( offset == 0 ) ? 512 : 2 * offset )
+			{
+				readAbsolute( offset, SIGNATURE.length ).get( signature );
+				if ( Arrays.equals( signature, SIGNATURE ) )
+				{
+					superblock = offset;
+					break;
+				}
+			}
+			if ( superblock < 0 )
+				throw new IOException( file + " is not an HDF5 file" );
+
+			final ByteBuffer sb = readAbsolute( superblock + 8, 16 );
+			final int version = sb.get( 0 );
+			if ( version == 0 || version == 1 )
+			{
+				sizeOfOffsets = sb.get( 5 );
+				sizeOfLengths = sb.get( 6 );
+				final int fixed = ( version == 0 ) ? 24 : 28;
+				final ByteBuffer b = readAbsolute( superblock + fixed, 6 * sizeOfOffsets );
+				baseAddress = getOffset( b );
+				getOffset( b ); // free-space info
+				getOffset( b ); // end of file
+				getOffset( b ); // driver info
+				getOffset( b ); // root group link name offset
+				rootObjectHeaderAddress = getOffset( b );
+			}
+			else if ( version == 2 || version == 3 )
+			{
+				sizeOfOffsets = sb.get( 1 );
+				sizeOfLengths = sb.get( 2 );
+				final ByteBuffer b = readAbsolute( superblock + 12, 4 * sizeOfOffsets );
+				baseAddress = getOffset( b );
+				getOffset( b ); // superblock extension
+				getOffset( b ); // end of file
+				rootObjectHeaderAddress = getOffset( b );
+			}
+			else
+				throw new UnsupportedOperationException( "superblock version " + version );
+		}
+		catch ( IOException | RuntimeException e )
+		{
+			raf.close();
+			throw e;
+		}
+	}
+
+	public void close() throws IOException
+	{
+		// mapped regions are released when they are garbage-collected
+		for ( int i = 0; i < regions.length(); ++i )
+			regions.set( i, null );
+		raf.close();
+	}
+
+	/**
+	 * A 16-bit integer dataset whose raw data can be read from the mapped
+	 * file. All arrays are in HDF5 order (slowest-varying dimension first).
+	 */
+	class DataSet
+	{
+		final long[] dimensions;
+
+		/**
+		 * chunk dimensions, or {@code null} for contiguous datasets.
+		 */
+		final int[] chunkDimensions;
+
+		final long[] gridDimensions;
+
+		/**
+		 * file address of each chunk (flattened chunk grid index), or of the
+		 * data of a contiguous dataset. -1 for chunks that were never
+		 * written.
+		 */
+		final long[] addresses;
+
+		DataSet( final long[] dimensions, final int[] chunkDimensions, final long[] gridDimensions, final long[] addresses )
+		{
+			this.dimensions = dimensions;
+			this.chunkDimensions = chunkDimensions;
+			this.gridDimensions = gridDimensions;
+			this.addresses = addresses;
+		}
+
+		/**
+		 * Read a 3D block into {@code dataBlock}.
+		 *
+		 * @param dims
+		 *            block size (HDF5 order)
+		 * @param min
+		 *            block offset (HDF5 order)
+		 */
+		void read( final int[] dims, final long[] min, final short[] dataBlock ) throws IOException
+		{
+			if ( chunkDimensions == null )
+			{
+				final long rowStride = dimensions[ 2 ];
+				final long sliceStride = dimensions[ 1 ] * rowStride;
+				int o = 0;
+				for ( int z = 0; z < dims[ 0 ]; ++z )
+					for ( int y = 0; y < dims[ 1 ]; ++y )
+					{
+						final long index = ( min[ 0 ] + z ) * sliceStride + ( min[ 1 ] + y ) * rowStride + min[ 2 ];
+						final ShortBuffer row = getShorts( addresses[ 0 ] + 2 * index, 2 * dims[ 2 ] );
+						row.get( dataBlock, o, dims[ 2 ] );
+						o += dims[ 2 ];
+					}
+				return;
+			}
+
+			final int[] c = chunkDimensions;
+			final int chunkBytes = 2 * c[ 0 ] * c[ 1 ] * c[ 2 ];
+			final long[] max = new long[ 3 ];
+			final long[] gmin = new long[ 3 ];
+			final long[] gmax = new long[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+			{
+				max[ d ] = min[ d ] + dims[ d ] - 1;
+				gmin[ d ] = min[ d ] / c[ d ];
+				gmax[ d ] = max[ d ] / c[ d ];
+			}
+			for ( long gz = gmin[ 0 ]; gz <= gmax[ 0 ]; ++gz )
+				for ( long gy = gmin[ 1 ]; gy <= gmax[ 1 ]; ++gy )
+					for ( long gx = gmin[ 2 ]; gx <= gmax[ 2 ]; ++gx )
+					{
+						// intersection of block and chunk, relative to block min
+						final int z0 = ( int ) ( Math.max( gz * c[ 0 ], min[ 0 ] ) - min[ 0 ] );
+						final int z1 = ( int ) ( Math.min( ( gz + 1 ) * c[ 0 ] - 1, max[ 0 ] ) - min[ 0 ] );
+						final int y0 = ( int ) ( Math.max( gy * c[ 1 ], min[ 1 ] ) - min[ 1 ] );
+						final int y1 = ( int ) ( Math.min( ( gy + 1 ) * c[ 1 ] - 1, max[ 1 ] ) - min[ 1 ] );
+						final int x0 = ( int ) ( Math.max( gx * c[ 2 ], min[ 2 ] ) - min[ 2 ] );
+						final int x1 = ( int ) ( Math.min( ( gx + 1 ) * c[ 2 ] - 1, max[ 2 ] ) - min[ 2 ] );
+						final int length = x1 - x0 + 1;
+
+						final long address = addresses[ ( int ) ( ( gz * gridDimensions[ 1 ] + gy ) * gridDimensions[ 2 ] + gx ) ];
+						final ShortBuffer chunk = address < 0 ? null : getShorts( address, chunkBytes );
+						for ( int z = z0; z <= z1; ++z )
+							for ( int y = y0; y <= y1; ++y )
+							{
+								final int o = ( z * dims[ 1 ] + y ) * dims[ 2 ] + x0;
+								if ( chunk == null )
+									Arrays.fill( dataBlock, o, o + length, ( short ) 0 );
+								else
+								{
+									// position within chunk
+									final long cz = min[ 0 ] + z - gz * c[ 0 ];
+									final long cy = min[ 1 ] + y - gy * c[ 1 ];
+									final long cx = min[ 2 ] + x0 - gx * c[ 2 ];
+									chunk.position( ( int ) ( ( cz * c[ 1 ] + cy ) * c[ 2 ] + cx ) );
+									chunk.get( dataBlock, o, length );
+								}
+							}
+					}
+		}
+	}
+
+	/**
+	 * Find the dataset at {@code path}.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             if the dataset or the way it is stored is not supported.
+	 */
+	public synchronized DataSet getDataSet( final String path ) throws IOException
+	{
+		return resolve( rootObjectHeaderAddress, path );
+	}
+
+	/**
+	 * Follow {@code path} from the group at {@code groupAddress} to a dataset.
+	 */
+	private DataSet resolve( final long groupAddress, final String path ) throws IOException
+	{
+		long address = path.startsWith( "/" ) ? rootObjectHeaderAddress : groupAddress;
+		final String[] names = path.split( "/" );
+		for ( int i = 0; i < names.length; ++i )
+		{
+			if ( names[ i ].isEmpty() )
+				continue;
+			final Link link = getLinks( address ).get( names[ i ] );
+			if ( link == null )
+				throw new IOException( "no " + path + " in " + file );
+			final StringBuilder rest = new StringBuilder();
+			for ( int j = i + 1; j < names.length; ++j )
+				rest.append( '/' ).append( names[ j ] );
+			switch ( link.type )
+			{
+			case Link.HARD:
+				address = link.address;
+				break;
+			case Link.SOFT:
+				return resolve( address, link.path + rest );
+			case Link.EXTERNAL:
+				final File external = new File( link.file ).isAbsolute()
+						? new File( link.file )
+						: new File( file.getParentFile(), link.file );
+				return fileProvider.get( external ).getDataSet( link.path + rest );
+			}
+		}
+		return readDataSet( address );
+	}
+
+	private static class Link
+	{
+		static final int HARD = 0;
+
+		static final int SOFT = 1;
+
+		static final int EXTERNAL = 64;
+
+		final int type;
+
+		final long address;
+
+		final String file;
+
+		final String path;
+
+		Link( final long address )
+		{
+			this.type = HARD;
+			this.address = address;
+			this.file = null;
+			this.path = null;
+		}
+
+		Link( final int type, final String file, final String path )
+		{
+			this.type = type;
+			this.address = -1;
+			this.file = file;
+			this.path = path;
+		}
+	}
+
+	private static class Message
+	{
+		final int type;
+
+		final ByteBuffer data;
+
+		Message( final int type, final ByteBuffer data )
+		{
+			this.type = type;
+			this.data = data;
+		}
+	}
+
+	private Map< String, Link > getLinks( final long groupAddress ) throws IOException
+	{
+		Map< String, Link > links = groups.get( groupAddress );
+		if ( links == null )
+		{
+			links = new HashMap<>();
+			for ( final Message m : readObjectHeader( groupAddress ) )
+			{
+				final ByteBuffer b = m.data;
+				if ( m.type == MSG_SYMBOL_TABLE )
+				{
+					final long btree = getOffset( b );
+					final long heap = getOffset( b );
+					readSymbolTable( btree, readLocalHeap( heap ), links );
+				}
+				else if ( m.type == MSG_LINK_INFO )
+				{
+					b.get(); // version
+					final int flags = b.get();
+					if ( ( flags & 0x01 ) != 0 )
+						b.getLong(); // max creation index
+					if ( getOffset( b ) != -1 )
+						throw new UnsupportedOperationException( "dense link storage" );
+				}
+				else if ( m.type == MSG_LINK )
+					readLink( b, links );
+			}
+			groups.put( groupAddress, links );
+		}
+		return links;
+	}
+
+	private void readLink( final ByteBuffer b, final Map< String, Link > links )
+	{
+		b.get(); // version
+		final int flags = b.get();
+		final int type = ( ( flags & 0x08 ) != 0 ) ? b.get() & 0xff : Link.HARD;
+		if ( ( flags & 0x04 ) != 0 )
+			b.getLong(); // creation order
+		if ( ( flags & 0x10 ) != 0 )
+			b.get(); // character set
+		final int nameLength = ( int ) getVariable( b, 1 << ( flags & 0x03 ) );
+		final String name = getString( b, nameLength );
+		if ( type == Link.HARD )
+			links.put( name, new Link( getOffset( b ) ) );
+		else if ( type == Link.SOFT )
+		{
+			final int length = b.getShort() & 0xffff;
+			links.put( name, new Link( Link.SOFT, null, getString( b, length ) ) );
+		}
+		else if ( type == Link.EXTERNAL )
+		{
+			b.getShort(); // length
+			b.get(); // version and flags
+			final String externalFile = getNullTerminatedString( b );
+			final String externalPath = getNullTerminatedString( b );
+			links.put( name, new Link( Link.EXTERNAL, externalFile, externalPath ) );
+		}
+	}
+
+	/**
+	 * @return the data segment of the local heap at {@code address}.
+	 */
+	private ByteBuffer readLocalHeap( final long address ) throws IOException
+	{
+		final ByteBuffer b = read( address, 8 + 2 * sizeOfLengths + sizeOfOffsets );
+		expectSignature( b, "HEAP" );
+		b.position( 8 );
+		final long size = getLength( b );
+		getLength( b ); // free list
+		final long data = getOffset( b );
+		return read( data, ( int ) size );
+	}
+
+	/**
+	 * Collect all entries of the group B-tree at {@code address}.
+	 */
+	private void readSymbolTable( final long address, final ByteBuffer heap, final Map< String, Link > links ) throws IOException
+	{
+		final ByteBuffer h = read( address, 8 + 2 * sizeOfOffsets );
+		expectSignature( h, "TREE" );
+		final int level = h.get( 5 );
+		final int entriesUsed = h.getShort( 6 ) & 0xffff;
+		final ByteBuffer b = read( address + 8 + 2 * sizeOfOffsets, entriesUsed * ( sizeOfLengths + sizeOfOffsets ) + sizeOfLengths );
+		for ( int i = 0; i < entriesUsed; ++i )
+		{
+			getLength( b ); // key
+			final long child = getOffset( b );
+			if ( level > 0 )
+				readSymbolTable( child, heap, links );
+			else
+				readSymbolTableNode( child, heap, links );
+		}
+	}
+
+	private void readSymbolTableNode( final long address, final ByteBuffer heap, final Map< String, Link > links ) throws IOException
+	{
+		final ByteBuffer h = read( address, 8 );
+		expectSignature( h, "SNOD" );
+		final int numSymbols = h.getShort( 6 ) & 0xffff;
+		final int entrySize = 2 * sizeOfOffsets + 24;
+		final ByteBuffer b = read( address + 8, numSymbols * entrySize );
+		for ( int i = 0; i < numSymbols; ++i )
+		{
+			b.position( i * entrySize );
+			final long nameOffset = getOffset( b );
+			final long objectHeader = getOffset( b );
+			heap.position( ( int ) nameOffset );
+			links.put( getNullTerminatedString( heap ), new Link( objectHeader ) );
+		}
+	}
+
+	private DataSet readDataSet( final long address ) throws IOException
+	{
+		long[] dimensions = null;
+		int elementSize = 0;
+		boolean littleEndian = false;
+		int[] chunkDimensions = null;
+		long dataAddress = -1;
+		boolean chunked = false;
+
+		for ( final Message m : readObjectHeader( address ) )
+		{
+			final ByteBuffer b = m.data;
+			switch ( m.type )
+			{
+			case MSG_DATASPACE:
+			{
+				final int version = b.get();
+				final int rank = b.get();
+				b.position( version == 1 ? 8 : 4 );
+				dimensions = new long[ rank ];
+				for ( int d = 0; d < rank; ++d )
+					dimensions[ d ] = getLength( b );
+				break;
+			}
+			case MSG_DATATYPE:
+			{
+				final int classAndVersion = b.get();
+				final int bits = b.get();
+				b.position( 4 );
+				elementSize = b.getInt();
+				if ( ( classAndVersion & 0x0f ) != 0 )
+					throw new UnsupportedOperationException( "not an integer datatype" );
+				littleEndian = ( bits & 0x01 ) == 0;
+				break;
+			}
+			case MSG_FILTER_PIPELINE:
+			{
+				b.get(); // version
+				if ( b.get() != 0 )
+					throw new UnsupportedOperationException( "filtered dataset" );
+				break;
+			}
+			case MSG_LAYOUT:
+			{
+				final int version = b.get();
+				if ( version != 3 )
+					throw new UnsupportedOperationException( "data layout version " + version );
+				final int layoutClass = b.get();
+				if ( layoutClass == 1 )
+				{
+					dataAddress = getOffset( b );
+				}
+				else if ( layoutClass == 2 )
+				{
+					chunked = true;
+					final int n = b.get();
+					dataAddress = getOffset( b );
+					chunkDimensions = new int[ n - 1 ];
+					for ( int d = 0; d < n - 1; ++d )
+						chunkDimensions[ d ] = b.getInt();
+				}
+				else
+					throw new UnsupportedOperationException( "compact dataset" );
+				break;
+			}
+			}
+		}
+
+		if ( dimensions == null || dimensions.length != 3 )
+			throw new UnsupportedOperationException( "not a 3D dataset" );
+		if ( elementSize != 2 || !littleEndian )
+			throw new UnsupportedOperationException( "not a little-endian 16-bit dataset" );
+		if ( dataAddress == -1 && !chunked )
+			throw new UnsupportedOperationException( "no data" );
+
+		if ( !chunked )
+		{
+			if ( 2 * dimensions[ 2 ] > REGION_OVERLAP )
+				throw new UnsupportedOperationException( "rows too large" );
+			return new DataSet( dimensions, null, null, new long[] { dataAddress } );
+		}
+
+		if ( chunkDimensions.length != 3 || 2L * chunkDimensions[ 0 ] * chunkDimensions[ 1 ] * chunkDimensions[ 2 ] > REGION_OVERLAP )
+			throw new UnsupportedOperationException( "unsupported chunk size" );
+		final long[] gridDimensions = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			gridDimensions[ d ] = ( dimensions[ d ] + chunkDimensions[ d ] - 1 ) / chunkDimensions[ d ];
+		final long numChunks = gridDimensions[ 0 ] * gridDimensions[ 1 ] * gridDimensions[ 2 ];
+		if ( numChunks > Integer.MAX_VALUE )
+			throw new UnsupportedOperationException( "too many chunks" );
+		final long[] addresses = new long[ ( int ) numChunks ];
+		Arrays.fill( addresses, -1 );
+		if ( dataAddress != -1 )
+			readChunkIndex( dataAddress, chunkDimensions, gridDimensions, addresses );
+		return new DataSet( dimensions, chunkDimensions, gridDimensions, addresses );
+	}
+
+	/**
+	 * Collect chunk addresses from the chunk B-tree at {@code address}.
+	 */
+	private void readChunkIndex( final long address, final int[] c, final long[] g, final long[] addresses ) throws IOException
+	{
+		final ByteBuffer h = read( address, 8 + 2 * sizeOfOffsets );
+		expectSignature( h, "TREE" );
+		if ( h.get( 4 ) != 1 )
+			throw new UnsupportedOperationException( "not a chunk index" );
+		final int level = h.get( 5 );
+		final int entriesUsed = h.getShort( 6 ) & 0xffff;
+		final int keySize = 8 + 8 * 4; // chunk size, filter mask, 3 + 1 offsets
+		final ByteBuffer b = read( address + 8 + 2 * sizeOfOffsets, entriesUsed * ( keySize + sizeOfOffsets ) + keySize );
+		final long[] offset = new long[ 3 ];
+		for ( int i = 0; i < entriesUsed; ++i )
+		{
+			b.getInt(); // chunk size
+			b.getInt(); // filter mask
+			for ( int d = 0; d < 3; ++d )
+				offset[ d ] = b.getLong();
+			b.getLong(); // element offset
+			final long child = getOffset( b );
+			if ( level > 0 )
+				readChunkIndex( child, c, g, addresses );
+			else
+			{
+				final long index = ( ( offset[ 0 ] / c[ 0 ] ) * g[ 1 ] + offset[ 1 ] / c[ 1 ] ) * g[ 2 ] + offset[ 2 ] / c[ 2 ];
+				addresses[ ( int ) index ] = child;
+			}
+		}
+	}
+
+	private List< Message > readObjectHeader( final long address ) throws IOException
+	{
+		final ArrayList< Message > messages = new ArrayList<>();
+		final ByteBuffer prefix = read( address, 16 );
+		if ( prefix.get( 0 ) == 1 )
+		{
+			final long size = prefix.getInt( 8 ) & 0xffffffffL;
+			readMessagesV1( read( address + 16, ( int ) size ), messages );
+		}
+		else
+		{
+			expectSignature( prefix, "OHDR" );
+			final int flags = prefix.get( 5 );
+			int pos = 6;
+			if ( ( flags & 0x20 ) != 0 )
+				pos += 16;
+			if ( ( flags & 0x10 ) != 0 )
+				pos += 4;
+			final int sizeBytes = 1 << ( flags & 0x03 );
+			final long size = getVariable( read( address + pos, sizeBytes ), sizeBytes );
+			readMessagesV2( read( address + pos + sizeBytes, ( int ) size ), flags, messages );
+		}
+		return messages;
+	}
+
+	private void readMessagesV1( final ByteBuffer b, final List< Message > messages ) throws IOException
+	{
+		while ( b.remaining() >= 8 )
+		{
+			final int type = b.getShort() & 0xffff;
+			final int size = b.getShort() & 0xffff;
+			final int flags = b.get();
+			b.position( b.position() + 3 );
+			final ByteBuffer data = slice( b, size );
+			if ( ( flags & 0x02 ) != 0 )
+				throw new UnsupportedOperationException( "shared message" );
+			if ( type == MSG_CONTINUATION )
+			{
+				final long offset = getOffset( data );
+				final long length = getLength( data );
+				readMessagesV1( read( offset, ( int ) length ), messages );
+			}
+			else
+				messages.add( new Message( type, data ) );
+		}
+	}
+
+	private void readMessagesV2( final ByteBuffer b, final int headerFlags, final List< Message > messages ) throws IOException
+	{
+		final int messageHeaderSize = ( ( headerFlags & 0x04 ) != 0 ) ? 6 : 4;
+		while ( b.remaining() >= messageHeaderSize )
+		{
+			final int type = b.get() & 0xff;
+			final int size = b.getShort() & 0xffff;
+			final int flags = b.get();
+			if ( ( headerFlags & 0x04 ) != 0 )
+				b.getShort(); // creation order
+			if ( size > b.remaining() )
+				break;
+			final ByteBuffer data = slice( b, size );
+			if ( ( flags & 0x02 ) != 0 )
+				throw new UnsupportedOperationException( "shared message" );
+			if ( type == MSG_CONTINUATION )
+			{
+				final long offset = getOffset( data );
+				final long length = getLength( data );
+				final ByteBuffer chunk = read( offset, ( int ) length );
+				expectSignature( chunk, "OCHK" );
+				chunk.position( 4 );
+				chunk.limit( ( int ) length - 4 ); // checksum
+				readMessagesV2( chunk.slice().order( ByteOrder.LITTLE_ENDIAN ), headerFlags, messages );
+			}
+			else
+				messages.add( new Message( type, data ) );
+		}
+	}
+
+	/**
+	 * Get a little-endian view of {@code numBytes} at file address
+	 * {@code address} (relative to the base address) from the mapped file.
+	 */
+	private ShortBuffer getShorts( final long address, final long numBytes ) throws IOException
+	{
+		final long position = baseAddress + address;
+		if ( position < 0 || position + numBytes > fileSize )
+			throw new IOException( "address out of range in " + file );
+		final int r = ( int ) ( position >> REGION_BITS );
+		MappedByteBuffer region = regions.get( r );
+		if ( region == null )
+		{
+			synchronized ( regions )
+			{
+				region = regions.get( r );
+				if ( region == null )
+				{
+					final long start = ( long ) r << REGION_BITS;
+					final long size = Math.min( ( 1L << REGION_BITS ) + REGION_OVERLAP, fileSize - start );
+					region = channel.map( FileChannel.MapMode.READ_ONLY, start, size );
+					regions.set( r, region );
+				}
+			}
+		}
+		final ByteBuffer b = region.duplicate();
+		final int start = ( int ) ( position - ( ( long ) r << REGION_BITS ) );
+		b.position( start );
+		b.limit( start + ( int ) numBytes );
+		return b.slice().order( ByteOrder.LITTLE_ENDIAN ).asShortBuffer();
+	}
+
+	/**
+	 * Read {@code length} bytes at file address {@code address} (relative to
+	 * the base address).
+	 */
+	private ByteBuffer read( final long address, final int length ) throws IOException
+	{
+		return readAbsolute( baseAddress + address, length );
+	}
+
+	private ByteBuffer readAbsolute( long position, final int length ) throws IOException
+	{
+		final ByteBuffer b = ByteBuffer.allocate( length ).order( ByteOrder.LITTLE_ENDIAN );
+		while ( b.hasRemaining() )
+		{
+			final int n = channel.read( b, position );
+			if ( n < 0 )
+				throw new IOException( "unexpected end of " + file );
+			position += n;
+		}
+		b.flip();
+		return b;
+	}
+
+	/**
+	 * Read an address. The undefined address (all bits set) is returned as
+	 * -1.
+	 */
+	private long getOffset( final ByteBuffer b )
+	{
+		final long value = getVariable( b, sizeOfOffsets );
+		return ( sizeOfOffsets < 8 && value == ( 1L << ( 8 * sizeOfOffsets ) ) - 1 ) ? -1 : value;
+	}
+
+	private long getLength( final ByteBuffer b )
+	{
+		return getVariable( b, sizeOfLengths );
+	}
+
+	/**
+	 * Read an unsigned little-endian integer of {@code size} bytes.
+	 */
+	private static long getVariable( final ByteBuffer b, final int size )
+	{
+		long value = 0;
+		for ( int i = 0; i < size; ++i )
+			value |= ( b.get() & 0xffL ) << ( 8 * i );
+		return value;
+	}
+
+	/**
+	 * Get the next {@code size} bytes of {@code b} as a separate buffer, and
+	 * skip over them.
+	 */
+	private static ByteBuffer slice( final ByteBuffer b, final int size )
+	{
+		final ByteBuffer s = b.slice().order( ByteOrder.LITTLE_ENDIAN );
+		s.limit( Math.min( size, s.limit() ) );
+		b.position( Math.min( b.position() + size, b.limit() ) );
+		return s;
+	}
+
+	private static String getString( final ByteBuffer b, final int length )
+	{
+		final byte[] bytes = new byte[ length ];
+		b.get( bytes );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+
+	private static String getNullTerminatedString( final ByteBuffer b )
+	{
+		final int start = b.position();
+		int end = start;
+		while ( end < b.limit() && b.get( end ) != 0 )
+			++end;
+		final String s = getString( b, end - start );
+		if ( b.hasRemaining() )
+			b.get();
+		return s;
+	}
+
+	private static void expectSignature( final ByteBuffer b, final String signature ) throws IOException
+	{
+		for ( int i = 0; i < 4; ++i )
+			if ( b.get( i ) != signature.charAt( i ) )
+				throw new IOException( "expected " + signature + " signature" );
+	}
+}
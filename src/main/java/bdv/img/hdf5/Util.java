@@ -37,6 +37,8 @@ public class Util
 
 	final static private String cellsFormatString = "%s/cells";
 
+	final static private String occupancyFormatString = "%s/occupancy";
+
 	final static private String resolutionsFormatString = "s%02d/resolutions";
 
 	final static private String subdivisionsFormatString = "s%02d/subdivisions";
@@ -71,6 +73,16 @@ public class Util
 		return String.format( cellsFormatString, getGroupPath( viewLevelId ) );
 	}
 
+	public static String getOccupancyPath( final ViewId viewId, final int level )
+	{
+		return String.format( occupancyFormatString, getGroupPath( viewId, level ) );
+	}
+
+	public static String getOccupancyPath( final ViewLevelId viewLevelId )
+	{
+		return String.format( occupancyFormatString, getGroupPath( viewLevelId ) );
+	}
+
 	public static String getResolutionsPath( final int setupId )
 	{
 		return String.format( resolutionsFormatString, setupId );
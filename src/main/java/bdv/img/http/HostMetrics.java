@@ -0,0 +1,275 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.img.http;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and throughput counters for the requests that a
+ * {@link HttpTransport} sent to one host.
+ */
+public class HostMetrics
+{
+	/**
+	 * Number of most recent latencies that percentiles are computed from.
+	 */
+	public static final int NUM_RECENT_LATENCIES = 256;
+
+	private final String host;
+
+	private final AtomicLong numRequests = new AtomicLong();
+
+	private final AtomicLong numFailures = new AtomicLong();
+
+	private final AtomicLong numRetries = new AtomicLong();
+
+	private final AtomicLong numBytes = new AtomicLong();
+
+	private final AtomicLong latencyNanos = new AtomicLong();
+
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+	private final AtomicLong waitNanos = new AtomicLong();
+
+	private final AtomicLong numHedged = new AtomicLong();
+
+	private final AtomicLong numHedgeWins = new AtomicLong();
+
+	private final AtomicLong numCancelled = new AtomicLong();
+
+	/**
+	 * Ring buffer of the most recent latencies.
+	 */
+	private final long[] recentLatencies = new long[ NUM_RECENT_LATENCIES ];
+
+	private int numRecentLatencies = 0;
+
+	private int nextRecentLatency = 0;
+
+	HostMetrics( final String host )
+	{
+		this.host = host;
+	}
+
+	void requestCompleted( final long bytes, final long nanos )
+	{
+		numRequests.incrementAndGet();
+		numBytes.addAndGet( bytes );
+		latencyNanos.addAndGet( nanos );
+		long max = maxLatencyNanos.get();
+		while ( nanos > max && !maxLatencyNanos.compareAndSet( max, nanos ) )
+			max = maxLatencyNanos.get();
+		synchronized ( recentLatencies )
+		{
+			recentLatencies[ nextRecentLatency ] = nanos;
+			nextRecentLatency = ( nextRecentLatency + 1 ) % NUM_RECENT_LATENCIES;
+			numRecentLatencies = Math.min( numRecentLatencies + 1, NUM_RECENT_LATENCIES );
+		}
+	}
+
+	void requestFailed()
+	{
+		numFailures.incrementAndGet();
+	}
+
+	void requestRetried()
+	{
+		numRetries.incrementAndGet();
+	}
+
+	void waitedForConnection( final long nanos )
+	{
+		waitNanos.addAndGet( nanos );
+	}
+
+	void requestHedged()
+	{
+		numHedged.incrementAndGet();
+	}
+
+	void hedgeWon()
+	{
+		numHedgeWins.incrementAndGet();
+	}
+
+	void requestCancelled()
+	{
+		numCancelled.incrementAndGet();
+	}
+
+	public String getHost()
+	{
+		return host;
+	}
+
+	/**
+	 * Get the number of successful requests.
+	 */
+	public long getNumRequests()
+	{
+		return numRequests.get();
+	}
+
+	/**
+	 * Get the number of requests that failed after all retries.
+	 */
+	public long getNumFailures()
+	{
+		return numFailures.get();
+	}
+
+	public long getNumRetries()
+	{
+		return numRetries.get();
+	}
+
+	/**
+	 * Get the number of requests for which a duplicate (hedge) request was
+	 * sent because the first one was slow.
+	 */
+	public long getNumHedged()
+	{
+		return numHedged.get();
+	}
+
+	/**
+	 * Get the number of hedged requests where the duplicate answered first.
+	 */
+	public long getNumHedgeWins()
+	{
+		return numHedgeWins.get();
+	}
+
+	/**
+	 * Get the number of requests that were abandoned because they were
+	 * cancelled or missed their deadline.
+	 */
+	public long getNumCancelled()
+	{
+		return numCancelled.get();
+	}
+
+	/**
+	 * Get the number of recent latencies that
+	 * {@link #getLatencyPercentileNanos(double)} is based on.
+	 */
+	public int getNumRecentLatencies()
+	{
+		synchronized ( recentLatencies )
+		{
+			return numRecentLatencies;
+		}
+	}
+
+	/**
+	 * Get a percentile of the latency of the most recent (up to
+	 * {@link #NUM_RECENT_LATENCIES}) successful requests.
+	 *
+	 * @param percentile
+	 *            percentile in {@code [0, 1]}.
+	 * @return the latency percentile in nanoseconds, or 0 if no request has
+	 *         completed yet.
+	 */
+	public long getLatencyPercentileNanos( final double percentile )
+	{
+		final long[] latencies;
+		synchronized ( recentLatencies )
+		{
+			if ( numRecentLatencies == 0 )
+				return 0;
+			latencies = Arrays.copyOf( recentLatencies, numRecentLatencies );
+		}
+		Arrays.sort( latencies );
+		final int i = ( int ) Math.ceil( percentile * latencies.length ) - 1;
+		return latencies[ Math.max( 0, Math.min( i, latencies.length - 1 ) ) ];
+	}
+
+	/**
+	 * Get the number of bytes received by successful requests.
+	 */
+	public long getNumBytes()
+	{
+		return numBytes.get();
+	}
+
+	/**
+	 * Get the mean latency (time from sending the request until the response
+	 * has been consumed) of successful requests, in milliseconds.
+	 */
+	public double getMeanLatencyMillis()
+	{
+		final long n = numRequests.get();
+		return n == 0 ? 0 : latencyNanos.get() / 1e6 / n;
+	}
+
+	public double getMaxLatencyMillis()
+	{
+		return maxLatencyNanos.get() / 1e6;
+	}
+
+	/**
+	 * Get the sum of time that requests waited for the per-host
+	 * concurrency limit, in milliseconds.
+	 */
+	public double getWaitMillis()
+	{
+		return waitNanos.get() / 1e6;
+	}
+
+	/**
+	 * Get the throughput in MB/s while requests were in flight, i.e., bytes
+	 * received divided by summed latency.
+	 */
+	public double getThroughputMBps()
+	{
+		final long nanos = latencyNanos.get();
+		return nanos == 0 ? 0 : numBytes.get() / ( nanos / 1e9 ) / 1e6;
+	}
+
+	public void print( final PrintStream out )
+	{
+		out.printf( "  %s: %d requests, %d failed, %d retries, %d hedged (%d won), %d cancelled, %.1f MB, latency mean %.1f ms p95 %.1f ms max %.1f ms, %.2f MB/s, waited %.1f ms\n",
+				host,
+				getNumRequests(),
+				getNumFailures(),
+				getNumRetries(),
+				getNumHedged(),
+				getNumHedgeWins(),
+				getNumCancelled(),
+				getNumBytes() / 1e6,
+				getMeanLatencyMillis(),
+				getLatencyPercentileNanos( 0.95 ) / 1e6,
+				getMaxLatencyMillis(),
+				getThroughputMBps(),
+				getWaitMillis() );
+	}
+}
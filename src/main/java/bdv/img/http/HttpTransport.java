@@ -0,0 +1,650 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.img.http;
+
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP transport shared by the network image loaders ({@code remote},
+ * {@code catmaid}, {@code openconnectome}).
+ *
+ * <p>
+ * Requests to the same host (protocol and authority) are limited to
+ * {@code maxConnectionsPerHost} concurrent connections. Responses are always
+ * consumed completely and closed, such that the JDK can reuse the underlying
+ * keep-alive connection for the next request to the same host. Failed
+ * requests (connection errors, timeouts, HTTP 5xx and 429) are retried with
+ * exponential back-off. For every host, latency and throughput are recorded in
+ * {@link HostMetrics}.
+ *
+ * <p>
+ * Requests made with a {@link RequestControl} are abandoned (and their
+ * connection closed) as soon as they are cancelled or miss their deadline. If
+ * such a request takes longer than the recent 95th latency percentile of its
+ * host, a duplicate request is sent and the first response wins (hedging).
+ * Hedging is limited to {@link #MAX_HEDGE_FRACTION} of all requests, and only
+ * uses idle connection permits.
+ *
+ * <p>
+ * Note that the JDK keeps at most {@code http.maxConnections} (default 5)
+ * idle connections per host alive. To reuse connections for a higher
+ * {@code maxConnectionsPerHost}, set this system property accordingly at
+ * startup.
+ */
+public class HttpTransport
+{
+	/**
+	 * Reads the response body of a request.
+	 */
+	@FunctionalInterface
+	public interface ResponseHandler< T >
+	{
+		public T handle( InputStream in ) throws IOException;
+	}
+
+	/**
+	 * Thrown if the server responds with an HTTP error status.
+	 */
+	public static class HttpStatusException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int statusCode;
+
+		public HttpStatusException( final URL url, final int statusCode )
+		{
+			super( "HTTP " + statusCode + " for " + url );
+			this.statusCode = statusCode;
+		}
+
+		public int getStatusCode()
+		{
+			return statusCode;
+		}
+	}
+
+	/**
+	 * Thrown if a request was abandoned because its {@link RequestControl} was
+	 * cancelled or its deadline passed.
+	 */
+	public static class RequestCancelledException extends InterruptedIOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		public RequestCancelledException( final String message )
+		{
+			super( message );
+		}
+	}
+
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+
+	public static final int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+
+	public static final int DEFAULT_MAX_RETRIES = 2;
+
+	public static final int DEFAULT_RETRY_DELAY_MILLIS = 200;
+
+	/**
+	 * Latency percentile after which a duplicate request is sent.
+	 */
+	public static final double HEDGE_PERCENTILE = 0.95;
+
+	/**
+	 * Requests are not hedged before this many milliseconds.
+	 */
+	public static final int MIN_HEDGE_DELAY_MILLIS = 20;
+
+	/**
+	 * Requests are not hedged before this many requests to the host have
+	 * completed.
+	 */
+	public static final int MIN_HEDGE_LATENCY_SAMPLES = 32;
+
+	/**
+	 * At most this fraction of requests to a host is hedged.
+	 */
+	public static final double MAX_HEDGE_FRACTION = 0.1;
+
+	/**
+	 * How often cancellation and deadline of in-flight requests are checked.
+	 */
+	private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos( 5 );
+
+	private static HttpTransport defaultTransport;
+
+	/**
+	 * Get the process-wide transport used by the network image loaders.
+	 */
+	public static synchronized HttpTransport getDefault()
+	{
+		if ( defaultTransport == null )
+			defaultTransport = new HttpTransport();
+		return defaultTransport;
+	}
+
+	private final int maxConnectionsPerHost;
+
+	private final int connectTimeoutMillis;
+
+	private final int readTimeoutMillis;
+
+	private final int maxRetries;
+
+	private final int retryDelayMillis;
+
+	private final ConcurrentHashMap< String, Semaphore > hostPermits;
+
+	private final ConcurrentHashMap< String, HostMetrics > hostMetrics;
+
+	/**
+	 * Runs the attempts of requests with a {@link RequestControl}, so that the
+	 * caller can give up on them.
+	 */
+	private final ExecutorService attemptExecutor;
+
+	public HttpTransport()
+	{
+		this( DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS, DEFAULT_MAX_RETRIES, DEFAULT_RETRY_DELAY_MILLIS );
+	}
+
+	/**
+	 * @param maxConnectionsPerHost
+	 *            maximum number of concurrent requests to the same host.
+	 * @param connectTimeoutMillis
+	 *            timeout for establishing a connection (0 means infinite).
+	 * @param readTimeoutMillis
+	 *            timeout for reading from an established connection (0 means
+	 *            infinite).
+	 * @param maxRetries
+	 *            how often a failed request is repeated.
+	 * @param retryDelayMillis
+	 *            delay before the first retry. The delay doubles for each
+	 *            subsequent retry.
+	 */
+	public HttpTransport(
+			final int maxConnectionsPerHost,
+			final int connectTimeoutMillis,
+			final int readTimeoutMillis,
+			final int maxRetries,
+			final int retryDelayMillis )
+	{
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.readTimeoutMillis = readTimeoutMillis;
+		this.maxRetries = maxRetries;
+		this.retryDelayMillis = retryDelayMillis;
+		hostPermits = new ConcurrentHashMap<>();
+		hostMetrics = new ConcurrentHashMap<>();
+		final AtomicInteger threadCount = new AtomicInteger();
+		attemptExecutor = Executors.newCachedThreadPool( r -> {
+			final Thread thread = new Thread( r, String.format( "HttpTransport-%02d", threadCount.getAndIncrement() ) );
+			thread.setDaemon( true );
+			return thread;
+		} );
+	}
+
+	/**
+	 * Send a GET request to {@code url} and read the response with
+	 * {@code handler}. If the request fails, it is retried (including calling
+	 * {@code handler} again on the new response).
+	 *
+	 * @return the result of {@code handler}.
+	 * @throws IOException
+	 *             if the request still failed after all retries.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for a connection or before a
+	 *             retry.
+	 */
+	public < T > T get( final URL url, final ResponseHandler< T > handler ) throws IOException, InterruptedException
+	{
+		final String host = getHost( url );
+		final HostMetrics metrics = getMetrics( host );
+		final Semaphore permits = hostPermits.computeIfAbsent( host, k -> new Semaphore( maxConnectionsPerHost, true ) );
+
+		final long w0 = System.nanoTime();
+		permits.acquire();
+		metrics.waitedForConnection( System.nanoTime() - w0 );
+		try
+		{
+			for ( int attempt = 0;; ++attempt )
+			{
+				final long t0 = System.nanoTime();
+				try
+				{
+					final CountingInputStream in = open( url, connect( url ) );
+					try
+					{
+						final T result = handler.handle( in );
+						// consume the rest to allow reusing the connection
+						while ( in.skip( Long.MAX_VALUE ) > 0 || in.read() >= 0 );
+						metrics.requestCompleted( in.getCount(), System.nanoTime() - t0 );
+						return result;
+					}
+					finally
+					{
+						in.close();
+					}
+				}
+				catch ( final IOException e )
+				{
+					if ( attempt >= maxRetries || !isRetriable( e ) )
+					{
+						metrics.requestFailed();
+						throw e;
+					}
+					metrics.requestRetried();
+					Thread.sleep( ( long ) retryDelayMillis << attempt );
+				}
+			}
+		}
+		finally
+		{
+			permits.release();
+		}
+	}
+
+	/**
+	 * Like {@link #get(URL, ResponseHandler)}, but the request is abandoned as
+	 * soon as {@code control} is cancelled or its deadline passes, and a slow
+	 * request may be hedged with a duplicate. {@code handler} may therefore be
+	 * called concurrently for several responses, and must not write into
+	 * shared state. Only the result of the first successful response is
+	 * returned.
+	 *
+	 * @param control
+	 *            decides cancellation, deadline, and hedging. If {@code null},
+	 *            this is the same as {@link #get(URL, ResponseHandler)}.
+	 * @return the result of {@code handler}.
+	 * @throws RequestCancelledException
+	 *             if the request was cancelled or missed its deadline.
+	 * @throws IOException
+	 *             if the request still failed after all retries.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the response.
+	 */
+	public < T > T get( final URL url, final ResponseHandler< T > handler, final RequestControl control ) throws IOException, InterruptedException
+	{
+		if ( control == null )
+			return get( url, handler );
+
+		final String host = getHost( url );
+		final HostMetrics metrics = getMetrics( host );
+		final Semaphore permits = hostPermits.computeIfAbsent( host, k -> new Semaphore( maxConnectionsPerHost, true ) );
+
+		final long w0 = System.nanoTime();
+		while ( !permits.tryAcquire( POLL_NANOS, TimeUnit.NANOSECONDS ) )
+			checkCancelled( url, control, metrics );
+		metrics.waitedForConnection( System.nanoTime() - w0 );
+		try
+		{
+			for ( int attempt = 0;; ++attempt )
+			{
+				checkCancelled( url, control, metrics );
+				try
+				{
+					return hedgedAttempt( url, handler, control, metrics, permits );
+				}
+				catch ( final RequestCancelledException e )
+				{
+					// not retried
+					throw e;
+				}
+				catch ( final IOException e )
+				{
+					if ( attempt >= maxRetries || !isRetriable( e ) )
+					{
+						metrics.requestFailed();
+						throw e;
+					}
+					metrics.requestRetried();
+					Thread.sleep( ( long ) retryDelayMillis << attempt );
+				}
+			}
+		}
+		finally
+		{
+			permits.release();
+		}
+	}
+
+	/**
+	 * Like {@link #get(URL, ResponseHandler)}, for callers that can only throw
+	 * {@link IOException}. If interrupted, the interrupt flag is restored and
+	 * an {@link InterruptedIOException} is thrown.
+	 */
+	public < T > T getOrThrowIO( final URL url, final ResponseHandler< T > handler ) throws IOException
+	{
+		try
+		{
+			return get( url, handler );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "interrupted while fetching " + url );
+		}
+	}
+
+	/**
+	 * Get the metrics for all hosts that were contacted through this
+	 * transport.
+	 */
+	public Collection< HostMetrics > getMetrics()
+	{
+		return new ArrayList<>( hostMetrics.values() );
+	}
+
+	/**
+	 * Get the metrics for the host of the given url.
+	 */
+	public HostMetrics getMetrics( final URL url )
+	{
+		return getMetrics( getHost( url ) );
+	}
+
+	public void printMetrics( final PrintStream out )
+	{
+		for ( final HostMetrics metrics : getMetrics() )
+			metrics.print( out );
+	}
+
+	private HostMetrics getMetrics( final String host )
+	{
+		return hostMetrics.computeIfAbsent( host, HostMetrics::new );
+	}
+
+	/**
+	 * Run one attempt of a request (and possibly a hedge) on
+	 * {@link #attemptExecutor}, and wait for the first successful response,
+	 * polling {@code control}. The caller holds one permit of
+	 * {@code permits}, a hedge only starts if it gets another one right away.
+	 */
+	private < T > T hedgedAttempt(
+			final URL url,
+			final ResponseHandler< T > handler,
+			final RequestControl control,
+			final HostMetrics metrics,
+			final Semaphore permits ) throws IOException, InterruptedException
+	{
+		final CompletionService< T > completion = new ExecutorCompletionService<>( attemptExecutor );
+		final Attempt< T > primary = new Attempt<>( url, handler, metrics );
+		primary.future = completion.submit( primary );
+		Attempt< T > hedge = null;
+		int numRunning = 1;
+		IOException failure = null;
+
+		long hedgeDelay = control.isHedgingAllowed() ? getHedgeDelayNanos( metrics ) : Long.MAX_VALUE;
+		final long t0 = System.nanoTime();
+		try
+		{
+			while ( true )
+			{
+				checkCancelled( url, control, metrics );
+
+				if ( hedge == null && hedgeDelay != Long.MAX_VALUE && System.nanoTime() - t0 >= hedgeDelay )
+				{
+					if ( metrics.getNumHedged() < MAX_HEDGE_FRACTION * ( metrics.getNumRequests() + 1 ) && permits.tryAcquire() )
+					{
+						hedge = new Attempt<>( url, handler, metrics );
+						hedge.future = completion.submit( hedge );
+						++numRunning;
+						metrics.requestHedged();
+					}
+					else
+						hedgeDelay = Long.MAX_VALUE;
+				}
+
+				final Future< T > done = completion.poll( POLL_NANOS, TimeUnit.NANOSECONDS );
+				if ( done != null )
+				{
+					--numRunning;
+					try
+					{
+						final T result = done.get();
+						if ( hedge != null && done == hedge.future )
+							metrics.hedgeWon();
+						return result;
+					}
+					catch ( final ExecutionException e )
+					{
+						if ( failure == null )
+							failure = e.getCause() instanceof IOException
+									? ( IOException ) e.getCause()
+									: new IOException( e.getCause() );
+						if ( numRunning == 0 )
+							throw failure;
+					}
+				}
+			}
+		}
+		finally
+		{
+			primary.cancel();
+			if ( hedge != null )
+			{
+				hedge.cancel();
+				permits.release();
+			}
+		}
+	}
+
+	private static long getHedgeDelayNanos( final HostMetrics metrics )
+	{
+		if ( metrics.getNumRecentLatencies() < MIN_HEDGE_LATENCY_SAMPLES )
+			return Long.MAX_VALUE;
+		return Math.max( TimeUnit.MILLISECONDS.toNanos( MIN_HEDGE_DELAY_MILLIS ), metrics.getLatencyPercentileNanos( HEDGE_PERCENTILE ) );
+	}
+
+	private static void checkCancelled( final URL url, final RequestControl control, final HostMetrics metrics ) throws RequestCancelledException
+	{
+		final long deadline = control.getDeadlineNanos();
+		final boolean missedDeadline = deadline != Long.MAX_VALUE && System.nanoTime() - deadline >= 0;
+		if ( control.isCancelled() || missedDeadline )
+		{
+			metrics.requestCancelled();
+			throw new RequestCancelledException( ( missedDeadline ? "deadline exceeded for " : "cancelled " ) + url );
+		}
+	}
+
+	/**
+	 * One attempt of a request with a {@link RequestControl}. Cancelling it
+	 * closes its connection, which makes a blocked read fail promptly.
+	 */
+	private class Attempt< T > implements Callable< T >
+	{
+		private final URL url;
+
+		private final ResponseHandler< T > handler;
+
+		private final HostMetrics metrics;
+
+		private volatile URLConnection connection;
+
+		private volatile boolean cancelled = false;
+
+		private Future< T > future;
+
+		Attempt( final URL url, final ResponseHandler< T > handler, final HostMetrics metrics )
+		{
+			this.url = url;
+			this.handler = handler;
+			this.metrics = metrics;
+		}
+
+		@Override
+		public T call() throws IOException
+		{
+			final long t0 = System.nanoTime();
+			connection = connect( url );
+			if ( cancelled )
+				throw new RequestCancelledException( "cancelled " + url );
+			final CountingInputStream in = open( url, connection );
+			try
+			{
+				final T result = handler.handle( in );
+				while ( in.skip( Long.MAX_VALUE ) > 0 || in.read() >= 0 );
+				if ( !cancelled )
+					metrics.requestCompleted( in.getCount(), System.nanoTime() - t0 );
+				return result;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+
+		/**
+		 * Abandon this attempt unless it has finished. (Disconnecting a
+		 * finished connection would evict it from the keep-alive cache.)
+		 */
+		void cancel()
+		{
+			if ( future.isDone() )
+				return;
+			cancelled = true;
+			future.cancel( true );
+			final URLConnection c = connection;
+			if ( c instanceof HttpURLConnection )
+				( ( HttpURLConnection ) c ).disconnect();
+		}
+	}
+
+	private URLConnection connect( final URL url ) throws IOException
+	{
+		final URLConnection connection = url.openConnection();
+		connection.setConnectTimeout( connectTimeoutMillis );
+		connection.setReadTimeout( readTimeoutMillis );
+		return connection;
+	}
+
+	private CountingInputStream open( final URL url, final URLConnection connection ) throws IOException
+	{
+		if ( connection instanceof HttpURLConnection )
+		{
+			final HttpURLConnection http = ( HttpURLConnection ) connection;
+			final int code = http.getResponseCode();
+			if ( code >= 400 )
+			{
+				// consume the error body to allow reusing the connection
+				final InputStream err = http.getErrorStream();
+				if ( err != null )
+				{
+					final byte[] buf = new byte[ 4096 ];
+					while ( err.read( buf ) >= 0 );
+					err.close();
+				}
+				throw new HttpStatusException( url, code );
+			}
+		}
+		return new CountingInputStream( connection.getInputStream() );
+	}
+
+	private static boolean isRetriable( final IOException e )
+	{
+		if ( e instanceof HttpStatusException )
+		{
+			final int code = ( ( HttpStatusException ) e ).getStatusCode();
+			return code >= 500 || code == 429;
+		}
+		// connection errors and timeouts are retried, missing files are not
+		return !( e instanceof FileNotFoundException );
+	}
+
+	private static String getHost( final URL url )
+	{
+		return url.getProtocol() + "://" + url.getAuthority();
+	}
+
+	private static class CountingInputStream extends FilterInputStream
+	{
+		private long count;
+
+		CountingInputStream( final InputStream in )
+		{
+			super( in );
+			count = 0;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			final int b = super.read();
+			if ( b >= 0 )
+				++count;
+			return b;
+		}
+
+		@Override
+		public int read( final byte[] b, final int off, final int len ) throws IOException
+		{
+			final int l = super.read( b, off, len );
+			if ( l > 0 )
+				count += l;
+			return l;
+		}
+
+		@Override
+		public long skip( final long n ) throws IOException
+		{
+			final long l = super.skip( n );
+			count += l;
+			return l;
+		}
+
+		long getCount()
+		{
+			return count;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.img.http;
+
+/**
+ * Lets the caller of
+ * {@link HttpTransport#get(java.net.URL, HttpTransport.ResponseHandler, RequestControl)}
+ * abandon a request that is no longer needed, bound how long it may take, and
+ * decide whether a slow request may be duplicated.
+ */
+public interface RequestControl
+{
+	/**
+	 * Requests that are never cancelled, have no deadline, and may be hedged.
+	 */
+	public static final RequestControl HEDGED = new RequestControl()
+	{
+		@Override
+		public boolean isCancelled()
+		{
+			return false;
+		}
+
+		@Override
+		public long getDeadlineNanos()
+		{
+			return Long.MAX_VALUE;
+		}
+
+		@Override
+		public boolean isHedgingAllowed()
+		{
+			return true;
+		}
+	};
+
+	/**
+	 * @return whether the result is no longer needed. Polled while the request
+	 *         is in flight.
+	 */
+	public boolean isCancelled();
+
+	/**
+	 * @return the {@link System#nanoTime()} after which the result is no
+	 *         longer needed, or {@link Long#MAX_VALUE} if there is no deadline.
+	 */
+	public long getDeadlineNanos();
+
+	/**
+	 * @return whether a duplicate request may be sent if this one is slow.
+	 */
+	public boolean isHedgingAllowed();
+}
@@ -56,6 +56,7 @@ import static ch.systemsx.cisd.hdf5.hdf5lib.HDF5Constants.*;
 
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
 
@@ -72,10 +73,6 @@ public class HDF5AccessHack implements IHDF5Access
 
 	private final int numericConversionXferPropertyListID;
 
-	private final long[] reorderedDimensions = new long[ 3 ];
-
-	private final long[] reorderedMin = new long[ 3 ];
-
 	private static final int MAX_OPEN_DATASETS = 48;
 
 	private class OpenDataSet
@@ -132,6 +129,74 @@ public class HDF5AccessHack implements IHDF5Access
 
 	private final OpenDataSetCache openDataSetCache;
 
+	private static final int MAX_MEMORY_SPACES = 32;
+
+	/**
+	 * Recycles HDF5 memory dataspaces for block shapes. Most cells of a
+	 * dataset have the same shape, so creating and closing a dataspace for
+	 * every read is avoided.
+	 */
+	private class MemorySpaceCache extends LinkedHashMap< MemorySpaceKey, Integer >
+	{
+		private static final long serialVersionUID = 1L;
+
+		public MemorySpaceCache()
+		{
+			super( MAX_MEMORY_SPACES, 0.75f, true );
+		}
+
+		@Override
+		protected boolean removeEldestEntry( final Entry< MemorySpaceKey, Integer > eldest )
+		{
+			if ( size() > MAX_MEMORY_SPACES )
+			{
+				H5Sclose( eldest.getValue() );
+				return true;
+			}
+			else
+				return false;
+		}
+
+		public int getMemorySpace( final long[] reorderedDimensions )
+		{
+			final MemorySpaceKey key = new MemorySpaceKey( reorderedDimensions );
+			Integer memorySpaceId = super.get( key );
+			if ( memorySpaceId == null )
+			{
+				memorySpaceId = H5Screate_simple( reorderedDimensions.length, reorderedDimensions, null );
+				put( key, memorySpaceId );
+			}
+			return memorySpaceId;
+		}
+	}
+
+	private static class MemorySpaceKey
+	{
+		private final long[] dimensions;
+
+		private final int hashcode;
+
+		MemorySpaceKey( final long[] dimensions )
+		{
+			this.dimensions = dimensions;
+			hashcode = Arrays.hashCode( dimensions );
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			return obj instanceof MemorySpaceKey && Arrays.equals( dimensions, ( ( MemorySpaceKey ) obj ).dimensions );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashcode;
+		}
+	}
+
+	private final MemorySpaceCache memorySpaceCache;
+
 	public HDF5AccessHack( final IHDF5Reader hdf5Reader ) throws ClassNotFoundException, SecurityException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException
 	{
 		this.hdf5Reader = hdf5Reader;
@@ -156,6 +221,7 @@ public class HDF5AccessHack implements IHDF5Access
 		numericConversionXferPropertyListID = ( ( Integer ) f4.get( h5 ) ).intValue();
 
 		openDataSetCache = new OpenDataSetCache();
+		memorySpaceCache = new MemorySpaceCache();
 	}
 
 	@Override
@@ -181,7 +247,7 @@ public class HDF5AccessHack implements IHDF5Access
 	}
 
 	@Override
-	public synchronized byte[] readByteMDArrayBlockWithOffset( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min ) throws InterruptedException
+	public byte[] readByteMDArrayBlockWithOffset( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min ) throws InterruptedException
 	{
 		final byte[] dataBlock = new byte[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ];
 		readByteMDArrayBlockWithOffset( timepoint, setup, level, dimensions, min, dataBlock );
@@ -189,19 +255,9 @@ public class HDF5AccessHack implements IHDF5Access
 	}
 
 	@Override
-	public synchronized byte[] readByteMDArrayBlockWithOffset( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min, final byte[] dataBlock ) throws InterruptedException
+	public byte[] readByteMDArrayBlockWithOffset( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min, final byte[] dataBlock ) throws InterruptedException
 	{
-		if ( Thread.interrupted() )
-			throw new InterruptedException();
-		Util.reorder( dimensions, reorderedDimensions );
-		Util.reorder( min, reorderedMin );
-
-		final OpenDataSet dataset = openDataSetCache.getDataSet( new ViewLevelId( timepoint, setup, level ) );
-		final int memorySpaceId = H5Screate_simple( reorderedDimensions.length, reorderedDimensions, null );
-		H5Sselect_hyperslab( dataset.fileSpaceId, H5S_SELECT_SET, reorderedMin, null, reorderedDimensions, null );
-		H5Dread( dataset.dataSetId, H5T_NATIVE_UCHAR, memorySpaceId, dataset.fileSpaceId, numericConversionXferPropertyListID, dataBlock );
-		H5Sclose( memorySpaceId );
-
+		readBlock( timepoint, setup, level, dimensions, min, H5T_NATIVE_UCHAR, dataBlock );
 		return dataBlock;
 	}
 
@@ -213,21 +269,10 @@ public class HDF5AccessHack implements IHDF5Access
 		return dataBlock;
 	}
 
-	// TODO: this could be unified with readByteMDArrayBlockWithOffset? (final Object dataBlock, int H5T_NATIVE_type)?
 	@Override
 	public short[] readShortMDArrayBlockWithOffset( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min, final short[] dataBlock ) throws InterruptedException
 	{
-		if ( Thread.interrupted() )
-			throw new InterruptedException();
-		Util.reorder( dimensions, reorderedDimensions );
-		Util.reorder( min, reorderedMin );
-
-		final OpenDataSet dataset = openDataSetCache.getDataSet( new ViewLevelId( timepoint, setup, level ) );
-		final int memorySpaceId = H5Screate_simple( reorderedDimensions.length, reorderedDimensions, null );
-		H5Sselect_hyperslab( dataset.fileSpaceId, H5S_SELECT_SET, reorderedMin, null, reorderedDimensions, null );
-		H5Dread( dataset.dataSetId, H5T_NATIVE_USHORT, memorySpaceId, dataset.fileSpaceId, numericConversionXferPropertyListID, dataBlock );
-		H5Sclose( memorySpaceId );
-
+		readBlock( timepoint, setup, level, dimensions, min, H5T_NATIVE_USHORT, dataBlock );
 		return dataBlock;
 	}
 
@@ -239,22 +284,45 @@ public class HDF5AccessHack implements IHDF5Access
 		return dataBlock;
 	}
 
-	// TODO: this could be unified with readByteMDArrayBlockWithOffset? (final Object dataBlock, int H5T_NATIVE_type)?
 	@Override
 	public float[] readFloatMDArrayBlockWithOffset( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min, final float[] dataBlock ) throws InterruptedException
+	{
+		readBlock( timepoint, setup, level, dimensions, min, H5T_NATIVE_FLOAT, dataBlock );
+		return dataBlock;
+	}
+
+	/**
+	 * Read a block into {@code dataBlock}, which must be a {@code byte[]},
+	 * {@code short[]}, or {@code float[]} matching {@code memTypeId}.
+	 * <p>
+	 * Allocating {@code dataBlock} and reordering coordinates happens outside
+	 * the lock, so that several fetcher threads can prepare requests while
+	 * one of them is reading. The HDF5 library itself serializes all calls,
+	 * and the selection on a dataset's file space is shared, so the HDF5
+	 * calls are made while holding the lock.
+	 */
+	private void readBlock( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min, final int memTypeId, final Object dataBlock ) throws InterruptedException
 	{
 		if ( Thread.interrupted() )
 			throw new InterruptedException();
+		final long[] reorderedDimensions = new long[ 3 ];
+		final long[] reorderedMin = new long[ 3 ];
 		Util.reorder( dimensions, reorderedDimensions );
 		Util.reorder( min, reorderedMin );
+		final ViewLevelId id = new ViewLevelId( timepoint, setup, level );
 
-		final OpenDataSet dataset = openDataSetCache.getDataSet( new ViewLevelId( timepoint, setup, level ) );
-		final int memorySpaceId = H5Screate_simple( reorderedDimensions.length, reorderedDimensions, null );
-		H5Sselect_hyperslab( dataset.fileSpaceId, H5S_SELECT_SET, reorderedMin, null, reorderedDimensions, null );
-		H5Dread( dataset.dataSetId, H5T_NATIVE_FLOAT, memorySpaceId, dataset.fileSpaceId, numericConversionXferPropertyListID, dataBlock );
-		H5Sclose( memorySpaceId );
-
-		return dataBlock;
+		synchronized ( this )
+		{
+			final OpenDataSet dataset = openDataSetCache.getDataSet( id );
+			final int memorySpaceId = memorySpaceCache.getMemorySpace( reorderedDimensions );
+			H5Sselect_hyperslab( dataset.fileSpaceId, H5S_SELECT_SET, reorderedMin, null, reorderedDimensions, null );
+			if ( memTypeId == H5T_NATIVE_UCHAR )
+				H5Dread( dataset.dataSetId, memTypeId, memorySpaceId, dataset.fileSpaceId, numericConversionXferPropertyListID, ( byte[] ) dataBlock );
+			else if ( memTypeId == H5T_NATIVE_USHORT )
+				H5Dread( dataset.dataSetId, memTypeId, memorySpaceId, dataset.fileSpaceId, numericConversionXferPropertyListID, ( short[] ) dataBlock );
+			else
+				H5Dread( dataset.dataSetId, memTypeId, memorySpaceId, dataset.fileSpaceId, numericConversionXferPropertyListID, ( float[] ) dataBlock );
+		}
 	}
 
 	@Override
@@ -325,6 +393,8 @@ public class HDF5AccessHack implements IHDF5Access
 		{
 			for ( final OpenDataSet dataset : openDataSetCache.values() )
 				dataset.close();
+			for ( final int memorySpaceId : memorySpaceCache.values() )
+				H5Sclose( memorySpaceId );
 			hdf5Reader.close();
 		}
 		finally
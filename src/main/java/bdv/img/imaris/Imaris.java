@@ -58,6 +58,15 @@ import net.imglib2.realtransform.AffineTransform3D;
 public class Imaris
 {
 	public static SpimDataMinimal openIms( final String fn ) throws IOException
+	{
+		return openIms( fn, ImarisImageLoader.DEFAULT_NUM_FETCHER_THREADS );
+	}
+
+	/**
+	 * @param numFetcherThreads
+	 *            number of threads loading cells from the file.
+	 */
+	public static SpimDataMinimal openIms( final String fn, final int numFetcherThreads ) throws IOException
 	{
 		final IHDF5Reader reader = HDF5Factory.openForReading( fn );
 		final IHDF5Access access;
@@ -232,7 +241,7 @@ public class Imaris
 
 		final SequenceDescriptionMinimal seq = new SequenceDescriptionMinimal( new TimePoints( timepointMap ), setupMap, null, null );
 		@SuppressWarnings( { "rawtypes", "unchecked" } ) // TODO: when ij2 supports java 7, replace SuppressWarnings by new ImarisImageLoader<>(...)
-		final ImarisImageLoader<?,?,?> imgLoader = new ImarisImageLoader( dataType, new File( fn ), mipmapInfo, dimensions, seq );
+		final ImarisImageLoader<?,?,?> imgLoader = new ImarisImageLoader( dataType, new File( fn ), mipmapInfo, dimensions, seq, numFetcherThreads );
 		seq.setImgLoader( imgLoader );
 
 		final File basePath = new File( fn ).getParentFile();
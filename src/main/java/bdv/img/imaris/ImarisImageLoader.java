@@ -37,6 +37,7 @@ import bdv.AbstractViewerSetupImgLoader;
 import bdv.ViewerImgLoader;
 import bdv.cache.CacheControl;
 import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.SharedCellCache;
 import bdv.img.cache.VolatileGlobalCellCache;
 import bdv.img.hdf5.MipmapInfo;
 import bdv.img.hdf5.ViewLevelId;
@@ -80,6 +81,22 @@ public class ImarisImageLoader< T extends NativeType< T >, V extends Volatile< T
 
 	private final HashMap< Integer, SetupImgLoader > setupImgLoaders;
 
+	/**
+	 * Default number of threads loading cells. HDF5 reads are serialized, so
+	 * more threads than this mostly add contention.
+	 * <p>
+	 * Note that all reads from the HDF5 file go through a single lock: JHDF5
+	 * serializes every call into the native HDF5 library, and
+	 * {@link HDF5AccessHack} holds its own lock while selecting and reading a
+	 * block. Several fetcher threads therefore do not read concurrently, but
+	 * they overlap the work around the reads (allocating and reordering, cache
+	 * bookkeeping, and handing loaded cells to the renderer), and keep the
+	 * file busy while another thread is between reads.
+	 */
+	public static final int DEFAULT_NUM_FETCHER_THREADS = Math.max( 1, Math.min( 4, Runtime.getRuntime().availableProcessors() ) );
+
+	private final int numFetcherThreads;
+
 	public ImarisImageLoader(
 			final DataType< T, V, A > dataType,
 			final File hdf5File,
@@ -87,6 +104,18 @@ public class ImarisImageLoader< T extends NativeType< T >, V extends Volatile< T
 			final long[][] mipmapDimensions,
 			final AbstractSequenceDescription< ?, ?, ? > sequenceDescription )
 	{
+		this( dataType, hdf5File, mipmapInfo, mipmapDimensions, sequenceDescription, DEFAULT_NUM_FETCHER_THREADS );
+	}
+
+	public ImarisImageLoader(
+			final DataType< T, V, A > dataType,
+			final File hdf5File,
+			final MipmapInfo mipmapInfo,
+			final long[][] mipmapDimensions,
+			final AbstractSequenceDescription< ?, ?, ? > sequenceDescription,
+			final int numFetcherThreads )
+	{
+		this.numFetcherThreads = Math.max( 1, numFetcherThreads );
 		this.dataType = dataType;
 		this.hdf5File = hdf5File;
 		this.mipmapInfo = mipmapInfo;
@@ -122,7 +151,7 @@ public class ImarisImageLoader< T extends NativeType< T >, V extends Volatile< T
 					throw new RuntimeException( e );
 				}
 				loader = dataType.createArrayLoader( hdf5Access );
-				cache = new VolatileGlobalCellCache( maxNumLevels, 1 );
+				cache = SharedCellCache.getInstance().createCache( "imaris " + hdf5File, maxNumLevels, numFetcherThreads );
 
 				for ( final BasicViewSetup setup : setups )
 				{
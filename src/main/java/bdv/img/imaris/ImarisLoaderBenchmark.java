@@ -0,0 +1,175 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.img.imaris;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bdv.spimdata.SpimDataMinimal;
+import bdv.viewer.ViewerImgLoader;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Measure how fast full-resolution cells of an Imaris file are loaded with
+ * different numbers of fetcher threads.
+ * <p>
+ * For every thread count, the file is opened with a fresh
+ * {@link ImarisImageLoader} (so that nothing is cached), and all level-0 cells
+ * of the first timepoint are loaded by the same number of reader threads. A
+ * warm-up pass over the whole file runs first, so that all runs see the same
+ * state of the operating system file cache.
+ * <p>
+ * Usage: {@code ImarisLoaderBenchmark file.ims [numThreads...]}
+ */
+public class ImarisLoaderBenchmark
+{
+	private static class CellPosition
+	{
+		final RandomAccessibleInterval< ? > img;
+
+		final long[] min;
+
+		CellPosition( final RandomAccessibleInterval< ? > img, final long[] min )
+		{
+			this.img = img;
+			this.min = min;
+		}
+	}
+
+	private static class Result
+	{
+		final int numCells;
+
+		final long numBytes;
+
+		final long nanos;
+
+		Result( final int numCells, final long numBytes, final long nanos )
+		{
+			this.numCells = numCells;
+			this.numBytes = numBytes;
+			this.nanos = nanos;
+		}
+	}
+
+	private static Result run( final String fn, final int numThreads ) throws IOException, InterruptedException
+	{
+		final SpimDataMinimal spimData = Imaris.openIms( fn, numThreads );
+		final ViewerImgLoader imgLoader = ( ViewerImgLoader ) spimData.getSequenceDescription().getImgLoader();
+		final int timepointId = spimData.getSequenceDescription().getTimePoints().getTimePointsOrdered().get( 0 ).getId();
+
+		final List< CellPosition > cells = new ArrayList<>();
+		final AtomicLong numBytes = new AtomicLong();
+		for ( final BasicViewSetup setup : spimData.getSequenceDescription().getViewSetupsOrdered() )
+		{
+			final RandomAccessibleInterval< ? > img = imgLoader.getSetupImgLoader( setup.getId() ).getImage( timepointId, 0 );
+			final CellGrid grid = ( ( AbstractCellImg< ?, ?, ?, ? > ) img ).getCellGrid();
+			final long[] gridDimensions = grid.getGridDimensions();
+			final long[] pos = new long[ 3 ];
+			for ( pos[ 2 ] = 0; pos[ 2 ] < gridDimensions[ 2 ]; ++pos[ 2 ] )
+				for ( pos[ 1 ] = 0; pos[ 1 ] < gridDimensions[ 1 ]; ++pos[ 1 ] )
+					for ( pos[ 0 ] = 0; pos[ 0 ] < gridDimensions[ 0 ]; ++pos[ 0 ] )
+					{
+						final long[] min = new long[ 3 ];
+						for ( int d = 0; d < 3; ++d )
+							min[ d ] = pos[ d ] * grid.cellDimension( d );
+						cells.add( new CellPosition( img, min ) );
+					}
+		}
+
+		final AtomicInteger nextCell = new AtomicInteger();
+		final ArrayList< Thread > threads = new ArrayList<>();
+		for ( int i = 0; i < numThreads; ++i )
+			threads.add( new Thread( () -> {
+				long bytes = 0;
+				for ( int c = nextCell.getAndIncrement(); c < cells.size(); c = nextCell.getAndIncrement() )
+				{
+					final CellPosition cell = cells.get( c );
+					final RandomAccess< ? > a = cell.img.randomAccess();
+					a.setPosition( cell.min );
+					final Object t = a.get();
+					final int bytesPerVoxel = Math.max( 1, ( ( RealType< ? > ) t ).getBitsPerPixel() / 8 );
+					final CellGrid grid = ( ( AbstractCellImg< ?, ?, ?, ? > ) cell.img ).getCellGrid();
+					long numVoxels = 1;
+					for ( int d = 0; d < 3; ++d )
+						numVoxels *= Math.min( grid.cellDimension( d ), cell.img.dimension( d ) - cell.min[ d ] );
+					bytes += numVoxels * bytesPerVoxel;
+				}
+				numBytes.addAndGet( bytes );
+			} ) );
+
+		final long t0 = System.nanoTime();
+		for ( final Thread thread : threads )
+			thread.start();
+		for ( final Thread thread : threads )
+			thread.join();
+		final long nanos = System.nanoTime() - t0;
+
+		return new Result( cells.size(), numBytes.get(), nanos );
+	}
+
+	public static void main( final String[] args ) throws IOException, InterruptedException
+	{
+		if ( args.length < 1 )
+		{
+			System.err.println( "usage: ImarisLoaderBenchmark file.ims [numThreads...]" );
+			return;
+		}
+		final String fn = args[ 0 ];
+		final int[] numThreads;
+		if ( args.length > 1 )
+		{
+			numThreads = new int[ args.length - 1 ];
+			for ( int i = 1; i < args.length; ++i )
+				numThreads[ i - 1 ] = Integer.parseInt( args[ i ] );
+		}
+		else
+			numThreads = new int[] { 1, 2, 4, 8 };
+
+		System.out.println( "warm-up" );
+		run( fn, ImarisImageLoader.DEFAULT_NUM_FETCHER_THREADS );
+
+		for ( final int n : numThreads )
+		{
+			final Result r = run( fn, n );
+			final double seconds = r.nanos * 1e-9;
+			System.out.println( String.format( "%2d threads: %d cells in %.2f s, %.1f cells/s, %.1f MB/s",
+					n, r.numCells, seconds, r.numCells / seconds, r.numBytes / seconds / 1e6 ) );
+		}
+	}
+}
@@ -41,8 +41,10 @@ import bdv.AbstractViewerSetupImgLoader;
 import bdv.ViewerImgLoader;
 import bdv.ViewerSetupImgLoader;
 import bdv.cache.CacheControl;
+import bdv.img.cache.SharedCellCache;
 import bdv.img.cache.VolatileCachedCellImg;
 import bdv.img.cache.VolatileGlobalCellCache;
+import bdv.img.http.HttpTransport;
 import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.cache.volatiles.CacheHints;
@@ -85,7 +87,7 @@ public class OpenConnectomeImageLoader extends AbstractViewerSetupImgLoader< Uns
 		blockDimensions = info.getLevelCellDimensions();
 		mipmapTransforms = info.getLevelTransforms( mode );
 
-		cache = new VolatileGlobalCellCache( numScales, 10 );
+		cache = SharedCellCache.getInstance().createCache( "openconnectome " + baseUrl + " " + token, numScales, 10 );
 		System.out.println( info.getOffsets( mode )[ 0 ][ 2 ] + " " + imageDimensions[ 0 ][ 2 ] );
 
 		loader = new OpenConnectomeVolatileArrayLoader(
@@ -110,7 +112,7 @@ public class OpenConnectomeImageLoader extends AbstractViewerSetupImgLoader< Uns
 	{
 		final Gson gson = new Gson();
 		final URL url = new URL( baseUrl + "/public_tokens/" );
-		final String[] tokens = gson.fromJson( new InputStreamReader( url.openStream() ), String[].class );
+		final String[] tokens = HttpTransport.getDefault().getOrThrowIO( url, in -> gson.fromJson( new InputStreamReader( in ), String[].class ) );
 		return tokens;
 	}
 
@@ -136,7 +138,7 @@ public class OpenConnectomeImageLoader extends AbstractViewerSetupImgLoader< Uns
 
 		System.out.println( "Fetching token from " + url );
 
-		return gson.fromJson( new InputStreamReader( url.openStream() ), OpenConnectomeTokenInfo.class );
+		return HttpTransport.getDefault().getOrThrowIO( url, in -> gson.fromJson( new InputStreamReader( in ), OpenConnectomeTokenInfo.class ) );
 	}
 
 	/**
@@ -29,18 +29,30 @@
  */
 package bdv.img.openconnectome;
 
-import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URL;
-import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import bdv.img.cache.CacheArrayLoader;
+import bdv.img.http.HttpTransport;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
 
+/**
+ * Loads cells from zipped cutouts of an OpenConnectome volume cutout service.
+ * Responses are inflated while they arrive, straight into the cell array,
+ * using a per-thread {@link Inflater} and a small fixed input buffer, so
+ * memory use does not depend on the size of the compressed payload. Requests
+ * go through the shared {@link HttpTransport}, which limits concurrent
+ * requests per host and applies timeouts and retries.
+ */
 public class OpenConnectomeVolatileArrayLoader implements CacheArrayLoader< VolatileByteArray >
 {
+	private static final int INFLATER_BUFFER_SIZE = 64 * 1024;
+
+	private static final ThreadLocal< Inflater > inflaters = ThreadLocal.withInitial( Inflater::new );
+
 	final private String tokenUrl;
 
 	final private String mode;
@@ -88,24 +100,6 @@ public class OpenConnectomeVolatileArrayLoader implements CacheArrayLoader< Vola
 			final int level,
 			final int[] dimensions,
 			final long[] min ) throws InterruptedException
-	{
-		try
-		{
-			return tryLoadArray( timepoint, setup, level, dimensions, min );
-		}
-		catch ( final OutOfMemoryError e )
-		{
-			System.gc();
-			return tryLoadArray( timepoint, setup, level, dimensions, min );
-		}
-	}
-
-	public VolatileByteArray tryLoadArray(
-			final int timepoint,
-			final int setup,
-			final int level,
-			final int[] dimensions,
-			final long[] min ) throws InterruptedException
 	{
 		final byte[] data = new byte[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ];
 
@@ -131,27 +125,22 @@ public class OpenConnectomeVolatileArrayLoader implements CacheArrayLoader< Vola
 		try
 		{
 			final URL file = new URL( url.toString() );
-			final InputStream in = file.openStream();
-			final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-			final byte[] chunk = new byte[ 4096 ];
-			int l;
-			for ( l = in.read( chunk ); l > 0; l = in.read( chunk ) )
-			    byteStream.write( chunk, 0, l );
-
-			final byte[] zippedData = byteStream.toByteArray();
-			final Inflater inflater = new Inflater();
-			inflater.setInput( zippedData );
-			inflater.inflate( data );
-			inflater.end();
-			byteStream.close();
+			HttpTransport.getDefault().get( file, in -> {
+				// inflate while the response arrives, directly into the cell array
+				final Inflater inflater = inflaters.get();
+				inflater.reset();
+				final DataInputStream inflated = new DataInputStream( new InflaterInputStream( in, inflater, INFLATER_BUFFER_SIZE ) );
+				inflated.readFully( data );
+				return null;
+			} );
 		}
 		catch ( final IOException e )
 		{
-			System.out.println( "failed loading x=" + min[ 0 ] + " y=" + min[ 1 ] + " z=" + min[ 2 ] + " url(" + url.toString() + ")" );
-		}
-		catch( final DataFormatException e )
-		{
-			System.out.println( "failed unpacking x=" + min[ 0 ] + " y=" + min[ 1 ] + " z=" + min[ 2 ] + " url(" + url.toString() + ")" );
+			// return an invalid cell. The cache keeps it only as a placeholder
+			// (outside the memory budget) and requests it again when it is
+			// needed next time.
+			System.out.println( "failed loading x=" + min[ 0 ] + " y=" + min[ 1 ] + " z=" + min[ 2 ] + " url(" + url.toString() + "): " + e );
+			return new VolatileByteArray( data, false );
 		}
 
 		return new VolatileByteArray( data, true );
@@ -0,0 +1,295 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.img.remote;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Wire formats for cell data sent by a BigDataServer. The server lists the
+ * formats it supports in {@link RemoteImageLoaderMetaData#getCellEncodings()},
+ * the client picks one ({@link #negotiate(String[])}) and appends
+ * {@code &e=<name>} to cell requests.
+ *
+ * <ul>
+ * <li>{@link #RAW}: big-endian 16-bit values. This is the only format
+ * understood by older servers and is used if the server does not list any
+ * formats.</li>
+ * <li>{@link #DEFLATE}: big-endian 16-bit values, compressed with
+ * {@link Deflater}.</li>
+ * <li>{@link #DELTA_SHUFFLE_DEFLATE}: differences of consecutive values, with
+ * high bytes and low bytes in separate planes, compressed with
+ * {@link Deflater}. For mostly dark microscopy data, the high byte plane is
+ * nearly all zeros and compresses very well.</li>
+ * </ul>
+ * Compressed cells are prefixed by their length in bytes (4 byte big-endian
+ * int), so that several cells can be concatenated in one response.
+ *
+ * <p>
+ * Decoding uses per-thread buffers, so that fetcher threads do not allocate
+ * temporary arrays for each cell. {@link Inflater} and {@link Deflater} are
+ * {@link Inflater#end() ended} after each cell, because the threads that
+ * decode cells come and go, and the native memory of a per-thread instance
+ * would only be released by finalization.
+ */
+public enum CellEncoding
+{
+	RAW( "raw" ),
+	DEFLATE( "deflate" ),
+	DELTA_SHUFFLE_DEFLATE( "delta-shuffle-deflate" );
+
+	private final String wireName;
+
+	private CellEncoding( final String wireName )
+	{
+		this.wireName = wireName;
+	}
+
+	/**
+	 * Get the name used in {@code ?p=init} metadata and cell requests.
+	 */
+	public String getName()
+	{
+		return wireName;
+	}
+
+	/**
+	 * Get the encoding with the given name, or {@code null} if there is none.
+	 */
+	public static CellEncoding fromName( final String name )
+	{
+		for ( final CellEncoding e : values() )
+			if ( e.wireName.equals( name ) )
+				return e;
+		return null;
+	}
+
+	/**
+	 * Names of all encodings, to be advertised by a server.
+	 */
+	public static String[] names()
+	{
+		final CellEncoding[] values = values();
+		final String[] names = new String[ values.length ];
+		for ( int i = 0; i < values.length; ++i )
+			names[ i ] = values[ i ].wireName;
+		return names;
+	}
+
+	/**
+	 * Choose the preferred encoding among the ones supported by a server.
+	 *
+	 * @param serverEncodings
+	 *            names of encodings supported by the server. may be null.
+	 * @return the preferred encoding, or {@link #RAW} if none of the
+	 *         {@code serverEncodings} is known.
+	 */
+	public static CellEncoding negotiate( final String[] serverEncodings )
+	{
+		CellEncoding best = RAW;
+		if ( serverEncodings != null )
+			for ( final String name : serverEncodings )
+			{
+				final CellEncoding e = fromName( name );
+				if ( e != null && e.ordinal() > best.ordinal() )
+					best = e;
+			}
+		return best;
+	}
+
+	/**
+	 * Write the first {@code numElements} values of {@code data}.
+	 */
+	public void encode( final short[] data, final int numElements, final DataOutputStream out ) throws IOException
+	{
+		final Buffers buffers = Buffers.get();
+		final byte[] plain = buffers.plain( 2 * numElements );
+		if ( this == DELTA_SHUFFLE_DEFLATE )
+		{
+			short previous = 0;
+			for ( int i = 0; i < numElements; ++i )
+			{
+				final int d = data[ i ] - previous;
+				previous = data[ i ];
+				plain[ i ] = ( byte ) ( d >> 8 );
+				plain[ numElements + i ] = ( byte ) d;
+			}
+		}
+		else
+		{
+			for ( int i = 0, j = 0; i < numElements; ++i, j += 2 )
+			{
+				plain[ j ] = ( byte ) ( data[ i ] >> 8 );
+				plain[ j + 1 ] = ( byte ) data[ i ];
+			}
+		}
+
+		if ( this == RAW )
+		{
+			out.write( plain, 0, 2 * numElements );
+			return;
+		}
+
+		final Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+		byte[] compressed = buffers.compressed( numElements + 64 );
+		int length = 0;
+		try
+		{
+			deflater.setInput( plain, 0, 2 * numElements );
+			deflater.finish();
+			while ( !deflater.finished() )
+			{
+				if ( length == compressed.length )
+					compressed = buffers.growCompressed( 2 * compressed.length );
+				length += deflater.deflate( compressed, length, compressed.length - length );
+			}
+		}
+		finally
+		{
+			deflater.end();
+		}
+		out.writeInt( length );
+		out.write( compressed, 0, length );
+	}
+
+	/**
+	 * Read {@code data.length} values into {@code data}.
+	 *
+	 * @throws IOException
+	 *             if reading fails, or the data is corrupt or does not match
+	 *             the size of {@code data}.
+	 */
+	public void decode( final DataInputStream in, final short[] data ) throws IOException
+	{
+		final int numElements = data.length;
+		final Buffers buffers = Buffers.get();
+		final byte[] plain = buffers.plain( 2 * numElements );
+		if ( this == RAW )
+			in.readFully( plain, 0, 2 * numElements );
+		else
+		{
+			final int length = in.readInt();
+			if ( length <= 0 || length > maxCompressedLength( 2 * numElements ) )
+				throw new IOException( "invalid compressed cell length " + length + " for " + numElements + " elements" );
+			final byte[] compressed = buffers.compressed( length );
+			in.readFully( compressed, 0, length );
+			final Inflater inflater = new Inflater();
+			try
+			{
+				inflater.setInput( compressed, 0, length );
+				int n = 0;
+				while ( n < 2 * numElements && !inflater.finished() )
+				{
+					final int l = inflater.inflate( plain, n, 2 * numElements - n );
+					if ( l == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) )
+						break;
+					n += l;
+				}
+				if ( n != 2 * numElements )
+					throw new IOException( "truncated cell data" );
+			}
+			catch ( final DataFormatException e )
+			{
+				throw new IOException( e );
+			}
+			finally
+			{
+				inflater.end();
+			}
+		}
+
+		if ( this == DELTA_SHUFFLE_DEFLATE )
+		{
+			short previous = 0;
+			for ( int i = 0; i < numElements; ++i )
+			{
+				previous += ( short ) ( ( ( plain[ i ] & 0xff ) << 8 ) | ( plain[ numElements + i ] & 0xff ) );
+				data[ i ] = previous;
+			}
+		}
+		else
+		{
+			for ( int i = 0, j = 0; i < numElements; ++i, j += 2 )
+				data[ i ] = ( short ) ( ( ( plain[ j ] & 0xff ) << 8 ) | ( plain[ j + 1 ] & 0xff ) );
+		}
+	}
+
+	/**
+	 * Upper bound for the size of {@code numBytes} bytes compressed by
+	 * {@link Deflater} (as zlib's {@code compressBound()}).
+	 */
+	private static long maxCompressedLength( final int numBytes )
+	{
+		return ( long ) numBytes + ( numBytes >> 12 ) + ( numBytes >> 14 ) + ( numBytes >> 25 ) + 13;
+	}
+
+	/**
+	 * Per-thread buffers for encoding and decoding.
+	 */
+	private static class Buffers
+	{
+		private static final ThreadLocal< Buffers > buffers = ThreadLocal.withInitial( Buffers::new );
+
+		static Buffers get()
+		{
+			return buffers.get();
+		}
+
+		private byte[] plain = new byte[ 0 ];
+
+		private byte[] compressed = new byte[ 0 ];
+
+		byte[] plain( final int size )
+		{
+			if ( plain.length < size )
+				plain = new byte[ size ];
+			return plain;
+		}
+
+		byte[] compressed( final int size )
+		{
+			if ( compressed.length < size )
+				compressed = new byte[ size ];
+			return compressed;
+		}
+
+		byte[] growCompressed( final int size )
+		{
+			final byte[] grown = new byte[ size ];
+			System.arraycopy( compressed, 0, grown, 0, compressed.length );
+			compressed = grown;
+			return grown;
+		}
+	}
+}
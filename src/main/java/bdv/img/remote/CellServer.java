@@ -0,0 +1,425 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.img.remote;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.GsonBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import bdv.ViewerImgLoader;
+import bdv.img.cache.VolatileCachedCellImg;
+import bdv.img.hdf5.Hdf5ImageLoader;
+import bdv.img.hdf5.ViewLevelId;
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * An embeddable server for the {@link RemoteImageLoader} protocol, built on the
+ * JDK {@link HttpServer}. It serves the {@link UnsignedShortType} images of any
+ * {@link ViewerImgLoader} (for example hdf5 or Imaris) at
+ * {@code http://<host>:<port>/<name>/}:
+ * <ul>
+ * <li>{@code ?p=init}: {@link RemoteImageLoaderMetaData} as JSON,</li>
+ * <li>{@code ?p=cell/<index>/<t>/<s>/<level>/<dims>/<min>}: data of one
+ * cell,</li>
+ * <li>{@code ?p=cells/<n>/...}: data of {@code n} cells (see
+ * {@link RemoteCellBatcher}),</li>
+ * <li>{@code ?p=metrics}: request statistics as text.</li>
+ * </ul>
+ * Cell requests may ask for a {@link CellEncoding} with {@code &e=<name>}.
+ *
+ * <p>
+ * Cells are read through the images of the {@link ViewerImgLoader}, so all
+ * requests share the loader's {@link bdv.img.cache.VolatileGlobalCellCache}.
+ * At most {@code maxRequestsInFlight} requests are handled at the same time,
+ * further requests are answered with HTTP 503, which the client's
+ * {@link bdv.img.http.HttpTransport} retries.
+ *
+ * <p>
+ * Besides serving datasets without a separate deployment, this can be used as
+ * a local stand-in server for end-to-end throughput tests of
+ * {@link RemoteImageLoader}.
+ */
+public class CellServer
+{
+	public static final int DEFAULT_MAX_CELLS_PER_REQUEST = 64;
+
+	/**
+	 * Request counters of a {@link CellServer}.
+	 */
+	public static class Metrics
+	{
+		private final AtomicLong numRequests = new AtomicLong();
+
+		private final AtomicLong numCells = new AtomicLong();
+
+		private final AtomicLong numBytes = new AtomicLong();
+
+		private final AtomicLong numRejected = new AtomicLong();
+
+		private final AtomicLong numErrors = new AtomicLong();
+
+		private final AtomicLong busyNanos = new AtomicLong();
+
+		private final AtomicInteger maxInFlight = new AtomicInteger();
+
+		private final long startNanos = System.nanoTime();
+
+		public long getNumRequests()
+		{
+			return numRequests.get();
+		}
+
+		public long getNumCells()
+		{
+			return numCells.get();
+		}
+
+		/**
+		 * Get the number of bytes of cell data sent.
+		 */
+		public long getNumBytes()
+		{
+			return numBytes.get();
+		}
+
+		/**
+		 * Get the number of requests that were rejected because too many
+		 * requests were in flight.
+		 */
+		public long getNumRejected()
+		{
+			return numRejected.get();
+		}
+
+		public long getNumErrors()
+		{
+			return numErrors.get();
+		}
+
+		public int getMaxInFlight()
+		{
+			return maxInFlight.get();
+		}
+
+		public void print( final PrintStream out )
+		{
+			final double seconds = Math.max( System.nanoTime() - startNanos, 1 ) / 1e9;
+			final long n = Math.max( numRequests.get(), 1 );
+			out.printf( "requests: %d (%.1f/s), rejected: %d, errors: %d, max in flight: %d\n",
+					numRequests.get(), numRequests.get() / seconds, numRejected.get(), numErrors.get(), maxInFlight.get() );
+			out.printf( "cells: %d (%.1f/s), sent: %.1f MB (%.2f MB/s), mean request time: %.2f ms\n",
+					numCells.get(), numCells.get() / seconds, numBytes.get() / 1e6, numBytes.get() / 1e6 / seconds, busyNanos.get() / 1e6 / n );
+		}
+	}
+
+	private final ViewerImgLoader imgLoader;
+
+	private final String metadataJson;
+
+	private final HttpServer server;
+
+	private final ExecutorService executor;
+
+	private final String baseUrl;
+
+	private final Semaphore inFlight;
+
+	private final int maxRequestsInFlight;
+
+	private final Metrics metrics;
+
+	private final ConcurrentHashMap< ViewLevelId, RandomAccessibleInterval< ? > > images;
+
+	/**
+	 * @param imgLoader
+	 *            provides the images to serve. Must provide
+	 *            {@link UnsignedShortType} images.
+	 * @param sequenceDescription
+	 *            the sequence whose timepoints and setups are served.
+	 * @param name
+	 *            the dataset is served under {@code /<name>/}.
+	 * @param port
+	 *            the port to listen on. If 0, a free port is chosen (see
+	 *            {@link #getBaseUrl()}).
+	 * @param numThreads
+	 *            number of threads handling requests.
+	 * @param maxRequestsInFlight
+	 *            maximum number of requests handled concurrently.
+	 */
+	public CellServer(
+			final ViewerImgLoader imgLoader,
+			final AbstractSequenceDescription< ?, ?, ? > sequenceDescription,
+			final String name,
+			final int port,
+			final int numThreads,
+			final int maxRequestsInFlight ) throws IOException
+	{
+		for ( final BasicViewSetup setup : sequenceDescription.getViewSetupsOrdered() )
+		{
+			final Object type = imgLoader.getSetupImgLoader( setup.getId() ).getImageType();
+			if ( !( type instanceof UnsignedShortType ) )
+				throw new IllegalArgumentException( "Expected ViewerImgLoader<UnsignedShortType> but setup " + setup.getId() + " has type "
+						+ type.getClass().getSimpleName() + ".\nCurrently only UnsignedShortType can be served." );
+		}
+
+		this.imgLoader = imgLoader;
+		this.maxRequestsInFlight = maxRequestsInFlight;
+		inFlight = new Semaphore( maxRequestsInFlight );
+		metrics = new Metrics();
+		images = new ConcurrentHashMap<>();
+
+		final RemoteImageLoaderMetaData metadata = ( imgLoader instanceof Hdf5ImageLoader )
+				? new RemoteImageLoaderMetaData( ( Hdf5ImageLoader ) imgLoader, sequenceDescription )
+				: new RemoteImageLoaderMetaData( imgLoader, sequenceDescription );
+		metadata.setMaxCellsPerRequest( DEFAULT_MAX_CELLS_PER_REQUEST );
+		metadata.setCellEncodings( CellEncoding.names() );
+		final GsonBuilder gsonBuilder = new GsonBuilder();
+		gsonBuilder.registerTypeAdapter( AffineTransform3D.class, new AffineTransform3DJsonSerializer() );
+		gsonBuilder.enableComplexMapKeySerialization();
+		metadataJson = gsonBuilder.create().toJson( metadata );
+
+		final String context = "/" + name + "/";
+		server = HttpServer.create( new InetSocketAddress( port ), 0 );
+		server.createContext( context, this::handle );
+		final AtomicInteger threadNum = new AtomicInteger();
+		executor = Executors.newFixedThreadPool( numThreads, r -> {
+			final Thread thread = new Thread( r, "CellServer-" + threadNum.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		server.setExecutor( executor );
+		baseUrl = "http://localhost:" + server.getAddress().getPort() + context;
+	}
+
+	public void start()
+	{
+		server.start();
+	}
+
+	/**
+	 * Stop the server, waiting at most {@code delaySeconds} for requests
+	 * in flight to complete.
+	 */
+	public void stop( final int delaySeconds )
+	{
+		server.stop( delaySeconds );
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Get the url to pass to {@link RemoteImageLoader#RemoteImageLoader(String)}.
+	 */
+	public String getBaseUrl()
+	{
+		return baseUrl;
+	}
+
+	public Metrics getMetrics()
+	{
+		return metrics;
+	}
+
+	private void handle( final HttpExchange exchange ) throws IOException
+	{
+		if ( !inFlight.tryAcquire() )
+		{
+			metrics.numRejected.incrementAndGet();
+			exchange.getResponseHeaders().set( "Retry-After", "1" );
+			exchange.sendResponseHeaders( 503, -1 );
+			exchange.close();
+			return;
+		}
+		final long t0 = System.nanoTime();
+		try
+		{
+			final int n = maxRequestsInFlight - inFlight.availablePermits();
+			int max = metrics.maxInFlight.get();
+			while ( n > max && !metrics.maxInFlight.compareAndSet( max, n ) )
+				max = metrics.maxInFlight.get();
+
+			String p = null;
+			CellEncoding encoding = CellEncoding.RAW;
+			final String query = exchange.getRequestURI().getRawQuery();
+			if ( query != null )
+				for ( final String param : query.split( "&" ) )
+				{
+					if ( param.startsWith( "p=" ) )
+						p = param.substring( 2 );
+					else if ( param.startsWith( "e=" ) )
+						encoding = CellEncoding.fromName( param.substring( 2 ) );
+				}
+
+			if ( p == null || encoding == null )
+				sendError( exchange, 400 );
+			else if ( p.equals( "init" ) )
+				sendText( exchange, metadataJson, "application/json" );
+			else if ( p.equals( "metrics" ) )
+			{
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				metrics.print( new PrintStream( bytes, true, "UTF-8" ) );
+				sendText( exchange, bytes.toString( "UTF-8" ), "text/plain" );
+			}
+			else if ( p.startsWith( "cell/" ) )
+				sendCells( exchange, p.substring( 5 ).split( "/" ), 1, 0, encoding );
+			else if ( p.startsWith( "cells/" ) )
+			{
+				final String[] parts = p.substring( 6 ).split( "/" );
+				final int numCells = Integer.parseInt( parts[ 0 ] );
+				if ( numCells > DEFAULT_MAX_CELLS_PER_REQUEST )
+					sendError( exchange, 400 );
+				else
+					sendCells( exchange, parts, numCells, 1, encoding );
+			}
+			else
+				sendError( exchange, 404 );
+		}
+		catch ( final RuntimeException | IOException e )
+		{
+			metrics.numErrors.incrementAndGet();
+			e.printStackTrace();
+			try
+			{
+				sendError( exchange, 500 );
+			}
+			catch ( final IOException | RuntimeException ignored )
+			{
+				// response headers were already sent
+			}
+		}
+		finally
+		{
+			exchange.close();
+			metrics.numRequests.incrementAndGet();
+			metrics.busyNanos.addAndGet( System.nanoTime() - t0 );
+			inFlight.release();
+		}
+	}
+
+	private static void sendError( final HttpExchange exchange, final int code ) throws IOException
+	{
+		exchange.sendResponseHeaders( code, -1 );
+	}
+
+	private static void sendText( final HttpExchange exchange, final String text, final String contentType ) throws IOException
+	{
+		final byte[] bytes = text.getBytes( StandardCharsets.UTF_8 );
+		exchange.getResponseHeaders().set( "Content-Type", contentType + "; charset=utf-8" );
+		exchange.sendResponseHeaders( 200, bytes.length );
+		exchange.getResponseBody().write( bytes );
+	}
+
+	/**
+	 * Send {@code numCells} cells. Each cell is described by 10 values in
+	 * {@code parts}, starting at {@code offset}: index, timepoint, setup,
+	 * level, dimensions, min.
+	 */
+	private void sendCells( final HttpExchange exchange, final String[] parts, final int numCells, final int offset, final CellEncoding encoding ) throws IOException
+	{
+		if ( parts.length < offset + 10 * numCells )
+		{
+			sendError( exchange, 400 );
+			return;
+		}
+
+		// look up all cells before sending the response headers, so that
+		// missing data can still be reported as error.
+		final short[][] data = new short[ numCells ][];
+		final int[] numElements = new int[ numCells ];
+		for ( int i = 0, o = offset; i < numCells; ++i, o += 10 )
+		{
+			final int timepoint = Integer.parseInt( parts[ o + 1 ] );
+			final int setup = Integer.parseInt( parts[ o + 2 ] );
+			final int level = Integer.parseInt( parts[ o + 3 ] );
+			final int[] dimensions = new int[ 3 ];
+			final long[] min = new long[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+			{
+				dimensions[ d ] = Integer.parseInt( parts[ o + 4 + d ] );
+				min[ d ] = Long.parseLong( parts[ o + 7 + d ] );
+			}
+			numElements[ i ] = dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
+			data[ i ] = getCellData( new ViewLevelId( timepoint, setup, level ), dimensions, min );
+		}
+
+		exchange.getResponseHeaders().set( "Content-Type", "application/octet-stream" );
+		exchange.sendResponseHeaders( 200, 0 );
+		final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( exchange.getResponseBody() ) );
+		for ( int i = 0; i < numCells; ++i )
+			// Send only numElements values: cells that were never written may
+			// share an oversized empty array.
+			encoding.encode( data[ i ], numElements[ i ], out );
+		out.flush();
+
+		metrics.numCells.addAndGet( numCells );
+		metrics.numBytes.addAndGet( out.size() );
+	}
+
+	private short[] getCellData( final ViewLevelId id, final int[] dimensions, final long[] min )
+	{
+		final int numElements = dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
+		final RandomAccessibleInterval< ? > img = images.computeIfAbsent( id,
+				k -> imgLoader.getSetupImgLoader( k.getViewSetupId() ).getImage( k.getTimePointId(), k.getLevel() ) );
+		if ( !( img instanceof VolatileCachedCellImg ) )
+			// missing image
+			return new short[ numElements ];
+
+		final VolatileCachedCellImg< ?, ? > cellImg = ( VolatileCachedCellImg< ?, ? > ) img;
+		final CellGrid grid = cellImg.getCellGrid();
+		final RandomAccess< ? extends Cell< ? > > cells = cellImg.getCells().randomAccess();
+		for ( int d = 0; d < 3; ++d )
+			cells.setPosition( min[ d ] / grid.cellDimension( d ), d );
+		final short[] data = ( short[] ) ( ( ArrayDataAccess< ? > ) cells.get().getData() ).getCurrentStorageArray();
+		if ( data.length < numElements )
+			throw new IllegalArgumentException( "requested cell size does not match cell grid" );
+		return data;
+	}
+}
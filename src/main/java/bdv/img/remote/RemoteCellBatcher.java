@@ -0,0 +1,356 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.img.remote;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import bdv.img.cache.FairShareFetchQueues;
+import bdv.img.http.HttpTransport;
+import bdv.img.http.RequestControl;
+
+/**
+ * Collects concurrent cell requests to the same server and sends them as one
+ * {@code ?p=cells/...} request. This avoids paying the round-trip latency of
+ * the server once per cell, when the fetcher threads of a
+ * {@link RemoteImageLoader} request many small cells at the same time.
+ *
+ * <p>
+ * A batch request has the form
+ * {@code ?p=cells/<n>/<cell-1>/<cell-2>/.../<cell-n>}, where each
+ * {@code <cell-i>} is the same list of 10 values that is used for a single
+ * {@code ?p=cell/...} request (index, timepoint, setup, level, dimensions, min).
+ * The response is the concatenation of the data of all requested cells, in
+ * request order, each in the negotiated {@link CellEncoding}.
+ *
+ * <p>
+ * The first thread that enqueues a request while no batch is being collected
+ * becomes the collector. It waits until {@code maxBatchSize} requests are
+ * pending or the collection window elapsed, sends the batch, and distributes
+ * the response to the waiting threads. The batch is only abandoned when the
+ * {@link FairShareFetchQueues#currentRequest() requests} of all its members are
+ * cancelled (see {@link BatchControl}).
+ */
+class RemoteCellBatcher
+{
+	/**
+	 * A request for the data of a single cell.
+	 */
+	static class CellRequest
+	{
+		final int index;
+
+		final int timepoint;
+
+		final int setup;
+
+		final int level;
+
+		final int[] dimensions;
+
+		final long[] min;
+
+		/**
+		 * The control of the fetcher thread that made the request, or
+		 * {@code null}.
+		 */
+		final RequestControl control;
+
+		/**
+		 * The loaded data. Set when the batch containing the request succeeded.
+		 */
+		short[] data;
+
+		private boolean taken;
+
+		private boolean done;
+
+		private IOException failure;
+
+		CellRequest( final int index, final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min )
+		{
+			this.index = index;
+			this.timepoint = timepoint;
+			this.setup = setup;
+			this.level = level;
+			this.dimensions = dimensions;
+			this.min = min;
+			control = FairShareFetchQueues.currentRequest();
+		}
+
+		int numElements()
+		{
+			return dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
+		}
+
+		void appendTo( final StringBuilder sb )
+		{
+			sb.append( index ).append( '/' )
+					.append( timepoint ).append( '/' )
+					.append( setup ).append( '/' )
+					.append( level ).append( '/' )
+					.append( dimensions[ 0 ] ).append( '/' )
+					.append( dimensions[ 1 ] ).append( '/' )
+					.append( dimensions[ 2 ] ).append( '/' )
+					.append( min[ 0 ] ).append( '/' )
+					.append( min[ 1 ] ).append( '/' )
+					.append( min[ 2 ] );
+		}
+	}
+
+	private final String baseUrl;
+
+	private final CellEncoding encoding;
+
+	private final int maxBatchSize;
+
+	private final long windowNanos;
+
+	private final ArrayList< CellRequest > pending;
+
+	private boolean collecting;
+
+	/**
+	 * @param baseUrl
+	 *            the server url, without query.
+	 * @param encoding
+	 *            the wire format in which cells are requested.
+	 * @param maxBatchSize
+	 *            maximum number of cells in one request.
+	 * @param windowMillis
+	 *            how long to wait for more requests before a batch is sent.
+	 */
+	RemoteCellBatcher( final String baseUrl, final CellEncoding encoding, final int maxBatchSize, final double windowMillis )
+	{
+		this.baseUrl = baseUrl;
+		this.encoding = encoding;
+		this.maxBatchSize = maxBatchSize;
+		this.windowNanos = ( long ) ( windowMillis * 1000000 );
+		pending = new ArrayList<>();
+		collecting = false;
+	}
+
+	/**
+	 * Load the data of the given cell into {@link CellRequest#data}, as part
+	 * of a batch. Blocks until the batch containing the request has been
+	 * received.
+	 *
+	 * @throws IOException
+	 *             if the batch containing this request failed.
+	 */
+	void load( final CellRequest request ) throws InterruptedException, IOException
+	{
+		final ArrayList< CellRequest > batch = new ArrayList<>();
+		synchronized ( this )
+		{
+			boolean isCollector = false;
+			pending.add( request );
+			notifyAll();
+			try
+			{
+				while ( request.taken || collecting )
+				{
+					if ( request.done )
+					{
+						if ( request.failure != null )
+							throw request.failure;
+						return;
+					}
+					wait();
+				}
+
+				// become the collector
+				collecting = true;
+				isCollector = true;
+				final long deadline = System.nanoTime() + windowNanos;
+				long remaining;
+				while ( pending.size() < maxBatchSize && ( remaining = deadline - System.nanoTime() ) > 0 )
+					TimeUnit.NANOSECONDS.timedWait( this, remaining );
+			}
+			catch ( final InterruptedException e )
+			{
+				if ( !request.taken )
+				{
+					pending.remove( request );
+					if ( isCollector )
+					{
+						collecting = false;
+						notifyAll();
+					}
+				}
+				throw e;
+			}
+
+			request.taken = true;
+			pending.remove( request );
+			batch.add( request );
+			while ( batch.size() < maxBatchSize && !pending.isEmpty() )
+			{
+				final CellRequest r = pending.remove( 0 );
+				r.taken = true;
+				batch.add( r );
+			}
+			collecting = false;
+			notifyAll();
+		}
+
+		IOException failure = null;
+		boolean interrupted = false;
+		short[][] data = null;
+		try
+		{
+			data = fetch( batch );
+		}
+		catch ( final IOException e )
+		{
+			failure = e;
+		}
+		catch ( final InterruptedException e )
+		{
+			failure = new InterruptedIOException( "batch request interrupted" );
+			interrupted = true;
+		}
+
+		synchronized ( this )
+		{
+			for ( int i = 0; i < batch.size(); ++i )
+			{
+				final CellRequest r = batch.get( i );
+				if ( data != null )
+					r.data = data[ i ];
+				r.failure = failure;
+				r.done = true;
+			}
+			notifyAll();
+		}
+		if ( interrupted )
+			throw new InterruptedException();
+		if ( failure != null )
+			throw failure;
+	}
+
+	private short[][] fetch( final ArrayList< CellRequest > batch ) throws IOException, InterruptedException
+	{
+		final StringBuilder sb = new StringBuilder( baseUrl );
+		sb.append( "?p=cells/" ).append( batch.size() );
+		for ( final CellRequest r : batch )
+		{
+			sb.append( '/' );
+			r.appendTo( sb );
+		}
+		sb.append( RemoteVolatileShortArrayLoader.encodingParameter( encoding ) );
+
+		final URL url = new URL( sb.toString() );
+		// the request may be hedged, so every response decodes into its own arrays
+		return HttpTransport.getDefault().get( url, s -> {
+			final DataInputStream in = new DataInputStream( new BufferedInputStream( s ) );
+			final short[][] data = new short[ batch.size() ][];
+			for ( int i = 0; i < data.length; ++i )
+			{
+				data[ i ] = new short[ batch.get( i ).numElements() ];
+				encoding.decode( in, data[ i ] );
+			}
+			return data;
+		}, BatchControl.of( batch ) );
+	}
+
+	/**
+	 * Combines the {@link RequestControl}s of the members of a batch. The
+	 * batch is cancelled only if all members are cancelled, its deadline is
+	 * the latest deadline of the members, and it may be hedged if any member
+	 * may be hedged. Members without control are never cancelled and have no
+	 * deadline.
+	 */
+	static class BatchControl implements RequestControl
+	{
+		private final RequestControl[] controls;
+
+		private BatchControl( final RequestControl[] controls )
+		{
+			this.controls = controls;
+		}
+
+		/**
+		 * @return the combined control, or {@code null} if no member of the
+		 *         batch has a control.
+		 */
+		static RequestControl of( final ArrayList< CellRequest > batch )
+		{
+			final RequestControl[] controls = new RequestControl[ batch.size() ];
+			boolean any = false;
+			for ( int i = 0; i < controls.length; ++i )
+			{
+				controls[ i ] = batch.get( i ).control;
+				any |= controls[ i ] != null;
+			}
+			return any ? new BatchControl( controls ) : null;
+		}
+
+		@Override
+		public boolean isCancelled()
+		{
+			for ( final RequestControl c : controls )
+				if ( c == null || !c.isCancelled() )
+					return false;
+			return true;
+		}
+
+		@Override
+		public long getDeadlineNanos()
+		{
+			long deadline = Long.MIN_VALUE;
+			for ( final RequestControl c : controls )
+			{
+				if ( c == null )
+					return Long.MAX_VALUE;
+				final long d = c.getDeadlineNanos();
+				if ( d == Long.MAX_VALUE )
+					return Long.MAX_VALUE;
+				if ( deadline == Long.MIN_VALUE || d - deadline > 0 )
+					deadline = d;
+			}
+			return deadline;
+		}
+
+		@Override
+		public boolean isHedgingAllowed()
+		{
+			for ( final RequestControl c : controls )
+				if ( c != null && c.isHedgingAllowed() )
+					return true;
+			return false;
+		}
+	}
+}
@@ -34,15 +34,18 @@ import java.io.InputStreamReader;
 import java.net.URL;
 import java.util.HashMap;
 
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
 import bdv.AbstractViewerSetupImgLoader;
 import bdv.ViewerImgLoader;
+import bdv.img.cache.SharedCellCache;
 import bdv.img.cache.VolatileCachedCellImg;
 import bdv.img.cache.VolatileGlobalCellCache;
 import bdv.img.hdf5.DimsAndExistence;
 import bdv.img.hdf5.MipmapInfo;
 import bdv.img.hdf5.ViewLevelId;
+import bdv.img.http.HttpTransport;
 import bdv.util.ConstantRandomAccessible;
 import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
 import net.imglib2.FinalInterval;
@@ -59,6 +62,23 @@ import net.imglib2.view.Views;
 
 public class RemoteImageLoader implements ViewerImgLoader
 {
+	/**
+	 * Number of fetcher threads if the server supports only single cell
+	 * requests.
+	 */
+	private static final int DEFAULT_NUM_FETCHER_THREADS = 10;
+
+	/**
+	 * Upper bound on the number of fetcher threads (and therefore cells per
+	 * batch request) if the server supports batch requests.
+	 */
+	private static final int MAX_NUM_FETCHER_THREADS = 64;
+
+	/**
+	 * How long to collect concurrent cell requests into one batch request.
+	 */
+	private static final double BATCH_WINDOW_MILLIS = 2;
+
 	protected String baseUrl;
 
 	protected RemoteImageLoaderMetaData metadata;
@@ -109,11 +129,25 @@ public class RemoteImageLoader implements ViewerImgLoader
 				final URL url = new URL( baseUrl + "?p=init" );
 				final GsonBuilder gsonBuilder = new GsonBuilder();
 				gsonBuilder.registerTypeAdapter( AffineTransform3D.class, new AffineTransform3DJsonSerializer() );
-				metadata = gsonBuilder.create().fromJson(
-						new InputStreamReader( url.openStream() ),
-						RemoteImageLoaderMetaData.class );
-				shortLoader = new RemoteVolatileShortArrayLoader( this );
-				cache = new VolatileGlobalCellCache( metadata.maxNumLevels, 10 );
+				final Gson gson = gsonBuilder.create();
+				metadata = HttpTransport.getDefault().getOrThrowIO( url, in -> gson.fromJson(
+						new InputStreamReader( in ),
+						RemoteImageLoaderMetaData.class ) );
+				// If the server supports batch requests, each fetcher thread
+				// blocks in a batch until its cell arrives. More fetcher threads
+				// are needed to assemble batches of useful size.
+				final CellEncoding encoding = CellEncoding.negotiate( metadata.cellEncodings );
+				final int maxCellsPerRequest = Math.min( metadata.maxCellsPerRequest, MAX_NUM_FETCHER_THREADS );
+				if ( maxCellsPerRequest > 1 )
+				{
+					shortLoader = new RemoteVolatileShortArrayLoader( this, encoding, new RemoteCellBatcher( baseUrl, encoding, maxCellsPerRequest, BATCH_WINDOW_MILLIS ) );
+					cache = SharedCellCache.getInstance().createCache( "remote " + baseUrl, metadata.maxNumLevels, Math.max( DEFAULT_NUM_FETCHER_THREADS, maxCellsPerRequest ) );
+				}
+				else
+				{
+					shortLoader = new RemoteVolatileShortArrayLoader( this, encoding, null );
+					cache = SharedCellCache.getInstance().createCache( "remote " + baseUrl, metadata.maxNumLevels, DEFAULT_NUM_FETCHER_THREADS );
+				}
 				cellsDimensions = metadata.createCellsDimensions();
 				for ( final int setupId : metadata.perSetupMipmapInfo.keySet() )
 					setupImgLoaders.put( setupId, new SetupImgLoader( setupId ) );
@@ -36,6 +36,12 @@ import java.util.Map.Entry;
 import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
 import mpicbg.spim.data.generic.sequence.BasicViewSetup;
 import mpicbg.spim.data.sequence.TimePoint;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.Intervals;
+import bdv.ViewerImgLoader;
+import bdv.ViewerSetupImgLoader;
+import bdv.img.cache.VolatileCachedCellImg;
 import bdv.img.hdf5.DimsAndExistence;
 import bdv.img.hdf5.Hdf5ImageLoader;
 import bdv.img.hdf5.MipmapInfo;
@@ -74,10 +80,26 @@ public class RemoteImageLoaderMetaData
 	 */
 	protected final HashMap< ViewLevelId, DimsAndExistence > dimsAndExistence;
 
+	/**
+	 * The maximum number of cells the server accepts in one
+	 * {@code ?p=cells/...} batch request. 0 if the server only supports
+	 * single {@code ?p=cell/...} requests (older servers do not send this
+	 * field).
+	 */
+	protected int maxCellsPerRequest;
+
+	/**
+	 * Names of the {@link CellEncoding cell encodings} the server supports.
+	 * {@code null} for older servers, which only send
+	 * {@link CellEncoding#RAW raw} cells.
+	 */
+	protected String[] cellEncodings;
+
 	public RemoteImageLoaderMetaData( final Hdf5ImageLoader imgLoader, final AbstractSequenceDescription< ?, ?, ? > sequenceDescription )
 	{
 		perSetupMipmapInfo = new HashMap<>();
 		dimsAndExistence = new HashMap<>();
+		maxCellsPerRequest = 0;
 
 		final List< TimePoint > timepoints = sequenceDescription.getTimePoints().getTimePointsOrdered();
 		maxNumTimepoints = timepoints.get( timepoints.size() - 1 ).getId() + 1;
@@ -108,6 +130,88 @@ public class RemoteImageLoaderMetaData
 		}
 	}
 
+	/**
+	 * Create metadata for an arbitrary {@link ViewerImgLoader}. Subdivisions
+	 * are taken from the cell grids of the loader's cached images, and an
+	 * image is considered present if the loader provides it as a
+	 * {@link VolatileCachedCellImg}.
+	 */
+	public RemoteImageLoaderMetaData( final ViewerImgLoader imgLoader, final AbstractSequenceDescription< ?, ?, ? > sequenceDescription )
+	{
+		perSetupMipmapInfo = new HashMap<>();
+		dimsAndExistence = new HashMap<>();
+		maxCellsPerRequest = 0;
+
+		final List< TimePoint > timepoints = sequenceDescription.getTimePoints().getTimePointsOrdered();
+		maxNumTimepoints = timepoints.get( timepoints.size() - 1 ).getId() + 1;
+
+		final List< ? extends BasicViewSetup > setups = sequenceDescription.getViewSetupsOrdered();
+		maxNumSetups = setups.get( setups.size() - 1 ).getId() + 1;
+
+		maxNumLevels = 0;
+		for ( final BasicViewSetup setup : setups )
+		{
+			final int setupId = setup.getId();
+			final ViewerSetupImgLoader< ?, ? > setupImgLoader = imgLoader.getSetupImgLoader( setupId );
+
+			final int numLevels = setupImgLoader.numMipmapLevels();
+			if ( numLevels > maxNumLevels )
+				maxNumLevels = numLevels;
+
+			final int[][] subdivisions = new int[ numLevels ][];
+			for ( final TimePoint timepoint : timepoints )
+			{
+				final int timepointId = timepoint.getId();
+				for ( int level = 0; level < numLevels; ++level )
+				{
+					final RandomAccessibleInterval< ? > img = setupImgLoader.getImage( timepointId, level );
+					final boolean exists = img instanceof VolatileCachedCellImg;
+					if ( exists && subdivisions[ level ] == null )
+					{
+						final CellGrid grid = ( ( VolatileCachedCellImg< ?, ? > ) img ).getCellGrid();
+						subdivisions[ level ] = new int[ 3 ];
+						for ( int d = 0; d < 3; ++d )
+							subdivisions[ level ][ d ] = grid.cellDimension( d );
+					}
+					final ViewLevelId id = new ViewLevelId( timepointId, setupId, level );
+					dimsAndExistence.put( id, new DimsAndExistence( Intervals.dimensionsAsLongArray( img ), exists ) );
+				}
+			}
+			for ( int level = 0; level < numLevels; ++level )
+				if ( subdivisions[ level ] == null )
+					subdivisions[ level ] = new int[] { 32, 32, 32 };
+
+			perSetupMipmapInfo.put( setupId, new MipmapInfo( setupImgLoader.getMipmapResolutions(), setupImgLoader.getMipmapTransforms(), subdivisions ) );
+		}
+	}
+
+	/**
+	 * Advertise support for {@code ?p=cells/...} batch requests of up to
+	 * {@code maxCellsPerRequest} cells.
+	 */
+	public void setMaxCellsPerRequest( final int maxCellsPerRequest )
+	{
+		this.maxCellsPerRequest = maxCellsPerRequest;
+	}
+
+	public int getMaxCellsPerRequest()
+	{
+		return maxCellsPerRequest;
+	}
+
+	/**
+	 * Advertise support for the given {@link CellEncoding cell encodings}.
+	 */
+	public void setCellEncodings( final String[] cellEncodings )
+	{
+		this.cellEncodings = cellEncodings;
+	}
+
+	public String[] getCellEncodings()
+	{
+		return cellEncodings;
+	}
+
 	/**
 	 * Create an map from {@link ViewLevelId} (timepoint, setup, level) to
 	 * int[]. Every entry is the dimensions in cells (instead of pixels) of one
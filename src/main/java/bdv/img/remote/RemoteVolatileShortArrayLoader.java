@@ -29,31 +29,94 @@
  */
 package bdv.img.remote;
 
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 
 import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.FairShareFetchQueues;
+import bdv.img.http.HttpTransport;
+import bdv.img.remote.RemoteCellBatcher.CellRequest;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
 
 public class RemoteVolatileShortArrayLoader implements CacheArrayLoader< VolatileShortArray >
 {
 	private final RemoteImageLoader imgLoader;
 
+	private final CellEncoding encoding;
+
+	private volatile RemoteCellBatcher batcher;
+
 	public RemoteVolatileShortArrayLoader( final RemoteImageLoader imgLoader )
+	{
+		this( imgLoader, CellEncoding.RAW, null );
+	}
+
+	/**
+	 * @param encoding
+	 *            the wire format in which cells are requested. Must be
+	 *            supported by the server.
+	 * @param batcher
+	 *            if not {@code null}, concurrent requests are sent as batches
+	 *            through this {@link RemoteCellBatcher}.
+	 */
+	RemoteVolatileShortArrayLoader( final RemoteImageLoader imgLoader, final CellEncoding encoding, final RemoteCellBatcher batcher )
 	{
 		this.imgLoader = imgLoader;
+		this.encoding = encoding;
+		this.batcher = batcher;
 	}
 
 	@Override
 	public VolatileShortArray loadArray( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min ) throws InterruptedException
 	{
 		final int index = imgLoader.getCellIndex( timepoint, setup, level, min );
-		final short[] data = new short[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ];
+
+		final RemoteCellBatcher b = batcher;
+		if ( b != null )
+		{
+			final CellRequest request = new CellRequest( index, timepoint, setup, level, dimensions, min );
+			try
+			{
+				b.load( request );
+				return new VolatileShortArray( request.data, true );
+			}
+			catch ( final HttpTransport.RequestCancelledException e )
+			{
+				// all requests of the batch were cancelled
+				throw new InterruptedException( e.getMessage() );
+			}
+			catch ( final SocketTimeoutException e )
+			{
+				// the batch timed out (after retries). This is an I/O failure,
+				// not a cancellation. Request the cell on its own.
+			}
+			catch ( final InterruptedIOException e )
+			{
+				// the thread that sent the batch was interrupted. Request the
+				// cell on its own.
+			}
+			catch ( final IOException e )
+			{
+				// If the server rejects batch requests, fall back to requesting
+				// single cells from now on. Otherwise, the batch failed (after
+				// retries). Request the cell on its own.
+				if ( isRejected( e ) && batcher != null )
+				{
+					batcher = null;
+					System.err.println( "server " + imgLoader.baseUrl + " rejected a batch request. Requesting single cells." );
+				}
+			}
+		}
+
+		final int numElements = dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
+		short[] data = null;
 		try
 		{
-			final URL url = new URL( String.format( "%s?p=cell/%d/%d/%d/%d/%d/%d/%d/%d/%d/%d",
+			final URL url = new URL( String.format( "%s?p=cell/%d/%d/%d/%d/%d/%d/%d/%d/%d/%d%s",
 					imgLoader.baseUrl,
 					index,
 					timepoint,
@@ -64,13 +127,18 @@ public class RemoteVolatileShortArrayLoader implements CacheArrayLoader< Volatil
 					dimensions[ 2 ],
 					min[ 0 ],
 					min[ 1 ],
-					min[ 2 ] ) );
-			final InputStream s = url.openStream();
-			final byte[] buf = new byte[ data.length * 2 ];
-			for ( int i = 0, l = s.read( buf, 0, buf.length ); l > 0; i += l, l = s.read( buf, i, buf.length - i ) );
-			for ( int i = 0, j = 0; i < data.length; ++i, j += 2 )
-				data[ i ] = ( short ) ( ( ( buf[ j ] & 0xff ) << 8 ) | ( buf[ j + 1 ] & 0xff ) );
-			s.close();
+					min[ 2 ],
+					encodingParameter( encoding ) ) );
+			// the request may be hedged, so every response decodes into its own array
+			data = HttpTransport.getDefault().get( url, in -> {
+				final short[] d = new short[ numElements ];
+				encoding.decode( new DataInputStream( in ), d );
+				return d;
+			}, FairShareFetchQueues.currentRequest() );
+		}
+		catch ( final HttpTransport.RequestCancelledException e )
+		{
+			throw new InterruptedException( e.getMessage() );
 		}
 		catch ( final MalformedURLException e )
 		{
@@ -80,9 +148,35 @@ public class RemoteVolatileShortArrayLoader implements CacheArrayLoader< Volatil
 		{
 			e.printStackTrace();
 		}
+		if ( data == null )
+			data = new short[ numElements ];
 		return new VolatileShortArray( data, true );
 	}
 
+	/**
+	 * Whether {@code e} means that the server does not understand batch
+	 * requests, i.e., it answered with HTTP 400 or 404.
+	 */
+	private static boolean isRejected( final IOException e )
+	{
+		if ( e instanceof HttpTransport.HttpStatusException )
+		{
+			final int status = ( ( HttpTransport.HttpStatusException ) e ).getStatusCode();
+			return status == 400 || status == 404;
+		}
+		return false;
+	}
+
+	/**
+	 * Get the query parameter that requests cells in the given encoding. This
+	 * is empty for {@link CellEncoding#RAW}, which older servers do not
+	 * understand as parameter.
+	 */
+	static String encodingParameter( final CellEncoding encoding )
+	{
+		return encoding == CellEncoding.RAW ? "" : "&e=" + encoding.getName();
+	}
+
 	@Override
 	public int getBytesPerElement() {
 		return 2;
@@ -0,0 +1,368 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.tools;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import bdv.AbstractSpimSource;
+import bdv.ViewerImgLoader;
+import bdv.ViewerSetupImgLoader;
+import bdv.img.cache.CacheManifest;
+import bdv.img.cache.FairShareFetchQueues;
+import bdv.img.cache.SharedCellCache;
+import bdv.img.cache.VolatileCachedCellImg;
+import bdv.img.cache.VolatileGlobalCellCache.Key;
+import bdv.tools.bookmarks.Bookmarks;
+import bdv.tools.transformation.TransformedSource;
+import bdv.util.MipmapTransforms;
+import bdv.viewer.Source;
+import bdv.viewer.ViewerPanel;
+import bdv.viewer.render.Prefetcher;
+import bdv.viewer.state.SourceState;
+import bdv.viewer.state.ViewerState;
+import mpicbg.spim.data.generic.AbstractSpimData;
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
+/**
+ * Warms the cell cache of a dataset in the background after it was opened.
+ * <p>
+ * Cells are enqueued for loading with the lowest priority, so they never
+ * delay cells needed for rendering, in this order:
+ * <ol>
+ * <li>the cells visible from the initial view and from every
+ * {@link Bookmarks bookmark}, at the current timepoint, from the coarsest
+ * level down to the level that best matches the screen resolution;</li>
+ * <li>the most used cells recorded in a {@link CacheManifest} in previous
+ * sessions.</li>
+ * </ol>
+ * The total size of warmed cells is bounded by a fraction of the
+ * {@link SharedCellCache} memory budget.
+ */
+public class CacheWarmer
+{
+	/**
+	 * Fraction of the {@link SharedCellCache#getMemoryBudget() memory budget}
+	 * that warmed cells may occupy.
+	 */
+	public static final double MEMORY_FRACTION = 0.5;
+
+	/**
+	 * Get the file in which the cache manifest of a dataset is stored.
+	 *
+	 * @param xmlFilename
+	 *            the dataset XML file.
+	 * @return {@code dataset.cache.xml} next to {@code dataset.xml}, or
+	 *         {@code null} if the dataset is not a local XML file.
+	 */
+	public static File getManifestFile( final String xmlFilename )
+	{
+		if ( xmlFilename.startsWith( "http://" ) || !xmlFilename.endsWith( ".xml" ) )
+			return null;
+		return new File( xmlFilename.substring( 0, xmlFilename.length() - ".xml".length() ) + ".cache.xml" );
+	}
+
+	private final AbstractSpimData< ? > spimData;
+
+	private final ViewerImgLoader imgLoader;
+
+	private final CacheManifest manifest;
+
+	private final ViewerState state;
+
+	private final ArrayList< AffineTransform3D > viewerTransforms;
+
+	private final FinalDimensions screenSize;
+
+	private final Prefetcher prefetcher = new Prefetcher();
+
+	/**
+	 * Images of the warmed views, by timepoint, setup, and level. These are
+	 * obtained from the {@link ViewerImgLoader} (and not from the viewer
+	 * sources), so that changing their {@link CacheHints} does not affect
+	 * rendering.
+	 */
+	private final HashMap< Key, RandomAccessibleInterval< ? > > imgs = new HashMap<>();
+
+	private long remainingBytes;
+
+	private volatile boolean stopped = false;
+
+	private Thread thread;
+
+	/**
+	 * Prepare warming the cache for the current state of the {@code viewer}
+	 * and {@code bookmarks}.
+	 *
+	 * @param spimData
+	 *            the dataset shown in {@code viewer}.
+	 * @param viewer
+	 *            the viewer.
+	 * @param bookmarks
+	 *            locations to warm in addition to the current view.
+	 * @param manifest
+	 *            the most used cells of previous sessions. may be null.
+	 */
+	public CacheWarmer( final AbstractSpimData< ? > spimData, final ViewerPanel viewer, final Bookmarks bookmarks, final CacheManifest manifest )
+	{
+		this.spimData = spimData;
+		this.imgLoader = ( ViewerImgLoader ) spimData.getSequenceDescription().getImgLoader();
+		this.manifest = manifest;
+
+		state = viewer.getState();
+		viewerTransforms = new ArrayList<>();
+		final AffineTransform3D current = new AffineTransform3D();
+		state.getViewerTransform( current );
+		viewerTransforms.add( current );
+		if ( bookmarks != null )
+			for ( final AffineTransform3D t : bookmarks.getTransforms() )
+				viewerTransforms.add( t.copy() );
+
+		final int w = viewer.getDisplay().getWidth();
+		final int h = viewer.getDisplay().getHeight();
+		screenSize = ( w > 0 && h > 0 ) ? new FinalDimensions( w, h ) : new FinalDimensions( 800, 600 );
+	}
+
+	/**
+	 * Start warming in a background thread.
+	 */
+	public synchronized void start()
+	{
+		if ( thread != null )
+			return;
+		thread = new Thread( this::warm, "CacheWarmer" );
+		thread.setDaemon( true );
+		thread.setPriority( Thread.MIN_PRIORITY );
+		thread.start();
+	}
+
+	/**
+	 * Stop enqueuing cells. Cells that are already enqueued are not removed.
+	 */
+	public void stop()
+	{
+		stopped = true;
+	}
+
+	private void warm()
+	{
+		remainingBytes = ( long ) ( MEMORY_FRACTION * SharedCellCache.getInstance().getMemoryBudget() );
+
+		final AbstractSequenceDescription< ?, ?, ? > seq = spimData.getSequenceDescription();
+		final List< ? extends BasicViewSetup > setups = seq.getViewSetupsOrdered();
+		final int timepointId = seq.getTimePoints().getTimePointsOrdered().get( state.getCurrentTimepoint() ).getId();
+
+		// setups of the visible sources. If no source shows a setup of the
+		// dataset, all setups.
+		final ArrayList< Integer > warmedSetupIds = new ArrayList<>();
+		final List< SourceState< ? > > sources = state.getSources();
+		boolean anySetupSource = false;
+		for ( int i = 0; i < sources.size(); ++i )
+		{
+			final int setupId = getSetupId( sources.get( i ).getSpimSource() );
+			if ( setupId < 0 || !seq.getViewSetups().containsKey( setupId ) )
+				continue;
+			anySetupSource = true;
+			if ( state.isSourceVisible( i ) && !warmedSetupIds.contains( setupId ) )
+				warmedSetupIds.add( setupId );
+		}
+		if ( !anySetupSource )
+			for ( final BasicViewSetup setup : setups )
+				warmedSetupIds.add( setup.getId() );
+
+		try
+		{
+			for ( final AffineTransform3D viewerTransform : viewerTransforms )
+				for ( final int setupId : warmedSetupIds )
+				{
+					if ( stopped || remainingBytes <= 0 )
+						return;
+					warmVisible( viewerTransform, timepointId, setupId );
+				}
+
+			if ( manifest != null )
+				for ( final Key key : manifest.getMostUsed( manifest.size() ) )
+				{
+					if ( stopped || remainingBytes <= 0 )
+						return;
+					warmCell( key );
+				}
+		}
+		finally
+		{
+			imgs.clear();
+		}
+	}
+
+	/**
+	 * Enqueue the cells of a view that are visible with the given viewer
+	 * transform, from the coarsest level down to the best-matching level.
+	 */
+	private void warmVisible( final AffineTransform3D viewerTransform, final int timepointId, final int setupId )
+	{
+		if ( seqIsMissing( timepointId, setupId ) )
+			return;
+		final ViewRegistration reg = spimData.getViewRegistrations().getViewRegistration( timepointId, setupId );
+		if ( reg == null )
+			return;
+		final ViewerSetupImgLoader< ?, ? > setupImgLoader = imgLoader.getSetupImgLoader( setupId );
+		final AffineTransform3D[] mipmapTransforms = setupImgLoader.getMipmapTransforms();
+		final int numLevels = mipmapTransforms.length;
+
+		final AffineTransform3D[] sourceToScreen = new AffineTransform3D[ numLevels ];
+		for ( int level = 0; level < numLevels; ++level )
+		{
+			sourceToScreen[ level ] = viewerTransform.copy();
+			sourceToScreen[ level ].concatenate( reg.getModel() );
+			sourceToScreen[ level ].concatenate( mipmapTransforms[ level ] );
+		}
+
+		final int bestLevel = MipmapTransforms.getBestMipMapLevel( sourceToScreen );
+		for ( int level = numLevels - 1; level >= bestLevel && !stopped && remainingBytes > 0; --level )
+		{
+			final VolatileCachedCellImg< ?, ? > img = getImage( timepointId, setupId, level );
+			if ( img == null )
+				continue;
+			final CellGrid grid = img.getCellGrid();
+			final int[] cellDimensions = new int[ 3 ];
+			grid.cellDimensions( cellDimensions );
+			final long numCells = prefetcher.plan( sourceToScreen[ level ], cellDimensions, Intervals.dimensionsAsLongArray( img ), screenSize, state.getInterpolation() );
+			if ( numCells == 0 )
+				continue;
+			final long cellBytes = getCellBytes( setupImgLoader, grid );
+			final int maxNumCells = ( int ) Math.min( Integer.MAX_VALUE, remainingBytes / cellBytes + 1 );
+			img.setCacheHints( new CacheHints( LoadingStrategy.VOLATILE, numLevels - 1, false ) );
+			remainingBytes -= cellBytes * prefetcher.fetch( img.getCells().randomAccess(), maxNumCells );
+		}
+	}
+
+	/**
+	 * Enqueue the cell recorded in a manifest, if it still exists.
+	 */
+	private void warmCell( final Key key )
+	{
+		try
+		{
+			final VolatileCachedCellImg< ?, ? > img = getImage( key.getTimepoint(), key.getSetup(), key.getLevel() );
+			if ( img == null )
+				return;
+			final CellGrid grid = img.getCellGrid();
+			final long[] gridDimensions = grid.getGridDimensions();
+			if ( key.getIndex() < 0 || key.getIndex() >= Intervals.numElements( gridDimensions ) )
+				return;
+			final ViewerSetupImgLoader< ?, ? > setupImgLoader = imgLoader.getSetupImgLoader( key.getSetup() );
+			final long[] position = new long[ gridDimensions.length ];
+			IntervalIndexer.indexToPosition( key.getIndex(), gridDimensions, position );
+			img.setCacheHints( new CacheHints( LoadingStrategy.VOLATILE, setupImgLoader.numMipmapLevels() - 1, false ) );
+			final RandomAccess< ? > cells = img.getCells().randomAccess();
+			cells.setPosition( position );
+			FairShareFetchQueues.setSubPriority( FairShareFetchQueues.NUM_SUB_PRIORITIES - 1 );
+			try
+			{
+				cells.get();
+			}
+			finally
+			{
+				FairShareFetchQueues.setSubPriority( 0 );
+			}
+			remainingBytes -= getCellBytes( setupImgLoader, grid );
+		}
+		catch ( final RuntimeException e )
+		{
+			// the dataset changed since the manifest was recorded
+		}
+	}
+
+	/**
+	 * Get the setup shown by {@code source}, looking through
+	 * {@link TransformedSource} wrappers.
+	 *
+	 * @return the setup id, or -1 if {@code source} does not show a setup.
+	 */
+	private static int getSetupId( Source< ? > source )
+	{
+		while ( source instanceof TransformedSource )
+			source = ( ( TransformedSource< ? > ) source ).getWrappedSource();
+		return source instanceof AbstractSpimSource
+				? ( ( AbstractSpimSource< ? > ) source ).getSetupId()
+				: -1;
+	}
+
+	private boolean seqIsMissing( final int timepointId, final int setupId )
+	{
+		final AbstractSequenceDescription< ?, ?, ? > seq = spimData.getSequenceDescription();
+		return seq.getMissingViews() != null && seq.getMissingViews().getMissingViews().contains( new ViewId( timepointId, setupId ) );
+	}
+
+	/**
+	 * @return the volatile image of the specified view and level, or
+	 *         {@code null} if it is not a {@link VolatileCachedCellImg}.
+	 */
+	private VolatileCachedCellImg< ?, ? > getImage( final int timepointId, final int setupId, final int level )
+	{
+		if ( seqIsMissing( timepointId, setupId ) )
+			return null;
+		final Key key = new Key( timepointId, setupId, level, 0 );
+		RandomAccessibleInterval< ? > img = imgs.get( key );
+		if ( img == null )
+		{
+			img = imgLoader.getSetupImgLoader( setupId ).getVolatileImage( timepointId, level );
+			imgs.put( key, img );
+		}
+		return img instanceof VolatileCachedCellImg ? ( VolatileCachedCellImg< ?, ? > ) img : null;
+	}
+
+	private static long getCellBytes( final ViewerSetupImgLoader< ?, ? > setupImgLoader, final CellGrid grid )
+	{
+		final Object type = setupImgLoader.getVolatileImageType();
+		final int bytesPerVoxel = type instanceof RealType
+				? Math.max( 1, ( ( RealType< ? > ) type ).getBitsPerPixel() / 8 )
+				: 4;
+		long numVoxels = 1;
+		for ( int d = 0; d < grid.numDimensions(); ++d )
+			numVoxels *= grid.cellDimension( d );
+		return Math.max( 1, numVoxels * bytesPerVoxel );
+	}
+}
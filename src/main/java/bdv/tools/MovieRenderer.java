@@ -0,0 +1,472 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.tools;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import bdv.cache.CacheControl;
+import bdv.export.ProgressWriter;
+import bdv.viewer.animate.KeyframeAnimator;
+import bdv.viewer.overlay.ScaleBarOverlayRenderer;
+import bdv.viewer.render.AccumulateProjectorFactory;
+import bdv.viewer.render.FetchSchedule;
+import bdv.viewer.render.MultiResolutionRenderer;
+import bdv.viewer.render.SlabProjection;
+import bdv.viewer.state.ViewerState;
+import net.imglib2.FinalDimensions;
+import net.imglib2.display.screenimage.awt.ARGBScreenImage;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.ui.PainterThread;
+import net.imglib2.ui.RenderTarget;
+
+/**
+ * Renders a sequence of {@link Frame frames} offline and writes them to PNG
+ * files.
+ * <p>
+ * Frames are rendered in parallel by several workers, each with its own
+ * {@link MultiResolutionRenderer} and copy of the {@link ViewerState}. All
+ * workers read from the same sources, and therefore share the cell cache.
+ * Workers take frames in order. The cells needed by each frame are computed
+ * before rendering starts, and streamed to the cache a few frames ahead of the
+ * workers (see {@link FetchSchedule}), so that cells are loaded roughly in the
+ * order they are needed. Rendered frames are PNG-encoded and
+ * written asynchronously, while the workers continue with the next frames.
+ * <p>
+ * Throughput is reported in frames per minute (see
+ * {@link #getFramesPerMinute()}).
+ */
+public class MovieRenderer
+{
+	/**
+	 * One frame of the movie: a timepoint and one or more viewer transforms.
+	 * If there is more than one transform, the images rendered with each are
+	 * combined by maximum (per color channel), for example to render a
+	 * maximum-intensity projection through a stack of parallel slices.
+	 */
+	public static class Frame
+	{
+		private final int number;
+
+		private final int timepoint;
+
+		private final AffineTransform3D[] viewerTransforms;
+
+		/**
+		 * @param number
+		 *            the frame number, used for the file name.
+		 * @param timepoint
+		 *            timepoint index.
+		 * @param viewerTransforms
+		 *            viewer transforms, for a screen of the movie size.
+		 */
+		public Frame( final int number, final int timepoint, final AffineTransform3D... viewerTransforms )
+		{
+			if ( viewerTransforms.length == 0 )
+				throw new IllegalArgumentException( "frame " + number + " has no viewer transform" );
+			this.number = number;
+			this.timepoint = timepoint;
+			this.viewerTransforms = viewerTransforms;
+		}
+
+		public int getNumber()
+		{
+			return number;
+		}
+
+		public int getTimepoint()
+		{
+			return timepoint;
+		}
+
+		public AffineTransform3D[] getViewerTransforms()
+		{
+			return viewerTransforms;
+		}
+	}
+
+	/**
+	 * Sample an animation into frames, one frame every {@code frameDuration}
+	 * time units, including the last keyframe. The animator's screen center
+	 * should be the center of the movie. Display settings of the keyframes
+	 * are not applied, because all frames are rendered with the same
+	 * converters.
+	 *
+	 * @return frames numbered from 0.
+	 */
+	public static List< Frame > getFrames( final KeyframeAnimator animator, final long frameDuration )
+	{
+		final ArrayList< Frame > frames = new ArrayList<>();
+		for ( long time = 0;; time += frameDuration )
+		{
+			final double t = animator.ratioAt( time );
+			frames.add( new Frame( frames.size(), animator.getTimepoint( t ), animator.get( t ) ) );
+			if ( time >= animator.getDuration() )
+				break;
+		}
+		return frames;
+	}
+
+	public static final int DEFAULT_NUM_ENCODERS = 2;
+
+	/**
+	 * How many frames beyond those being rendered are streamed to the cache,
+	 * per worker.
+	 */
+	public static final int PREFETCH_FRAMES_PER_WORKER = 2;
+
+	private final ViewerState state;
+
+	private final int width;
+
+	private final int height;
+
+	private final AccumulateProjectorFactory< ARGBType > accumulateProjectorFactory;
+
+	private final boolean showScaleBar;
+
+	private final int numWorkers;
+
+	private final int numEncoders;
+
+	private final ProgressWriter progressWriter;
+
+	private SlabProjection projection = null;
+
+	private volatile double framesPerMinute;
+
+	/**
+	 * @param state
+	 *            the sources and settings to render. The viewer transform and
+	 *            timepoint are taken from the frames.
+	 * @param width
+	 *            movie width.
+	 * @param height
+	 *            movie height.
+	 * @param accumulateProjectorFactory
+	 *            how to combine the sources.
+	 * @param showScaleBar
+	 *            whether to draw a scale bar into the frames.
+	 * @param numWorkers
+	 *            how many frames to render in parallel.
+	 * @param numEncoders
+	 *            how many frames to encode and write in parallel.
+	 * @param progressWriter
+	 *            receives progress and throughput.
+	 */
+	public MovieRenderer(
+			final ViewerState state,
+			final int width,
+			final int height,
+			final AccumulateProjectorFactory< ARGBType > accumulateProjectorFactory,
+			final boolean showScaleBar,
+			final int numWorkers,
+			final int numEncoders,
+			final ProgressWriter progressWriter )
+	{
+		this.state = state.copy();
+		this.width = width;
+		this.height = height;
+		this.accumulateProjectorFactory = accumulateProjectorFactory;
+		this.showScaleBar = showScaleBar;
+		this.numWorkers = Math.max( 1, numWorkers );
+		this.numEncoders = Math.max( 1, numEncoders );
+		this.progressWriter = progressWriter;
+	}
+
+	/**
+	 * Use one worker per available processor and
+	 * {@link #DEFAULT_NUM_ENCODERS} encoders.
+	 */
+	public MovieRenderer(
+			final ViewerState state,
+			final int width,
+			final int height,
+			final AccumulateProjectorFactory< ARGBType > accumulateProjectorFactory,
+			final boolean showScaleBar,
+			final ProgressWriter progressWriter )
+	{
+		this( state, width, height, accumulateProjectorFactory, showScaleBar, Runtime.getRuntime().availableProcessors(), DEFAULT_NUM_ENCODERS, progressWriter );
+	}
+
+	/**
+	 * Render projections of a slab of the viewer space, instead of the
+	 * {@code z=0} plane (see {@link SlabProjection}).
+	 *
+	 * @param projection
+	 *            the slab projection, or {@code null} to render the
+	 *            {@code z=0} plane.
+	 */
+	public void setProjection( final SlabProjection projection )
+	{
+		this.projection = projection;
+	}
+
+	/**
+	 * @return frames per minute of the last {@link #render(List, File)}
+	 *         call, including writing the images.
+	 */
+	public double getFramesPerMinute()
+	{
+		return framesPerMinute;
+	}
+
+	/**
+	 * Render the given frames and write them to
+	 * {@code dir/img-<number>.png}. Returns when all frames are written.
+	 */
+	public void render( final List< Frame > frames, final File dir ) throws IOException, InterruptedException
+	{
+		final Run run = new Run( frames, dir );
+		/*
+		 * Sources cache their images per ThreadGroup (see
+		 * AbstractSpimSource). Running the workers in their own group makes
+		 * sure that cache hints set here do not interfere with the viewer.
+		 */
+		final ThreadGroup group = new ThreadGroup( "MovieRenderer" );
+		final ArrayList< Thread > workers = new ArrayList<>();
+		for ( int i = 0; i < numWorkers; ++i )
+			workers.add( new Thread( group, run::renderFrames, "MovieRenderer worker " + i ) );
+
+		final long t0 = System.nanoTime();
+		final FetchSchedule schedule = new FetchSchedule( state, new FinalDimensions( width, height ) );
+		for ( final Frame frame : frames )
+			schedule.addFrame( frame.getTimepoint(), frame.getViewerTransforms() );
+		schedule.finish();
+
+		progressWriter.setProgress( 0 );
+		final FetchSchedule.Streamer streamer = schedule.stream( run.nextFrame::get, numWorkers * ( PREFETCH_FRAMES_PER_WORKER + 1 ) );
+		for ( final Thread worker : workers )
+			worker.start();
+		try
+		{
+			for ( final Thread worker : workers )
+				worker.join();
+			run.encoders.shutdown();
+			run.encoders.awaitTermination( Long.MAX_VALUE, TimeUnit.NANOSECONDS );
+		}
+		catch ( final InterruptedException e )
+		{
+			for ( final Thread worker : workers )
+				worker.interrupt();
+			run.encoders.shutdownNow();
+			throw e;
+		}
+		finally
+		{
+			run.finished = true;
+			streamer.stopStreaming();
+		}
+		final double minutes = ( System.nanoTime() - t0 ) * 1e-9 / 60;
+		framesPerMinute = frames.size() / minutes;
+		progressWriter.out().println( String.format( "rendered %d frames in %.1f s (%.1f frames per minute)", frames.size(), minutes * 60, framesPerMinute ) );
+
+		if ( run.error != null )
+		{
+			if ( run.error instanceof IOException )
+				throw ( IOException ) run.error;
+			throw new IOException( run.error );
+		}
+	}
+
+	/**
+	 * State of one {@link MovieRenderer#render(List, File)} call.
+	 */
+	private class Run
+	{
+		private final List< Frame > frames;
+
+		private final File dir;
+
+		/**
+		 * Index of the next frame to be taken by a worker.
+		 */
+		private final AtomicInteger nextFrame = new AtomicInteger();
+
+		private final AtomicInteger numWritten = new AtomicInteger();
+
+		private final ExecutorService encoders;
+
+		/**
+		 * Bounds the number of rendered frames waiting to be written.
+		 */
+		private final Semaphore pendingFrames;
+
+		private volatile boolean finished = false;
+
+		private volatile Throwable error;
+
+		Run( final List< Frame > frames, final File dir )
+		{
+			this.frames = frames;
+			this.dir = dir;
+			encoders = Executors.newFixedThreadPool( numEncoders );
+			pendingFrames = new Semaphore( 2 * numEncoders + numWorkers );
+		}
+
+		private void fail( final Throwable e )
+		{
+			if ( error == null )
+				error = e;
+			finished = true;
+		}
+
+		void renderFrames()
+		{
+			final ViewerState renderState = state.copy();
+			final FrameTarget target = new FrameTarget();
+			final MultiResolutionRenderer renderer = new MultiResolutionRenderer(
+					target, new PainterThread( null ), new double[] { 1 }, 0, false, 1, null, false,
+					accumulateProjectorFactory, new CacheControl.Dummy() );
+			renderer.setProjection( projection );
+			final ScaleBarOverlayRenderer scalebar = showScaleBar ? new ScaleBarOverlayRenderer() : null;
+
+			try
+			{
+				for ( int i = nextFrame.getAndIncrement(); i < frames.size() && !finished; i = nextFrame.getAndIncrement() )
+				{
+					final Frame frame = frames.get( i );
+					renderState.setCurrentTimepoint( frame.getTimepoint() );
+					target.clear();
+					for ( final AffineTransform3D viewerTransform : frame.getViewerTransforms() )
+					{
+						renderState.setViewerTransform( viewerTransform );
+						renderer.requestRepaint();
+						renderer.paint( renderState );
+					}
+
+					final BufferedImage bi = target.getImage();
+					if ( scalebar != null )
+					{
+						final Graphics2D g2 = bi.createGraphics();
+						g2.setClip( 0, 0, width, height );
+						scalebar.setViewerState( renderState );
+						scalebar.paint( g2 );
+					}
+
+					pendingFrames.acquire();
+					encoders.execute( () -> write( frame, bi ) );
+				}
+			}
+			catch ( final InterruptedException | RuntimeException e )
+			{
+				fail( e );
+			}
+		}
+
+		private void write( final Frame frame, final BufferedImage bi )
+		{
+			try
+			{
+				if ( error == null )
+				{
+					ImageIO.write( bi, "png", new File( String.format( "%s/img-%03d.png", dir, frame.getNumber() ) ) );
+					progressWriter.setProgress( ( double ) numWritten.incrementAndGet() / frames.size() );
+				}
+			}
+			catch ( final IOException | RuntimeException e )
+			{
+				fail( e );
+			}
+			finally
+			{
+				pendingFrames.release();
+			}
+		}
+	}
+
+	/**
+	 * Collects the images rendered for the viewer transforms of a frame,
+	 * combining them by maximum. Every frame gets a new image, because the
+	 * previous one may still be waiting to be written.
+	 */
+	private class FrameTarget implements RenderTarget
+	{
+		private int[] data;
+
+		private int numRendered;
+
+		void clear()
+		{
+			data = new int[ width * height ];
+			numRendered = 0;
+		}
+
+		BufferedImage getImage()
+		{
+			return new ARGBScreenImage( width, height, data ).image();
+		}
+
+		@Override
+		public BufferedImage setBufferedImage( final BufferedImage bufferedImage )
+		{
+			final int[] in = ( ( DataBufferInt ) bufferedImage.getRaster().getDataBuffer() ).getData();
+			if ( numRendered++ == 0 )
+				System.arraycopy( in, 0, data, 0, data.length );
+			else
+				for ( int i = 0; i < data.length; ++i )
+				{
+					final int current = data[ i ];
+					final int v = in[ i ];
+					data[ i ] = ARGBType.rgba(
+							Math.max( ARGBType.red( v ), ARGBType.red( current ) ),
+							Math.max( ARGBType.green( v ), ARGBType.green( current ) ),
+							Math.max( ARGBType.blue( v ), ARGBType.blue( current ) ),
+							Math.max( ARGBType.alpha( v ), ARGBType.alpha( current ) ) );
+				}
+			return null;
+		}
+
+		@Override
+		public int getWidth()
+		{
+			return width;
+		}
+
+		@Override
+		public int getHeight()
+		{
+			return height;
+		}
+	}
+}
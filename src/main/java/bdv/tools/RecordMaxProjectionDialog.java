@@ -32,16 +32,14 @@ package bdv.tools;
 import java.awt.BorderLayout;
 import java.awt.Frame;
 import java.awt.Graphics;
-import java.awt.Graphics2D;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
-import javax.imageio.ImageIO;
 import javax.swing.AbstractAction;
 import javax.swing.Action;
 import javax.swing.ActionMap;
@@ -61,22 +59,15 @@ import javax.swing.WindowConstants;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
-import net.imglib2.Cursor;
-import net.imglib2.display.screenimage.awt.ARGBScreenImage;
-import net.imglib2.img.Img;
-import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.realtransform.AffineTransform3D;
-import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.ui.OverlayRenderer;
-import net.imglib2.ui.PainterThread;
-import net.imglib2.ui.RenderTarget;
 import net.imglib2.util.LinAlgHelpers;
-import bdv.cache.CacheControl;
 import bdv.export.ProgressWriter;
 import bdv.util.Prefs;
 import bdv.viewer.ViewerPanel;
-import bdv.viewer.overlay.ScaleBarOverlayRenderer;
-import bdv.viewer.render.MultiResolutionRenderer;
+import bdv.viewer.render.SlabProjection;
+import bdv.viewer.state.SourceState;
 import bdv.viewer.state.ViewerState;
 
 public class RecordMaxProjectionDialog extends JDialog implements OverlayRenderer
@@ -297,8 +288,6 @@ public class RecordMaxProjectionDialog extends JDialog implements OverlayRendere
 		tGV.set( tGV.get( 0, 3 ) + width / 2, 0, 3 );
 		tGV.set( tGV.get( 1, 3 ) + height / 2, 1, 3 );
 
-		final AffineTransform3D affine = new AffineTransform3D();
-
 		// get voxel width transformed to current viewer coordinates
 		final AffineTransform3D tSV = new AffineTransform3D();
 		renderState.getSources().get( 0 ).getSpimSource().getSourceTransform( 0, 0, tSV );
@@ -312,88 +301,59 @@ public class RecordMaxProjectionDialog extends JDialog implements OverlayRendere
 		LinAlgHelpers.subtract( vO, vX, vO );
 		final double dd = LinAlgHelpers.length( vO );
 
-		final ScaleBarOverlayRenderer scalebar = Prefs.showScaleBarInMovie() ? new ScaleBarOverlayRenderer() : null;
-
-		class MyTarget implements RenderTarget
+		/*
+		 * SlabProjection only projects RealType sources. If any visible
+		 * source is of another type (e.g. ARGB), render every slice and
+		 * combine them by maximum per color channel instead.
+		 */
+		final boolean projectable = isProjectable( renderState );
+		final AffineTransform3D[] frameTransforms;
+		if ( projectable )
+			frameTransforms = new AffineTransform3D[] { tGV };
+		else
 		{
-			final ARGBScreenImage accumulated;
-
-			public MyTarget()
-			{
-				accumulated = new ARGBScreenImage( width, height );
-			}
-
-			public void clear()
-			{
-				for ( final ARGBType acc : accumulated )
-					acc.setZero();
-			}
-
-			@Override
-			public BufferedImage setBufferedImage( final BufferedImage bufferedImage )
-			{
-				final Img< ARGBType > argbs = ArrayImgs.argbs( ( ( DataBufferInt ) bufferedImage.getData().getDataBuffer() ).getData(), width, height );
-				final Cursor< ARGBType > c = argbs.cursor();
-				for ( final ARGBType acc : accumulated )
-				{
-					final int current = acc.get();
-					final int in = c.next().get();
-					acc.set( ARGBType.rgba(
-							Math.max( ARGBType.red( in ), ARGBType.red( current ) ),
-							Math.max( ARGBType.green( in ), ARGBType.green( current ) ),
-							Math.max( ARGBType.blue( in ), ARGBType.blue( current ) ),
-							Math.max( ARGBType.alpha( in ), ARGBType.alpha( current ) )	) );
-				}
-				return null;
-			}
-
-			@Override
-			public final int getWidth()
-			{
-				return width;
-			}
-
-			@Override
-			public int getHeight()
-			{
-				return height;
-			}
-		}
-		final MyTarget target = new MyTarget();
-		final MultiResolutionRenderer renderer = new MultiResolutionRenderer(
-				target, new PainterThread( null ), new double[] { 1 }, 0, false, 1, null, false,
-				viewer.getOptionValues().getAccumulateProjectorFactory(), new CacheControl.Dummy() );
-		progressWriter.setProgress( 0 );
-		for ( int timepoint = minTimepointIndex; timepoint <= maxTimepointIndex; ++timepoint )
-		{
-			target.clear();
-			renderState.setCurrentTimepoint( timepoint );
-
+			frameTransforms = new AffineTransform3D[ numSteps ];
 			for ( int step = 0; step < numSteps; ++step )
 			{
+				final AffineTransform3D affine = new AffineTransform3D();
 				affine.set(
 						1, 0, 0, 0,
 						0, 1, 0, 0,
 						0, 0, 1, -dd * stepSize * step );
 				affine.concatenate( tGV );
-				renderState.setViewerTransform( affine );
-				renderer.requestRepaint();
-				renderer.paint( renderState );
+				frameTransforms[ step ] = affine;
 			}
+		}
 
-			final BufferedImage bi = target.accumulated.image();
-
-			if ( Prefs.showScaleBarInMovie() )
-			{
-				final Graphics2D g2 = bi.createGraphics();
-				g2.setClip( 0, 0, width, height );
-				scalebar.setViewerState( renderState );
-				scalebar.paint( g2 );
-			}
+		final ArrayList< MovieRenderer.Frame > frames = new ArrayList<>();
+		for ( int timepoint = minTimepointIndex; timepoint <= maxTimepointIndex; ++timepoint )
+			frames.add( new MovieRenderer.Frame( timepoint, timepoint, frameTransforms ) );
 
-			ImageIO.write( bi, "png", new File( String.format( "%s/img-%03d.png", dir, timepoint ) ) );
-			progressWriter.setProgress( ( double ) (timepoint - minTimepointIndex + 1) / (maxTimepointIndex - minTimepointIndex + 1) );
+		final MovieRenderer movieRenderer = new MovieRenderer( renderState, width, height,
+				viewer.getOptionValues().getAccumulateProjectorFactory(), Prefs.showScaleBarInMovie(), progressWriter );
+		if ( projectable )
+			movieRenderer.setProjection( new SlabProjection( SlabProjection.Mode.MAX, 0, dd * stepSize * ( numSteps - 1 ) ) );
+		try
+		{
+			movieRenderer.render( frames, dir );
 		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return whether all visible sources can be projected by
+	 *         {@link SlabProjection}.
+	 */
+	private static boolean isProjectable( final ViewerState state )
+	{
+		final List< SourceState< ? > > sources = state.getSources();
+		for ( final int i : state.getVisibleSourceIndices() )
+			if ( !( sources.get( i ).getSpimSource().getType() instanceof RealType ) )
+				return false;
+		return true;
 	}
 
 	@Override
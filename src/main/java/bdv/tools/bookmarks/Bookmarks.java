@@ -29,6 +29,8 @@
  */
 package bdv.tools.bookmarks;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map.Entry;
 
@@ -87,5 +89,13 @@ public class Bookmarks
 	{
 		return bookmarks.get( key );
 	}
+
+	/**
+	 * @return unmodifiable view of all bookmarked transforms.
+	 */
+	public Collection< AffineTransform3D > getTransforms()
+	{
+		return Collections.unmodifiableCollection( bookmarks.values() );
+	}
 }
 
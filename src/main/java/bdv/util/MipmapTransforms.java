@@ -80,12 +80,27 @@ public class MipmapTransforms
 	 */
 	public static double getVoxelScreenSize( final AffineTransform3D screenTransform, final Source< ? > source, final int timepoint, final int mipmapIndex )
 	{
-		double pixelSize = 0;
 		final AffineTransform3D sourceToScreen = new AffineTransform3D();
 		sourceToScreen.set( screenTransform );
 		final AffineTransform3D sourceTransform = new AffineTransform3D();
 		source.getSourceTransform( timepoint, mipmapIndex, sourceTransform );
 		sourceToScreen.concatenate( sourceTransform );
+		return getVoxelScreenSize( sourceToScreen );
+	}
+
+	/**
+	 * Compute the projected voxel size for the given source-to-screen
+	 * transform. Take a source voxel (0,0,0)-(1,1,1), transform it to the
+	 * screen, and take the maximum of the screen extends of the transformed
+	 * projected voxel edges.
+	 *
+	 * @param sourceToScreen
+	 *            transforms source coordinates to screen coordinates.
+	 * @return pixel size
+	 */
+	public static double getVoxelScreenSize( final AffineTransform3D sourceToScreen )
+	{
+		double pixelSize = 0;
 		final double[] zero = new double[] { 0, 0, 0 };
 		final double[] tzero = new double[ 3 ];
 		final double[] one = new double[ 3 ];
@@ -107,6 +122,37 @@ public class MipmapTransforms
 		return pixelSize;
 	}
 
+	/**
+	 * Get the mipmap level that best matches the screen scale, given the
+	 * source-to-screen transforms of all mipmap levels. Same as
+	 * {@link #getBestMipMapLevel(AffineTransform3D, Source, int)}, for
+	 * callers that do not have a {@link Source}.
+	 *
+	 * @param sourceToScreen
+	 *            for each mipmap level (ordered by decreasing resolution),
+	 *            transforms source coordinates to screen coordinates.
+	 * @return index of the best-matching mipmap level
+	 */
+	public static int getBestMipMapLevel( final AffineTransform3D[] sourceToScreen )
+	{
+		int targetLevel = sourceToScreen.length - 1;
+		for ( int level = targetLevel - 1; level >= 0; level-- )
+		{
+			if ( getVoxelScreenSize( sourceToScreen[ level ] ) >= 0.99 /* 1.0 */)
+				targetLevel = level;
+			else
+				break;
+		}
+		if ( targetLevel > 0 )
+		{
+			final double size1 = getVoxelScreenSize( sourceToScreen[ targetLevel ] );
+			final double size0 = getVoxelScreenSize( sourceToScreen[ targetLevel - 1 ] );
+			if ( Math.abs( size1 - 1.0 ) / 2 > Math.abs( size0 - 1.0 ) )
+				targetLevel--;
+		}
+		return targetLevel;
+	}
+
 	/**
 	 * Get the mipmap level that best matches the given screen scale for the
 	 * given source. Assumes that mipmap indices in the source are ordered by
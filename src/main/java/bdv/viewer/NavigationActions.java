@@ -41,6 +41,7 @@ import bdv.viewer.ViewerPanel.AlignPlane;
 public class NavigationActions extends Actions
 {
 	public static final String TOGGLE_INTERPOLATION = "toggle interpolation";
+	public static final String TOGGLE_SLAB_PROJECTION = "toggle slab projection";
 	public static final String TOGGLE_FUSED_MODE = "toggle fused mode";
 	public static final String TOGGLE_GROUPING = "toggle grouping";
 	public static final String SET_CURRENT_SOURCE = "set current source %d";
@@ -92,6 +93,9 @@ public class NavigationActions extends Actions
 		runnableAction(
 				() -> viewer.toggleInterpolation(),
 				TOGGLE_INTERPOLATION, "I" );
+		runnableAction(
+				() -> viewer.toggleSlabProjection(),
+				TOGGLE_SLAB_PROJECTION, "P" );
 		runnableAction(
 				() -> viewer.getVisibilityAndGrouping().setFusedEnabled( !viewer.visibilityAndGrouping.isFusedEnabled() ),
 				TOGGLE_FUSED_MODE, "F" );
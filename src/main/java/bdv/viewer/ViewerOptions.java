@@ -163,6 +163,66 @@ public class ViewerOptions
 		return this;
 	}
 
+	/**
+	 * Set how many timepoints ahead of the current one the visible cells are
+	 * prefetched, in the direction of the most recent timepoint change. This
+	 * makes playback of time-lapse data smoother.
+	 *
+	 * @param n
+	 *            number of timepoints to look ahead. 0 disables look-ahead.
+	 * @see MultiResolutionRenderer
+	 */
+	public ViewerOptions numTimepointLookAhead( final int n )
+	{
+		values.numTimepointLookAhead = n;
+		return this;
+	}
+
+	/**
+	 * Set how far ahead the viewer transform is extrapolated while it is
+	 * changing. The cells visible at the predicted transforms are prefetched,
+	 * such that panning and zooming do not run into missing data.
+	 *
+	 * @param horizons
+	 *            prediction horizons in milliseconds. Empty to disable
+	 *            predictive prefetching.
+	 * @see MultiResolutionRenderer
+	 */
+	public ViewerOptions predictionHorizonsMillis( final double... horizons )
+	{
+		values.predictionHorizonsMillis = horizons;
+		return this;
+	}
+
+	/**
+	 * Set the maximum number of cells per frame that are prefetched for
+	 * predicted viewer transforms.
+	 *
+	 * @see #predictionHorizonsMillis(double...)
+	 */
+	public ViewerOptions maxPredictedCellsPerFrame( final int n )
+	{
+		values.maxPredictedCellsPerFrame = n;
+		return this;
+	}
+
+	/**
+	 * Set whether the cells loaded in a session are recorded in a cache
+	 * manifest next to the dataset, and warmed in the background when the
+	 * dataset is opened again. This shortens the time to the first sharp
+	 * frame for datasets that are opened often. Only applies to datasets
+	 * opened from a local XML file.
+	 *
+	 * @param b
+	 *            whether to record and warm the cache.
+	 * @see bdv.tools.CacheWarmer
+	 */
+	public ViewerOptions warmStartCache( final boolean b )
+	{
+		values.warmStartCache = b;
+		return this;
+	}
+
 	public ViewerOptions msgOverlay( final MessageOverlayAnimator o )
 	{
 		values.msgOverlay = o;
@@ -240,6 +300,14 @@ public class ViewerOptions
 
 		private boolean useVolatileIfAvailable = true;
 
+		private int numTimepointLookAhead = 3;
+
+		private double[] predictionHorizonsMillis = new double[] { 100, 250, 500 };
+
+		private int maxPredictedCellsPerFrame = 512;
+
+		private boolean warmStartCache = false;
+
 		private MessageOverlayAnimator msgOverlay = new MessageOverlayAnimator( 800 );
 
 		private TransformEventHandlerFactory< AffineTransform3D > transformEventHandlerFactory = BehaviourTransformEventHandler3D.factory();
@@ -261,6 +329,10 @@ public class ViewerOptions
 				numRenderingThreads( numRenderingThreads ).
 				numSourceGroups( numSourceGroups ).
 				useVolatileIfAvailable( useVolatileIfAvailable ).
+				numTimepointLookAhead( numTimepointLookAhead ).
+				predictionHorizonsMillis( predictionHorizonsMillis ).
+				maxPredictedCellsPerFrame( maxPredictedCellsPerFrame ).
+				warmStartCache( warmStartCache ).
 				msgOverlay( msgOverlay ).
 				transformEventHandlerFactory( transformEventHandlerFactory ).
 				accumulateProjectorFactory( accumulateProjectorFactory ).
@@ -307,6 +379,26 @@ public class ViewerOptions
 			return useVolatileIfAvailable;
 		}
 
+		public int getNumTimepointLookAhead()
+		{
+			return numTimepointLookAhead;
+		}
+
+		public double[] getPredictionHorizonsMillis()
+		{
+			return predictionHorizonsMillis;
+		}
+
+		public int getMaxPredictedCellsPerFrame()
+		{
+			return maxPredictedCellsPerFrame;
+		}
+
+		public boolean isWarmStartCache()
+		{
+			return warmStartCache;
+		}
+
 		public MessageOverlayAnimator getMsgOverlay()
 		{
 			return msgOverlay;
@@ -73,6 +73,7 @@ import bdv.util.Affine3DHelpers;
 import bdv.util.InvokeOnEDT;
 import bdv.util.Prefs;
 import bdv.viewer.animate.AbstractTransformAnimator;
+import bdv.viewer.animate.KeyframeAnimator;
 import bdv.viewer.animate.MessageOverlayAnimator;
 import bdv.viewer.animate.OverlayAnimator;
 import bdv.viewer.animate.RotationAnimator;
@@ -81,12 +82,15 @@ import bdv.viewer.animate.TextOverlayAnimator.TextPosition;
 import bdv.viewer.overlay.MultiBoxOverlayRenderer;
 import bdv.viewer.overlay.ScaleBarOverlayRenderer;
 import bdv.viewer.overlay.SourceInfoOverlayRenderer;
+import bdv.viewer.render.FetchSchedule;
 import bdv.viewer.render.MultiResolutionRenderer;
+import bdv.viewer.render.SlabProjection;
 import bdv.viewer.render.TransformAwareBufferedImageOverlayRenderer;
 import bdv.viewer.state.SourceGroup;
 import bdv.viewer.state.SourceState;
 import bdv.viewer.state.ViewerState;
 import bdv.viewer.state.XmlIoViewerState;
+import net.imglib2.FinalDimensions;
 import net.imglib2.Positionable;
 import net.imglib2.RealLocalizable;
 import net.imglib2.RealPoint;
@@ -114,6 +118,19 @@ public class ViewerPanel extends JPanel implements OverlayRenderer, TransformLis
 {
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * How many frames ahead of playback the cells of a
+	 * {@link #playAnimation(KeyframeAnimator, long) keyframe animation} are
+	 * fed to the cache.
+	 */
+	public static final int ANIMATION_FRAMES_AHEAD = 25;
+
+	/**
+	 * Thickness of the slab projected by {@link #toggleSlabProjection()} (in
+	 * viewer coordinates, i.e., screen pixels).
+	 */
+	public static final double DEFAULT_SLAB_THICKNESS = 100;
+
 	/**
 	 * Currently rendered state (visible sources, transformation, timepoint,
 	 * etc.) A copy can be obtained by {@link #getState()}.
@@ -222,6 +239,12 @@ public class ViewerPanel extends JPanel implements OverlayRenderer, TransformLis
 	 */
 	protected AbstractTransformAnimator currentAnimator = null;
 
+	/**
+	 * Feeds the cells needed by the currently {@link #playAnimation(KeyframeAnimator, long)
+	 * playing} keyframe animation to the cache, or null.
+	 */
+	protected FetchSchedule.Streamer animationStreamer = null;
+
 	/**
 	 * A list of currently incomplete (see {@link OverlayAnimator#isComplete()})
 	 * animators. Initially, this contains a {@link TextOverlayAnimator} showing
@@ -295,6 +318,9 @@ public class ViewerPanel extends JPanel implements OverlayRenderer, TransformLis
 				options.isUseVolatileIfAvailable(),
 				options.getAccumulateProjectorFactory(),
 				cacheControl );
+		imageRenderer.setNumTimepointLookAhead( options.getNumTimepointLookAhead() );
+		imageRenderer.setPredictionHorizonsMillis( options.getPredictionHorizonsMillis() );
+		imageRenderer.setMaxPredictedCellsPerFrame( options.getMaxPredictedCellsPerFrame() );
 
 		mouseCoordinates = new MouseCoordinateListener();
 		display.addHandler( mouseCoordinates );
@@ -481,6 +507,10 @@ public class ViewerPanel extends JPanel implements OverlayRenderer, TransformLis
 	@Override
 	public void paint()
 	{
+		if ( mouseCoordinates.isMouseInsidePanel() )
+			imageRenderer.setPrefetchFocus( mouseCoordinates.getX(), mouseCoordinates.getY() );
+		else
+			imageRenderer.setPrefetchFocus( Double.NaN, Double.NaN );
 		imageRenderer.paint( state );
 
 		display.repaint();
@@ -493,8 +523,18 @@ public class ViewerPanel extends JPanel implements OverlayRenderer, TransformLis
 				final AffineTransform3D transform = currentAnimator.getCurrent( System.currentTimeMillis() );
 				handler.setTransform( transform );
 				transformChanged( transform );
+				if ( currentAnimator instanceof KeyframeAnimator )
+				{
+					final KeyframeAnimator keyframeAnimator = ( KeyframeAnimator ) currentAnimator;
+					setTimepoint( keyframeAnimator.getCurrentTimepoint() );
+					keyframeAnimator.applyDisplaySettings( keyframeAnimator.ratioComplete() );
+				}
 				if ( currentAnimator.isComplete() )
+				{
 					currentAnimator = null;
+					stopAnimationStreamer();
+					imageRenderer.setAnimationTarget( null );
+				}
 			}
 		}
 	}
@@ -669,18 +709,57 @@ public class ViewerPanel extends JPanel implements OverlayRenderer, TransformLis
 			centerY = getHeight() / 2.0;
 			centerX = getWidth() / 2.0;
 		}
+		stopAnimationStreamer();
 		currentAnimator = new RotationAnimator( transform, centerX, centerY, qTarget, 300 );
 		currentAnimator.setTime( System.currentTimeMillis() );
+		imageRenderer.setAnimationTarget( currentAnimator.get( 1 ) );
 		transformChanged( transform );
 	}
 
 	public synchronized void setTransformAnimator( final AbstractTransformAnimator animator )
 	{
+		stopAnimationStreamer();
 		currentAnimator = animator;
 		currentAnimator.setTime( System.currentTimeMillis() );
+		// keyframe animations are long, so they are rendered and refined as usual
+		imageRenderer.setAnimationTarget( animator instanceof KeyframeAnimator ? null : animator.get( 1 ) );
 		requestRepaint();
 	}
 
+	/**
+	 * Play a keyframe animation, setting viewer transform, timepoint, and
+	 * display settings. The cells needed by every frame are computed in a
+	 * background thread while the animation plays (see {@link FetchSchedule}),
+	 * and fed to the cache {@link #ANIMATION_FRAMES_AHEAD} frames ahead.
+	 *
+	 * @param animator
+	 *            the animation. Time units are milliseconds.
+	 * @param frameDuration
+	 *            expected time between painted frames (in milliseconds).
+	 */
+	public synchronized void playAnimation( final KeyframeAnimator animator, final long frameDuration )
+	{
+		final FetchSchedule schedule = new FetchSchedule( state, new FinalDimensions( display.getWidth(), display.getHeight() ) );
+		setTransformAnimator( animator );
+		final long startTime = System.currentTimeMillis();
+		animationStreamer = schedule.stream( () -> ( int ) ( ( System.currentTimeMillis() - startTime ) / frameDuration ), ANIMATION_FRAMES_AHEAD );
+		final Thread builder = new Thread( () -> {
+			schedule.addFrames( animator, frameDuration );
+			schedule.finish();
+		}, "FetchSchedule builder" );
+		builder.setDaemon( true );
+		builder.start();
+	}
+
+	private synchronized void stopAnimationStreamer()
+	{
+		if ( animationStreamer != null )
+		{
+			animationStreamer.stopStreaming();
+			animationStreamer = null;
+		}
+	}
+
 	/**
 	 * Switch to next interpolation mode. (Currently, there are two
 	 * interpolation modes: nearest-neighbor and N-linear.)
@@ -693,6 +772,30 @@ public class ViewerPanel extends JPanel implements OverlayRenderer, TransformLis
 		setInterpolation( mode );
 	}
 
+	/**
+	 * Switch between rendering the {@code z=0} plane and a maximum-intensity
+	 * projection of a slab of {@link #DEFAULT_SLAB_THICKNESS} around it.
+	 */
+	public synchronized void toggleSlabProjection()
+	{
+		setSlabProjection( imageRenderer.getProjection() == null ? SlabProjection.max( DEFAULT_SLAB_THICKNESS ) : null );
+	}
+
+	/**
+	 * Render projections of a slab of the viewer space, instead of the
+	 * {@code z=0} plane.
+	 *
+	 * @param projection
+	 *            the slab projection, or {@code null} to render the
+	 *            {@code z=0} plane.
+	 */
+	public synchronized void setSlabProjection( final SlabProjection projection )
+	{
+		imageRenderer.setProjection( projection );
+		showMessage( projection == null ? "single slice" : "slab projection" );
+		requestRepaint();
+	}
+
 	/**
 	 * Set the {@link Interpolation} mode.
 	 */
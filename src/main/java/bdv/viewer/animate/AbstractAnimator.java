@@ -72,11 +72,48 @@ public class AbstractAnimator
 	/**
 	 * Cosine shape acceleration/ deceleration curve  of linear [0,1]
 	 */
-	private double cos( final double t )
+	private static double cos( final double t )
 	{
 		return 0.5 - 0.5 * Math.cos( Math.PI * t );
 	}
 
+	/**
+	 * Returns the completion factor after the given time has elapsed since the
+	 * start of the animation.
+	 *
+	 * @param elapsedTime
+	 *            time since the start of the animation (in time units)
+	 * @return the completion factor, ranging from 0 to 1.
+	 */
+	public double ratioAt( final long elapsedTime )
+	{
+		final double linear = elapsedTime / ( double ) duration;
+		return linear >= 1 ? 1 : ease( linear );
+	}
+
+	/**
+	 * Applies the acceleration/deceleration curve used by
+	 * {@link #ratioAt(long)} to a linear completion factor.
+	 *
+	 * @param linear
+	 *            linear completion factor, ranging from 0 to 1.
+	 * @return the eased completion factor, ranging from 0 to 1.
+	 */
+	protected static double ease( final double linear )
+	{
+		return cos( cos( linear ) );
+	}
+
+	/**
+	 * Returns the duration of the animation.
+	 *
+	 * @return animation duration (in time units)
+	 */
+	public long getDuration()
+	{
+		return duration;
+	}
+
 	/**
 	 * Sets the current time for the animation.
 	 * The first call starts the animation.
@@ -92,11 +129,7 @@ public class AbstractAnimator
 			startTime = time;
 		}
 
-		complete = ( time - startTime ) / ( double ) duration;
-		if ( complete >= 1 )
-			complete = 1;
-		else
-			complete = cos( cos( complete ) );
+		complete = ratioAt( time - startTime );
 	}
 
 	/**
@@ -0,0 +1,276 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.viewer.animate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import bdv.tools.brightness.ConverterSetup;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Animates the view along a timeline of {@link Keyframe keyframes}. Between
+ * consecutive keyframes, the viewer transform is interpolated as by
+ * {@link SimilarityTransformAnimator}, and the timepoint and display ranges are
+ * interpolated linearly.
+ * <p>
+ * The completion factor is linear in time, so that keyframes are reached at
+ * their given times. The movement of the viewer transform accelerates and
+ * decelerates within each segment between two keyframes.
+ * <p>
+ * Like for {@link SimilarityTransformAnimator}, keyframe transforms are given
+ * with the screen center at the origin, and the center {@code (cX, cY)} of the
+ * screen the animation is shown on is added back.
+ * <p>
+ * Only the viewer transform is returned by {@link #get(double)}. The
+ * timepoint and display settings for a completion factor are available from
+ * {@link #getTimepoint(double)} and {@link #applyDisplaySettings(double)}.
+ */
+public class KeyframeAnimator extends AbstractTransformAnimator
+{
+	public static class Keyframe
+	{
+		private final long time;
+
+		private final AffineTransform3D transform;
+
+		private final int timepoint;
+
+		private final double[][] displayRanges;
+
+		/**
+		 * @param time
+		 *            time of the keyframe (in time units).
+		 * @param transform
+		 *            viewer transform, with the screen center at the origin.
+		 * @param timepoint
+		 *            timepoint index.
+		 */
+		public Keyframe( final long time, final AffineTransform3D transform, final int timepoint )
+		{
+			this( time, transform, timepoint, null );
+		}
+
+		/**
+		 * @param time
+		 *            time of the keyframe (in time units).
+		 * @param transform
+		 *            viewer transform, with the screen center at the origin.
+		 * @param timepoint
+		 *            timepoint index.
+		 * @param displayRanges
+		 *            {@code {min, max}} display range for each
+		 *            {@link ConverterSetup} of the animator, or {@code null}
+		 *            elements (or {@code null}) for ranges that are not
+		 *            animated.
+		 */
+		public Keyframe( final long time, final AffineTransform3D transform, final int timepoint, final double[][] displayRanges )
+		{
+			this.time = time;
+			this.transform = transform.copy();
+			this.timepoint = timepoint;
+			this.displayRanges = displayRanges;
+		}
+
+		public long getTime()
+		{
+			return time;
+		}
+
+		public AffineTransform3D getTransform()
+		{
+			return transform;
+		}
+
+		public int getTimepoint()
+		{
+			return timepoint;
+		}
+
+		double[] getDisplayRange( final int i )
+		{
+			return ( displayRanges == null || i >= displayRanges.length ) ? null : displayRanges[ i ];
+		}
+	}
+
+	private final ArrayList< Keyframe > keyframes;
+
+	/**
+	 * {@code segments[i]} interpolates from {@code keyframes[i]} to
+	 * {@code keyframes[i+1]}.
+	 */
+	private final SimilarityTransformAnimator[] segments;
+
+	private final List< ? extends ConverterSetup > converterSetups;
+
+	/**
+	 * @param keyframes
+	 *            at least two keyframes, in order of strictly increasing time.
+	 * @param cX
+	 *            x coordinate of the screen center.
+	 * @param cY
+	 *            y coordinate of the screen center.
+	 * @param converterSetups
+	 *            the setups whose display ranges are animated, may be
+	 *            {@code null}.
+	 */
+	public KeyframeAnimator( final List< Keyframe > keyframes, final double cX, final double cY, final List< ? extends ConverterSetup > converterSetups )
+	{
+		super( totalDuration( keyframes ) );
+		this.keyframes = new ArrayList<>( keyframes );
+		this.converterSetups = converterSetups;
+		segments = new SimilarityTransformAnimator[ keyframes.size() - 1 ];
+		for ( int i = 0; i < segments.length; ++i )
+		{
+			final Keyframe k0 = keyframes.get( i );
+			final Keyframe k1 = keyframes.get( i + 1 );
+			segments[ i ] = new SimilarityTransformAnimator( k0.getTransform(), k1.getTransform(), cX, cY, k1.getTime() - k0.getTime() );
+		}
+	}
+
+	public KeyframeAnimator( final List< Keyframe > keyframes, final double cX, final double cY )
+	{
+		this( keyframes, cX, cY, null );
+	}
+
+	private static long totalDuration( final List< Keyframe > keyframes )
+	{
+		if ( keyframes.size() < 2 )
+			throw new IllegalArgumentException( "at least two keyframes are required" );
+		for ( int i = 1; i < keyframes.size(); ++i )
+			if ( keyframes.get( i ).getTime() <= keyframes.get( i - 1 ).getTime() )
+				throw new IllegalArgumentException( "keyframe times must be strictly increasing" );
+		return keyframes.get( keyframes.size() - 1 ).getTime() - keyframes.get( 0 ).getTime();
+	}
+
+	public List< Keyframe > getKeyframes()
+	{
+		return keyframes;
+	}
+
+	/**
+	 * Returns the completion factor after the given time has elapsed since the
+	 * start of the animation. Unlike {@link AbstractAnimator#ratioAt(long)},
+	 * this is linear in time, easing is applied per segment in
+	 * {@link #get(double)}.
+	 */
+	@Override
+	public double ratioAt( final long elapsedTime )
+	{
+		return Math.max( 0, Math.min( 1, elapsedTime / ( double ) getDuration() ) );
+	}
+
+	/**
+	 * Find the segment containing the given completion factor.
+	 *
+	 * @return index {@code i} of the segment, such that the completion factor
+	 *         lies between keyframes {@code i} and {@code i+1}.
+	 */
+	private int segmentIndex( final double t )
+	{
+		final double time = keyframes.get( 0 ).getTime() + Math.max( 0, Math.min( 1, t ) ) * getDuration();
+		int i = 0;
+		while ( i < segments.length - 1 && keyframes.get( i + 1 ).getTime() <= time )
+			++i;
+		return i;
+	}
+
+	/**
+	 * @return the completion factor within segment {@code i}, ranging from 0
+	 *         to 1.
+	 */
+	private double segmentRatio( final int i, final double t )
+	{
+		final double time = keyframes.get( 0 ).getTime() + Math.max( 0, Math.min( 1, t ) ) * getDuration();
+		final long t0 = keyframes.get( i ).getTime();
+		final long t1 = keyframes.get( i + 1 ).getTime();
+		return Math.max( 0, Math.min( 1, ( time - t0 ) / ( t1 - t0 ) ) );
+	}
+
+	@Override
+	public AffineTransform3D get( final double t )
+	{
+		final int i = segmentIndex( t );
+		return segments[ i ].get( ease( segmentRatio( i, t ) ) );
+	}
+
+	/**
+	 * Returns the timepoint for the specified completion factor.
+	 *
+	 * @param t
+	 *            the completion factor, ranging from 0 to 1.
+	 * @return timepoint index.
+	 */
+	public int getTimepoint( final double t )
+	{
+		final int i = segmentIndex( t );
+		final double r = segmentRatio( i, t );
+		final int tp0 = keyframes.get( i ).getTimepoint();
+		final int tp1 = keyframes.get( i + 1 ).getTimepoint();
+		return ( int ) Math.round( tp0 + r * ( tp1 - tp0 ) );
+	}
+
+	/**
+	 * Returns the timepoint at the {@link #setTime(long) current time}.
+	 *
+	 * @return timepoint index.
+	 */
+	public int getCurrentTimepoint()
+	{
+		return getTimepoint( ratioComplete() );
+	}
+
+	/**
+	 * Set the display range of every {@link ConverterSetup} that has a range
+	 * in the keyframes on both sides of the specified completion factor.
+	 *
+	 * @param t
+	 *            the completion factor, ranging from 0 to 1.
+	 */
+	public void applyDisplaySettings( final double t )
+	{
+		if ( converterSetups == null )
+			return;
+		final int i = segmentIndex( t );
+		final double r = segmentRatio( i, t );
+		for ( int s = 0; s < converterSetups.size(); ++s )
+		{
+			final double[] range0 = keyframes.get( i ).getDisplayRange( s );
+			final double[] range1 = keyframes.get( i + 1 ).getDisplayRange( s );
+			if ( range0 == null || range1 == null )
+				continue;
+			final double min = range0[ 0 ] + r * ( range1[ 0 ] - range0[ 0 ] );
+			final double max = range0[ 1 ] + r * ( range1[ 1 ] - range0[ 1 ] );
+			final ConverterSetup setup = converterSetups.get( s );
+			if ( setup.getDisplayRangeMin() != min || setup.getDisplayRangeMax() != max )
+				setup.setDisplayRange( min, max );
+		}
+	}
+}
@@ -0,0 +1,402 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.viewer.render;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.IntSupplier;
+import java.util.stream.LongStream;
+
+import bdv.img.cache.FairShareFetchQueues;
+import bdv.img.cache.VolatileCachedCellImg;
+import bdv.util.MipmapTransforms;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import bdv.viewer.animate.KeyframeAnimator;
+import bdv.viewer.state.SourceState;
+import bdv.viewer.state.ViewerState;
+import net.imglib2.Dimensions;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
+/**
+ * The cells needed by each frame of a precomputed sequence of frames (for
+ * example, of a {@link KeyframeAnimator} animation), for feeding them to the
+ * cache ahead of rendering.
+ * <p>
+ * For each frame, the cells of the visible sources that are visible at the
+ * best mipmap level are computed when the frame is {@link #addFrame(int,
+ * AffineTransform3D...) added}. Every cell is scheduled only once, for the
+ * first frame that needs it. A {@link Streamer} then enqueues the cells frame
+ * by frame, staying a fixed number of frames ahead of the frame being shown.
+ * Frames may be added while streaming, from another thread. When all frames
+ * are added, the schedule must be {@link #finish() finished}.
+ */
+public class FetchSchedule
+{
+	/**
+	 * Cells of one source level and timepoint that are first needed in a
+	 * frame.
+	 */
+	private static class Batch
+	{
+		final int sourceIndex;
+
+		final int timepoint;
+
+		final int level;
+
+		final long[] cells;
+
+		Batch( final int sourceIndex, final int timepoint, final int level, final long[] cells )
+		{
+			this.sourceIndex = sourceIndex;
+			this.timepoint = timepoint;
+			this.level = level;
+			this.cells = cells;
+		}
+	}
+
+	/**
+	 * A cell of one source level and timepoint, identified by its flattened
+	 * grid index.
+	 */
+	private static class CellKey
+	{
+		final int sourceIndex;
+
+		final int timepoint;
+
+		final int level;
+
+		final long index;
+
+		final int hashcode;
+
+		CellKey( final int sourceIndex, final int timepoint, final int level, final long index )
+		{
+			this.sourceIndex = sourceIndex;
+			this.timepoint = timepoint;
+			this.level = level;
+			this.index = index;
+
+			int value = Long.hashCode( index );
+			value = 31 * value + level;
+			value = 31 * value + sourceIndex;
+			value = 31 * value + timepoint;
+			hashcode = value;
+		}
+
+		@Override
+		public boolean equals( final Object other )
+		{
+			if ( this == other )
+				return true;
+			if ( !( other instanceof CellKey ) )
+				return false;
+			final CellKey that = ( CellKey ) other;
+			return this.index == that.index
+					&& this.level == that.level
+					&& this.sourceIndex == that.sourceIndex
+					&& this.timepoint == that.timepoint;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashcode;
+		}
+	}
+
+	/**
+	 * Sources of the visible sources, volatile versions where available, by
+	 * source index.
+	 */
+	private final LinkedHashMap< Integer, Source< ? > > sources = new LinkedHashMap<>();
+
+	private final Dimensions screenSize;
+
+	private final Interpolation interpolation;
+
+	private final Prefetcher prefetcher = new Prefetcher();
+
+	private final ArrayList< Batch[] > frames = new ArrayList<>();
+
+	/**
+	 * The cells already scheduled.
+	 */
+	private final HashSet< CellKey > scheduled = new HashSet<>();
+
+	private long numCells = 0;
+
+	private boolean finished = false;
+
+	/**
+	 * Set by {@link Streamer#stopStreaming()}, to stop
+	 * {@link #addFrames(KeyframeAnimator, long)} early.
+	 */
+	private volatile boolean cancelled = false;
+
+	/**
+	 * @param state
+	 *            the visible sources and interpolation are taken from this
+	 *            state.
+	 * @param screenSize
+	 *            the size of the rendered image.
+	 */
+	public FetchSchedule( final ViewerState state, final Dimensions screenSize )
+	{
+		final List< SourceState< ? > > states = state.getSources();
+		for ( final int i : state.getVisibleSourceIndices() )
+		{
+			final SourceState< ? > s = states.get( i );
+			sources.put( i, s.asVolatile() != null ? s.asVolatile().getSpimSource() : s.getSpimSource() );
+		}
+		this.screenSize = screenSize;
+		this.interpolation = state.getInterpolation();
+	}
+
+	/**
+	 * Append a frame.
+	 *
+	 * @param timepoint
+	 *            timepoint index of the frame.
+	 * @param viewerTransforms
+	 *            viewer transforms of the frame. If there is more than one,
+	 *            the cells for all of them are scheduled.
+	 */
+	public synchronized void addFrame( final int timepoint, final AffineTransform3D... viewerTransforms )
+	{
+		final ArrayList< Batch > batches = new ArrayList<>();
+		for ( final Integer sourceIndex : sources.keySet() )
+		{
+			final Source< ? > source = sources.get( sourceIndex );
+			if ( !source.isPresent( timepoint ) )
+				continue;
+			for ( final AffineTransform3D viewerTransform : viewerTransforms )
+			{
+				final int level = MipmapTransforms.getBestMipMapLevel( viewerTransform, source, timepoint );
+				final RandomAccessibleInterval< ? > img = source.getSource( timepoint, level );
+				if ( !VolatileCachedCellImg.class.isInstance( img ) )
+					continue;
+				final VolatileCachedCellImg< ?, ? > cellImg = ( VolatileCachedCellImg< ?, ? > ) img;
+				final AffineTransform3D sourceToScreen = viewerTransform.copy();
+				final AffineTransform3D sourceTransform = new AffineTransform3D();
+				source.getSourceTransform( timepoint, level, sourceTransform );
+				sourceToScreen.concatenate( sourceTransform );
+				final int[] cellDimensions = new int[ 3 ];
+				cellImg.getCellGrid().cellDimensions( cellDimensions );
+				if ( prefetcher.plan( sourceToScreen, cellDimensions, Intervals.dimensionsAsLongArray( cellImg ), screenSize, interpolation ) == 0 )
+					continue;
+
+				final LongStream.Builder cells = LongStream.builder();
+				prefetcher.forEachPlannedCell( cellImg.getCellGrid().getGridDimensions(), index -> {
+					if ( scheduled.add( new CellKey( sourceIndex, timepoint, level, index ) ) )
+						cells.add( index );
+				} );
+				final long[] indices = cells.build().toArray();
+				if ( indices.length > 0 )
+				{
+					batches.add( new Batch( sourceIndex, timepoint, level, indices ) );
+					numCells += indices.length;
+				}
+			}
+		}
+		frames.add( batches.toArray( new Batch[ batches.size() ] ) );
+	}
+
+	/**
+	 * Append the frames of an animation, one frame every
+	 * {@code frameDuration} time units, including the last keyframe. Returns
+	 * early if streaming is {@link Streamer#stopStreaming() stopped}.
+	 */
+	public void addFrames( final KeyframeAnimator animator, final long frameDuration )
+	{
+		for ( long time = 0; !cancelled; time += frameDuration )
+		{
+			final double t = animator.ratioAt( time );
+			addFrame( animator.getTimepoint( t ), animator.get( t ) );
+			if ( time >= animator.getDuration() )
+				break;
+		}
+	}
+
+	public synchronized int getNumFrames()
+	{
+		return frames.size();
+	}
+
+	/**
+	 * Signal that no more frames will be added. A {@link Streamer} ends when
+	 * it is past the last frame of a finished schedule.
+	 */
+	public synchronized void finish()
+	{
+		finished = true;
+	}
+
+	public synchronized boolean isFinished()
+	{
+		return finished;
+	}
+
+	/**
+	 * @return the number of distinct cells needed by all frames.
+	 */
+	public synchronized long getNumCells()
+	{
+		return numCells;
+	}
+
+	/**
+	 * Enqueue the cells first needed in the given frame, with lowest queue
+	 * priority.
+	 *
+	 * @return the number of cells enqueued.
+	 */
+	public int feed( final int frame )
+	{
+		final Batch[] batches;
+		synchronized ( this )
+		{
+			batches = frames.get( frame );
+		}
+		int n = 0;
+		FairShareFetchQueues.setSubPriority( FairShareFetchQueues.NUM_SUB_PRIORITIES - 1 );
+		try
+		{
+			for ( final Batch batch : batches )
+			{
+				final Source< ? > source = sources.get( batch.sourceIndex );
+				final VolatileCachedCellImg< ?, ? > img = ( VolatileCachedCellImg< ?, ? > ) source.getSource( batch.timepoint, batch.level );
+				img.setCacheHints( new CacheHints( LoadingStrategy.VOLATILE, source.getNumMipmapLevels() - 1, false ) );
+				final long[] gridDimensions = img.getCellGrid().getGridDimensions();
+				final long[] position = new long[ gridDimensions.length ];
+				final RandomAccess< ? > cells = img.getCells().randomAccess();
+				for ( final long index : batch.cells )
+				{
+					IntervalIndexer.indexToPosition( index, gridDimensions, position );
+					cells.setPosition( position );
+					cells.get();
+					++n;
+				}
+			}
+		}
+		finally
+		{
+			FairShareFetchQueues.setSubPriority( 0 );
+		}
+		return n;
+	}
+
+	/**
+	 * Start feeding the schedule to the cache in a background thread.
+	 *
+	 * @param currentFrame
+	 *            supplies the index of the frame currently rendered or shown.
+	 * @param framesAhead
+	 *            how many frames beyond the current frame to feed.
+	 * @return the streamer, to stop it early.
+	 */
+	public Streamer stream( final IntSupplier currentFrame, final int framesAhead )
+	{
+		final Streamer streamer = new Streamer( currentFrame, framesAhead );
+		streamer.start();
+		return streamer;
+	}
+
+	/**
+	 * Feeds frames in order, from the current frame up to a fixed number of
+	 * frames ahead. Frames that were passed without being fed are skipped.
+	 * Frames may still be added to the schedule while streaming. Streaming
+	 * ends when the current frame is past the last frame of the
+	 * {@link #finish() finished} schedule.
+	 * <p>
+	 * Sources cache their images per ThreadGroup, so the streamer runs in its
+	 * own group. This way, the cache hints it sets do not affect rendering.
+	 */
+	public class Streamer extends Thread
+	{
+		private final IntSupplier currentFrame;
+
+		private final int framesAhead;
+
+		private volatile boolean stopped = false;
+
+		private Streamer( final IntSupplier currentFrame, final int framesAhead )
+		{
+			super( new ThreadGroup( "FetchSchedule" ), "FetchSchedule streamer" );
+			this.currentFrame = currentFrame;
+			this.framesAhead = framesAhead;
+			setDaemon( true );
+		}
+
+		@Override
+		public void run()
+		{
+			int next = 0;
+			try
+			{
+				while ( !stopped )
+				{
+					final int current = currentFrame.getAsInt();
+					if ( current >= getNumFrames() && isFinished() )
+						return;
+					next = Math.max( next, current );
+					if ( next < getNumFrames() && next <= current + framesAhead )
+						feed( next++ );
+					else
+						Thread.sleep( 10 );
+				}
+			}
+			catch ( final InterruptedException e )
+			{}
+		}
+
+		/**
+		 * Stop feeding, and stop adding frames in
+		 * {@link #addFrames(KeyframeAnimator, long)}. Cells that are already
+		 * enqueued are not removed.
+		 */
+		public void stopStreaming()
+		{
+			stopped = true;
+			cancelled = true;
+			interrupt();
+		}
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.viewer.render;
+
+import bdv.util.Affine3DHelpers;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.LinAlgHelpers;
+
+/**
+ * Extrapolates the viewer transform from its recent history, such that cells
+ * along the path of a steady pan, zoom, rotation, or z-scroll can be
+ * prefetched before they are displayed.
+ * <p>
+ * Every {@link #addSample(AffineTransform3D, double, double, long) sample} is
+ * decomposed into the global position of the screen center, the zoom (log
+ * scale), and the rotation. Each of them is extrapolated with the velocity
+ * and acceleration estimated from the last three samples. Acceleration is
+ * only applied until it would reverse the direction of motion, so that
+ * decelerating motion is predicted to stop rather than to turn back. If the
+ * transform did not change for {@link #DEFAULT_MAX_IDLE_MILLIS}, the history is
+ * discarded and nothing is predicted.
+ */
+public class MotionPredictor
+{
+	/**
+	 * If the transform does not change for longer than this, motion is
+	 * assumed to have stopped.
+	 */
+	public static final long DEFAULT_MAX_IDLE_MILLIS = 200;
+
+	/**
+	 * Samples closer together than this replace each other, because the
+	 * velocity estimated from them would be too noisy.
+	 */
+	private static final long MIN_SAMPLE_INTERVAL_NANOS = 5000000;
+
+	private static final int NUM_SAMPLES = 3;
+
+	private final long maxIdleNanos;
+
+	/**
+	 * Sample times, index 0 is the most recent.
+	 */
+	private final long[] times = new long[ NUM_SAMPLES ];
+
+	/**
+	 * Global position of the screen center.
+	 */
+	private final double[][] centers = new double[ NUM_SAMPLES ][ 3 ];
+
+	private final double[][] logScales = new double[ NUM_SAMPLES ][ 1 ];
+
+	private final double[][] rotations = new double[ NUM_SAMPLES ][ 4 ];
+
+	private int numSamples = 0;
+
+	private final AffineTransform3D lastTransform = new AffineTransform3D();
+
+	private double lastCX;
+
+	private double lastCY;
+
+	public MotionPredictor()
+	{
+		this( DEFAULT_MAX_IDLE_MILLIS );
+	}
+
+	public MotionPredictor( final long maxIdleMillis )
+	{
+		maxIdleNanos = maxIdleMillis * 1000000;
+	}
+
+	/**
+	 * Record the viewer transform at the given time.
+	 *
+	 * @param viewerTransform
+	 *            global to viewer transform.
+	 * @param cX
+	 *            x of the screen center in viewer coordinates.
+	 * @param cY
+	 *            y of the screen center in viewer coordinates.
+	 * @param timeNanos
+	 *            {@link System#nanoTime()} of the sample.
+	 * @return whether the transform changed since the last sample.
+	 */
+	public synchronized boolean addSample( final AffineTransform3D viewerTransform, final double cX, final double cY, final long timeNanos )
+	{
+		if ( numSamples > 0 && cX == lastCX && cY == lastCY && equals( viewerTransform, lastTransform ) )
+			return false;
+
+		if ( numSamples > 0 && ( cX != lastCX || cY != lastCY || timeNanos - times[ 0 ] > maxIdleNanos ) )
+			numSamples = 0;
+		if ( numSamples == 0 || timeNanos - times[ 0 ] >= MIN_SAMPLE_INTERVAL_NANOS )
+		{
+			for ( int i = NUM_SAMPLES - 1; i > 0; --i )
+			{
+				times[ i ] = times[ i - 1 ];
+				System.arraycopy( centers[ i - 1 ], 0, centers[ i ], 0, 3 );
+				logScales[ i ][ 0 ] = logScales[ i - 1 ][ 0 ];
+				System.arraycopy( rotations[ i - 1 ], 0, rotations[ i ], 0, 4 );
+			}
+			numSamples = Math.min( numSamples + 1, NUM_SAMPLES );
+		}
+
+		times[ 0 ] = timeNanos;
+		viewerTransform.applyInverse( centers[ 0 ], new double[] { cX, cY, 0 } );
+		logScales[ 0 ][ 0 ] = Math.log( Affine3DHelpers.extractScale( viewerTransform, 0 ) );
+		Affine3DHelpers.extractRotation( viewerTransform, rotations[ 0 ] );
+		if ( numSamples > 1 && LinAlgHelpers.dot( rotations[ 0 ], rotations[ 1 ] ) < 0 )
+			LinAlgHelpers.scale( rotations[ 0 ], -1, rotations[ 0 ] );
+
+		lastTransform.set( viewerTransform );
+		lastCX = cX;
+		lastCY = cY;
+		return true;
+	}
+
+	/**
+	 * Predict the viewer transform {@code horizonMillis} after
+	 * {@code timeNanos}.
+	 *
+	 * @param cX
+	 *            x of the screen center in viewer coordinates.
+	 * @param cY
+	 *            y of the screen center in viewer coordinates.
+	 * @param predicted
+	 *            is set to the predicted global to viewer transform.
+	 * @return {@code false} if there is no recent motion to extrapolate (in
+	 *         this case {@code predicted} is not modified).
+	 */
+	public synchronized boolean predict( final double cX, final double cY, final long timeNanos, final double horizonMillis, final AffineTransform3D predicted )
+	{
+		if ( numSamples < 2 || timeNanos - times[ 0 ] > maxIdleNanos )
+			return false;
+
+		final double h = ( timeNanos - times[ 0 ] ) * 1e-9 + horizonMillis * 1e-3;
+		final double dt0 = ( times[ 0 ] - times[ 1 ] ) * 1e-9;
+		final double dt1 = numSamples > 2 ? ( times[ 1 ] - times[ 2 ] ) * 1e-9 : 0;
+
+		final double[] center = extrapolate( centers, dt0, dt1, h );
+		final double scale = Math.exp( extrapolate( logScales, dt0, dt1, h )[ 0 ] );
+
+		// angular velocity, and acceleration, from the rotation between samples
+		final double[] q = rotations[ 0 ].clone();
+		final double[] dq0 = new double[ 4 ];
+		final double angle0 = rotationBetween( rotations[ 1 ], rotations[ 0 ], dq0 );
+		if ( angle0 > 1e-9 )
+		{
+			final double[] angles = new double[ numSamples > 2 ? 3 : 2 ];
+			angles[ 1 ] = -angle0;
+			if ( numSamples > 2 )
+				angles[ 2 ] = -angle0 - rotationBetween( rotations[ 2 ], rotations[ 1 ], new double[ 4 ] );
+			final double[][] a = new double[ angles.length ][];
+			for ( int i = 0; i < angles.length; ++i )
+				a[ i ] = new double[] { angles[ i ] };
+			final double angle = extrapolate( a, dt0, dt1, h )[ 0 ];
+			final double[] dq = new double[ 4 ];
+			LinAlgHelpers.quaternionPower( dq0, angle / angle0, dq );
+			LinAlgHelpers.quaternionMultiply( rotations[ 0 ], dq, q );
+		}
+
+		final double[][] R = new double[ 3 ][ 3 ];
+		LinAlgHelpers.quaternionToR( q, R );
+		final double[] rc = new double[ 3 ];
+		LinAlgHelpers.mult( R, center, rc );
+		final double[] screenCenter = new double[] { cX, cY, 0 };
+		final double[][] m = new double[ 3 ][ 4 ];
+		for ( int r = 0; r < 3; ++r )
+		{
+			for ( int c = 0; c < 3; ++c )
+				m[ r ][ c ] = scale * R[ r ][ c ];
+			m[ r ][ 3 ] = screenCenter[ r ] - scale * rc[ r ];
+		}
+		predicted.set( m );
+		return true;
+	}
+
+	/**
+	 * Extrapolate {@code x[0]} (the most recent of 2 or 3 samples) by
+	 * {@code h} seconds, with constant acceleration. Acceleration is applied
+	 * only until the velocity component along the current velocity reaches
+	 * zero.
+	 *
+	 * @param x
+	 *            samples, most recent first.
+	 * @param dt0
+	 *            time between {@code x[1]} and {@code x[0]}.
+	 * @param dt1
+	 *            time between {@code x[2]} and {@code x[1]}.
+	 */
+	private static double[] extrapolate( final double[][] x, final double dt0, final double dt1, final double h )
+	{
+		final int n = x[ 0 ].length;
+		final double[] v = new double[ n ];
+		final double[] a = new double[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			v[ d ] = ( x[ 0 ][ d ] - x[ 1 ][ d ] ) / dt0;
+			if ( x.length > 2 && dt1 > 0 )
+			{
+				final double v1 = ( x[ 1 ][ d ] - x[ 2 ][ d ] ) / dt1;
+				a[ d ] = ( v[ d ] - v1 ) / ( 0.5 * ( dt0 + dt1 ) );
+			}
+		}
+
+		double t = h;
+		final double av = LinAlgHelpers.dot( a, v );
+		if ( av < 0 )
+			t = Math.min( h, -LinAlgHelpers.dot( v, v ) / av );
+
+		final double[] result = new double[ n ];
+		for ( int d = 0; d < n; ++d )
+			result[ d ] = x[ 0 ][ d ] + v[ d ] * t + 0.5 * a[ d ] * t * t;
+		return result;
+	}
+
+	/**
+	 * Compute the rotation {@code dq} from {@code q1} to {@code q0}, i.e.,
+	 * {@code q0 = q1 * dq}.
+	 *
+	 * @return the rotation angle of {@code dq}.
+	 */
+	private static double rotationBetween( final double[] q1, final double[] q0, final double[] dq )
+	{
+		final double[] q1Inv = new double[ 4 ];
+		LinAlgHelpers.quaternionInvert( q1, q1Inv );
+		LinAlgHelpers.quaternionMultiply( q1Inv, q0, dq );
+		if ( dq[ 0 ] < 0 )
+			LinAlgHelpers.scale( dq, -1, dq );
+		return 2 * Math.acos( Math.min( 1, dq[ 0 ] ) );
+	}
+
+	private static boolean equals( final AffineTransform3D a, final AffineTransform3D b )
+	{
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 4; ++c )
+				if ( a.get( r, c ) != b.get( r, c ) )
+					return false;
+		return true;
+	}
+}
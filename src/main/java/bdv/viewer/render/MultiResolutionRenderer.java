@@ -39,7 +39,9 @@ import java.util.List;
 import java.util.concurrent.ExecutorService;
 
 import bdv.cache.CacheControl;
+import bdv.img.cache.SharedCellCache;
 import bdv.img.cache.VolatileCachedCellImg;
+import bdv.util.MipmapTransforms;
 import bdv.viewer.Interpolation;
 import bdv.viewer.Source;
 import bdv.viewer.render.MipmapOrdering.Level;
@@ -47,7 +49,6 @@ import bdv.viewer.render.MipmapOrdering.MipmapHints;
 import bdv.viewer.state.SourceState;
 import bdv.viewer.state.ViewerState;
 import net.imglib2.Dimensions;
-import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
@@ -283,6 +284,119 @@ public class MultiResolutionRenderer
 	// TODO: should be settable
 	protected boolean prefetchCells = true;
 
+	/**
+	 * Plans and enqueues the cells to prefetch. Reused for all sources and
+	 * levels.
+	 */
+	private final Prefetcher prefetcher = new Prefetcher();
+
+	/**
+	 * If not {@code null}, sources are rendered as projections of this slab,
+	 * instead of as the {@code z=0} plane.
+	 */
+	private SlabProjection projection = null;
+
+	/**
+	 * If not {@code null}, a transition animation to this viewer transform is
+	 * running (see {@link #setAnimationTarget(AffineTransform3D)}).
+	 */
+	private AffineTransform3D animationTarget = null;
+
+	/**
+	 * Screen scale index at which all frames of the current animation are
+	 * rendered.
+	 */
+	private int animationScreenScaleIndex;
+
+	/**
+	 * Mipmap level that is loaded for every frame of the current animation, by
+	 * source index. Determined in the first frame of the animation.
+	 */
+	private final HashMap< Integer, Integer > animationLevels = new HashMap<>();
+
+	private final int[] prefetchCellDimensions = new int[ 3 ];
+
+	private final long[] prefetchDimensions = new long[ 3 ];
+
+	private final AffineTransform3D prefetchViewerTransform = new AffineTransform3D();
+
+	private final AffineTransform3D prefetchSourceTransform = new AffineTransform3D();
+
+	private final AffineTransform3D prefetchSourceToScreen = new AffineTransform3D();
+
+	/**
+	 * Point of the display the user is looking at, {@code NaN} for the
+	 * display center. Cells near it are prefetched first.
+	 */
+	private double prefetchFocusX = Double.NaN;
+
+	private double prefetchFocusY = Double.NaN;
+
+	/**
+	 * Extrapolates the viewer transform for predictive prefetching.
+	 */
+	protected final MotionPredictor motionPredictor = new MotionPredictor();
+
+	/**
+	 * How far ahead (in milliseconds) the viewer transform is extrapolated for
+	 * predictive prefetching. Empty to disable predictive prefetching.
+	 */
+	protected double[] predictionHorizonsMillis = new double[] { 100, 250, 500 };
+
+	/**
+	 * Maximum number of cells per frame that are prefetched for predicted
+	 * viewer transforms.
+	 */
+	protected int maxPredictedCellsPerFrame = 512;
+
+	/**
+	 * Predicted viewer transforms for the frame that is set up by
+	 * {@link #createProjector(ViewerState, int, ARGBScreenImage)}, nearest
+	 * first. Empty if the viewer transform is not changing.
+	 */
+	private final ArrayList< AffineTransform3D > predictedViewerTransforms = new ArrayList<>();
+
+	/**
+	 * How many more cells may be prefetched for predicted viewer transforms in
+	 * the current frame.
+	 */
+	private int remainingPredictedCells;
+
+	/**
+	 * Fraction of the {@link SharedCellCache#getMemoryBudget() shared memory
+	 * budget} that cells prefetched for upcoming timepoints may occupy.
+	 */
+	public static final double LOOK_AHEAD_MEMORY_FRACTION = 0.25;
+
+	/**
+	 * Assumed size of a voxel, for bounding the memory of cells prefetched for
+	 * upcoming timepoints.
+	 */
+	private static final int LOOK_AHEAD_BYTES_PER_VOXEL = 4;
+
+	/**
+	 * How many timepoints ahead the visible cells are prefetched.
+	 */
+	protected int numTimepointLookAhead = 0;
+
+	/**
+	 * Direction (+1 or -1) of the most recent timepoint change.
+	 */
+	private int timepointDirection = 1;
+
+	/**
+	 * Timepoints for which the visible cells are prefetched in the frame that
+	 * is set up by {@link #createProjector(ViewerState, int, ARGBScreenImage)},
+	 * nearest first.
+	 */
+	private final ArrayList< Integer > lookAheadTimepoints = new ArrayList<>();
+
+	/**
+	 * How many more bytes of cells may be prefetched for
+	 * {@link #lookAheadTimepoints} in the current frame.
+	 */
+	private long remainingLookAheadBytes;
+
 	/**
 	 * @param display
 	 *            The canvas that will display the images we render.
@@ -355,6 +469,105 @@ public class MultiResolutionRenderer
 		previousTimepoint = -1;
 	}
 
+	/**
+	 * Set how many timepoints ahead the visible cells are prefetched. The
+	 * look-ahead follows the direction of the most recent timepoint change,
+	 * such that both forward and backward playback are supported. Cells for
+	 * nearer timepoints get higher priority, and all look-ahead cells
+	 * together are bounded by {@link #LOOK_AHEAD_MEMORY_FRACTION} of the
+	 * shared memory budget.
+	 *
+	 * @param n
+	 *            number of timepoints to look ahead. 0 disables look-ahead.
+	 */
+	public synchronized void setNumTimepointLookAhead( final int n )
+	{
+		numTimepointLookAhead = Math.max( 0, n );
+	}
+
+	/**
+	 * Set how far ahead the viewer transform is extrapolated for predictive
+	 * prefetching. Cells visible at the predicted transforms are prefetched
+	 * after the cells of the current frame, nearest horizon first.
+	 *
+	 * @param horizons
+	 *            prediction horizons in milliseconds. Empty to disable
+	 *            predictive prefetching.
+	 */
+	public synchronized void setPredictionHorizonsMillis( final double... horizons )
+	{
+		predictionHorizonsMillis = horizons.clone();
+	}
+
+	/**
+	 * Set the maximum number of cells per frame that are prefetched for
+	 * predicted viewer transforms.
+	 */
+	public synchronized void setMaxPredictedCellsPerFrame( final int n )
+	{
+		maxPredictedCellsPerFrame = Math.max( 0, n );
+	}
+
+	/**
+	 * Set the point of the display the user is looking at (e.g., the mouse
+	 * position). Within each mipmap level, cells near this point are
+	 * prefetched and loaded first.
+	 *
+	 * @param x
+	 *            X display coordinate, or {@code NaN} for the display center.
+	 * @param y
+	 *            Y display coordinate, or {@code NaN} for the display center.
+	 */
+	public synchronized void setPrefetchFocus( final double x, final double y )
+	{
+		prefetchFocusX = x;
+		prefetchFocusY = y;
+	}
+
+	/**
+	 * Render projections of a slab of the viewer space, instead of the
+	 * {@code z=0} plane (see {@link SlabProjection}). Takes effect with the
+	 * next repaint.
+	 *
+	 * @param projection
+	 *            the slab projection, or {@code null} to render the
+	 *            {@code z=0} plane.
+	 */
+	public synchronized void setProjection( final SlabProjection projection )
+	{
+		this.projection = projection;
+	}
+
+	public synchronized SlabProjection getProjection()
+	{
+		return projection;
+	}
+
+	/**
+	 * Switch animation-aware rendering on or off. While a transition animation
+	 * runs, every frame is short-lived, so instead of refining each frame:
+	 * <ul>
+	 * <li>all frames are rendered at the screen scale that was current when
+	 * the animation started, without refinement passes;</li>
+	 * <li>only one mipmap level per source (the best level for the first
+	 * frame) is loaded, other levels are shown only as far as they are
+	 * cached;</li>
+	 * <li>nothing is prefetched except the cells needed at the end of the
+	 * animation, which are enqueued with top priority in every frame, so that
+	 * the final view is sharp as soon as the animation ends.</li>
+	 * </ul>
+	 *
+	 * @param target
+	 *            the viewer transform at the end of the animation, or
+	 *            {@code null} when the animation is finished.
+	 */
+	public synchronized void setAnimationTarget( final AffineTransform3D target )
+	{
+		animationTarget = target == null ? null : target.copy();
+		animationScreenScaleIndex = maxScreenScaleIndex;
+		animationLevels.clear();
+	}
+
 	/**
 	 * Check whether the size of the display component was changed and
 	 * recreate {@link #screenImages} and {@link #screenScaleTransforms} accordingly.
@@ -479,6 +692,8 @@ public class MultiResolutionRenderer
 			clearQueue = newFrameRequest;
 			if ( clearQueue )
 				cacheControl.prepareNextFrame();
+			if ( animationTarget != null )
+				requestedScreenScaleIndex = Math.min( animationScreenScaleIndex, screenScales.length - 1 );
 			createProjector = newFrameRequest || resized || ( requestedScreenScaleIndex != currentScreenScaleIndex );
 			newFrameRequest = false;
 
@@ -526,7 +741,11 @@ public class MultiResolutionRenderer
 							renderIdQueue.add( id );
 					}
 
-					if ( currentScreenScaleIndex == maxScreenScaleIndex )
+					if ( animationTarget != null )
+					{
+						// keep the screen scale fixed while animating
+					}
+					else if ( currentScreenScaleIndex == maxScreenScaleIndex )
 					{
 						if ( rendertime > targetRenderNanos && maxScreenScaleIndex < screenScales.length - 1 )
 							maxScreenScaleIndex++;
@@ -543,7 +762,11 @@ public class MultiResolutionRenderer
 //					System.out.println( "maxScreenScaleIndex = " + maxScreenScaleIndex + "  (" + screenImages[ maxScreenScaleIndex ][ 0 ].dimension( 0 ) + " x " + screenImages[ maxScreenScaleIndex ][ 0 ].dimension( 1 ) + ")" );
 				}
 
-				if ( currentScreenScaleIndex > 0 )
+				if ( animationTarget != null )
+				{
+					// the next animation frame replaces this one
+				}
+				else if ( currentScreenScaleIndex > 0 )
 					requestRepaint( currentScreenScaleIndex - 1 );
 				else if ( !p.isValid() )
 				{
@@ -624,6 +847,8 @@ public class MultiResolutionRenderer
 		 * CacheHints.LoadingStrategy==VOLATILE
 		 */
 //		CacheIoTiming.getIoTimeBudget().clear(); // clear time budget such that prefetching doesn't wait for loading blocks.
+		final boolean transformChanged = updatePredictedViewerTransforms( viewerState );
+		updateLookAheadTimepoints( viewerState, transformChanged );
 		final List< SourceState< ? > > sourceStates = viewerState.getSources();
 		final List< Integer > visibleSourceIndices = viewerState.getVisibleSourceIndices();
 		VolatileProjector projector;
@@ -660,6 +885,61 @@ public class MultiResolutionRenderer
 		return projector;
 	}
 
+	/**
+	 * Record the current viewer transform in {@link #motionPredictor}. If it
+	 * changed, set {@link #predictedViewerTransforms} for the
+	 * {@link #predictionHorizonsMillis}.
+	 *
+	 * @return whether the viewer transform changed.
+	 */
+	private boolean updatePredictedViewerTransforms( final ViewerState viewerState )
+	{
+		predictedViewerTransforms.clear();
+		remainingPredictedCells = maxPredictedCellsPerFrame;
+
+		final AffineTransform3D viewerTransform = new AffineTransform3D();
+		viewerState.getViewerTransform( viewerTransform );
+		final double cX = 0.5 * display.getWidth();
+		final double cY = 0.5 * display.getHeight();
+		final long now = System.nanoTime();
+		final boolean changed = motionPredictor.addSample( viewerTransform, cX, cY, now );
+		if ( !changed || !prefetchCells )
+			return changed;
+
+		for ( final double horizon : predictionHorizonsMillis )
+		{
+			final AffineTransform3D predicted = new AffineTransform3D();
+			if ( motionPredictor.predict( cX, cY, now, horizon, predicted ) )
+				predictedViewerTransforms.add( predicted );
+		}
+		return true;
+	}
+
+	/**
+	 * Set {@link #lookAheadTimepoints}, if the timepoint or the viewer
+	 * transform changed since the last frame.
+	 */
+	private void updateLookAheadTimepoints( final ViewerState viewerState, final boolean transformChanged )
+	{
+		lookAheadTimepoints.clear();
+		remainingLookAheadBytes = ( long ) ( LOOK_AHEAD_MEMORY_FRACTION * SharedCellCache.getInstance().getMemoryBudget() );
+
+		final int t = viewerState.getCurrentTimepoint();
+		if ( previousTimepoint >= 0 && t != previousTimepoint )
+			timepointDirection = t > previousTimepoint ? 1 : -1;
+		if ( !prefetchCells || ( !transformChanged && t == previousTimepoint ) )
+			return;
+
+		final int numTimepoints = viewerState.getNumTimepoints();
+		for ( int i = 1; i <= numTimepointLookAhead; ++i )
+		{
+			final int tt = t + i * timepointDirection;
+			if ( tt < 0 || tt >= numTimepoints )
+				break;
+			lookAheadTimepoints.add( tt );
+		}
+	}
+
 	private static class SimpleVolatileProjector< A, B > extends SimpleInterruptibleProjector< A, B > implements VolatileProjector
 	{
 		private boolean valid = false;
@@ -712,7 +992,7 @@ public class MultiResolutionRenderer
 		final AffineTransform3D screenScaleTransform = screenScaleTransforms[ currentScreenScaleIndex ];
 		final int bestLevel = viewerState.getBestMipMapLevel( screenScaleTransform, sourceIndex );
 		return new SimpleVolatileProjector<>(
-				getTransformedSource( viewerState, source.getSpimSource(), screenScaleTransform, bestLevel, null ),
+				getTransformedSource( viewerState, source.getSpimSource(), screenScaleTransform, bestLevel, null, projection ),
 				source.getConverter(), screenImage, numRenderingThreads, renderingExecutorService );
 	}
 
@@ -738,7 +1018,12 @@ public class MultiResolutionRenderer
 		final MipmapHints hints = ordering.getMipmapHints( screenTransform, t, previousTimepoint );
 		final List< Level > levels = hints.getLevels();
 
-		if ( prefetchCells )
+		if ( animationTarget != null )
+		{
+			prefetchAnimationTarget( viewerState, spimSource );
+			setAnimationRenderHints( levels, getAnimationLevel( viewerState, screenScaleTransform, sourceIndex ), spimSource.getNumMipmapLevels() - 1 );
+		}
+		else if ( prefetchCells )
 		{
 			Collections.sort( levels, MipmapOrdering.prefetchOrderComparator );
 			for ( final Level l : levels )
@@ -747,11 +1032,17 @@ public class MultiResolutionRenderer
 				if ( cacheHints == null || cacheHints.getLoadingStrategy() != LoadingStrategy.DONTLOAD )
 					prefetch( viewerState, spimSource, screenScaleTransform, l.getMipmapLevel(), cacheHints, screenImage );
 			}
+			prefetchPredicted( viewerState, spimSource, ordering, screenScaleTransform, screenImage );
+			prefetchLookAhead( viewerState, spimSource, ordering, screenTransform, screenScaleTransform, screenImage );
 		}
 
+		markCurrentTimepoint( spimSource, t );
+		if ( currentScreenScaleIndex == 0 )
+			recordUse( viewerState, spimSource, screenScaleTransform, viewerState.getBestMipMapLevel( screenScaleTransform, sourceIndex ), screenImage );
+
 		Collections.sort( levels, MipmapOrdering.renderOrderComparator );
 		for ( final Level l : levels )
-			renderList.add( getTransformedSource( viewerState, spimSource, screenScaleTransform, l.getMipmapLevel(), l.getRenderCacheHints() ) );
+			renderList.add( getTransformedSource( viewerState, spimSource, screenScaleTransform, l.getMipmapLevel(), l.getRenderCacheHints(), projection ) );
 
 		if ( hints.renewHintsAfterPaintingOnce() )
 			newFrameRequest = true;
@@ -764,7 +1055,8 @@ public class MultiResolutionRenderer
 			final Source< T > source,
 			final AffineTransform3D screenScaleTransform,
 			final int mipmapIndex,
-			final CacheHints cacheHints )
+			final CacheHints cacheHints,
+			final SlabProjection projection )
 	{
 		final int timepoint = viewerState.getCurrentTimepoint();
 
@@ -782,10 +1074,109 @@ public class MultiResolutionRenderer
 		sourceToScreen.concatenate( sourceTransform );
 		sourceToScreen.preConcatenate( screenScaleTransform );
 
+		if ( projection != null )
+		{
+			final RandomAccessible< T > projected = projection.project( RealViews.affineReal( ipimg, sourceToScreen ), sourceToScreen, source.getType() );
+			if ( projected != null )
+				return projected;
+		}
 		return RealViews.affine( ipimg, sourceToScreen );
 	}
 
-	private static < T > void prefetch(
+	/**
+	 * Prefetch cells for the {@link #predictedViewerTransforms}, with lowest
+	 * queue priority. Nearer predictions, and coarser levels, are prefetched
+	 * first, until {@link #remainingPredictedCells} is used up.
+	 */
+	private < T > void prefetchPredicted(
+			final ViewerState viewerState,
+			final Source< T > source,
+			final MipmapOrdering ordering,
+			final AffineTransform3D screenScaleTransform,
+			final Dimensions screenInterval )
+	{
+		final int timepoint = viewerState.getCurrentTimepoint();
+		final CacheHints lowestPriority = new CacheHints( LoadingStrategy.VOLATILE, source.getNumMipmapLevels() - 1, false );
+		for ( final AffineTransform3D predicted : predictedViewerTransforms )
+		{
+			final AffineTransform3D screenTransform = predicted.copy();
+			screenTransform.preConcatenate( screenScaleTransform );
+			final List< Level > levels = ordering.getMipmapHints( screenTransform, timepoint, timepoint ).getLevels();
+			Collections.sort( levels, MipmapOrdering.prefetchOrderComparator );
+			for ( final Level l : levels )
+			{
+				if ( remainingPredictedCells <= 0 )
+					return;
+				final CacheHints cacheHints = l.getPrefetchCacheHints();
+				if ( cacheHints == null || cacheHints.getLoadingStrategy() != LoadingStrategy.DONTLOAD )
+					remainingPredictedCells -= prefetch( viewerState, predicted, timepoint, source, screenScaleTransform, l.getMipmapLevel(), lowestPriority, screenInterval, remainingPredictedCells );
+			}
+		}
+	}
+
+	/**
+	 * Prefetch the cells that are visible with the current viewer transform
+	 * for the {@link #lookAheadTimepoints}. The levels that would be rendered
+	 * right after switching to a timepoint are prefetched, with priority
+	 * decreasing with the distance from the current timepoint, until
+	 * {@link #remainingLookAheadBytes} is used up.
+	 */
+	private < T > void prefetchLookAhead(
+			final ViewerState viewerState,
+			final Source< T > source,
+			final MipmapOrdering ordering,
+			final AffineTransform3D screenTransform,
+			final AffineTransform3D screenScaleTransform,
+			final Dimensions screenInterval )
+	{
+		final AffineTransform3D viewerTransform = new AffineTransform3D();
+		viewerState.getViewerTransform( viewerTransform );
+		final int timepoint = viewerState.getCurrentTimepoint();
+		final int maxPriority = source.getNumMipmapLevels() - 1;
+		for ( int i = 0; i < lookAheadTimepoints.size(); ++i )
+		{
+			final int t = lookAheadTimepoints.get( i );
+			if ( !source.isPresent( t ) )
+				continue;
+			final List< Level > levels = ordering.getMipmapHints( screenTransform, t, timepoint ).getLevels();
+			Collections.sort( levels, MipmapOrdering.prefetchOrderComparator );
+			for ( final Level l : levels )
+			{
+				final CacheHints cacheHints = l.getPrefetchCacheHints();
+				if ( cacheHints != null && cacheHints.getLoadingStrategy() == LoadingStrategy.DONTLOAD )
+					continue;
+				final int level = l.getMipmapLevel();
+				final long cellBytes = getNumVoxelsPerCell( source, t, level ) * LOOK_AHEAD_BYTES_PER_VOXEL;
+				if ( cellBytes <= 0 )
+					continue;
+				final int maxNumCells = ( int ) Math.min( Integer.MAX_VALUE, remainingLookAheadBytes / cellBytes );
+				if ( maxNumCells <= 0 )
+					return;
+				final int priority = Math.min( maxPriority, ( cacheHints == null ? maxPriority - level : cacheHints.getQueuePriority() ) + i + 1 );
+				final CacheHints hints = new CacheHints( LoadingStrategy.VOLATILE, priority, false );
+				remainingLookAheadBytes -= cellBytes * prefetch( viewerState, viewerTransform, t, source, screenScaleTransform, level, hints, screenInterval, maxNumCells );
+			}
+		}
+	}
+
+	/**
+	 * @return the number of voxels in a standard cell of the given source
+	 *         level, or 0 if it is not a cached cell image.
+	 */
+	private static long getNumVoxelsPerCell( final Source< ? > source, final int timepoint, final int mipmapIndex )
+	{
+		final RandomAccessibleInterval< ? > img = source.getSource( timepoint, mipmapIndex );
+		if ( !VolatileCachedCellImg.class.isInstance( img ) )
+			return 0;
+		final int[] cellDimensions = new int[ img.numDimensions() ];
+		( ( VolatileCachedCellImg< ?, ? > ) img ).getCellGrid().cellDimensions( cellDimensions );
+		long n = 1;
+		for ( final int d : cellDimensions )
+			n *= d;
+		return n;
+	}
+
+	private < T > void prefetch(
 			final ViewerState viewerState,
 			final Source< T > source,
 			final AffineTransform3D screenScaleTransform,
@@ -793,7 +1184,27 @@ public class MultiResolutionRenderer
 			final CacheHints prefetchCacheHints,
 			final Dimensions screenInterval )
 	{
-		final int timepoint = viewerState.getCurrentTimepoint();
+		viewerState.getViewerTransform( prefetchViewerTransform );
+		prefetch( viewerState, prefetchViewerTransform, viewerState.getCurrentTimepoint(), source, screenScaleTransform, mipmapIndex, prefetchCacheHints, screenInterval, Integer.MAX_VALUE );
+	}
+
+	/**
+	 * Prefetch at most {@code maxNumCells} cells of the given source level and
+	 * timepoint that are visible with the given viewer transform.
+	 *
+	 * @return the number of cells accessed.
+	 */
+	private < T > int prefetch(
+			final ViewerState viewerState,
+			final AffineTransform3D viewerTransform,
+			final int timepoint,
+			final Source< T > source,
+			final AffineTransform3D screenScaleTransform,
+			final int mipmapIndex,
+			final CacheHints prefetchCacheHints,
+			final Dimensions screenInterval,
+			final int maxNumCells )
+	{
 		final RandomAccessibleInterval< T > img = source.getSource( timepoint, mipmapIndex );
 		if ( VolatileCachedCellImg.class.isInstance( img ) )
 		{
@@ -805,26 +1216,141 @@ public class MultiResolutionRenderer
 				final CacheHints d = cellImg.getDefaultCacheHints();
 				hints = new CacheHints( LoadingStrategy.VOLATILE, d.getQueuePriority(), false );
 			}
+			if ( plan( viewerState, viewerTransform, timepoint, source, screenScaleTransform, mipmapIndex, cellImg, screenInterval ) == 0 )
+				return 0;
 			cellImg.setCacheHints( hints );
-			final int[] cellDimensions = new int[ 3 ];
-			cellImg.getCellGrid().cellDimensions( cellDimensions );
-			final long[] dimensions = new long[ 3 ];
-			cellImg.dimensions( dimensions );
-			final RandomAccess< ? > cellsRandomAccess = cellImg.getCells().randomAccess();
-
-			final Interpolation interpolation = viewerState.getInterpolation();
-
-			final AffineTransform3D sourceToScreen = new AffineTransform3D();
-			viewerState.getViewerTransform( sourceToScreen );
-			final AffineTransform3D sourceTransform = new AffineTransform3D();
-			source.getSourceTransform( timepoint, mipmapIndex, sourceTransform );
-			sourceToScreen.concatenate( sourceTransform );
-			sourceToScreen.preConcatenate( screenScaleTransform );
-
-			Prefetcher.fetchCells( sourceToScreen, cellDimensions, dimensions, screenInterval, interpolation, cellsRandomAccess );
+			return prefetcher.fetch( cellImg.getCells().randomAccess(), maxNumCells );
+		}
+		return 0;
+	}
+
+	/**
+	 * @return the mipmap level to load for the given source in every frame of
+	 *         the current animation.
+	 */
+	private int getAnimationLevel( final ViewerState viewerState, final AffineTransform3D screenScaleTransform, final int sourceIndex )
+	{
+		Integer level = animationLevels.get( sourceIndex );
+		if ( level == null )
+		{
+			level = viewerState.getBestMipMapLevel( screenScaleTransform, sourceIndex );
+			animationLevels.put( sourceIndex, level );
+		}
+		return level;
+	}
+
+	/**
+	 * Replace the render hints of the given levels for an animation frame:
+	 * the level nearest to {@code animationLevel} is loaded with lowest queue
+	 * priority, all other levels are only used as far as they are cached.
+	 */
+	private static void setAnimationRenderHints( final List< Level > levels, final int animationLevel, final int maxPriority )
+	{
+		Level loaded = null;
+		for ( final Level l : levels )
+			if ( loaded == null || Math.abs( l.getMipmapLevel() - animationLevel ) < Math.abs( loaded.getMipmapLevel() - animationLevel ) )
+				loaded = l;
+		final CacheHints load = new CacheHints( LoadingStrategy.VOLATILE, maxPriority, false );
+		final CacheHints dontLoad = new CacheHints( LoadingStrategy.DONTLOAD, maxPriority, false );
+		for ( int i = 0; i < levels.size(); ++i )
+		{
+			final Level l = levels.get( i );
+			levels.set( i, new Level( l.getMipmapLevel(), l.getRenderOrder(), l.getPrefetchOrder(), l == loaded ? load : dontLoad, l.getPrefetchCacheHints() ) );
+		}
+	}
+
+	/**
+	 * Enqueue the cells visible at the end of the current animation, at full
+	 * screen resolution, with top queue priority: first the coarsest level,
+	 * so that the final view is complete, then the best level.
+	 */
+	private < T > void prefetchAnimationTarget( final ViewerState viewerState, final Source< T > source )
+	{
+		final int timepoint = viewerState.getCurrentTimepoint();
+		if ( !source.isPresent( timepoint ) )
+			return;
+		final AffineTransform3D screenScaleTransform = screenScaleTransforms[ 0 ];
+		final AffineTransform3D screenTransform = animationTarget.copy();
+		screenTransform.preConcatenate( screenScaleTransform );
+		final int bestLevel = MipmapTransforms.getBestMipMapLevel( screenTransform, source, timepoint );
+		final int coarsestLevel = source.getNumMipmapLevels() - 1;
+		final CacheHints topPriority = new CacheHints( LoadingStrategy.VOLATILE, 0, false );
+		final Dimensions screenInterval = screenImages[ 0 ][ 0 ];
+		prefetch( viewerState, animationTarget, timepoint, source, screenScaleTransform, coarsestLevel, topPriority, screenInterval, Integer.MAX_VALUE );
+		if ( bestLevel != coarsestLevel )
+			prefetch( viewerState, animationTarget, timepoint, source, screenScaleTransform, bestLevel, topPriority, screenInterval, Integer.MAX_VALUE );
+	}
+
+	/**
+	 * Tell the cache of the given source which timepoint is displayed (see
+	 * {@link VolatileCachedCellImg#markCurrentTimepoint()}).
+	 */
+	private static < T > void markCurrentTimepoint( final Source< T > source, final int timepoint )
+	{
+		if ( !source.isPresent( timepoint ) )
+			return;
+		final RandomAccessibleInterval< T > img = source.getSource( timepoint, source.getNumMipmapLevels() - 1 );
+		if ( VolatileCachedCellImg.class.isInstance( img ) )
+			( ( VolatileCachedCellImg< ?, ? > ) img ).markCurrentTimepoint();
+	}
+
+	/**
+	 * Record the use of the cells of the given source level that are visible
+	 * in the current frame (see {@link VolatileCachedCellImg#recordUse(long)}).
+	 */
+	private < T > void recordUse(
+			final ViewerState viewerState,
+			final Source< T > source,
+			final AffineTransform3D screenScaleTransform,
+			final int mipmapIndex,
+			final Dimensions screenInterval )
+	{
+		final int timepoint = viewerState.getCurrentTimepoint();
+		final RandomAccessibleInterval< T > img = source.getSource( timepoint, mipmapIndex );
+		if ( VolatileCachedCellImg.class.isInstance( img ) )
+		{
+			final VolatileCachedCellImg< ?, ? > cellImg = ( VolatileCachedCellImg< ?, ? > ) img;
+			if ( !cellImg.isRecordingUse() )
+				return;
+			viewerState.getViewerTransform( prefetchViewerTransform );
+			if ( plan( viewerState, prefetchViewerTransform, timepoint, source, screenScaleTransform, mipmapIndex, cellImg, screenInterval ) > 0 )
+				prefetcher.forEachPlannedCell( cellImg.getCellGrid().getGridDimensions(), cellImg::recordUse );
 		}
 	}
 
+	/**
+	 * Plan the cells of {@code cellImg} (the given source level and
+	 * timepoint) that are visible with the given viewer transform.
+	 *
+	 * @return the number of planned cells.
+	 */
+	private < T > long plan(
+			final ViewerState viewerState,
+			final AffineTransform3D viewerTransform,
+			final int timepoint,
+			final Source< T > source,
+			final AffineTransform3D screenScaleTransform,
+			final int mipmapIndex,
+			final VolatileCachedCellImg< ?, ? > cellImg,
+			final Dimensions screenInterval )
+	{
+		cellImg.getCellGrid().cellDimensions( prefetchCellDimensions );
+		cellImg.dimensions( prefetchDimensions );
+
+		final Interpolation interpolation = viewerState.getInterpolation();
+
+		prefetchSourceToScreen.set( viewerTransform );
+		source.getSourceTransform( timepoint, mipmapIndex, prefetchSourceTransform );
+		prefetchSourceToScreen.concatenate( prefetchSourceTransform );
+		prefetchSourceToScreen.preConcatenate( screenScaleTransform );
+
+		// screenScaleTransform only scales and translates
+		prefetcher.setFocus(
+				screenScaleTransform.get( 0, 0 ) * prefetchFocusX + screenScaleTransform.get( 0, 3 ),
+				screenScaleTransform.get( 1, 1 ) * prefetchFocusY + screenScaleTransform.get( 1, 3 ) );
+		return prefetcher.plan( prefetchSourceToScreen, prefetchCellDimensions, prefetchDimensions, screenInterval, interpolation );
+	}
+
 	private static TransformAwareRenderTarget wrapTransformAwareRenderTarget( final RenderTarget t )
 	{
 		if ( t instanceof TransformAwareRenderTarget )
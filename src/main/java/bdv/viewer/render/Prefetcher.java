@@ -29,13 +29,36 @@
  */
 package bdv.viewer.render;
 
+import java.util.function.LongConsumer;
+
 import net.imglib2.Dimensions;
 import net.imglib2.RandomAccess;
-import net.imglib2.RealPoint;
 import net.imglib2.img.cell.CellImg;
 import net.imglib2.realtransform.AffineTransform3D;
+import bdv.img.cache.FairShareFetchQueues;
 import bdv.viewer.Interpolation;
 
+/**
+ * Determines the cells of a source level that will be needed for rendering to
+ * the screen, and accesses them so that they are enqueued for loading.
+ * <p>
+ * Planning is analytic: for every row of cells along the source X axis, the
+ * range of cells that intersect the screen slab is computed from the
+ * projection of the row start and the projected cell step, instead of
+ * projecting every cell. The cell ranges are collected first (see
+ * {@link #plan(AffineTransform3D, int[], long[], Dimensions, Interpolation)})
+ * and then accessed in one batch ({@link #fetch(RandomAccess, int)}).
+ * <p>
+ * Cells are accessed in order of their rank: cells near the {@link #setFocus(double, double)
+ * focus} (by default the screen center) that lie completely on the screen
+ * come first, cells that are far from the focus or mostly outside the screen
+ * last. The rank is passed on as {@link FairShareFetchQueues#setSubPriority(int)
+ * sub-priority}, so that the region the user is looking at is loaded first.
+ * <p>
+ * A {@link Prefetcher} instance can be reused for any number of sources and
+ * levels. Apart from occasionally growing its buffer of cell ranges, it does
+ * not allocate. It is not thread-safe.
+ */
 public class Prefetcher
 {
 	/**
@@ -56,18 +79,71 @@ public class Prefetcher
 	 */
 	public static void fetchCells( final AffineTransform3D sourceToScreen, final int[] cellDimensions, final long[] dimensions, final Dimensions screenInterval,  final Interpolation interpolation, final RandomAccess< ? > cellsRandomAccess )
 	{
-		new Prefetcher().scan( sourceToScreen, cellDimensions, dimensions, screenInterval, interpolation, cellsRandomAccess );
+		fetchCells( sourceToScreen, cellDimensions, dimensions, screenInterval, interpolation, cellsRandomAccess, Integer.MAX_VALUE );
 	}
 
-	private Prefetcher()
-	{}
+	/**
+	 * Access at most {@code maxNumCells} cells that will be needed for
+	 * rendering to the screen.
+	 *
+	 * @param sourceToScreen
+	 *            source-to-screen transform
+	 * @param cellDimensions
+	 *            standard size of a source cell
+	 * @param dimensions
+	 *            dimensions of the source {@link CellImg}
+	 * @param screenInterval
+	 *            the interval of the screen that will be rendered
+	 * @param interpolation
+	 *            the interpolation method
+	 * @param cellsRandomAccess
+	 *            access to the source cells
+	 * @param maxNumCells
+	 *            maximum number of cells to access
+	 * @return the number of cells accessed
+	 */
+	public static int fetchCells( final AffineTransform3D sourceToScreen, final int[] cellDimensions, final long[] dimensions, final Dimensions screenInterval,  final Interpolation interpolation, final RandomAccess< ? > cellsRandomAccess, final int maxNumCells )
+	{
+		final Prefetcher prefetcher = new Prefetcher();
+		prefetcher.plan( sourceToScreen, cellDimensions, dimensions, screenInterval, interpolation );
+		return prefetcher.fetch( cellsRandomAccess, maxNumCells );
+	}
+
+	private static final double eps = 0.0000001;
+
+	private static final int NUM_RANKS = FairShareFetchQueues.NUM_SUB_PRIORITIES;
+
+	/**
+	 * How much the distance to the focus contributes to the rank, as opposed
+	 * to the fraction of the cell that is outside the screen.
+	 */
+	private static final double FOCUS_DISTANCE_WEIGHT = 0.75;
 
 	/**
-	 * The transformed vector in screen coordinate when moving by by one cell in
-	 * X direction.
+	 * Planned cell ranges, 4 ints per range: first cell X, last cell X, cell
+	 * Y, cell Z.
+	 */
+	private int[] ranges = new int[ 4 * 256 ];
+
+	private int numRanges = 0;
+
+	private long numPlannedCells = 0;
+
+	/**
+	 * Source-to-screen transform as row-major 3x4 matrix.
+	 */
+	private final double[] m = new double[ 12 ];
+
+	/**
+	 * The transformed vectors in screen coordinates when moving by one cell
+	 * in X, Y, and Z direction.
 	 */
 	private final double[] xStep = new double[ 3 ];
 
+	private final double[] yStep = new double[ 3 ];
+
+	private final double[] zStep = new double[ 3 ];
+
 	/**
 	 * The min of the bounding box of a cell under the current transform and
 	 * interpolation method, as seen from the min corner of the cell.
@@ -80,10 +156,79 @@ public class Prefetcher
 	 */
 	private final double[] offsetPos = new double[ 3 ];
 
-	private static final double eps = 0.0000001;
+	/**
+	 * Bounds for the projected cell min corner, such that the cell intersects
+	 * the screen slab.
+	 */
+	private final double[] lower = new double[ 3 ];
+
+	private final double[] upper = new double[ 3 ];
+
+	private final int[] minCell = new int[ 3 ];
+
+	private final int[] maxCell = new int[ 3 ];
+
+	private final double[] tmp = new double[ 3 ];
 
 	/**
-	 * Access cells that will be needed for rendering to the screen.
+	 * Range of cell indices, narrowed by
+	 * {@link #restrictRange(double, double, double, double, int)}.
+	 */
+	private int rangeStart;
+
+	private int rangeStop;
+
+	private final double[] tmpScreen = new double[ 3 ];
+
+	/**
+	 * Focus in screen coordinates, {@code NaN} for the screen center.
+	 */
+	private double focusX = Double.NaN;
+
+	private double focusY = Double.NaN;
+
+	/**
+	 * Focus and screen size of the current plan.
+	 */
+	private double planFocusX, planFocusY, planWidth, planHeight;
+
+	/**
+	 * 1 / distance from the focus to the farthest screen corner.
+	 */
+	private double invFocusRadius;
+
+	/**
+	 * Rank of every planned cell, in plan order.
+	 */
+	private byte[] ranks = new byte[ 1024 ];
+
+	private final int[] rankCounts = new int[ NUM_RANKS ];
+
+	/**
+	 * Create a reusable prefetcher.
+	 */
+	public Prefetcher()
+	{}
+
+	/**
+	 * Set the point of the screen the user is looking at (e.g., the mouse
+	 * position). Cells near it are accessed first. Applies to subsequent
+	 * plans.
+	 *
+	 * @param x
+	 *            X screen coordinate, or {@code NaN} for the screen center.
+	 * @param y
+	 *            Y screen coordinate, or {@code NaN} for the screen center.
+	 */
+	public void setFocus( final double x, final double y )
+	{
+		focusX = x;
+		focusY = y;
+	}
+
+	/**
+	 * Determine the cells that will be needed for rendering to the screen.
+	 * Replaces the previous plan.
 	 *
 	 * @param sourceToScreen
 	 *            source-to-screen transform
@@ -95,191 +240,326 @@ public class Prefetcher
 	 *            the interval of the screen that will be rendered
 	 * @param interpolation
 	 *            the interpolation method
-	 * @param cellsRandomAccess
-	 *            access to the source cells
+	 * @return the number of planned cells
 	 */
-	private void scan( final AffineTransform3D sourceToScreen, final int[] cellDimensions, final long[] dimensions, final Dimensions screenInterval, final Interpolation interpolation, final RandomAccess< ? > cellsRandomAccess )
+	public long plan( final AffineTransform3D sourceToScreen, final int[] cellDimensions, final long[] dimensions, final Dimensions screenInterval, final Interpolation interpolation )
 	{
-		final RealPoint pSource = new RealPoint( 3 );
-		final RealPoint pScreen = new RealPoint( 3 );
-		final int[] minCell = new int[ 3 ];
-		final int[] maxCell = new int[ 3 ];
-		final int w = ( int ) screenInterval.dimension( 0 );
-		final int h = ( int ) screenInterval.dimension( 1 );
+		numRanges = 0;
+		numPlannedCells = 0;
+
+		final double w = screenInterval.dimension( 0 );
+		final double h = screenInterval.dimension( 1 );
+		planWidth = w;
+		planHeight = h;
+		planFocusX = Double.isNaN( focusX ) ? w / 2 : Math.max( 0, Math.min( focusX, w ) );
+		planFocusY = Double.isNaN( focusY ) ? h / 2 : Math.max( 0, Math.min( focusY, h ) );
+		final double rx = Math.max( planFocusX, w - planFocusX );
+		final double ry = Math.max( planFocusY, h - planFocusY );
+		invFocusRadius = rx + ry > 0 ? 1 / Math.sqrt( rx * rx + ry * ry ) : 0;
 
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 4; ++c )
+				m[ r * 4 + c ] = sourceToScreen.get( r, c );
 		for ( int d = 0; d < 3; ++d )
-			maxCell[ d ] = ( int ) ( ( dimensions[ d ] - 1 ) / cellDimensions[ d ] );
+		{
+			xStep[ d ] = m[ d * 4 ] * cellDimensions[ 0 ];
+			yStep[ d ] = m[ d * 4 + 1 ] * cellDimensions[ 1 ];
+			zStep[ d ] = m[ d * 4 + 2 ] * cellDimensions[ 2 ];
+		}
 
-		// compute bounding box
-		final RealPoint[] screenCorners = new RealPoint[ 4 ];
-		screenCorners[ 0 ] = new RealPoint( 0d, 0d, 0d );
-		screenCorners[ 1 ] = new RealPoint( w, 0d, 0d );
-		screenCorners[ 2 ] = new RealPoint( w, h, 0d );
-		screenCorners[ 3 ] = new RealPoint( 0d, h, 0d );
-		final RealPoint sourceCorner = new RealPoint( 3 );
-		final double[] bbMin = new double[] { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
-		final double[] bbMax = new double[] { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		// bounding box of the screen rectangle in source coordinates
+		for ( int d = 0; d < 3; ++d )
+		{
+			minCell[ d ] = Integer.MAX_VALUE;
+			maxCell[ d ] = ( int ) ( ( dimensions[ d ] - 1 ) / cellDimensions[ d ] );
+			lower[ d ] = Double.POSITIVE_INFINITY;
+			upper[ d ] = Double.NEGATIVE_INFINITY;
+		}
 		for ( int i = 0; i < 4; ++i )
 		{
-			sourceToScreen.applyInverse( sourceCorner, screenCorners[ i ] );
+			tmpScreen[ 0 ] = ( i == 1 || i == 2 ) ? w : 0;
+			tmpScreen[ 1 ] = ( i >= 2 ) ? h : 0;
+			tmpScreen[ 2 ] = 0;
+			sourceToScreen.applyInverse( tmp, tmpScreen );
 			for ( int d = 0; d < 3; ++d )
 			{
-				final double p = sourceCorner.getDoublePosition( d );
-				if ( p < bbMin[ d ] )
-					bbMin[ d ] = p;
-				if ( p > bbMax[ d ] )
-					bbMax[ d ] = p;
+				lower[ d ] = Math.min( lower[ d ], tmp[ d ] );
+				upper[ d ] = Math.max( upper[ d ], tmp[ d ] );
 			}
 		}
 		for ( int d = 0; d < 3; ++d )
 		{
-			minCell[ d ] = Math.min( maxCell[ d ], Math.max( ( int ) bbMin[ d ] / cellDimensions[ d ] - 1, 0 ) );
-			maxCell[ d ] = Math.max( 0, Math.min( ( int ) bbMax[ d ] / cellDimensions[ d ] + 1, maxCell[ d ] ) );
+			final int max = maxCell[ d ];
+			minCell[ d ] = Math.min( max, Math.max( ( int ) Math.floor( lower[ d ] / cellDimensions[ d ] ) - 1, 0 ) );
+			maxCell[ d ] = Math.max( 0, Math.min( ( int ) Math.floor( upper[ d ] / cellDimensions[ d ] ) + 1, max ) );
 		}
 
-		checkProtoCell( cellDimensions, sourceToScreen, interpolation );
-		getXStep( cellDimensions, sourceToScreen );
+		checkProtoCell( cellDimensions, interpolation );
 
-		pSource.setPosition( ( minCell[ 2 ] - 1 ) * cellDimensions[ 2 ], 2 );
-		for ( cellsRandomAccess.setPosition( minCell[ 2 ], 2 ); cellsRandomAccess.getIntPosition( 2 ) <= maxCell[ 2 ]; cellsRandomAccess.fwd( 2 ) )
+		// bounds for the projected cell min corner
+		lower[ 0 ] = -offsetPos[ 0 ];
+		upper[ 0 ] = w - offsetNeg[ 0 ];
+		lower[ 1 ] = -offsetPos[ 1 ];
+		upper[ 1 ] = h - offsetNeg[ 1 ];
+		lower[ 2 ] = -offsetPos[ 2 ];
+		upper[ 2 ] = -offsetNeg[ 2 ];
+
+		// restrict the z range, then for every z the y range, to rows that
+		// may intersect the screen slab for some x (and y)
+		rangeStart = minCell[ 2 ];
+		rangeStop = maxCell[ 2 ];
+		for ( int d = 0; d < 3; ++d )
+			restrictRange( m[ d * 4 + 3 ],
+					extent( xStep[ d ], minCell[ 0 ], maxCell[ 0 ], false ) + extent( yStep[ d ], minCell[ 1 ], maxCell[ 1 ], false ),
+					extent( xStep[ d ], minCell[ 0 ], maxCell[ 0 ], true ) + extent( yStep[ d ], minCell[ 1 ], maxCell[ 1 ], true ),
+					zStep[ d ], d );
+		final int zStart = rangeStart;
+		final int zStop = rangeStop;
+		for ( int z = zStart; z <= zStop; ++z )
 		{
-			pSource.move( cellDimensions[ 2 ], 2 );
-			pSource.setPosition( ( minCell[ 1 ] - 1 ) * cellDimensions[ 1 ], 1 );
-			for ( cellsRandomAccess.setPosition( minCell[ 1 ], 1 ); cellsRandomAccess.getIntPosition( 1 ) <= maxCell[ 1 ]; cellsRandomAccess.fwd( 1 ) )
+			rangeStart = minCell[ 1 ];
+			rangeStop = maxCell[ 1 ];
+			for ( int d = 0; d < 3; ++d )
+				restrictRange( m[ d * 4 + 3 ] + z * zStep[ d ],
+						extent( xStep[ d ], minCell[ 0 ], maxCell[ 0 ], false ),
+						extent( xStep[ d ], minCell[ 0 ], maxCell[ 0 ], true ),
+						yStep[ d ], d );
+			for ( int y = rangeStart; y <= rangeStop; ++y )
 			{
-				pSource.move( cellDimensions[ 1 ], 1 );
-
-				// find first and last cell that hits z
-				pSource.setPosition( minCell[ 0 ] * cellDimensions[ 0 ], 0 );
-				sourceToScreen.apply( pSource, pScreen );
-				final double z0 = pScreen.getDoublePosition( 2 );
-				int nStart = 0;
-				int nStop = 0;
-				if ( xStep[ 2 ] > eps )
+				// projected min corner of cell (0, y, z)
+				int start = minCell[ 0 ];
+				int stop = maxCell[ 0 ];
+				for ( int d = 0; d < 3 && start <= stop; ++d )
 				{
-					nStart = minCell[ 0 ] + Math.max( 0, ( int ) Math.ceil( - ( z0 + offsetPos[ 2 ] ) / xStep[ 2 ] ) );
-					if ( nStart > maxCell[ 0 ] )
-						continue;
-					nStop = Math.min( maxCell[ 0 ], minCell[ 0 ] + ( int ) Math.floor( - ( z0 + offsetNeg[ 2 ] ) / xStep[ 2 ] ) );
-					if ( nStop < minCell[ 0 ] )
-						continue;
-				}
-				else if ( xStep[ 2 ] < - eps )
-				{
-					nStart = minCell[ 0 ] + Math.max( 0, ( int ) Math.ceil( - ( z0 + offsetNeg[ 2 ] ) / xStep[ 2 ] ) );
-					if ( nStart > maxCell[ 0 ] )
-						continue;
-					nStop = Math.min( maxCell[ 0 ], minCell[ 0 ] + ( int ) Math.floor( - ( z0 + offsetPos[ 2 ] ) / xStep[ 2 ] ) );
-					if ( nStop < minCell[ 0 ] )
-						continue;
-				}
-				else
-				{
-					if ( z0 + offsetNeg[ 2 ] > 0 || z0 + offsetPos[ 2 ] < 0 )
-						continue;
-					nStart = minCell[ 0 ];
-					nStop = maxCell[ 0 ];
-				}
-
-				pSource.setPosition( nStart * cellDimensions[ 0 ], 0 );
-				for ( cellsRandomAccess.setPosition( nStart, 0 ); cellsRandomAccess.getIntPosition( 0 ) <= nStop; cellsRandomAccess.fwd( 0 ) )
-				{
-					sourceToScreen.apply( pSource, pScreen );
-					final double x = pScreen.getDoublePosition( 0 );
-					final double y = pScreen.getDoublePosition( 1 );
-					if (    ( x + offsetPos[ 0 ] >= 0 ) &&
-							( x + offsetNeg[ 0 ] < w ) &&
-							( y + offsetPos[ 1 ] >= 0 ) &&
-							( y + offsetNeg[ 1 ] < h ) )
+					final double p = m[ d * 4 + 3 ] + y * yStep[ d ] + z * zStep[ d ];
+					final double s = xStep[ d ];
+					if ( s > eps )
 					{
-						cellsRandomAccess.get();
+						start = Math.max( start, ( int ) Math.ceil( ( lower[ d ] - p ) / s ) );
+						stop = Math.min( stop, ( int ) Math.floor( ( upper[ d ] - p ) / s ) );
 					}
-					pSource.move( cellDimensions[ 0 ], 0 );
+					else if ( s < -eps )
+					{
+						start = Math.max( start, ( int ) Math.ceil( ( upper[ d ] - p ) / s ) );
+						stop = Math.min( stop, ( int ) Math.floor( ( lower[ d ] - p ) / s ) );
+					}
+					else if ( p < lower[ d ] || p > upper[ d ] )
+						stop = start - 1;
 				}
+				if ( start <= stop )
+					addRange( start, stop, y, z );
 			}
 		}
+		return numPlannedCells;
 	}
 
 	/**
-	 * Get the transformed vector in screen coordinate when moving by
-	 * cellStep[0] in X direction.
+	 * Restrict [{@link #rangeStart}, {@link #rangeStop}] to the indices
+	 * {@code n} for which {@code p + n * step + o} is within the bounds of
+	 * dimension {@code d} for some {@code o} in [{@code oMin}, {@code oMax}].
 	 */
-	private void getXStep( final int[] cellStep, final AffineTransform3D sourceToScreen )
+	private void restrictRange( final double p, final double oMin, final double oMax, final double step, final int d )
 	{
-		final RealPoint p0 = new RealPoint( 3 );
-		final RealPoint p1 = new RealPoint( 3 );
-		p1.setPosition( cellStep[ 0 ], 0 );
-		final RealPoint s0 = new RealPoint( 3 );
-		final RealPoint s1 = new RealPoint( 3 );
-		sourceToScreen.apply( p0, s0 );
-		sourceToScreen.apply( p1, s1 );
-		for ( int d = 0; d < 3; ++d )
-			xStep[ d ] = s1.getDoublePosition( d ) - s0.getDoublePosition( d );
+		final double lo = lower[ d ] - oMax - p;
+		final double hi = upper[ d ] - oMin - p;
+		if ( step > eps )
+		{
+			rangeStart = Math.max( rangeStart, ( int ) Math.ceil( lo / step ) );
+			rangeStop = Math.min( rangeStop, ( int ) Math.floor( hi / step ) );
+		}
+		else if ( step < -eps )
+		{
+			rangeStart = Math.max( rangeStart, ( int ) Math.ceil( hi / step ) );
+			rangeStop = Math.min( rangeStop, ( int ) Math.floor( lo / step ) );
+		}
+		else if ( lo > 0 || hi < 0 )
+			rangeStop = rangeStart - 1;
 	}
 
 	/**
-	 * Get the bounding box of a cell under the current transform and
-	 * interpolation method. Set {@link #offsetNeg} and {@link #offsetPos} as
-	 * seen from the min corner of the cell.
+	 * @return the min (or max) of {@code n * step} for {@code n} in
+	 *         [{@code min}, {@code max}].
+	 */
+	private static double extent( final double step, final int min, final int max, final boolean upperBound )
+	{
+		final double a = min * step;
+		final double b = max * step;
+		return upperBound ? Math.max( a, b ) : Math.min( a, b );
+	}
+
+	/**
+	 * Access the planned cells (at most {@code maxNumCells}), most urgent rank
+	 * first. Within a rank, cells are accessed in the order in which they
+	 * were planned.
 	 *
-	 * <p>
-	 * The box <em>(0,0,0)-cellDims</em> is projected to screen coordinates
-	 * (padded for interpolation). The bounding box in screen coordinates with
-	 * respect to the projected cell origin <em>(0,0,0)</em> is computed and
-	 * stored in {@link #offsetNeg} and {@link #offsetPos}.
+	 * @param cellsRandomAccess
+	 *            access to the source cells
+	 * @param maxNumCells
+	 *            maximum number of cells to access
+	 * @return the number of cells accessed
 	 */
-	private void checkProtoCell( final int[] cellDims, final AffineTransform3D sourceToScreen, final Interpolation interpolation )
+	public int fetch( final RandomAccess< ? > cellsRandomAccess, final int maxNumCells )
 	{
-		final RealPoint pSource = new RealPoint( 3 );
-		final RealPoint pScreenAnchor = new RealPoint( 3 );
-		sourceToScreen.apply( pSource, pScreenAnchor );
-
-		final RealPoint[] pScreen = new RealPoint[ 8 ];
-		final double[] cellMin = new double[ 3 ];
-		final double[] cellSize = new double[] { cellDims[ 0 ], cellDims[ 1 ], cellDims[ 2 ] };
-		if ( interpolation == Interpolation.NEARESTNEIGHBOR )
+		if ( numPlannedCells == 0 || maxNumCells <= 0 )
+			return 0;
+		rankCells();
+		int remaining = maxNumCells;
+		try
 		{
-			for ( int d = 0; d < 3; ++d )
+			for ( int rank = 0; rank < NUM_RANKS && remaining > 0; ++rank )
 			{
-				cellMin[ d ] -= 0.5;
-				cellSize[ d ] -= 0.5;
+				if ( rankCounts[ rank ] == 0 )
+					continue;
+				FairShareFetchQueues.setSubPriority( rank );
+				int k = 0;
+				for ( int i = 0; i < numRanges && remaining > 0; ++i )
+				{
+					final int o = 4 * i;
+					for ( int x = ranges[ o ]; x <= ranges[ o + 1 ] && remaining > 0; ++x, ++k )
+					{
+						if ( ranks[ k ] != rank )
+							continue;
+						cellsRandomAccess.setPosition( x, 0 );
+						cellsRandomAccess.setPosition( ranges[ o + 2 ], 1 );
+						cellsRandomAccess.setPosition( ranges[ o + 3 ], 2 );
+						cellsRandomAccess.get();
+						--remaining;
+					}
+				}
 			}
 		}
-		else // Interpolation.NLINEAR
+		finally
 		{
-			for ( int d = 0; d < 3; ++d )
-				cellMin[ d ] -= 1;
+			FairShareFetchQueues.setSubPriority( 0 );
 		}
-		int i = 0;
-		for ( int z = 0; z < 2; ++z )
+		return maxNumCells - remaining;
+	}
+
+	/**
+	 * Compute the {@link #ranks} of all planned cells, and count the cells
+	 * of each rank.
+	 * <p>
+	 * The rank combines the screen distance of the projected cell center from
+	 * the focus (relative to the farthest screen corner), and the fraction of
+	 * the projected cell bounding box that lies outside the screen.
+	 */
+	private void rankCells()
+	{
+		if ( ranks.length < numPlannedCells )
+			ranks = new byte[ ( int ) Math.max( numPlannedCells, 2L * ranks.length ) ];
+		for ( int r = 0; r < NUM_RANKS; ++r )
+			rankCounts[ r ] = 0;
+
+		// projected cell center, as seen from the projected cell min corner
+		final double cx = 0.5 * ( xStep[ 0 ] + yStep[ 0 ] + zStep[ 0 ] );
+		final double cy = 0.5 * ( xStep[ 1 ] + yStep[ 1 ] + zStep[ 1 ] );
+		final double bw = offsetPos[ 0 ] - offsetNeg[ 0 ];
+		final double bh = offsetPos[ 1 ] - offsetNeg[ 1 ];
+		final double invArea = bw * bh > 0 ? 1 / ( bw * bh ) : 0;
+
+		int k = 0;
+		for ( int i = 0; i < numRanges; ++i )
 		{
-			pSource.setPosition( ( z == 0 ) ? cellMin[ 2 ] : cellSize[ 2 ], 2 );
-			for ( int y = 0; y < 2; ++y )
+			final int o = 4 * i;
+			final int y = ranges[ o + 2 ];
+			final int z = ranges[ o + 3 ];
+			final double px = m[ 3 ] + y * yStep[ 0 ] + z * zStep[ 0 ];
+			final double py = m[ 7 ] + y * yStep[ 1 ] + z * zStep[ 1 ];
+			for ( int x = ranges[ o ]; x <= ranges[ o + 1 ]; ++x, ++k )
 			{
-				pSource.setPosition( ( y == 0 ) ? cellMin[ 1 ] : cellSize[ 1 ], 1 );
-				for ( int x = 0; x < 2; ++x )
-				{
-					pSource.setPosition( ( x == 0 ) ? cellMin[ 0 ] : cellSize[ 0 ], 0 );
-					pScreen[ i ] = new RealPoint( 3 );
-					sourceToScreen.apply( pSource, pScreen[ i++ ] );
-				}
+				final double minX = px + x * xStep[ 0 ];
+				final double minY = py + x * xStep[ 1 ];
+
+				final double dx = minX + cx - planFocusX;
+				final double dy = minY + cy - planFocusY;
+				final double distance = Math.min( 1, Math.sqrt( dx * dx + dy * dy ) * invFocusRadius );
+
+				final double visibleW = Math.min( minX + offsetPos[ 0 ], planWidth ) - Math.max( minX + offsetNeg[ 0 ], 0 );
+				final double visibleH = Math.min( minY + offsetPos[ 1 ], planHeight ) - Math.max( minY + offsetNeg[ 1 ], 0 );
+				final double visible = invArea == 0 ? 1 : Math.max( 0, Math.min( 1, Math.max( 0, visibleW ) * Math.max( 0, visibleH ) * invArea ) );
+
+				final double score = FOCUS_DISTANCE_WEIGHT * distance + ( 1 - FOCUS_DISTANCE_WEIGHT ) * ( 1 - visible );
+				final int rank = Math.min( NUM_RANKS - 1, ( int ) ( score * NUM_RANKS ) );
+				ranks[ k ] = ( byte ) rank;
+				++rankCounts[ rank ];
 			}
 		}
+	}
+
+	/**
+	 * Pass the flattened index of every planned cell to {@code action}, in
+	 * the order in which the cells were planned.
+	 *
+	 * @param gridDimensions
+	 *            dimensions of the cell grid
+	 * @param action
+	 *            receives the flattened cell indices
+	 */
+	public void forEachPlannedCell( final long[] gridDimensions, final LongConsumer action )
+	{
+		for ( int i = 0; i < numRanges; ++i )
+		{
+			final int o = 4 * i;
+			final long rowIndex = gridDimensions[ 0 ] * ( ranges[ o + 2 ] + gridDimensions[ 1 ] * ranges[ o + 3 ] );
+			for ( int x = ranges[ o ]; x <= ranges[ o + 1 ]; ++x )
+				action.accept( rowIndex + x );
+		}
+	}
 
+	/**
+	 * @return the number of cells in the current plan.
+	 */
+	public long getNumPlannedCells()
+	{
+		return numPlannedCells;
+	}
+
+	private void addRange( final int start, final int stop, final int y, final int z )
+	{
+		if ( 4 * numRanges == ranges.length )
+		{
+			final int[] grown = new int[ 2 * ranges.length ];
+			System.arraycopy( ranges, 0, grown, 0, ranges.length );
+			ranges = grown;
+		}
+		final int o = 4 * numRanges++;
+		ranges[ o ] = start;
+		ranges[ o + 1 ] = stop;
+		ranges[ o + 2 ] = y;
+		ranges[ o + 3 ] = z;
+		numPlannedCells += stop - start + 1;
+	}
+
+	/**
+	 * Get the bounding box of a cell under the current transform and
+	 * interpolation method. Set {@link #offsetNeg} and {@link #offsetPos} as
+	 * seen from the min corner of the cell.
+	 *
+	 * <p>
+	 * The box <em>(0,0,0)-cellDims</em> is projected to screen coordinates
+	 * (padded for interpolation). The bounding box in screen coordinates with
+	 * respect to the projected cell origin <em>(0,0,0)</em> is computed and
+	 * stored in {@link #offsetNeg} and {@link #offsetPos}. Only the linear
+	 * part of the transform matters for this.
+	 */
+	private void checkProtoCell( final int[] cellDims, final Interpolation interpolation )
+	{
+		final double pad = ( interpolation == Interpolation.NEARESTNEIGHBOR ) ? 0.5 : 1;
 		for ( int d = 0; d < 3; ++d )
 		{
-			double min = pScreen[ 0 ].getDoublePosition( d );
-			double max = pScreen[ 0 ].getDoublePosition( d );
-			for ( i = 1; i < 8; ++i )
+			double min = 0;
+			double max = 0;
+			for ( int c = 0; c < 3; ++c )
 			{
-				final double p = pScreen[ i ].getDoublePosition( d );
-				if ( p < min )
-					min = p;
-				if ( p > max )
-					max = p;
+				final double cellMin = -pad;
+				final double cellMax = ( interpolation == Interpolation.NEARESTNEIGHBOR ) ? cellDims[ c ] - 0.5 : cellDims[ c ];
+				final double a = m[ d * 4 + c ] * cellMin;
+				final double b = m[ d * 4 + c ] * cellMax;
+				min += Math.min( a, b );
+				max += Math.max( a, b );
 			}
-			offsetNeg[ d ] = min - pScreenAnchor.getDoublePosition( d );
-			offsetPos[ d ] = max - pScreenAnchor.getDoublePosition( d );
+			offsetNeg[ d ] = min;
+			offsetPos[ d ] = max;
 		}
 	}
 }
@@ -0,0 +1,138 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.viewer.render;
+
+import java.util.Random;
+
+import bdv.viewer.Interpolation;
+import net.imglib2.FinalDimensions;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Measure how long {@link Prefetcher} planning takes per frame, depending on
+ * the number of sources.
+ * <p>
+ * Every synthetic source has {@link #NUM_LEVELS} mipmap levels of a large
+ * volume with 32<sup>3</sup> cells, and is placed with a random offset in a
+ * common global space. Each frame rotates the view slightly and plans all
+ * levels of all sources, as the renderer does for a new frame. No cells are
+ * accessed, so only planning is measured.
+ * <p>
+ * Usage: {@code PrefetcherBenchmark [numSources...]}
+ */
+public class PrefetcherBenchmark
+{
+	private static final int NUM_LEVELS = 7;
+
+	private static final int NUM_FRAMES = 200;
+
+	private static final long[] LEVEL0_DIMENSIONS = new long[] { 8192, 8192, 2048 };
+
+	private static final int[] CELL_DIMENSIONS = new int[] { 32, 32, 32 };
+
+	private static final FinalDimensions SCREEN = new FinalDimensions( 1600, 1000 );
+
+	/**
+	 * @return mean planning time per frame in nanoseconds, and planned cells
+	 *         per frame.
+	 */
+	private static long[] run( final int numSources )
+	{
+		final Random random = new Random( 1 );
+		final AffineTransform3D[][] sourceTransforms = new AffineTransform3D[ numSources ][ NUM_LEVELS ];
+		final long[][] dimensions = new long[ NUM_LEVELS ][ 3 ];
+		for ( int l = 0; l < NUM_LEVELS; ++l )
+			for ( int d = 0; d < 3; ++d )
+				dimensions[ l ][ d ] = Math.max( 1, LEVEL0_DIMENSIONS[ d ] >> l );
+		for ( int s = 0; s < numSources; ++s )
+		{
+			final double ox = random.nextDouble() * 2000 - 1000;
+			final double oy = random.nextDouble() * 2000 - 1000;
+			final double oz = random.nextDouble() * 200 - 100;
+			for ( int l = 0; l < NUM_LEVELS; ++l )
+			{
+				final AffineTransform3D t = new AffineTransform3D();
+				t.scale( 1 << l );
+				t.translate( ox, oy, oz );
+				sourceTransforms[ s ][ l ] = t;
+			}
+		}
+
+		final Prefetcher prefetcher = new Prefetcher();
+		final AffineTransform3D viewerTransform = new AffineTransform3D();
+		final AffineTransform3D sourceToScreen = new AffineTransform3D();
+		long nanos = 0;
+		long cells = 0;
+		for ( int frame = 0; frame < NUM_FRAMES; ++frame )
+		{
+			viewerTransform.identity();
+			viewerTransform.translate( -4096, -4096, -1024 );
+			viewerTransform.rotate( 1, 0.3 + 0.002 * frame );
+			viewerTransform.rotate( 0, 0.2 );
+			viewerTransform.translate( 800, 500, 0 );
+
+			final long t0 = System.nanoTime();
+			for ( int s = 0; s < numSources; ++s )
+			{
+				for ( int l = 0; l < NUM_LEVELS; ++l )
+				{
+					sourceToScreen.set( viewerTransform );
+					sourceToScreen.concatenate( sourceTransforms[ s ][ l ] );
+					cells += prefetcher.plan( sourceToScreen, CELL_DIMENSIONS, dimensions[ l ], SCREEN, Interpolation.NLINEAR );
+				}
+			}
+			nanos += System.nanoTime() - t0;
+		}
+		return new long[] { nanos / NUM_FRAMES, cells / NUM_FRAMES };
+	}
+
+	public static void main( final String[] args )
+	{
+		final int[] numSources;
+		if ( args.length > 0 )
+		{
+			numSources = new int[ args.length ];
+			for ( int i = 0; i < args.length; ++i )
+				numSources[ i ] = Integer.parseInt( args[ i ] );
+		}
+		else
+			numSources = new int[] { 1, 10, 50, 100, 200, 500 };
+
+		// warm-up
+		run( 100 );
+
+		for ( final int n : numSources )
+		{
+			final long[] r = run( n );
+			System.out.println( String.format( "%4d sources x %d levels: %8.3f ms per frame, %7d cells planned",
+					n, NUM_LEVELS, r[ 0 ] / 1e6, r[ 1 ] ) );
+		}
+	}
+}
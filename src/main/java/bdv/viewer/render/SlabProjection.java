@@ -0,0 +1,243 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.viewer.render;
+
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.Volatile;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Projection of a slab of the viewer space onto the screen. Instead of the
+ * {@code z=0} plane of a source, each screen pixel shows the maximum, sum, or
+ * mean of the source along the viewing ray from {@code zMin} to {@code zMax}
+ * (in viewer coordinates).
+ * <p>
+ * Rays are sampled once per source voxel of the mipmap level that is rendered,
+ * so coarser levels are projected with fewer samples. Values are accumulated
+ * before conversion to ARGB. Only sources of {@link RealType} (including
+ * volatile real types) are projected, other sources show the {@code z=0}
+ * plane.
+ * <p>
+ * For volatile sources, a projected pixel is valid only if all samples along
+ * its ray are valid. This way, invalid pixels are filled from coarser levels
+ * by the {@link VolatileHierarchyProjector}, like for single slices.
+ */
+public class SlabProjection
+{
+	public enum Mode
+	{
+		MAX,
+		SUM,
+		MEAN
+	}
+
+	private final Mode mode;
+
+	private final double zMin;
+
+	private final double zMax;
+
+	/**
+	 * @param mode
+	 *            how samples along a ray are combined.
+	 * @param zMin
+	 *            near end of the slab (in viewer coordinates).
+	 * @param zMax
+	 *            far end of the slab (in viewer coordinates).
+	 */
+	public SlabProjection( final Mode mode, final double zMin, final double zMax )
+	{
+		this.mode = mode;
+		this.zMin = Math.min( zMin, zMax );
+		this.zMax = Math.max( zMin, zMax );
+	}
+
+	/**
+	 * Create a maximum-intensity projection of a slab of the given
+	 * thickness, centered on the {@code z=0} plane.
+	 */
+	public static SlabProjection max( final double thickness )
+	{
+		return new SlabProjection( Mode.MAX, -thickness / 2, thickness / 2 );
+	}
+
+	public Mode getMode()
+	{
+		return mode;
+	}
+
+	public double getZMin()
+	{
+		return zMin;
+	}
+
+	public double getZMax()
+	{
+		return zMax;
+	}
+
+	/**
+	 * Project a source.
+	 *
+	 * @param screenSource
+	 *            the source, transformed to screen coordinates.
+	 * @param sourceToScreen
+	 *            the transform from source to screen coordinates.
+	 * @param type
+	 *            an instance of the source type.
+	 * @return the projected source, or {@code null} if the source type is not
+	 *         a {@link RealType}.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public < T > RandomAccessible< T > project( final RealRandomAccessible< T > screenSource, final AffineTransform3D sourceToScreen, final T type )
+	{
+		if ( !( type instanceof RealType ) )
+			return null;
+		return new Projected( ( RealRandomAccessible ) screenSource, getStep( sourceToScreen ), ( RealType ) type );
+	}
+
+	/**
+	 * @return the step along screen z, such that the source position moves by
+	 *         at most one voxel in every dimension.
+	 */
+	private static double getStep( final AffineTransform3D sourceToScreen )
+	{
+		final AffineTransform3D screenToSource = sourceToScreen.inverse();
+		double max = 0;
+		for ( int d = 0; d < 3; ++d )
+			max = Math.max( max, Math.abs( screenToSource.get( d, 2 ) ) );
+		return max > 0 ? 1.0 / max : 1.0;
+	}
+
+	private class Projected< T extends RealType< T > > implements RandomAccessible< T >
+	{
+		private final RealRandomAccessible< T > source;
+
+		private final double step;
+
+		private final int numSteps;
+
+		private final T type;
+
+		Projected( final RealRandomAccessible< T > source, final double step, final T type )
+		{
+			this.source = source;
+			this.step = step;
+			this.numSteps = 1 + ( int ) Math.floor( ( zMax - zMin ) / step );
+			this.type = type;
+		}
+
+		@Override
+		public int numDimensions()
+		{
+			return source.numDimensions();
+		}
+
+		@Override
+		public RandomAccess< T > randomAccess()
+		{
+			return new ProjectedAccess();
+		}
+
+		@Override
+		public RandomAccess< T > randomAccess( final Interval interval )
+		{
+			return randomAccess();
+		}
+
+		private class ProjectedAccess extends Point implements RandomAccess< T >
+		{
+			private final RealRandomAccess< T > access;
+
+			private final T value;
+
+			private final boolean isVolatile;
+
+			ProjectedAccess()
+			{
+				super( source.numDimensions() );
+				access = source.realRandomAccess();
+				value = type.createVariable();
+				isVolatile = value instanceof Volatile;
+			}
+
+			@Override
+			public T get()
+			{
+				access.setPosition( position[ 0 ], 0 );
+				access.setPosition( position[ 1 ], 1 );
+				boolean valid = true;
+				double acc = mode == Mode.MAX ? Double.NEGATIVE_INFINITY : 0;
+				for ( int i = 0; i < numSteps; ++i )
+				{
+					access.setPosition( zMin + i * step, 2 );
+					final T t = access.get();
+					if ( isVolatile && !( ( Volatile< ? > ) t ).isValid() )
+					{
+						// a coarser level will be shown instead
+						valid = false;
+						break;
+					}
+					final double v = t.getRealDouble();
+					if ( mode == Mode.MAX )
+						acc = Math.max( acc, v );
+					else
+						acc += v;
+				}
+				if ( mode == Mode.MEAN )
+					acc /= numSteps;
+				value.setReal( Math.max( value.getMinValue(), Math.min( value.getMaxValue(), acc ) ) );
+				if ( isVolatile )
+					( ( Volatile< ? > ) value ).setValid( valid );
+				return value;
+			}
+
+			@Override
+			public ProjectedAccess copy()
+			{
+				final ProjectedAccess a = new ProjectedAccess();
+				a.setPosition( this );
+				return a;
+			}
+
+			@Override
+			public ProjectedAccess copyRandomAccess()
+			{
+				return copy();
+			}
+		}
+	}
+}
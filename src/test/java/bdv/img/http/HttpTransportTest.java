@@ -0,0 +1,269 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.img.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests {@link HttpTransport} against an in-process HTTP server.
+ */
+public class HttpTransportTest
+{
+	private static final byte[] BODY = "0123456789abcdef".getBytes();
+
+	private HttpServer server;
+
+	private ExecutorService serverExecutor;
+
+	/**
+	 * Released when the test is done, to let blocked handlers finish.
+	 */
+	private CountDownLatch release;
+
+	private final AtomicInteger numFlakyRequests = new AtomicInteger();
+
+	private final AtomicInteger numMissingRequests = new AtomicInteger();
+
+	@Before
+	public void startServer() throws IOException
+	{
+		release = new CountDownLatch( 1 );
+		server = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+		serverExecutor = Executors.newCachedThreadPool();
+		server.setExecutor( serverExecutor );
+		server.createContext( "/ok", exchange -> respond( exchange, 200, BODY ) );
+		server.createContext( "/missing", exchange -> {
+			numMissingRequests.incrementAndGet();
+			respond( exchange, 404, new byte[ 0 ] );
+		} );
+		server.createContext( "/flaky", exchange -> {
+			// fail the first two requests
+			if ( numFlakyRequests.incrementAndGet() <= 2 )
+				respond( exchange, 503, new byte[ 0 ] );
+			else
+				respond( exchange, 200, BODY );
+		} );
+		server.createContext( "/slow", exchange -> {
+			try
+			{
+				release.await( 10, TimeUnit.SECONDS );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+			respond( exchange, 200, BODY );
+		} );
+		server.start();
+	}
+
+	@After
+	public void stopServer()
+	{
+		release.countDown();
+		server.stop( 0 );
+		serverExecutor.shutdownNow();
+	}
+
+	private static void respond( final HttpExchange exchange, final int status, final byte[] body ) throws IOException
+	{
+		try
+		{
+			exchange.getRequestBody().close();
+			exchange.sendResponseHeaders( status, body.length == 0 ? -1 : body.length );
+			if ( body.length > 0 )
+			{
+				final OutputStream out = exchange.getResponseBody();
+				out.write( body );
+				out.close();
+			}
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+
+	private URL url( final String path ) throws IOException
+	{
+		return new URL( "http://localhost:" + server.getAddress().getPort() + path );
+	}
+
+	private static byte[] readAll( final InputStream in ) throws IOException
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buf = new byte[ 1024 ];
+		int l;
+		while ( ( l = in.read( buf ) ) >= 0 )
+			out.write( buf, 0, l );
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testGet() throws IOException, InterruptedException
+	{
+		final HttpTransport transport = new HttpTransport( 2, 1000, 1000, 2, 10 );
+		final URL url = url( "/ok" );
+		for ( int i = 0; i < 3; ++i )
+			assertArrayEquals( BODY, transport.get( url, HttpTransportTest::readAll ) );
+
+		final HostMetrics metrics = transport.getMetrics( url );
+		assertEquals( 3, metrics.getNumRequests() );
+		assertEquals( 3 * BODY.length, metrics.getNumBytes() );
+		assertEquals( 0, metrics.getNumFailures() );
+	}
+
+	@Test
+	public void testRetryServerError() throws IOException, InterruptedException
+	{
+		final HttpTransport transport = new HttpTransport( 2, 1000, 1000, 2, 10 );
+		final URL url = url( "/flaky" );
+		assertArrayEquals( BODY, transport.get( url, HttpTransportTest::readAll ) );
+		assertEquals( 3, numFlakyRequests.get() );
+		assertEquals( 2, transport.getMetrics( url ).getNumRetries() );
+	}
+
+	@Test
+	public void testRetriesExhausted() throws IOException, InterruptedException
+	{
+		final HttpTransport transport = new HttpTransport( 2, 1000, 1000, 1, 10 );
+		final URL url = url( "/flaky" );
+		try
+		{
+			transport.get( url, HttpTransportTest::readAll );
+			fail( "expected HttpStatusException" );
+		}
+		catch ( final HttpTransport.HttpStatusException e )
+		{
+			assertEquals( 503, e.getStatusCode() );
+		}
+		assertEquals( 2, numFlakyRequests.get() );
+		assertEquals( 1, transport.getMetrics( url ).getNumFailures() );
+	}
+
+	@Test
+	public void testClientErrorNotRetried() throws IOException, InterruptedException
+	{
+		final HttpTransport transport = new HttpTransport( 2, 1000, 1000, 2, 10 );
+		try
+		{
+			transport.get( url( "/missing" ), HttpTransportTest::readAll );
+			fail( "expected HttpStatusException" );
+		}
+		catch ( final HttpTransport.HttpStatusException e )
+		{
+			assertEquals( 404, e.getStatusCode() );
+		}
+		assertEquals( 1, numMissingRequests.get() );
+	}
+
+	@Test
+	public void testReadTimeoutIsNotCancellation() throws IOException, InterruptedException
+	{
+		final HttpTransport transport = new HttpTransport( 2, 1000, 200, 0, 10 );
+		try
+		{
+			transport.get( url( "/slow" ), HttpTransportTest::readAll, RequestControl.HEDGED );
+			fail( "expected SocketTimeoutException" );
+		}
+		catch ( final HttpTransport.RequestCancelledException e )
+		{
+			fail( "read timeout reported as cancellation" );
+		}
+		catch ( final SocketTimeoutException e )
+		{
+			// expected
+		}
+	}
+
+	@Test
+	public void testCancel() throws IOException, InterruptedException
+	{
+		final HttpTransport transport = new HttpTransport( 2, 1000, 10000, 2, 10 );
+		final URL url = url( "/slow" );
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( 100 );
+		final RequestControl control = new RequestControl()
+		{
+			@Override
+			public boolean isCancelled()
+			{
+				return false;
+			}
+
+			@Override
+			public long getDeadlineNanos()
+			{
+				return deadline;
+			}
+
+			@Override
+			public boolean isHedgingAllowed()
+			{
+				return false;
+			}
+		};
+		final long t0 = System.nanoTime();
+		try
+		{
+			transport.get( url, HttpTransportTest::readAll, control );
+			fail( "expected RequestCancelledException" );
+		}
+		catch ( final HttpTransport.RequestCancelledException e )
+		{
+			// expected
+		}
+		// the request is abandoned without waiting for the response
+		assertFalse( System.nanoTime() - t0 > TimeUnit.SECONDS.toNanos( 5 ) );
+		assertEquals( 1, transport.getMetrics( url ).getNumCancelled() );
+	}
+}